@@ -0,0 +1,187 @@
+#!/usr/bin/env python3
+#
+# Times the library database access patterns of SQLiteBooksDatabase on a
+# synthetic books.db: per-book loading (a statement per book and per list,
+# with ids pasted into the SQL text) against set-based loading (a fixed
+# number of parameterized IN queries), and the indexed lookups added in
+# schema version 22.
+#
+# usage: booksDbBenchmark.py [database file] [number of books]
+# The database is created (with a fixed random seed) if it does not exist.
+
+import os, random, sqlite3, sys, time
+
+SCHEMA = [
+	"CREATE TABLE Files(file_id INTEGER PRIMARY KEY, name TEXT NOT NULL, parent_id INTEGER REFERENCES Files(file_id), size INTEGER, mtime INTEGER, CONSTRAINT Files_Unique UNIQUE (name, parent_id))",
+	"CREATE TABLE Books(book_id INTEGER PRIMARY KEY, encoding TEXT, language TEXT, title TEXT NOT NULL, file_id INTEGER UNIQUE NOT NULL REFERENCES Files(file_id), `exists` INTEGER DEFAULT 1)",
+	"CREATE TABLE Authors(author_id INTEGER PRIMARY KEY, name TEXT NOT NULL, sort_key TEXT NOT NULL, CONSTRAINT Authors_Unique UNIQUE (name, sort_key))",
+	"CREATE TABLE BookAuthor(author_id INTEGER NOT NULL REFERENCES Authors(author_id), book_id INTEGER NOT NULL REFERENCES Books(book_id), author_index INTEGER NOT NULL, CONSTRAINT BookAuthor_Unique0 UNIQUE (author_id, book_id), CONSTRAINT BookAuthor_Unique1 UNIQUE (book_id, author_index))",
+	"CREATE TABLE Series(series_id INTEGER PRIMARY KEY, name TEXT UNIQUE NOT NULL)",
+	"CREATE TABLE BookSeries(series_id INTEGER NOT NULL REFERENCES Series(series_id), book_id INTEGER NOT NULL UNIQUE REFERENCES Books(book_id), book_index TEXT)",
+	"CREATE TABLE Tags(tag_id INTEGER PRIMARY KEY, name TEXT NOT NULL, parent_id INTEGER REFERENCES Tags(tag_id), CONSTRAINT Tags_Unique UNIQUE (name, parent_id))",
+	"CREATE TABLE BookTag(tag_id INTEGER NOT NULL REFERENCES Tags(tag_id), book_id INTEGER NOT NULL REFERENCES Books(book_id), CONSTRAINT BookTag_Unique UNIQUE (tag_id, book_id))",
+	"CREATE TABLE RecentBooks(book_index INTEGER PRIMARY KEY, book_id INTEGER REFERENCES Books(book_id))",
+	"CREATE TABLE Favorites(book_id INTEGER UNIQUE NOT NULL REFERENCES Books(book_id))",
+	"CREATE TABLE Bookmarks(bookmark_id INTEGER PRIMARY KEY, book_id INTEGER NOT NULL REFERENCES Books(book_id), bookmark_text TEXT NOT NULL, creation_time INTEGER NOT NULL, modification_time INTEGER, access_time INTEGER, access_counter INTEGER NOT NULL, paragraph INTEGER NOT NULL, word INTEGER NOT NULL, char INTEGER NOT NULL, model_id TEXT, visible INTEGER DEFAULT 1)",
+	"CREATE TABLE BookState(book_id INTEGER UNIQUE NOT NULL REFERENCES Books(book_id), paragraph INTEGER NOT NULL, word INTEGER NOT NULL, char INTEGER NOT NULL)",
+	"CREATE INDEX BookAuthor_BookIndex ON BookAuthor (book_id)",
+	"CREATE INDEX BookTag_BookIndex ON BookTag (book_id)",
+	"CREATE INDEX BookSeries_BookIndex ON BookSeries (book_id)",
+]
+
+# schema version 22, see SQLiteBooksDatabase.updateTables21()
+INDEXES = [
+	"CREATE INDEX IF NOT EXISTS Books_ExistsIndex ON Books (`exists`)",
+	"CREATE INDEX IF NOT EXISTS Files_ParentIndex ON Files (parent_id)",
+	"CREATE INDEX IF NOT EXISTS BookSeries_SeriesIndex ON BookSeries (series_id, book_index)",
+	"CREATE INDEX IF NOT EXISTS Bookmarks_BookIndex ON Bookmarks (book_id, visible)",
+	"ANALYZE",
+]
+DROP_INDEXES = [
+	"DROP INDEX IF EXISTS Books_ExistsIndex",
+	"DROP INDEX IF EXISTS Files_ParentIndex",
+	"DROP INDEX IF EXISTS BookSeries_SeriesIndex",
+	"DROP INDEX IF EXISTS Bookmarks_BookIndex",
+	"DROP TABLE IF EXISTS sqlite_stat1",
+]
+
+MAX_IDS_PER_QUERY = 500
+
+def populate(db, count):
+	rnd = random.Random(20130401)
+	for sql in SCHEMA:
+		db.execute(sql)
+	db.execute("INSERT INTO Files (file_id,name,parent_id) VALUES (1,'/sdcard',NULL)")
+	db.execute("INSERT INTO Files (file_id,name,parent_id) VALUES (2,'Books',1)")
+	directories = []
+	for i in range(count // 50):
+		cur = db.execute("INSERT INTO Files (name,parent_id) VALUES (?,2)", ("dir%d" % i,))
+		directories.append(cur.lastrowid)
+	authors = count // 5
+	db.executemany("INSERT INTO Authors (author_id,name,sort_key) VALUES (?,?,?)",
+		((i + 1, "Author %d" % i, "author %d" % i) for i in range(authors)))
+	db.executemany("INSERT INTO Series (series_id,name) VALUES (?,?)",
+		((i + 1, "Series %d" % i) for i in range(count // 25)))
+	db.executemany("INSERT INTO Tags (tag_id,name,parent_id) VALUES (?,?,?)",
+		((i + 1, "Tag %d" % i, None if i < 30 else 1 + i % 30) for i in range(300)))
+	for i in range(count):
+		cur = db.execute("INSERT INTO Files (name,parent_id,size,mtime) VALUES (?,?,?,?)",
+			("book%d.fb2.zip" % i, rnd.choice(directories), rnd.randint(10000, 5000000), 1360000000000 + i))
+		db.execute("INSERT INTO Books (book_id,encoding,language,title,file_id) VALUES (?,?,?,?,?)",
+			(i + 1, "utf-8", rnd.choice(["en", "ru", "de"]), "Title %d" % rnd.randint(0, 10 * count), cur.lastrowid))
+		for j, a in enumerate(rnd.sample(range(authors), rnd.choice([1, 1, 1, 2, 3]))):
+			db.execute("INSERT INTO BookAuthor (author_id,book_id,author_index) VALUES (?,?,?)", (a + 1, i + 1, j))
+		for t in rnd.sample(range(300), rnd.randint(0, 3)):
+			db.execute("INSERT INTO BookTag (tag_id,book_id) VALUES (?,?)", (t + 1, i + 1))
+		if rnd.random() < 0.3:
+			db.execute("INSERT INTO BookSeries (series_id,book_id,book_index) VALUES (?,?,?)",
+				(rnd.randint(1, count // 25), i + 1, str(rnd.randint(1, 20))))
+	for i in range(count // 2):
+		db.execute("INSERT INTO Bookmarks (book_id,bookmark_text,creation_time,access_counter,paragraph,word,char,visible) VALUES (?,?,?,0,?,0,0,?)",
+			(rnd.randint(1, count), "text %d" % i, 1360000000000 + i, rnd.randint(0, 5000), 1 if rnd.random() < 0.8 else 0))
+	db.executemany("INSERT INTO RecentBooks (book_id) VALUES (?)", ((rnd.randint(1, count),) for i in range(12)))
+	db.executemany("INSERT OR IGNORE INTO Favorites (book_id) VALUES (?)", ((rnd.randint(1, count),) for i in range(200)))
+	db.commit()
+
+# one statement per book, per list and per directory level, ids in the SQL text
+def load_per_book(db, ids):
+	books = {}
+	for book_id in ids:
+		row = db.execute("SELECT file_id,title,encoding,language FROM Books WHERE book_id = %d" % book_id).fetchone()
+		if row is None:
+			continue
+		files = []
+		file_id = row[0]
+		while file_id is not None:
+			f = db.execute("SELECT name,size,parent_id,mtime FROM Files WHERE file_id = %d" % file_id).fetchone()
+			files.append(f[0])
+			file_id = f[2]
+		authors = db.execute("SELECT Authors.name,Authors.sort_key FROM BookAuthor INNER JOIN Authors ON Authors.author_id = BookAuthor.author_id WHERE BookAuthor.book_id = %d" % book_id).fetchall()
+		tags = db.execute("SELECT Tags.tag_id FROM BookTag INNER JOIN Tags ON Tags.tag_id = BookTag.tag_id WHERE BookTag.book_id = %d" % book_id).fetchall()
+		series = db.execute("SELECT Series.name,BookSeries.book_index FROM BookSeries INNER JOIN Series ON Series.series_id = BookSeries.series_id WHERE BookSeries.book_id = %d" % book_id).fetchone()
+		books[book_id] = (row, files, authors, tags, series)
+	return books
+
+def chunks(ids):
+	for start in range(0, len(ids), MAX_IDS_PER_QUERY):
+		part = ids[start:start + MAX_IDS_PER_QUERY]
+		yield "(" + ",".join("?" * len(part)) + ")", part
+
+# SQLiteBooksDatabase.loadBooks(Collection<Long>)
+def load_set_based(db, ids):
+	books = {}
+	file_ids = set()
+	for params, part in chunks(ids):
+		for row in db.execute("SELECT book_id,file_id,title,encoding,language FROM Books WHERE book_id IN " + params, part):
+			books[row[0]] = [row, [], [], None]
+			file_ids.add(row[1])
+	files = {}
+	level = list(file_ids)
+	while level:
+		parents = set()
+		for params, part in chunks(level):
+			for row in db.execute("SELECT file_id,name,parent_id,size,mtime FROM Files WHERE file_id IN " + params, part):
+				files[row[0]] = row
+				if row[2] is not None:
+					parents.add(row[2])
+		level = list(parents - set(files))
+	found = list(books)
+	for params, part in chunks(found):
+		for row in db.execute("SELECT BookAuthor.book_id,Authors.name,Authors.sort_key FROM BookAuthor INNER JOIN Authors ON Authors.author_id = BookAuthor.author_id WHERE BookAuthor.book_id IN " + params + " ORDER BY BookAuthor.book_id,BookAuthor.author_index", part):
+			books[row[0]][1].append(row[1:])
+		for row in db.execute("SELECT book_id,tag_id FROM BookTag WHERE book_id IN " + params, part):
+			books[row[0]][2].append(row[1])
+		for row in db.execute("SELECT BookSeries.book_id,Series.name,BookSeries.book_index FROM BookSeries INNER JOIN Series ON Series.series_id = BookSeries.series_id WHERE BookSeries.book_id IN " + params, part):
+			books[row[0]][3] = row[1:]
+	return books
+
+def measure(name, function, repeat=5):
+	function()
+	best = None
+	for i in range(repeat):
+		start = time.perf_counter()
+		result = function()
+		elapsed = time.perf_counter() - start
+		best = elapsed if best is None else min(best, elapsed)
+	print("  %-44s %9.2f ms" % (name, best * 1000))
+	return result
+
+def main():
+	path = sys.argv[1] if len(sys.argv) > 1 else "books-benchmark.db"
+	count = int(sys.argv[2]) if len(sys.argv) > 2 else 50000
+	if not os.path.exists(path):
+		print("creating %s with %d books" % (path, count))
+		db = sqlite3.connect(path)
+		populate(db, count)
+		db.close()
+	db = sqlite3.connect(path)
+	count = db.execute("SELECT COUNT(*) FROM Books").fetchone()[0]
+	rnd = random.Random(1)
+	recent = [r[0] for r in db.execute("SELECT book_id FROM RecentBooks ORDER BY book_index")]
+	favorites = [r[0] for r in db.execute("SELECT book_id FROM Favorites")]
+	sample = rnd.sample(range(1, count + 1), 5000)
+	everything = list(range(1, count + 1))
+
+	print("hydration, %d books in database" % count)
+	for name, ids in (("recent (%d)" % len(recent), recent), ("favorites (%d)" % len(favorites), favorites), ("random 5000", sample), ("all", everything)):
+		a = measure("per-book, " + name, lambda: load_per_book(db, ids), 1 if len(ids) > 1000 else 5)
+		b = measure("set-based, " + name, lambda: load_set_based(db, ids), 1 if len(ids) > 1000 else 5)
+		assert len(a) == len(b)
+
+	lookups = (
+		("books of a series", "SELECT book_id FROM BookSeries WHERE series_id = ? ORDER BY book_index", lambda: (rnd.randint(1, count // 25),)),
+		("bookmarks of a book", "SELECT bookmark_id FROM Bookmarks WHERE book_id = ? AND visible = 1", lambda: (rnd.randint(1, count),)),
+		("children of a directory", "SELECT file_id FROM Files WHERE parent_id = ?", lambda: (rnd.randint(3, 2 + count // 50),)),
+	)
+	for title, statements in (("lookups x200, schema 21", DROP_INDEXES), ("lookups x200, schema 22", INDEXES)):
+		for sql in statements:
+			db.execute(sql)
+		db.commit()
+		print(title)
+		for name, sql, args in lookups:
+			arguments = [args() for i in range(200)]
+			measure(name, lambda: [db.execute(sql, a).fetchall() for a in arguments])
+	db.close()
+
+if __name__ == "__main__":
+	main()
@@ -0,0 +1,61 @@
+package org.amse.ys.zip;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a shared file channel with positional reads; every stream has
+ * its own position, so streams over one channel can be used concurrently.
+ */
+final class FileChannelInputStream extends InputStream {
+	private final FileChannel myChannel;
+	private long myPosition;
+
+	FileChannelInputStream(FileChannel channel) {
+		myChannel = channel;
+	}
+
+	void seek(long position) {
+		myPosition = position;
+	}
+
+	@Override
+	public int available() throws IOException {
+		final long available = myChannel.size() - myPosition;
+		return available > 0 ? (int)Math.min(available, Integer.MAX_VALUE) : 0;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		final int ready = myChannel.read(ByteBuffer.wrap(b, off, len), myPosition);
+		if (ready > 0) {
+			myPosition += ready;
+		}
+		return ready;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte[] buffer = new byte[1];
+		return read(buffer, 0, 1) == 1 ? buffer[0] & 255 : -1;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		final long skipped = Math.min(n, Math.max(myChannel.size() - myPosition, 0));
+		myPosition += skipped;
+		return skipped;
+	}
+
+	@Override
+	public void close() {
+		// the channel is owned by ZipFile
+	}
+}
@@ -27,7 +27,9 @@ public class LocalFileHeader {
 	int ExtraLength;
 
 	public String FileName;
-	int DataOffset;
+	int DataOffset = -1;
+	// set for headers read from the central directory
+	int LocalHeaderOffset = -1;
 
     LocalFileHeader() {
     }
@@ -91,4 +93,19 @@ public class LocalFileHeader {
 		}
 		DataOffset = stream.offset();
     }
+
+	/**
+	 * For a header read from the central directory, finds the data offset
+	 * using lengths from the local file header (the extra field may differ)
+	 */
+	void readDataOffset(MyBufferedInputStream stream) throws IOException {
+		stream.setPosition(LocalHeaderOffset);
+		if (stream.read4Bytes() != FILE_HEADER_SIGNATURE) {
+			throw new ZipException("Local file header is not found for " + FileName);
+		}
+		stream.skip(22);
+		final int nameLength = stream.read2Bytes();
+		final int extraLength = stream.read2Bytes();
+		DataOffset = LocalHeaderOffset + 30 + nameLength + extraLength;
+	}
 }
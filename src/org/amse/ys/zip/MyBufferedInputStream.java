@@ -118,6 +118,13 @@ final class MyBufferedInputStream extends InputStream {
 		if (n <= 0) {
 			return;
 		}
+		if (myFileInputStream instanceof FileChannelInputStream) {
+			myCurrentPosition -= n;
+			((FileChannelInputStream)myFileInputStream).seek(myCurrentPosition);
+			myBytesReady = 0;
+			myPositionInBuffer = 0;
+			return;
+		}
 		myFileInputStream.close();
 		myFileInputStream = myStreamHolder.getInputStream();
 		myBytesReady = 0;
@@ -1,6 +1,9 @@
 package org.amse.ys.zip;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 public final class ZipFile {
@@ -8,18 +11,41 @@ public final class ZipFile {
 		InputStream getInputStream() throws IOException;
 	}
 
-	private static final class FileInputStreamHolder implements InputStreamHolder {
+	private static final class FileChannelHolder implements InputStreamHolder {
 		private final String myFilePath;
+		private FileChannel myChannel;
 
-		FileInputStreamHolder(String filePath) {
+		FileChannelHolder(String filePath) {
 			myFilePath = filePath;
 		}
 
+		synchronized FileChannel getChannel() throws IOException {
+			if (myChannel == null) {
+				myChannel = new RandomAccessFile(myFilePath, "r").getChannel();
+			}
+			return myChannel;
+		}
+
 		public InputStream getInputStream() throws IOException {
-			return new FileInputStream(myFilePath);
+			return new FileChannelInputStream(getChannel());
+		}
+
+		synchronized void close() {
+			if (myChannel != null) {
+				try {
+					myChannel.close();
+				} catch (IOException e) {
+				}
+				myChannel = null;
+			}
 		}
 	}
 
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+
 	private final InputStreamHolder myStreamHolder;
 	private final LinkedHashMap<String,LocalFileHeader> myFileHeaders = new LinkedHashMap<String,LocalFileHeader>() {
 		private static final long serialVersionUID = -4412796553514902113L;
@@ -36,16 +62,17 @@ public final class ZipFile {
 	};
 
 	private boolean myAllFilesAreRead;
+	private boolean myCentralDirectoryIsChecked;
 
 	public ZipFile(String filePath) {
-		this(new FileInputStreamHolder(filePath));
+		this(new FileChannelHolder(filePath));
 	}
 
 	public ZipFile(InputStreamHolder streamHolder) {
 		myStreamHolder = streamHolder;
 	}
 
-	public Collection<LocalFileHeader> headers() {
+	public synchronized Collection<LocalFileHeader> headers() {
 		try {
 			readAllHeaders();
 		} catch (IOException e) {
@@ -74,17 +101,20 @@ public final class ZipFile {
 		return false;
 	}
 
-	private void readAllHeaders() throws IOException {
+	private synchronized void readAllHeaders() throws IOException {
 		if (myAllFilesAreRead) {
 			return;
 		}
+		if (readCentralDirectory()) {
+			return;
+		}
 		myAllFilesAreRead = true;
 
+		// damaged archive or no random access: scan local file headers
 		MyBufferedInputStream baseStream = getBaseStream();
-		baseStream.setPosition(0);
-		myFileHeaders.clear();
-
 		try {
+			baseStream.setPosition(0);
+			myFileHeaders.clear();
 			while (baseStream.available() > 0) {
 				readFileHeader(baseStream, null);
 			}
@@ -93,6 +123,166 @@ public final class ZipFile {
 		}
 	}
 
+	private boolean readCentralDirectory() {
+		if (myCentralDirectoryIsChecked) {
+			return false;
+		}
+		myCentralDirectoryIsChecked = true;
+		if (!(myStreamHolder instanceof FileChannelHolder)) {
+			return false;
+		}
+		try {
+			if (readCentralDirectory(((FileChannelHolder)myStreamHolder).getChannel())) {
+				myAllFilesAreRead = true;
+				return true;
+			}
+		} catch (IOException e) {
+		}
+		return false;
+	}
+
+	private static ByteBuffer readBuffer(FileChannel channel, long position, int size) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) <= 0) {
+				throw new ZipException("unexpected end of file at position " + (position + buffer.position()));
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static int toInt(long value) throws ZipException {
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new ZipException("Archives larger than 2G are not supported");
+		}
+		return (int)value;
+	}
+
+	private static String readName(ByteBuffer buffer, int length) {
+		final char[] array = new char[length];
+		for (int i = 0; i < length; ++i) {
+			array[i] = (char)(buffer.get() & 0xFF);
+		}
+		return new String(array);
+	}
+
+	/**
+	 * Reads all headers from the central directory, Zip64 records included
+	 *
+	 * @return false if the end of central directory record is not found
+	 */
+	private boolean readCentralDirectory(FileChannel channel) throws IOException {
+		final long fileSize = channel.size();
+		if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE) {
+			return false;
+		}
+
+		// the record is followed by a comment of at most 0xFFFF bytes
+		final int tailSize = (int)Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+		final long tailStart = fileSize - tailSize;
+		final ByteBuffer tail = readBuffer(channel, tailStart, tailSize);
+		int eocd = -1;
+		for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; --i) {
+			if (tail.getInt(i) == LocalFileHeader.END_OF_CENTRAL_DIRECTORY_SIGNATURE &&
+				i + END_OF_CENTRAL_DIRECTORY_SIZE + (tail.getShort(i + 20) & 0xFFFF) == tailSize) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd == -1) {
+			return false;
+		}
+
+		long entriesNumber = tail.getShort(eocd + 10) & 0xFFFF;
+		long directorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+		long directoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+
+		final long eocdPosition = tailStart + eocd;
+		if (entriesNumber == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+			if (eocdPosition < 20) {
+				return false;
+			}
+			final ByteBuffer locator = readBuffer(channel, eocdPosition - 20, 20);
+			if (locator.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE) {
+				return false;
+			}
+			final ByteBuffer record = readBuffer(channel, locator.getLong(8), 56);
+			if (record.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+				return false;
+			}
+			entriesNumber = record.getLong(32);
+			directorySize = record.getLong(40);
+			directoryOffset = record.getLong(48);
+		}
+
+		if (directoryOffset + directorySize > eocdPosition) {
+			return false;
+		}
+
+		final ByteBuffer directory = readBuffer(channel, directoryOffset, toInt(directorySize));
+		final ArrayList<LocalFileHeader> headers = new ArrayList<LocalFileHeader>();
+		for (long i = 0; i < entriesNumber; ++i) {
+			if (directory.remaining() < 46 ||
+				directory.getInt() != LocalFileHeader.FOLDER_HEADER_SIGNATURE) {
+				return false;
+			}
+			final LocalFileHeader header = new LocalFileHeader();
+			header.Signature = LocalFileHeader.FOLDER_HEADER_SIGNATURE;
+			header.Version = directory.getInt();
+			header.Flags = directory.getShort() & 0xFFFF;
+			header.CompressionMethod = directory.getShort() & 0xFFFF;
+			header.ModificationTime = directory.getShort() & 0xFFFF;
+			header.ModificationDate = directory.getShort() & 0xFFFF;
+			header.CRC32 = directory.getInt();
+			long compressedSize = directory.getInt() & 0xFFFFFFFFL;
+			long uncompressedSize = directory.getInt() & 0xFFFFFFFFL;
+			header.NameLength = directory.getShort() & 0xFFFF;
+			header.ExtraLength = directory.getShort() & 0xFFFF;
+			final int commentLength = directory.getShort() & 0xFFFF;
+			directory.position(directory.position() + 8);
+			long localHeaderOffset = directory.getInt() & 0xFFFFFFFFL;
+			if (directory.remaining() < header.NameLength + header.ExtraLength + commentLength) {
+				return false;
+			}
+			header.FileName = readName(directory, header.NameLength);
+
+			final int extraEnd = directory.position() + header.ExtraLength;
+			while (directory.position() + 4 <= extraEnd) {
+				final int id = directory.getShort() & 0xFFFF;
+				final int size = directory.getShort() & 0xFFFF;
+				final int next = directory.position() + size;
+				if (id == ZIP64_EXTRA_FIELD_ID) {
+					if (uncompressedSize == 0xFFFFFFFFL && directory.position() + 8 <= next) {
+						uncompressedSize = directory.getLong();
+					}
+					if (compressedSize == 0xFFFFFFFFL && directory.position() + 8 <= next) {
+						compressedSize = directory.getLong();
+					}
+					if (localHeaderOffset == 0xFFFFFFFFL && directory.position() + 8 <= next) {
+						localHeaderOffset = directory.getLong();
+					}
+				}
+				directory.position(Math.min(next, extraEnd));
+			}
+			directory.position(extraEnd + commentLength);
+
+			header.CompressedSize = toInt(compressedSize);
+			header.UncompressedSize = toInt(uncompressedSize);
+			if (header.CompressionMethod == 0 && header.CompressedSize != header.UncompressedSize) {
+				header.CompressedSize = header.UncompressedSize;
+			}
+			header.LocalHeaderOffset = toInt(localHeaderOffset);
+			headers.add(header);
+		}
+
+		myFileHeaders.clear();
+		for (LocalFileHeader header : headers) {
+			myFileHeaders.put(header.FileName, header);
+		}
+		return true;
+	}
+
 	/**
 	 * Finds descriptor of the last header and installs sizes of files
 	 */
@@ -111,14 +301,57 @@ public final class ZipFile {
 	}
 
 	private final Queue<MyBufferedInputStream> myStoredStreams = new LinkedList<MyBufferedInputStream>();
+	// base streams taken by open entry streams and header reads
+	private int myStreamsInUse;
+	private boolean myIsClosed;
 
 	synchronized void storeBaseStream(MyBufferedInputStream baseStream) {
-		myStoredStreams.add(baseStream);
+		--myStreamsInUse;
+		if (myIsClosed) {
+			closeStream(baseStream);
+			if (myStreamsInUse == 0) {
+				releaseChannel();
+			}
+		} else {
+			myStoredStreams.add(baseStream);
+		}
 	}
 
 	synchronized MyBufferedInputStream getBaseStream() throws IOException {
 		MyBufferedInputStream baseStream = myStoredStreams.poll();
-		return (baseStream != null) ? baseStream : new MyBufferedInputStream(myStreamHolder);
+		if (baseStream == null) {
+			baseStream = new MyBufferedInputStream(myStreamHolder);
+		}
+		++myStreamsInUse;
+		return baseStream;
+	}
+
+	/**
+	 * Releases the file; entry streams that are still open keep it
+	 * until they are closed.
+	 */
+	public synchronized void close() {
+		myIsClosed = true;
+		for (MyBufferedInputStream baseStream : myStoredStreams) {
+			closeStream(baseStream);
+		}
+		myStoredStreams.clear();
+		if (myStreamsInUse == 0) {
+			releaseChannel();
+		}
+	}
+
+	private void releaseChannel() {
+		if (myStreamHolder instanceof FileChannelHolder) {
+			((FileChannelHolder)myStreamHolder).close();
+		}
+	}
+
+	private static void closeStream(MyBufferedInputStream baseStream) {
+		try {
+			baseStream.close();
+		} catch (IOException e) {
+		}
 	}
 
 	private ZipInputStream createZipInputStream(LocalFileHeader header) throws IOException {
@@ -141,7 +374,8 @@ public final class ZipFile {
 		return createZipInputStream(getHeader(entryName));
 	}
 
-	public LocalFileHeader getHeader(String entryName) throws IOException {
+	public synchronized LocalFileHeader getHeader(String entryName) throws IOException {
+		readCentralDirectory();
 		if (!myFileHeaders.isEmpty()) {
 			LocalFileHeader header = myFileHeaders.get(entryName);
 			if (header != null) {
@@ -153,8 +387,8 @@ public final class ZipFile {
 		}
 		// ready to read file header
 		MyBufferedInputStream baseStream = getBaseStream();
-		baseStream.setPosition(0);
 		try {
+			baseStream.setPosition(0);
 			while (baseStream.available() > 0 && !readFileHeader(baseStream, entryName)) {
 			}
 			final LocalFileHeader header = myFileHeaders.get(entryName);
@@ -11,8 +11,20 @@ class ZipInputStream extends InputStream {
     public ZipInputStream(ZipFile parent, LocalFileHeader header) throws IOException {
 		myParent = parent;
         myBaseStream = parent.getBaseStream();
-        myBaseStream.setPosition(header.DataOffset);
-        myDecompressor = Decompressor.init(myBaseStream, header);
+		boolean success = false;
+		try {
+			if (header.DataOffset == -1) {
+				header.readDataOffset(myBaseStream);
+			}
+			myBaseStream.setPosition(header.DataOffset);
+			myDecompressor = Decompressor.init(myBaseStream, header);
+			success = true;
+		} finally {
+			if (!success) {
+				myIsClosed = true;
+				parent.storeBaseStream(myBaseStream);
+			}
+		}
     }
 
 	@Override
@@ -39,6 +39,7 @@ import org.geometerplus.zlibrary.text.hyphenation.ZLTextHyphenator;
 
 import org.geometerplus.zlibrary.ui.android.R;
 import org.geometerplus.zlibrary.ui.android.application.ZLAndroidApplicationWindow;
+import org.geometerplus.zlibrary.ui.android.image.ZLAndroidImageManager;
 import org.geometerplus.zlibrary.ui.android.library.*;
 import org.geometerplus.zlibrary.ui.android.view.AndroidFontUtil;
 
@@ -436,6 +437,7 @@ public final class FBReader extends Activity {
 	@Override
 	public void onLowMemory() {
 		myFBReaderApp.onWindowClosing();
+		((ZLAndroidImageManager)ZLAndroidImageManager.Instance()).clearCache();
 		super.onLowMemory();
 	}
 
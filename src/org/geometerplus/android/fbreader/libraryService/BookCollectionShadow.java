@@ -38,6 +38,8 @@ import org.geometerplus.android.fbreader.api.TextPosition;
 public class BookCollectionShadow extends AbstractBookCollection implements ServiceConnection {
 	private Context myContext;
 	private volatile LibraryInterface myInterface;
+	// true if the service sends packed lists in SerializerUtil.BINARY_FORMAT
+	private volatile boolean myUsePackedLists;
 	private Runnable myOnBindAction;
 
 	private final BroadcastReceiver myReceiver = new BroadcastReceiver() {
@@ -103,6 +105,14 @@ public class BookCollectionShadow extends AbstractBookCollection implements Serv
 			return Collections.emptyList();
 		}
 		try {
+			if (myUsePackedLists) {
+				final List<Book> books = SerializerUtil.deserializeBookList(
+					myInterface.booksPacked(SerializerUtil.BINARY_FORMAT)
+				);
+				if (books != null) {
+					return books;
+				}
+			}
 			return SerializerUtil.deserializeBookList(myInterface.books());
 		} catch (RemoteException e) {
 			return Collections.emptyList();
@@ -114,6 +124,14 @@ public class BookCollectionShadow extends AbstractBookCollection implements Serv
 			return Collections.emptyList();
 		}
 		try {
+			if (myUsePackedLists) {
+				final List<Book> books = SerializerUtil.deserializeBookList(
+					myInterface.booksForPatternPacked(pattern, SerializerUtil.BINARY_FORMAT)
+				);
+				if (books != null) {
+					return books;
+				}
+			}
 			return SerializerUtil.deserializeBookList(myInterface.booksForPattern(pattern));
 		} catch (RemoteException e) {
 			return Collections.emptyList();
@@ -125,6 +143,14 @@ public class BookCollectionShadow extends AbstractBookCollection implements Serv
 			return Collections.emptyList();
 		}
 		try {
+			if (myUsePackedLists) {
+				final List<Book> books = SerializerUtil.deserializeBookList(
+					myInterface.recentBooksPacked(SerializerUtil.BINARY_FORMAT)
+				);
+				if (books != null) {
+					return books;
+				}
+			}
 			return SerializerUtil.deserializeBookList(myInterface.recentBooks());
 		} catch (RemoteException e) {
 			return Collections.emptyList();
@@ -136,12 +162,51 @@ public class BookCollectionShadow extends AbstractBookCollection implements Serv
 			return Collections.emptyList();
 		}
 		try {
+			if (myUsePackedLists) {
+				final List<Book> books = SerializerUtil.deserializeBookList(
+					myInterface.favoritesPacked(SerializerUtil.BINARY_FORMAT)
+				);
+				if (books != null) {
+					return books;
+				}
+			}
 			return SerializerUtil.deserializeBookList(myInterface.favorites());
 		} catch (RemoteException e) {
 			return Collections.emptyList();
 		}
 	}
 
+	public synchronized BookPage books(BookQuery query) {
+		if (myInterface == null) {
+			return new BookPage(query, 0, Collections.<BookSummary>emptyList());
+		}
+		if (myUsePackedLists) {
+			try {
+				final BookPage page = SerializerUtil.deserializePage(query, myInterface.booksPage(
+					query.FilterBy.name(), query.Value, query.OrderBy.name(),
+					query.Offset, query.Limit, SerializerUtil.BINARY_FORMAT
+				));
+				if (page != null) {
+					return page;
+				}
+			} catch (RemoteException e) {
+				return new BookPage(query, 0, Collections.<BookSummary>emptyList());
+			}
+		}
+
+		// the service cannot page; select on this side from the whole list
+		switch (query.FilterBy) {
+			default:
+				return query.apply(books());
+			case Favorites:
+				return query.apply(favorites());
+			case Recent:
+				return query.apply(recentBooks());
+			case Pattern:
+				return query.apply(books(query.Value));
+		}
+	}
+
 	public synchronized Book getRecentBook(int index) {
 		if (myInterface == null) {
 			return null;
@@ -270,8 +335,17 @@ public class BookCollectionShadow extends AbstractBookCollection implements Serv
 			return Collections.emptyList();
 		}
 		try {
+			final String serialized = SerializerUtil.serialize(book);
+			if (myUsePackedLists) {
+				final List<Bookmark> bookmarks = SerializerUtil.deserializeBookmarkList(
+					myInterface.invisibleBookmarksPacked(serialized, SerializerUtil.BINARY_FORMAT)
+				);
+				if (bookmarks != null) {
+					return bookmarks;
+				}
+			}
 			return SerializerUtil.deserializeBookmarkList(
-				myInterface.invisibleBookmarks(SerializerUtil.serialize(book))
+				myInterface.invisibleBookmarks(serialized)
 			);
 		} catch (RemoteException e) {
 			return Collections.emptyList();
@@ -283,6 +357,14 @@ public class BookCollectionShadow extends AbstractBookCollection implements Serv
 			return Collections.emptyList();
 		}
 		try {
+			if (myUsePackedLists) {
+				final List<Bookmark> bookmarks = SerializerUtil.deserializeBookmarkList(
+					myInterface.allBookmarksPacked(SerializerUtil.BINARY_FORMAT)
+				);
+				if (bookmarks != null) {
+					return bookmarks;
+				}
+			}
 			return SerializerUtil.deserializeBookmarkList(myInterface.allBookmarks());
 		} catch (RemoteException e) {
 			return Collections.emptyList();
@@ -312,6 +394,12 @@ public class BookCollectionShadow extends AbstractBookCollection implements Serv
 	// method from ServiceConnection interface
 	public synchronized void onServiceConnected(ComponentName name, IBinder service) {
 		myInterface = LibraryInterface.Stub.asInterface(service);
+		try {
+			final List<String> formats = myInterface.supportedFormats();
+			myUsePackedLists = formats != null && formats.contains(SerializerUtil.BINARY_FORMAT);
+		} catch (RemoteException e) {
+			myUsePackedLists = false;
+		}
 		if (myOnBindAction != null) {
 			myOnBindAction.run();
 			myOnBindAction = null;
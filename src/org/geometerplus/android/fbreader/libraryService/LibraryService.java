@@ -40,35 +40,36 @@ public class LibraryService extends Service {
 	static String BOOK_EVENT_ACTION = "fbreader.library-service.book-event";
 	static String BUILD_EVENT_ACTION = "fbreader.library-service.build-event";
 
+	// events are debounced and batched by BookCollection.rescan()
 	private static final class Observer extends FileObserver {
 		private static final int MASK =
 			MOVE_SELF | MOVED_TO | MOVED_FROM | DELETE_SELF | DELETE | CLOSE_WRITE | ATTRIB;
 
-		public Observer(String path) {
+		private final String myPath;
+		private final BookCollection myCollection;
+
+		public Observer(String path, BookCollection collection) {
 			super(path, MASK);
+			myPath = path;
+			myCollection = collection;
 		}
 
 		@Override
 		public void onEvent(int event, String path) {
 			event = event & ALL_EVENTS;
-			System.err.println("Event " + event + " on " + path);
 			switch (event) {
 				case MOVE_SELF:
-					// TODO: File(path) removed; stop watching (?)
+				case DELETE_SELF:
+					// the watched directory itself; watching is stopped by the system
+					myCollection.rescan(myPath);
 					break;
 				case MOVED_TO:
-					// TODO: File(path) removed; File(path) added
-					break;
 				case MOVED_FROM:
 				case DELETE:
-					// TODO: File(path) removed
-					break;
-				case DELETE_SELF:
-					// TODO: File(path) removed; watching is stopped automatically (?)
-					break;
 				case CLOSE_WRITE:
 				case ATTRIB:
-					// TODO: File(path) changed (added, removed?)
+					// File(path) added, removed or changed
+					myCollection.rescan(path != null ? myPath + "/" + path : myPath);
 					break;
 				default:
 					System.err.println("Unexpected event " + event + " on " + path);
@@ -84,7 +85,7 @@ public class LibraryService extends Service {
 		LibraryImplementation() {
 			myCollection = null;//new BookCollection(SQLiteBooksDatabase.Instance(LibraryService.this));
 			//for (String path : myCollection.bookDirectories()) {
-			//	final Observer observer = new Observer(path);
+			//	final Observer observer = new Observer(path, myCollection);
 			//	observer.startWatching();
 			//	myFileObservers.add(observer);
 			//}
@@ -207,6 +208,61 @@ public class LibraryService extends Service {
 		public void deleteBookmark(String serialized) {
 			myCollection.deleteBookmark(SerializerUtil.deserializeBookmark(serialized));
 		}
+
+		public List<String> supportedFormats() {
+			return SerializerUtil.supportedFormats();
+		}
+
+		public byte[] booksPacked(String format) {
+			return packBooks(myCollection.books(), format);
+		}
+
+		public byte[] booksForPatternPacked(String pattern, String format) {
+			return packBooks(myCollection.books(pattern), format);
+		}
+
+		public byte[] recentBooksPacked(String format) {
+			return packBooks(myCollection.recentBooks(), format);
+		}
+
+		public byte[] favoritesPacked(String format) {
+			return packBooks(myCollection.favorites(), format);
+		}
+
+		public byte[] invisibleBookmarksPacked(String book, String format) {
+			return packBookmarks(
+				myCollection.invisibleBookmarks(SerializerUtil.deserializeBook(book)), format
+			);
+		}
+
+		public byte[] allBookmarksPacked(String format) {
+			return packBookmarks(myCollection.allBookmarks(), format);
+		}
+
+		public byte[] booksPage(String filter, String value, String order, int offset, int limit, String format) {
+			if (!SerializerUtil.BINARY_FORMAT.equals(format)) {
+				return null;
+			}
+			final BookQuery query;
+			try {
+				query = new BookQuery(
+					BookQuery.Filter.valueOf(filter), value, BookQuery.Order.valueOf(order), offset, limit
+				);
+			} catch (Exception e) {
+				return null;
+			}
+			return SerializerUtil.serializePage(myCollection.books(query));
+		}
+
+		private byte[] packBooks(List<Book> books, String format) {
+			return SerializerUtil.BINARY_FORMAT.equals(format)
+				? SerializerUtil.serializeBookListToBytes(books) : null;
+		}
+
+		private byte[] packBookmarks(List<Bookmark> bookmarks, String format) {
+			return SerializerUtil.BINARY_FORMAT.equals(format)
+				? SerializerUtil.serializeBookmarkListToBytes(bookmarks) : null;
+		}
 	}
 
 	private volatile LibraryImplementation myLibrary;
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.android.fbreader.libraryService;
+
+import java.util.*;
+
+// per-query call count and time, for the database report
+final class QueryStatistics {
+	private static final class Entry {
+		int Count;
+		long TotalNanos;
+		long MaxNanos;
+	}
+
+	private final TreeMap<String,Entry> myEntries = new TreeMap<String,Entry>();
+
+	synchronized void add(String query, long startNanos) {
+		final long time = System.nanoTime() - startNanos;
+		Entry entry = myEntries.get(query);
+		if (entry == null) {
+			entry = new Entry();
+			myEntries.put(query, entry);
+		}
+		++entry.Count;
+		entry.TotalNanos += time;
+		entry.MaxNanos = Math.max(entry.MaxNanos, time);
+	}
+
+	synchronized String report() {
+		final StringBuilder builder = new StringBuilder("Database queries (calls, total ms, avg us, max us):");
+		for (Map.Entry<String,Entry> e : myEntries.entrySet()) {
+			final Entry entry = e.getValue();
+			builder
+				.append("\n  ").append(e.getKey())
+				.append(": ").append(entry.Count)
+				.append(", ").append(entry.TotalNanos / 1000000)
+				.append(", ").append(entry.TotalNanos / 1000 / entry.Count)
+				.append(", ").append(entry.MaxNanos / 1000);
+		}
+		return builder.toString();
+	}
+}
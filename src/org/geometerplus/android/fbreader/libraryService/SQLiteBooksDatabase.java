@@ -19,6 +19,7 @@
 
 package org.geometerplus.android.fbreader.libraryService;
 
+import java.io.File;
 import java.util.*;
 import java.math.BigDecimal;
 
@@ -44,11 +45,26 @@ import org.geometerplus.android.util.SQLiteUtil;
 public final class SQLiteBooksDatabase extends BooksDatabase {
 	private final String myInstanceId;
 	private final SQLiteDatabase myDatabase;
+	private final QueryStatistics myStatistics = new QueryStatistics();
+	private final WriteBehindJournal myJournal;
 
 	public SQLiteBooksDatabase(Context context, String instanceId) {
 		myInstanceId = instanceId;
 		myDatabase = context.openOrCreateDatabase("books.db", Context.MODE_PRIVATE, null);
 		migrate(context);
+		myJournal = new WriteBehindJournal(
+			this, context.getDatabasePath("books.db").getParentFile(), "books.db-pending."
+		);
+		myJournal.replay();
+	}
+
+	@Override
+	public /*protected*/ void flushPendingWrites() {
+		myJournal.flush();
+	}
+
+	public String getWriteBehindReport() {
+		return myJournal.getReport();
 	}
 
 	public /*protected*/ void executeAsATransaction(Runnable actions) {
@@ -72,7 +88,7 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 
 	private void migrate(Context context) {
 		final int version = myDatabase.getVersion();
-		final int currentVersion = 20;
+		final int currentVersion = 23;
 		if (version >= currentVersion) {
 			return;
 		}
@@ -80,6 +96,7 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 			public void run() {
 				myDatabase.beginTransaction();
 
+				myFilesHaveModificationTime = myDatabase.getVersion() > 20;
 				switch (myDatabase.getVersion()) {
 					case 0:
 						createTables();
@@ -121,6 +138,12 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 						updateTables18();
 					case 19:
 						updateTables19();
+					case 20:
+						updateTables20();
+					case 21:
+						updateTables21();
+					case 22:
+						updateTables22();
 				}
 				myDatabase.setTransactionSuccessful();
 				myDatabase.setVersion(currentVersion);
@@ -131,22 +154,47 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 		}, context);
 	}
 
+	public String getQueryReport() {
+		return myStatistics.report();
+	}
+
+	// SQLite allows at most 999 host parameters in a statement
+	private static final int MAX_IDS_PER_QUERY = 500;
+
+	private static String parameterList(int count) {
+		final StringBuilder builder = new StringBuilder("(?");
+		for (int i = 1; i < count; ++i) {
+			builder.append(",?");
+		}
+		return builder.append(")").toString();
+	}
+
+	private static String[] idArguments(List<Long> ids, int from, int to) {
+		final String[] arguments = new String[to - from];
+		for (int i = from; i < to; ++i) {
+			arguments[i - from] = String.valueOf(ids.get(i));
+		}
+		return arguments;
+	}
+
 	@Override
 	public /*protected*/ Book loadBook(long bookId) {
+		final long start = System.nanoTime();
 		Book book = null;
-		final Cursor cursor = myDatabase.rawQuery("SELECT file_id,title,encoding,language FROM Books WHERE book_id = " + bookId, null);
+		final Cursor cursor = myDatabase.rawQuery("SELECT file_id,title,encoding,language FROM Books WHERE book_id = ?", new String[] { String.valueOf(bookId) });
 		if (cursor.moveToNext()) {
 			book = createBook(
 				bookId, cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getString(3)
 			);
 		}
 		cursor.close();
+		myStatistics.add("loadBook", start);
 		return book;
 	}
 
 	@Override
 	public /*protected*/ void reloadBook(Book book) {
-		final Cursor cursor = myDatabase.rawQuery("SELECT title,encoding,language FROM Books WHERE book_id = " + book.getId(), null);
+		final Cursor cursor = myDatabase.rawQuery("SELECT title,encoding,language FROM Books WHERE book_id = ?", new String[] { String.valueOf(book.getId()) });
 		if (cursor.moveToNext()) {
 			book.setTitle(cursor.getString(0));
 			book.setEncoding(cursor.getString(1));
@@ -159,14 +207,16 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 		if (fileId == -1) {
 			return null;
 		}
+		final long start = System.nanoTime();
 		Book book = null;
-		final Cursor cursor = myDatabase.rawQuery("SELECT book_id,title,encoding,language FROM Books WHERE file_id = " + fileId, null);
+		final Cursor cursor = myDatabase.rawQuery("SELECT book_id,title,encoding,language FROM Books WHERE file_id = ?", new String[] { String.valueOf(fileId) });
 		if (cursor.moveToNext()) {
 			book = createBook(
 				cursor.getLong(0), file, cursor.getString(1), cursor.getString(2), cursor.getString(3)
 			);
 		}
 		cursor.close();
+		myStatistics.add("loadBookByFile", start);
 		return book;
 	}
 
@@ -194,8 +244,10 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 
 	@Override
 	public /*protected*/ Map<Long,Book> loadBooks(FileInfoSet infos, boolean existing) {
+		final long start = System.nanoTime();
 		Cursor cursor = myDatabase.rawQuery(
-			"SELECT book_id,file_id,title,encoding,language FROM Books WHERE `exists` = " + (existing ? 1 : 0), null
+			"SELECT book_id,file_id,title,encoding,language FROM Books WHERE `exists` = ?",
+			new String[] { existing ? "1" : "0" }
 		);
 		final HashMap<Long,Book> booksById = new HashMap<Long,Book>();
 		final HashMap<Long,Book> booksByFileId = new HashMap<Long,Book>();
@@ -268,28 +320,124 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 			}
 		}
 		cursor.close();
+		myStatistics.add(existing ? "loadBooks(existing)" : "loadBooks(orphaned)", start);
 		return booksByFileId;
 	}
 
 	@Override
-	public /*protected*/ void setExistingFlag(Collection<Book> books, boolean flag) {
+	public /*protected*/ Map<Long,Long> loadBookFileIds(Collection<Long> bookIds) {
+		final long start = System.nanoTime();
+		final List<Long> ids = new ArrayList<Long>(new LinkedHashSet<Long>(bookIds));
+		final HashMap<Long,Long> fileIdByBookId = new HashMap<Long,Long>();
+		for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+			final int to = Math.min(from + MAX_IDS_PER_QUERY, ids.size());
+			final Cursor cursor = myDatabase.rawQuery(
+				"SELECT book_id,file_id FROM Books WHERE book_id IN " + parameterList(to - from),
+				idArguments(ids, from, to)
+			);
+			while (cursor.moveToNext()) {
+				fileIdByBookId.put(cursor.getLong(0), cursor.getLong(1));
+			}
+			cursor.close();
+		}
+		myStatistics.add("loadBookFileIds", start);
+		return fileIdByBookId;
+	}
+
+	@Override
+	public /*protected*/ Map<Long,Book> loadBooks(FileInfoSet infos, Collection<Long> bookIds) {
+		final long start = System.nanoTime();
+		final List<Long> ids = new ArrayList<Long>(new LinkedHashSet<Long>(bookIds));
+		final HashMap<Long,Long> fileIdByBookId = new HashMap<Long,Long>();
+		final HashMap<Long,String[]> infoByBookId = new HashMap<Long,String[]>();
+		for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+			final int to = Math.min(from + MAX_IDS_PER_QUERY, ids.size());
+			final Cursor cursor = myDatabase.rawQuery(
+				"SELECT book_id,file_id,title,encoding,language FROM Books WHERE book_id IN " + parameterList(to - from),
+				idArguments(ids, from, to)
+			);
+			while (cursor.moveToNext()) {
+				final long id = cursor.getLong(0);
+				fileIdByBookId.put(id, cursor.getLong(1));
+				infoByBookId.put(id, new String[] {
+					cursor.getString(2), cursor.getString(3), cursor.getString(4)
+				});
+			}
+			cursor.close();
+		}
+
+		final HashMap<Long,Book> booksById = new HashMap<Long,Book>();
+		for (Map.Entry<Long,String[]> entry : infoByBookId.entrySet()) {
+			final long id = entry.getKey();
+			final String[] info = entry.getValue();
+			final Book book = createBook(
+				id, infos.getFile(fileIdByBookId.get(id)), info[0], info[1], info[2]
+			);
+			if (book != null) {
+				booksById.put(id, book);
+			}
+		}
+
+		initTagCache();
+		final List<Long> foundIds = new ArrayList<Long>(booksById.keySet());
+		for (int from = 0; from < foundIds.size(); from += MAX_IDS_PER_QUERY) {
+			final int to = Math.min(from + MAX_IDS_PER_QUERY, foundIds.size());
+			final String parameters = parameterList(to - from);
+			final String[] arguments = idArguments(foundIds, from, to);
+
+			Cursor cursor = myDatabase.rawQuery(
+				"SELECT BookAuthor.book_id,Authors.name,Authors.sort_key FROM BookAuthor INNER JOIN Authors ON Authors.author_id = BookAuthor.author_id WHERE BookAuthor.book_id IN " + parameters + " ORDER BY BookAuthor.book_id,BookAuthor.author_index",
+				arguments
+			);
+			while (cursor.moveToNext()) {
+				addAuthor(booksById.get(cursor.getLong(0)), new Author(cursor.getString(1), cursor.getString(2)));
+			}
+			cursor.close();
+
+			cursor = myDatabase.rawQuery(
+				"SELECT book_id,tag_id FROM BookTag WHERE book_id IN " + parameters, arguments
+			);
+			while (cursor.moveToNext()) {
+				final Tag tag = getTagById(cursor.getLong(1));
+				if (tag != null) {
+					addTag(booksById.get(cursor.getLong(0)), tag);
+				}
+			}
+			cursor.close();
+
+			cursor = myDatabase.rawQuery(
+				"SELECT BookSeries.book_id,Series.name,BookSeries.book_index FROM BookSeries INNER JOIN Series ON Series.series_id = BookSeries.series_id WHERE BookSeries.book_id IN " + parameters,
+				arguments
+			);
+			while (cursor.moveToNext()) {
+				setSeriesInfo(booksById.get(cursor.getLong(0)), cursor.getString(1), cursor.getString(2));
+			}
+			cursor.close();
+		}
+		myStatistics.add("loadBooks(ids)", start);
+		return booksById;
+	}
+
+	private SQLiteStatement mySetExistingFlagStatement;
+	@Override
+	public /*protected*/ void setExistingFlag(final Collection<Book> books, final boolean flag) {
 		if (books.isEmpty()) {
 			return;
 		}
-		final StringBuilder bookSet = new StringBuilder("(");
-		boolean first = true;
-		for (Book b : books) {
-			if (first) {
-				first = false;
-			} else {
-				bookSet.append(",");
-			}
-			bookSet.append(b.getId());
+		if (mySetExistingFlagStatement == null) {
+			mySetExistingFlagStatement = myDatabase.compileStatement(
+				"UPDATE Books SET `exists` = ? WHERE book_id = ?"
+			);
 		}
-		bookSet.append(")");
-		myDatabase.execSQL(
-			"UPDATE Books SET `exists` = " + (flag ? 1 : 0) + " WHERE book_id IN " + bookSet
-		);
+		executeAsATransaction(new Runnable() {
+			public void run() {
+				mySetExistingFlagStatement.bindLong(1, flag ? 1 : 0);
+				for (Book b : books) {
+					mySetExistingFlagStatement.bindLong(2, b.getId());
+					mySetExistingFlagStatement.execute();
+				}
+			}
+		});
 	}
 
 	private SQLiteStatement myUpdateBookInfoStatement;
@@ -368,16 +516,17 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 	}
 
 	public /*protected*/ List<Author> loadAuthors(long bookId) {
-		final Cursor cursor = myDatabase.rawQuery("SELECT Authors.name,Authors.sort_key FROM BookAuthor INNER JOIN Authors ON Authors.author_id = BookAuthor.author_id WHERE BookAuthor.book_id = ?", new String[] { "" + bookId });
-		if (!cursor.moveToNext()) {
-			cursor.close();
-			return null;
-		}
-		final ArrayList<Author> list = new ArrayList<Author>();
-		do {
+		final long start = System.nanoTime();
+		final Cursor cursor = myDatabase.rawQuery("SELECT Authors.name,Authors.sort_key FROM BookAuthor INNER JOIN Authors ON Authors.author_id = BookAuthor.author_id WHERE BookAuthor.book_id = ? ORDER BY BookAuthor.author_index", new String[] { "" + bookId });
+		ArrayList<Author> list = null;
+		while (cursor.moveToNext()) {
+			if (list == null) {
+				list = new ArrayList<Author>();
+			}
 			list.add(new Author(cursor.getString(0), cursor.getString(1)));
-		} while (cursor.moveToNext());
+		}
 		cursor.close();
+		myStatistics.add("loadAuthors", start);
 		return list;
 	}
 
@@ -460,16 +609,21 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 	}
 
 	public /*protected*/ List<Tag> loadTags(long bookId) {
-		final Cursor cursor = myDatabase.rawQuery("SELECT Tags.tag_id FROM BookTag INNER JOIN Tags ON Tags.tag_id = BookTag.tag_id WHERE BookTag.book_id = ?", new String[] { "" + bookId });
-		if (!cursor.moveToNext()) {
-			cursor.close();
-			return null;
+		final long start = System.nanoTime();
+		final Cursor cursor = myDatabase.rawQuery("SELECT tag_id FROM BookTag WHERE book_id = ?", new String[] { "" + bookId });
+		ArrayList<Tag> list = null;
+		while (cursor.moveToNext()) {
+			final Tag tag = getTagById(cursor.getLong(0));
+			if (tag == null) {
+				continue;
+			}
+			if (list == null) {
+				list = new ArrayList<Tag>();
+			}
+			list.add(tag);
 		}
-		ArrayList<Tag> list = new ArrayList<Tag>();
-		do {
-			list.add(getTagById(cursor.getLong(0)));
-		} while (cursor.moveToNext());
 		cursor.close();
+		myStatistics.add("loadTags", start);
 		return list;
 	}
 
@@ -516,12 +670,14 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 	}
 
 	public /*protected*/ SeriesInfo loadSeriesInfo(long bookId) {
+		final long start = System.nanoTime();
 		final Cursor cursor = myDatabase.rawQuery("SELECT Series.name,BookSeries.book_index FROM BookSeries INNER JOIN Series ON Series.series_id = BookSeries.series_id WHERE BookSeries.book_id = ?", new String[] { "" + bookId });
 		SeriesInfo info = null;
 		if (cursor.moveToNext()) {
 			info = SeriesInfo.createSeriesInfo(cursor.getString(0), cursor.getString(1));
 		}
 		cursor.close();
+		myStatistics.add("loadSeriesInfo", start);
 		return info;
 	}
 
@@ -539,6 +695,13 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 		myRemoveFileInfoStatement.execute();
 	}
 
+	// Files.mtime is added in updateTables20(); earlier migrations work without it
+	private boolean myFilesHaveModificationTime = true;
+
+	private String modificationTimeColumn() {
+		return myFilesHaveModificationTime ? "mtime" : "NULL";
+	}
+
 	private SQLiteStatement myInsertFileInfoStatement;
 	private SQLiteStatement myUpdateFileInfoStatement;
 	public /*protected*/ void saveFileInfo(FileInfo fileInfo) {
@@ -547,14 +710,18 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 		if (id == -1) {
 			if (myInsertFileInfoStatement == null) {
 				myInsertFileInfoStatement = myDatabase.compileStatement(
-					"INSERT OR IGNORE INTO Files (name,parent_id,size) VALUES (?,?,?)"
+					myFilesHaveModificationTime
+						? "INSERT OR IGNORE INTO Files (name,parent_id,size,mtime) VALUES (?,?,?,?)"
+						: "INSERT OR IGNORE INTO Files (name,parent_id,size) VALUES (?,?,?)"
 				);
 			}
 			statement = myInsertFileInfoStatement;
 		} else {
 			if (myUpdateFileInfoStatement == null) {
 				myUpdateFileInfoStatement = myDatabase.compileStatement(
-					"UPDATE Files SET name = ?, parent_id = ?, size = ? WHERE file_id = ?"
+					myFilesHaveModificationTime
+						? "UPDATE Files SET name = ?, parent_id = ?, size = ?, mtime = ? WHERE file_id = ?"
+						: "UPDATE Files SET name = ?, parent_id = ?, size = ? WHERE file_id = ?"
 				);
 			}
 			statement = myUpdateFileInfoStatement;
@@ -572,17 +739,85 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 		} else {
 			statement.bindNull(3);
 		}
+		int index = 4;
+		if (myFilesHaveModificationTime) {
+			final long lastModified = fileInfo.LastModified;
+			if (lastModified != -1) {
+				statement.bindLong(index, lastModified);
+			} else {
+				statement.bindNull(index);
+			}
+			++index;
+		}
 		if (id == -1) {
 			fileInfo.Id = statement.executeInsert();
 		} else {
-			statement.bindLong(4, id);
+			statement.bindLong(index, id);
 			statement.execute();
 		}
 	}
 
+	public /*protected*/ Collection<DirectoryInfo> loadDirectoryInfos() {
+		final long start = System.nanoTime();
+		final Cursor cursor = myDatabase.rawQuery(
+			"SELECT path,mtime,listed_at,child_count,digest,subdirectories FROM DirectorySnapshot", null
+		);
+		final List<DirectoryInfo> infos = new ArrayList<DirectoryInfo>(cursor.getCount());
+		while (cursor.moveToNext()) {
+			// entry names cannot contain '/'
+			final String subdirectories = cursor.getString(5);
+			infos.add(createDirectoryInfo(
+				cursor.getString(0),
+				cursor.getLong(1),
+				cursor.getLong(2),
+				(int)cursor.getLong(3),
+				cursor.getLong(4),
+				subdirectories.length() > 0
+					? Arrays.asList(subdirectories.split("/"))
+					: Collections.<String>emptyList()
+			));
+		}
+		cursor.close();
+		myStatistics.add("loadDirectoryInfos", start);
+		return infos;
+	}
+
+	private SQLiteStatement myInsertDirectoryInfoStatement;
+	public /*protected*/ void saveDirectoryInfos(final Collection<DirectoryInfo> infos) {
+		if (myInsertDirectoryInfoStatement == null) {
+			myInsertDirectoryInfoStatement = myDatabase.compileStatement(
+				"INSERT INTO DirectorySnapshot (path,mtime,listed_at,child_count,digest,subdirectories) VALUES (?,?,?,?,?,?)"
+			);
+		}
+		final long start = System.nanoTime();
+		executeAsATransaction(new Runnable() {
+			public void run() {
+				myDatabase.execSQL("DELETE FROM DirectorySnapshot");
+				final StringBuilder builder = new StringBuilder();
+				for (DirectoryInfo info : infos) {
+					builder.setLength(0);
+					for (String name : info.Subdirectories) {
+						if (builder.length() > 0) {
+							builder.append('/');
+						}
+						builder.append(name);
+					}
+					myInsertDirectoryInfoStatement.bindString(1, info.Path);
+					myInsertDirectoryInfoStatement.bindLong(2, info.LastModified);
+					myInsertDirectoryInfoStatement.bindLong(3, info.ListedAt);
+					myInsertDirectoryInfoStatement.bindLong(4, info.ChildCount);
+					myInsertDirectoryInfoStatement.bindLong(5, info.Digest);
+					myInsertDirectoryInfoStatement.bindString(6, builder.toString());
+					myInsertDirectoryInfoStatement.executeInsert();
+				}
+			}
+		});
+		myStatistics.add("saveDirectoryInfos", start);
+	}
+
 	public /*protected*/ Collection<FileInfo> loadFileInfos() {
 		Cursor cursor = myDatabase.rawQuery(
-			"SELECT file_id,name,parent_id,size FROM Files", null
+			"SELECT file_id,name,parent_id,size," + modificationTimeColumn() + " FROM Files", null
 		);
 		HashMap<Long,FileInfo> infosById = new HashMap<Long,FileInfo>();
 		while (cursor.moveToNext()) {
@@ -594,6 +829,9 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 			if (!cursor.isNull(3)) {
 				info.FileSize = cursor.getLong(3);
 			}
+			if (!cursor.isNull(4)) {
+				info.LastModified = cursor.getLong(4);
+			}
 			infosById.put(id, info);
 		}
 		cursor.close();
@@ -607,21 +845,27 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 		}
 
 		final ArrayList<FileInfo> infos = new ArrayList<FileInfo>(fileStack.size());
-		final String[] parameters = { null };
+		final long start = System.nanoTime();
 		FileInfo current = null;
 		for (ZLFile f : fileStack) {
-			parameters[0] = f.getLongName();
-			final Cursor cursor = myDatabase.rawQuery(
-				(current == null) ?
-					"SELECT file_id,size FROM Files WHERE name = ?" :
-					"SELECT file_id,size FROM Files WHERE parent_id = " + current.Id + " AND name = ?",
-				parameters
-			);
+			final String name = f.getLongName();
+			final Cursor cursor = (current == null)
+				? myDatabase.rawQuery(
+					"SELECT file_id,size," + modificationTimeColumn() + " FROM Files WHERE name = ? AND parent_id IS NULL",
+					new String[] { name }
+				)
+				: myDatabase.rawQuery(
+					"SELECT file_id,size," + modificationTimeColumn() + " FROM Files WHERE name = ? AND parent_id = ?",
+					new String[] { name, String.valueOf(current.Id) }
+				);
 			if (cursor.moveToNext()) {
-				current = createFileInfo(cursor.getLong(0), parameters[0], current);
+				current = createFileInfo(cursor.getLong(0), name, current);
 				if (!cursor.isNull(1)) {
 					current.FileSize = cursor.getLong(1);
 				}
+				if (!cursor.isNull(2)) {
+					current.LastModified = cursor.getLong(2);
+				}
 				infos.add(current);
 				cursor.close();
 			} else {
@@ -630,20 +874,26 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 			}
 		}
 
+		myStatistics.add("loadFileInfos(file)", start);
 		return infos;
 	}
 
 	public /*protected*/ Collection<FileInfo> loadFileInfos(long fileId) {
+		final long start = System.nanoTime();
 		final ArrayList<FileInfo> infos = new ArrayList<FileInfo>();
 		while (fileId != -1) {
 			final Cursor cursor = myDatabase.rawQuery(
-				"SELECT name,size,parent_id FROM Files WHERE file_id = " + fileId, null
+				"SELECT name,size,parent_id," + modificationTimeColumn() + " FROM Files WHERE file_id = ?",
+				new String[] { String.valueOf(fileId) }
 			);
 			if (cursor.moveToNext()) {
 				FileInfo info = createFileInfo(fileId, cursor.getString(0), null);
 				if (!cursor.isNull(1)) {
 					info.FileSize = cursor.getLong(1);
 				}
+				if (!cursor.isNull(3)) {
+					info.LastModified = cursor.getLong(3);
+				}
 				infos.add(0, info);
 				fileId = cursor.isNull(2) ? -1 : cursor.getLong(2);
 			} else {
@@ -655,11 +905,81 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 			final FileInfo oldInfo = infos.get(i);
 			final FileInfo newInfo = createFileInfo(oldInfo.Id, oldInfo.Name, infos.get(i - 1));
 			newInfo.FileSize = oldInfo.FileSize;
+			newInfo.LastModified = oldInfo.LastModified;
 			infos.set(i, newInfo);
 		}
+		myStatistics.add("loadFileInfos(id)", start);
 		return infos;
 	}
 
+	private static final class FileRow {
+		final String Name;
+		final long ParentId;
+		final long FileSize;
+		final long LastModified;
+
+		FileRow(String name, long parentId, long fileSize, long lastModified) {
+			Name = name;
+			ParentId = parentId;
+			FileSize = fileSize;
+			LastModified = lastModified;
+		}
+	}
+
+	public /*protected*/ Collection<FileInfo> loadFileInfos(Collection<Long> fileIds) {
+		final long start = System.nanoTime();
+		final HashMap<Long,FileRow> rows = new HashMap<Long,FileRow>();
+		List<Long> level = new ArrayList<Long>(new HashSet<Long>(fileIds));
+		while (!level.isEmpty()) {
+			final HashSet<Long> parentIds = new HashSet<Long>();
+			for (int from = 0; from < level.size(); from += MAX_IDS_PER_QUERY) {
+				final int to = Math.min(from + MAX_IDS_PER_QUERY, level.size());
+				final Cursor cursor = myDatabase.rawQuery(
+					"SELECT file_id,name,parent_id,size," + modificationTimeColumn() + " FROM Files WHERE file_id IN " + parameterList(to - from),
+					idArguments(level, from, to)
+				);
+				while (cursor.moveToNext()) {
+					final long parentId = cursor.isNull(2) ? -1 : cursor.getLong(2);
+					rows.put(cursor.getLong(0), new FileRow(
+						cursor.getString(1),
+						parentId,
+						cursor.isNull(3) ? -1 : cursor.getLong(3),
+						cursor.isNull(4) ? -1 : cursor.getLong(4)
+					));
+					if (parentId != -1) {
+						parentIds.add(parentId);
+					}
+				}
+				cursor.close();
+			}
+			parentIds.removeAll(rows.keySet());
+			level = new ArrayList<Long>(parentIds);
+		}
+
+		final HashMap<Long,FileInfo> infos = new HashMap<Long,FileInfo>();
+		for (long id : rows.keySet()) {
+			createFileInfo(id, rows, infos);
+		}
+		myStatistics.add("loadFileInfos(ids)", start);
+		return infos.values();
+	}
+
+	private FileInfo createFileInfo(long id, Map<Long,FileRow> rows, Map<Long,FileInfo> infos) {
+		FileInfo info = infos.get(id);
+		if (info == null) {
+			final FileRow row = rows.get(id);
+			if (row == null) {
+				return null;
+			}
+			final FileInfo parent = row.ParentId != -1 ? createFileInfo(row.ParentId, rows, infos) : null;
+			info = createFileInfo(id, row.Name, parent);
+			info.FileSize = row.FileSize;
+			info.LastModified = row.LastModified;
+			infos.put(id, info);
+		}
+		return info;
+	}
+
 	private SQLiteStatement mySaveRecentBookStatement;
 	public /*protected*/ void saveRecentBookIds(final List<Long> ids) {
 		if (mySaveRecentBookStatement == null) {
@@ -679,6 +999,7 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 	}
 
 	public /*protected*/ List<Long> loadRecentBookIds() {
+		final long start = System.nanoTime();
 		final Cursor cursor = myDatabase.rawQuery(
 			"SELECT book_id FROM RecentBooks ORDER BY book_index", null
 		);
@@ -687,6 +1008,7 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 			ids.add(cursor.getLong(0));
 		}
 		cursor.close();
+		myStatistics.add("loadRecentBookIds", start);
 		return ids;
 	}
 
@@ -713,6 +1035,7 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 	}
 
 	protected List<Long> loadFavoriteIds() {
+		final long start = System.nanoTime();
 		final Cursor cursor = myDatabase.rawQuery(
 			"SELECT book_id FROM Favorites", null
 		);
@@ -721,11 +1044,16 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 			ids.add(cursor.getLong(0));
 		}
 		cursor.close();
+		myStatistics.add("loadFavoriteIds", start);
 		return ids;
 	}
 
 	@Override
 	public /*protected*/ List<Bookmark> loadBookmarks(long bookId, boolean visible) {
+		if (myJournal.hasPendingBookmarks()) {
+			myJournal.flush();
+		}
+		final long start = System.nanoTime();
 		LinkedList<Bookmark> list = new LinkedList<Bookmark>();
 		Cursor cursor = myDatabase.rawQuery(
 			"SELECT Bookmarks.bookmark_id,Bookmarks.book_id,Books.title,Bookmarks.bookmark_text,Bookmarks.creation_time,Bookmarks.modification_time,Bookmarks.access_time,Bookmarks.access_counter,Bookmarks.model_id,Bookmarks.paragraph,Bookmarks.word,Bookmarks.char FROM Bookmarks INNER JOIN Books ON Books.book_id = Bookmarks.book_id WHERE Bookmarks.book_id = ? AND Bookmarks.visible = ?", new String[] { "" + bookId, visible ? "1" : "0" }
@@ -748,11 +1076,15 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 			));
 		}
 		cursor.close();
+		myStatistics.add("loadBookmarks", start);
 		return list;
 	}
 
 	@Override
 	public /*protected*/ List<Bookmark> loadAllVisibleBookmarks() {
+		if (myJournal.hasPendingBookmarks()) {
+			myJournal.flush();
+		}
 		LinkedList<Bookmark> list = new LinkedList<Bookmark>();
 		myDatabase.execSQL("DELETE FROM Bookmarks WHERE book_id = -1");
 		Cursor cursor = myDatabase.rawQuery(
@@ -783,6 +1115,14 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 	private SQLiteStatement myUpdateBookmarkStatement;
 	@Override
 	public /*protected*/ long saveBookmark(Bookmark bookmark) {
+		if (bookmark.getId() != -1) {
+			myJournal.saveBookmark(bookmark);
+			return bookmark.getId();
+		}
+		return writeBookmark(bookmark);
+	}
+
+	long writeBookmark(Bookmark bookmark) {
 		SQLiteStatement statement;
 		if (bookmark.getId() == -1) {
 			if (myInsertBookmarkStatement == null) {
@@ -825,6 +1165,7 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 	private SQLiteStatement myDeleteBookmarkStatement;
 	@Override
 	public /*protected*/ void deleteBookmark(Bookmark bookmark) {
+		myJournal.removeBookmark(bookmark.getId());
 		if (myDeleteBookmarkStatement == null) {
 			myDeleteBookmarkStatement = myDatabase.compileStatement(
 				"DELETE FROM Bookmarks WHERE bookmark_id = ?"
@@ -835,9 +1176,15 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 	}
 
 	public /*protected*/ ZLTextPosition getStoredPosition(long bookId) {
+		final ZLTextPosition pending = myJournal.getPosition(bookId);
+		if (pending != null) {
+			return pending;
+		}
+		final long start = System.nanoTime();
 		ZLTextPosition position = null;
 		Cursor cursor = myDatabase.rawQuery(
-			"SELECT paragraph,word,char FROM BookState WHERE book_id = " + bookId, null
+			"SELECT paragraph,word,char FROM BookState WHERE book_id = ?",
+			new String[] { String.valueOf(bookId) }
 		);
 		if (cursor.moveToNext()) {
 			position = new ZLTextFixedPosition(
@@ -847,11 +1194,16 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 			);
 		}
 		cursor.close();
+		myStatistics.add("getStoredPosition", start);
 		return position;
 	}
 
 	private SQLiteStatement myStorePositionStatement;
 	public /*protected*/ void storePosition(long bookId, ZLTextPosition position) {
+		myJournal.storePosition(bookId, position);
+	}
+
+	void writePosition(long bookId, ZLTextPosition position) {
 		if (myStorePositionStatement == null) {
 			myStorePositionStatement = myDatabase.compileStatement(
 				"INSERT OR REPLACE INTO BookState (book_id,paragraph,word,char) VALUES (?,?,?,?)"
@@ -878,6 +1230,10 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 
 	private SQLiteStatement myStoreVisitedHyperlinksStatement;
 	public /*protected*/ void addVisitedHyperlink(long bookId, String hyperlinkId) {
+		myJournal.addVisitedHyperlink(bookId, hyperlinkId);
+	}
+
+	void writeVisitedHyperlink(long bookId, String hyperlinkId) {
 		if (myStoreVisitedHyperlinksStatement == null) {
 			myStoreVisitedHyperlinksStatement = myDatabase.compileStatement(
 				"INSERT OR IGNORE INTO VisitedHyperlinks(book_id,hyperlink_id) VALUES (?,?)"
@@ -896,6 +1252,7 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 			links.add(cursor.getString(0));
 		}
 		cursor.close();
+		links.addAll(myJournal.getVisitedHyperlinks(bookId));
 		return links;
 	}
 
@@ -1247,4 +1604,42 @@ public final class SQLiteBooksDatabase extends BooksDatabase {
 	private void updateTables19() {
 		myDatabase.execSQL("DROP TABLE BookList");
 	}
+
+	private void updateTables20() {
+		myDatabase.execSQL("ALTER TABLE Files ADD COLUMN mtime INTEGER");
+		myFilesHaveModificationTime = true;
+		// statements compiled by earlier migrations have no mtime parameter
+		if (myInsertFileInfoStatement != null) {
+			myInsertFileInfoStatement.close();
+			myInsertFileInfoStatement = null;
+		}
+		if (myUpdateFileInfoStatement != null) {
+			myUpdateFileInfoStatement.close();
+			myUpdateFileInfoStatement = null;
+		}
+	}
+
+	private void updateTables21() {
+		// reverse lookups and orderings used by set-based loading;
+		// Books(file_id), BookAuthor(author_id, book_id), BookTag(tag_id, book_id),
+		// RecentBooks(book_index) and Favorites(book_id) are covered by
+		// their primary keys and unique constraints
+		myDatabase.execSQL("CREATE INDEX IF NOT EXISTS Books_ExistsIndex ON Books (`exists`)");
+		myDatabase.execSQL("CREATE INDEX IF NOT EXISTS Files_ParentIndex ON Files (parent_id)");
+		myDatabase.execSQL("CREATE INDEX IF NOT EXISTS BookSeries_SeriesIndex ON BookSeries (series_id, book_index)");
+		myDatabase.execSQL("CREATE INDEX IF NOT EXISTS Bookmarks_BookIndex ON Bookmarks (book_id, visible)");
+		myDatabase.execSQL("ANALYZE");
+	}
+
+	private void updateTables22() {
+		// directory level snapshot of the library tree, see DirectorySnapshot
+		myDatabase.execSQL(
+			"CREATE TABLE IF NOT EXISTS DirectorySnapshot(" +
+				"path TEXT PRIMARY KEY," +
+				"mtime INTEGER NOT NULL," +
+				"listed_at INTEGER NOT NULL," +
+				"child_count INTEGER NOT NULL," +
+				"digest INTEGER NOT NULL," +
+				"subdirectories TEXT NOT NULL)");
+	}
 }
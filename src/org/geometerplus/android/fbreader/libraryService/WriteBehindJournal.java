@@ -0,0 +1,524 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.android.fbreader.libraryService;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.geometerplus.zlibrary.text.view.ZLTextFixedPosition;
+import org.geometerplus.zlibrary.text.view.ZLTextPosition;
+
+import org.geometerplus.fbreader.book.Bookmark;
+import org.geometerplus.fbreader.book.SerializerUtil;
+
+/**
+ * Write-behind buffer for the frequent small writes of the books database:
+ * reading positions, visited hyperlinks and updates of existing bookmarks.
+ * Repeated writes for the same book or bookmark are coalesced (the last
+ * position and bookmark state win, hyperlinks are merged) and written in one
+ * transaction a few seconds later, or on flush().
+ *
+ * Every accepted write is appended to a journal file first; the file is
+ * truncated after a successful flush, so a killed process loses nothing that
+ * reached the journal. Each instance owns its journal and holds a lock on a
+ * companion .lock file while it lives; on start, only journals whose lock is
+ * free (their process is gone) are replayed and removed.
+ */
+final class WriteBehindJournal {
+	private static final long FLUSH_DELAY = 3000;
+
+	private static final int POSITION_RECORD = 1;
+	private static final int HYPERLINK_RECORD = 2;
+	private static final int BOOKMARK_RECORD = 3;
+
+	private static final String LOCK_SUFFIX = ".lock";
+
+	private static final ScheduledExecutorService ourTimer =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "BooksDatabase.flush");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+
+	private static final class Pending {
+		final HashMap<Long,ZLTextPosition> Positions = new HashMap<Long,ZLTextPosition>();
+		final HashMap<Long,Set<String>> Hyperlinks = new HashMap<Long,Set<String>>();
+		// serialized bookmarks by bookmark id
+		final HashMap<Long,String> Bookmarks = new HashMap<Long,String>();
+
+		boolean isEmpty() {
+			return Positions.isEmpty() && Hyperlinks.isEmpty() && Bookmarks.isEmpty();
+		}
+	}
+
+	private final SQLiteBooksDatabase myDatabase;
+	private final File myDirectory;
+	private final String myPrefix;
+	// null if the journal cannot be created; all writes go through then
+	private final File myFile;
+	private final File myLockFile;
+	// kept open: the lock lives as long as the process
+	private RandomAccessFile myLockStream;
+	private DataOutputStream myJournal;
+	private Pending myPending = new Pending();
+	// writes taken by the running flush, still visible to readers
+	private Pending myFlushing;
+	private ScheduledFuture<?> myScheduledFlush;
+	// serializes flushes; never taken while holding the monitor of this object
+	private final Object myFlushLock = new Object();
+
+	private int myRequestedCount;
+	private int myCoalescedCount;
+	private int myWrittenCount;
+	private int myFlushCount;
+	private int myReplayedCount;
+
+	// journal files are <directory>/<prefix><unique id>, each with its own .lock file
+	WriteBehindJournal(SQLiteBooksDatabase database, File directory, String prefix) {
+		myDatabase = database;
+		myDirectory = directory;
+		myPrefix = prefix;
+
+		File lockFile = null;
+		try {
+			lockFile = File.createTempFile(prefix, LOCK_SUFFIX, directory);
+			myLockStream = new RandomAccessFile(lockFile, "rw");
+			myLockStream.getChannel().lock();
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeLockStream();
+			if (lockFile != null) {
+				lockFile.delete();
+			}
+			lockFile = null;
+		}
+		myLockFile = lockFile;
+		myFile = lockFile != null ? journalFile(lockFile) : null;
+	}
+
+	// applies records left by processes that are gone and starts journaling
+	void replay() {
+		synchronized (this) {
+			final ArrayList<File> orphans = new ArrayList<File>();
+			final ArrayList<RandomAccessFile> locks = new ArrayList<RandomAccessFile>();
+			final File[] files = myDirectory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					final String name = file.getName();
+					if (!name.startsWith(myPrefix) || !name.endsWith(LOCK_SUFFIX) || file.equals(myLockFile)) {
+						continue;
+					}
+					final RandomAccessFile lock = lockIfAbandoned(file);
+					if (lock == null) {
+						continue;
+					}
+					locks.add(lock);
+					final File journal = journalFile(file);
+					readJournal(journal);
+					orphans.add(journal);
+					orphans.add(new File(journal.getPath() + ".tmp"));
+					orphans.add(file);
+				}
+			}
+			myRequestedCount -= myReplayedCount;
+
+			// the replayed records reach our own journal before the old ones are removed
+			if (!orphans.isEmpty() && (myPending.isEmpty() || rewriteJournal())) {
+				for (File file : orphans) {
+					file.delete();
+				}
+			}
+			for (RandomAccessFile lock : locks) {
+				try {
+					lock.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		flush();
+	}
+
+	private void readJournal(File file) {
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			while (true) {
+				readRecord(stream);
+				++myReplayedCount;
+			}
+		} catch (FileNotFoundException e) {
+			// nothing to replay
+		} catch (EOFException e) {
+			// end of journal, or a record torn by the crash
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	// returns the opened lock file, locked, if no living instance holds it
+	private static RandomAccessFile lockIfAbandoned(File lockFile) {
+		RandomAccessFile stream = null;
+		try {
+			stream = new RandomAccessFile(lockFile, "rw");
+			if (stream.getChannel().tryLock() != null) {
+				final RandomAccessFile locked = stream;
+				stream = null;
+				return locked;
+			}
+		} catch (OverlappingFileLockException e) {
+			// held by another instance in this process
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return null;
+	}
+
+	private File journalFile(File lockFile) {
+		final String name = lockFile.getName();
+		return new File(myDirectory, name.substring(0, name.length() - LOCK_SUFFIX.length()));
+	}
+
+	synchronized void storePosition(long bookId, ZLTextPosition position) {
+		final ZLTextFixedPosition copy = new ZLTextFixedPosition(position);
+		if (!appendRecord(POSITION_RECORD, bookId, copy, null)) {
+			myDatabase.writePosition(bookId, copy);
+			return;
+		}
+		addPosition(bookId, copy);
+		scheduleFlush();
+	}
+
+	synchronized ZLTextPosition getPosition(long bookId) {
+		final ZLTextPosition position = myPending.Positions.get(bookId);
+		if (position != null || myFlushing == null) {
+			return position;
+		}
+		return myFlushing.Positions.get(bookId);
+	}
+
+	synchronized void addVisitedHyperlink(long bookId, String linkId) {
+		if (!appendRecord(HYPERLINK_RECORD, bookId, null, linkId)) {
+			myDatabase.writeVisitedHyperlink(bookId, linkId);
+			return;
+		}
+		addHyperlink(bookId, linkId);
+		scheduleFlush();
+	}
+
+	synchronized Collection<String> getVisitedHyperlinks(long bookId) {
+		final ArrayList<String> list = new ArrayList<String>();
+		Set<String> links = myPending.Hyperlinks.get(bookId);
+		if (links != null) {
+			list.addAll(links);
+		}
+		links = myFlushing != null ? myFlushing.Hyperlinks.get(bookId) : null;
+		if (links != null) {
+			list.addAll(links);
+		}
+		return list;
+	}
+
+	// only for bookmarks that already have an id; new ones are inserted at once
+	synchronized void saveBookmark(Bookmark bookmark) {
+		final String serialized = SerializerUtil.serialize(bookmark);
+		if (!appendRecord(BOOKMARK_RECORD, bookmark.getId(), null, serialized)) {
+			myDatabase.writeBookmark(bookmark);
+			return;
+		}
+		addBookmark(bookmark.getId(), serialized);
+		scheduleFlush();
+	}
+
+	synchronized void removeBookmark(long bookmarkId) {
+		myPending.Bookmarks.remove(bookmarkId);
+	}
+
+	synchronized boolean hasPendingBookmarks() {
+		return !myPending.Bookmarks.isEmpty();
+	}
+
+	void flush() {
+		synchronized (myFlushLock) {
+			final Pending pending;
+			synchronized (this) {
+				if (myScheduledFlush != null) {
+					myScheduledFlush.cancel(false);
+					myScheduledFlush = null;
+				}
+				if (myPending.isEmpty()) {
+					return;
+				}
+				pending = myPending;
+				myPending = new Pending();
+				myFlushing = pending;
+			}
+
+			final int[] written = new int[1];
+			try {
+				myDatabase.executeAsATransaction(new Runnable() {
+					public void run() {
+						for (Map.Entry<Long,ZLTextPosition> e : pending.Positions.entrySet()) {
+							myDatabase.writePosition(e.getKey(), e.getValue());
+							++written[0];
+						}
+						for (Map.Entry<Long,Set<String>> e : pending.Hyperlinks.entrySet()) {
+							for (String linkId : e.getValue()) {
+								myDatabase.writeVisitedHyperlink(e.getKey(), linkId);
+								++written[0];
+							}
+						}
+						for (String serialized : pending.Bookmarks.values()) {
+							final Bookmark bookmark = SerializerUtil.deserializeBookmark(serialized);
+							if (bookmark != null) {
+								myDatabase.writeBookmark(bookmark);
+								++written[0];
+							}
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				// keep the writes for the next attempt; newer ones win
+				e.printStackTrace();
+				synchronized (this) {
+					myFlushing = null;
+					restore(pending);
+					scheduleFlush();
+				}
+				return;
+			}
+
+			synchronized (this) {
+				myFlushing = null;
+				myWrittenCount += written[0];
+				++myFlushCount;
+				rewriteJournal();
+			}
+		}
+	}
+
+	private void restore(Pending pending) {
+		for (Map.Entry<Long,ZLTextPosition> e : pending.Positions.entrySet()) {
+			if (!myPending.Positions.containsKey(e.getKey())) {
+				myPending.Positions.put(e.getKey(), e.getValue());
+			}
+		}
+		for (Map.Entry<Long,Set<String>> e : pending.Hyperlinks.entrySet()) {
+			final Set<String> links = myPending.Hyperlinks.get(e.getKey());
+			if (links != null) {
+				links.addAll(e.getValue());
+			} else {
+				myPending.Hyperlinks.put(e.getKey(), e.getValue());
+			}
+		}
+		for (Map.Entry<Long,String> e : pending.Bookmarks.entrySet()) {
+			if (!myPending.Bookmarks.containsKey(e.getKey())) {
+				myPending.Bookmarks.put(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	synchronized String getReport() {
+		return "Write-behind: " + myRequestedCount + " writes requested, "
+			+ myCoalescedCount + " coalesced, "
+			+ myWrittenCount + " rows written in "
+			+ myFlushCount + " transactions, "
+			+ myReplayedCount + " replayed from journal";
+	}
+
+	private void scheduleFlush() {
+		if (myScheduledFlush == null) {
+			myScheduledFlush = ourTimer.schedule(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void addPosition(long bookId, ZLTextPosition position) {
+		++myRequestedCount;
+		if (myPending.Positions.put(bookId, position) != null) {
+			++myCoalescedCount;
+		}
+	}
+
+	private void addHyperlink(long bookId, String linkId) {
+		++myRequestedCount;
+		Set<String> links = myPending.Hyperlinks.get(bookId);
+		if (links == null) {
+			links = new HashSet<String>();
+			myPending.Hyperlinks.put(bookId, links);
+		}
+		if (!links.add(linkId)) {
+			++myCoalescedCount;
+		}
+	}
+
+	private void addBookmark(long bookmarkId, String serialized) {
+		++myRequestedCount;
+		if (myPending.Bookmarks.put(bookmarkId, serialized) != null) {
+			++myCoalescedCount;
+		}
+	}
+
+	// returns false if the journal cannot be written; the caller writes through then
+	private boolean appendRecord(int type, long id, ZLTextPosition position, String text) {
+		if (myFile == null) {
+			return false;
+		}
+		try {
+			if (myJournal == null) {
+				myJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myFile, true)));
+			}
+			writeRecord(myJournal, type, id, position, text);
+			// one write() per record: it survives a killed process
+			myJournal.flush();
+			return true;
+		} catch (IOException e) {
+			closeJournal();
+			return false;
+		}
+	}
+
+	private static void writeRecord(DataOutputStream stream, int type, long id, ZLTextPosition position, String text) throws IOException {
+		stream.writeByte(type);
+		stream.writeLong(id);
+		if (position != null) {
+			stream.writeInt(position.getParagraphIndex());
+			stream.writeInt(position.getElementIndex());
+			stream.writeInt(position.getCharIndex());
+		} else {
+			final byte[] bytes = text.getBytes("UTF-8");
+			stream.writeInt(bytes.length);
+			stream.write(bytes);
+		}
+	}
+
+	private void readRecord(DataInputStream stream) throws IOException {
+		final int type = stream.readByte();
+		final long id = stream.readLong();
+		switch (type) {
+			case POSITION_RECORD:
+				addPosition(id, new ZLTextFixedPosition(stream.readInt(), stream.readInt(), stream.readInt()));
+				break;
+			case HYPERLINK_RECORD:
+				addHyperlink(id, readString(stream));
+				break;
+			case BOOKMARK_RECORD:
+				addBookmark(id, readString(stream));
+				break;
+			default:
+				throw new IOException("Unknown journal record " + type);
+		}
+	}
+
+	private static String readString(DataInputStream stream) throws IOException {
+		final int length = stream.readInt();
+		if (length < 0 || length > 1 << 20) {
+			throw new IOException("Invalid journal record");
+		}
+		final byte[] bytes = new byte[length];
+		stream.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	// after a flush the journal keeps only the writes that came during it;
+	// returns false if the journal could not be written
+	private boolean rewriteJournal() {
+		if (myFile == null) {
+			return false;
+		}
+		closeJournal();
+		if (myPending.isEmpty()) {
+			myFile.delete();
+			return true;
+		}
+		final File tmp = new File(myFile.getPath() + ".tmp");
+		DataOutputStream stream = null;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			for (Map.Entry<Long,ZLTextPosition> e : myPending.Positions.entrySet()) {
+				writeRecord(stream, POSITION_RECORD, e.getKey(), e.getValue(), null);
+			}
+			for (Map.Entry<Long,Set<String>> e : myPending.Hyperlinks.entrySet()) {
+				for (String linkId : e.getValue()) {
+					writeRecord(stream, HYPERLINK_RECORD, e.getKey(), null, linkId);
+				}
+			}
+			for (Map.Entry<Long,String> e : myPending.Bookmarks.entrySet()) {
+				writeRecord(stream, BOOKMARK_RECORD, e.getKey(), null, e.getValue());
+			}
+			stream.close();
+			stream = null;
+			return tmp.renameTo(myFile);
+		} catch (IOException e) {
+			// the old journal is still there, with some records already written
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void closeLockStream() {
+		if (myLockStream != null) {
+			try {
+				myLockStream.close();
+			} catch (IOException e) {
+			}
+			myLockStream = null;
+		}
+	}
+
+	private void closeJournal() {
+		if (myJournal != null) {
+			try {
+				myJournal.close();
+			} catch (IOException e) {
+			}
+			myJournal = null;
+		}
+	}
+}
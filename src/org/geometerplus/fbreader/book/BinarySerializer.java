@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.filesystem.ZLFile;
+
+/**
+ * Compact binary form of books and bookmarks for the library service.
+ * A packet is a version byte, a table of all strings used and a list of records;
+ * every record starts with its length, so a reader skips fields added by
+ * newer writers. Repeated authors, tags and series are stored once in the table.
+ */
+class BinarySerializer extends AbstractSerializer {
+	static final String FORMAT = "binary/1";
+	private static final int VERSION = 1;
+
+	private static final class Writer {
+		private final HashMap<String,Integer> myStringIndices = new HashMap<String,Integer>();
+		private final ArrayList<String> myStrings = new ArrayList<String>();
+		private final ByteArrayOutputStream myRecords = new ByteArrayOutputStream();
+		private final ByteArrayOutputStream myRecord = new ByteArrayOutputStream();
+		private int myRecordsNumber;
+
+		void writeInt(long value) {
+			// unsigned LEB128; negative values (-1 ids) are zigzag encoded
+			long v = (value << 1) ^ (value >> 63);
+			while ((v & ~0x7FL) != 0) {
+				myRecord.write((int)((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			myRecord.write((int)v);
+		}
+
+		// 0 is null, other values are string table indices plus one
+		void writeString(String s) {
+			if (s == null) {
+				writeInt(0);
+				return;
+			}
+			Integer index = myStringIndices.get(s);
+			if (index == null) {
+				index = myStrings.size();
+				myStringIndices.put(s, index);
+				myStrings.add(s);
+			}
+			writeInt(index + 1);
+		}
+
+		void writeDate(Date date) {
+			writeInt(date != null ? date.getTime() + 1 : 0);
+		}
+
+		void endRecord() {
+			final byte[] record = myRecord.toByteArray();
+			myRecord.reset();
+			writeUnsigned(myRecords, record.length);
+			myRecords.write(record, 0, record.length);
+			++myRecordsNumber;
+		}
+
+		byte[] toByteArray() {
+			final ByteArrayOutputStream packet = new ByteArrayOutputStream(myRecords.size() + 16 * myStrings.size());
+			packet.write(VERSION);
+			writeUnsigned(packet, myStrings.size());
+			try {
+				for (String s : myStrings) {
+					final byte[] bytes = s.getBytes("UTF-8");
+					writeUnsigned(packet, bytes.length);
+					packet.write(bytes, 0, bytes.length);
+				}
+			} catch (UnsupportedEncodingException e) {
+				// UTF-8 is always supported
+				throw new RuntimeException(e);
+			}
+			writeUnsigned(packet, myRecordsNumber);
+			final byte[] records = myRecords.toByteArray();
+			packet.write(records, 0, records.length);
+			return packet.toByteArray();
+		}
+
+		private static void writeUnsigned(ByteArrayOutputStream stream, int value) {
+			while ((value & ~0x7F) != 0) {
+				stream.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			stream.write(value);
+		}
+	}
+
+	private static final class Reader {
+		private final byte[] myData;
+		private int myOffset;
+		private final String[] myStrings;
+		private final int myRecordsNumber;
+		// -1 outside of records
+		private int myRecordEnd = -1;
+
+		Reader(byte[] data) throws IOException {
+			myData = data;
+			if (data.length == 0 || data[0] != VERSION) {
+				throw new IOException("Unsupported packet version");
+			}
+			myOffset = 1;
+			myStrings = new String[readUnsigned()];
+			for (int i = 0; i < myStrings.length; ++i) {
+				final int length = readUnsigned();
+				checkAvailable(length);
+				myStrings[i] = new String(data, myOffset, length, "UTF-8");
+				myOffset += length;
+			}
+			myRecordsNumber = readUnsigned();
+		}
+
+		int recordsNumber() {
+			return myRecordsNumber;
+		}
+
+		void startRecord() throws IOException {
+			final int length = readUnsigned();
+			checkAvailable(length);
+			myRecordEnd = myOffset + length;
+		}
+
+		// skips fields unknown to this version
+		void endRecord() {
+			myOffset = myRecordEnd;
+			myRecordEnd = -1;
+		}
+
+		long readInt() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				checkAvailable(1);
+				final int b = myData[myOffset++];
+				v |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return (v >>> 1) ^ -(v & 1);
+				}
+			}
+			throw new IOException("Malformed number");
+		}
+
+		String readString() throws IOException {
+			final long index = readInt();
+			if (index == 0) {
+				return null;
+			}
+			if (index < 0 || index > myStrings.length) {
+				throw new IOException("Invalid string index");
+			}
+			return myStrings[(int)index - 1];
+		}
+
+		Date readDate() throws IOException {
+			final long time = readInt();
+			return time != 0 ? new Date(time - 1) : null;
+		}
+
+		private int readUnsigned() throws IOException {
+			int v = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				checkAvailable(1);
+				final int b = myData[myOffset++];
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					if (v < 0) {
+						break;
+					}
+					return v;
+				}
+			}
+			throw new IOException("Malformed length");
+		}
+
+		private void checkAvailable(int length) throws IOException {
+			final int end = myRecordEnd != -1 ? myRecordEnd : myData.length;
+			if (length < 0 || length > end - myOffset) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	public byte[] serializeBooks(List<Book> books) {
+		final Writer writer = new Writer();
+		for (Book book : books) {
+			writeBook(writer, book);
+		}
+		return writer.toByteArray();
+	}
+
+	public List<Book> deserializeBooks(byte[] data) {
+		try {
+			final Reader reader = new Reader(data);
+			final List<Book> books = new ArrayList<Book>(reader.recordsNumber());
+			for (int i = 0; i < reader.recordsNumber(); ++i) {
+				books.add(readBook(reader));
+			}
+			return books;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public byte[] serializeBookmarks(List<Bookmark> bookmarks) {
+		final Writer writer = new Writer();
+		for (Bookmark bookmark : bookmarks) {
+			writeBookmark(writer, bookmark);
+		}
+		return writer.toByteArray();
+	}
+
+	public List<Bookmark> deserializeBookmarks(byte[] data) {
+		try {
+			final Reader reader = new Reader(data);
+			final List<Bookmark> bookmarks = new ArrayList<Bookmark>(reader.recordsNumber());
+			for (int i = 0; i < reader.recordsNumber(); ++i) {
+				bookmarks.add(readBookmark(reader));
+			}
+			return bookmarks;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// the first record holds the total count, the others are summaries
+	public byte[] serializePage(BookPage page) {
+		final Writer writer = new Writer();
+		writer.writeInt(page.TotalCount);
+		writer.endRecord();
+		for (BookSummary summary : page.Summaries) {
+			writer.writeInt(summary.Id);
+			writer.writeString(summary.Title);
+			writer.writeString(summary.Author);
+			writer.writeString(summary.SeriesTitle);
+			writer.writeString(summary.SeriesIndex != null ? summary.SeriesIndex.toString() : null);
+			writer.endRecord();
+		}
+		return writer.toByteArray();
+	}
+
+	public BookPage deserializePage(BookQuery query, byte[] data) {
+		try {
+			final Reader reader = new Reader(data);
+			if (reader.recordsNumber() == 0) {
+				return null;
+			}
+			reader.startRecord();
+			final int totalCount = (int)reader.readInt();
+			reader.endRecord();
+			final List<BookSummary> summaries = new ArrayList<BookSummary>(reader.recordsNumber() - 1);
+			for (int i = 1; i < reader.recordsNumber(); ++i) {
+				reader.startRecord();
+				summaries.add(new BookSummary(
+					reader.readInt(),
+					reader.readString(),
+					reader.readString(),
+					reader.readString(),
+					SeriesInfo.createIndex(reader.readString())
+				));
+				reader.endRecord();
+			}
+			return new BookPage(query, totalCount, summaries);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// single items are packed into strings one char per byte, so they fit
+	// String-based calls; lists should use the byte array methods
+	@Override
+	public String serialize(Book book) {
+		return toString(serializeBooks(Collections.singletonList(book)));
+	}
+
+	@Override
+	public Book deserializeBook(String data) {
+		final List<Book> books = deserializeBooks(toByteArray(data));
+		return books != null && books.size() == 1 ? books.get(0) : null;
+	}
+
+	@Override
+	public String serialize(Bookmark bookmark) {
+		return toString(serializeBookmarks(Collections.singletonList(bookmark)));
+	}
+
+	@Override
+	public Bookmark deserializeBookmark(String data) {
+		final List<Bookmark> bookmarks = deserializeBookmarks(toByteArray(data));
+		return bookmarks != null && bookmarks.size() == 1 ? bookmarks.get(0) : null;
+	}
+
+	private static String toString(byte[] data) {
+		final char[] chars = new char[data.length];
+		for (int i = 0; i < data.length; ++i) {
+			chars[i] = (char)(data[i] & 0xFF);
+		}
+		return new String(chars);
+	}
+
+	private static byte[] toByteArray(String data) {
+		final byte[] bytes = new byte[data.length()];
+		for (int i = 0; i < bytes.length; ++i) {
+			bytes[i] = (byte)data.charAt(i);
+		}
+		return bytes;
+	}
+
+	private static void writeBook(Writer writer, Book book) {
+		writer.writeInt(book.getId());
+		writer.writeString(book.File.getUrl());
+		writer.writeString(book.getTitle());
+		writer.writeString(book.getLanguage());
+		writer.writeString(book.getEncodingNoDetection());
+
+		final List<Author> authors = book.authors();
+		writer.writeInt(authors.size());
+		for (Author author : authors) {
+			writer.writeString(author.DisplayName);
+			writer.writeString(author.SortKey);
+		}
+
+		final List<Tag> tags = book.tags();
+		writer.writeInt(tags.size());
+		for (Tag tag : tags) {
+			int depth = 0;
+			for (Tag t = tag; t != null; t = t.Parent) {
+				++depth;
+			}
+			writer.writeInt(depth);
+			writeTagPath(writer, tag);
+		}
+
+		final SeriesInfo seriesInfo = book.getSeriesInfo();
+		writer.writeString(seriesInfo != null ? seriesInfo.Title : null);
+		writer.writeString(seriesInfo != null && seriesInfo.Index != null ? seriesInfo.Index.toString() : null);
+		writer.endRecord();
+	}
+
+	private static void writeTagPath(Writer writer, Tag tag) {
+		if (tag.Parent != null) {
+			writeTagPath(writer, tag.Parent);
+		}
+		writer.writeString(tag.Name);
+	}
+
+	private static Book readBook(Reader reader) throws IOException {
+		reader.startRecord();
+		final long id = reader.readInt();
+		final String url = reader.readString();
+		final String title = reader.readString();
+		final String language = reader.readString();
+		final String encoding = reader.readString();
+		final Book book = new Book(id, ZLFile.createFileByUrl(url), title, encoding, language);
+
+		final int authorsNumber = (int)reader.readInt();
+		for (int i = 0; i < authorsNumber; ++i) {
+			final String name = reader.readString();
+			final String sortKey = reader.readString();
+			if (name != null && sortKey != null) {
+				book.addAuthorWithNoCheck(new Author(name, sortKey));
+			}
+		}
+
+		final int tagsNumber = (int)reader.readInt();
+		for (int i = 0; i < tagsNumber; ++i) {
+			final int depth = (int)reader.readInt();
+			Tag tag = null;
+			for (int j = 0; j < depth; ++j) {
+				tag = Tag.getTag(tag, reader.readString());
+			}
+			if (tag != null) {
+				book.addTagWithNoCheck(tag);
+			}
+		}
+
+		book.setSeriesInfoWithNoCheck(reader.readString(), reader.readString());
+		reader.endRecord();
+		return book;
+	}
+
+	private static void writeBookmark(Writer writer, Bookmark bookmark) {
+		writer.writeInt(bookmark.getId());
+		writer.writeInt(bookmark.getBookId());
+		writer.writeString(bookmark.getBookTitle());
+		writer.writeString(bookmark.getText());
+		writer.writeDate(bookmark.getDate(Bookmark.DateType.Creation));
+		writer.writeDate(bookmark.getDate(Bookmark.DateType.Modification));
+		writer.writeDate(bookmark.getDate(Bookmark.DateType.Access));
+		writer.writeInt(bookmark.getAccessCount());
+		writer.writeString(bookmark.ModelId);
+		writer.writeInt(bookmark.getParagraphIndex());
+		writer.writeInt(bookmark.getElementIndex());
+		writer.writeInt(bookmark.getCharIndex());
+		writer.writeInt(bookmark.IsVisible ? 1 : 0);
+		writer.endRecord();
+	}
+
+	private static Bookmark readBookmark(Reader reader) throws IOException {
+		reader.startRecord();
+		final Bookmark bookmark = new Bookmark(
+			reader.readInt(),
+			reader.readInt(),
+			reader.readString(),
+			reader.readString(),
+			reader.readDate(),
+			reader.readDate(),
+			reader.readDate(),
+			(int)reader.readInt(),
+			reader.readString(),
+			(int)reader.readInt(),
+			(int)reader.readInt(),
+			(int)reader.readInt(),
+			reader.readInt() != 0
+		);
+		reader.endRecord();
+		return bookmark;
+	}
+}
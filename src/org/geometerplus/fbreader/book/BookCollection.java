@@ -21,6 +21,8 @@ package org.geometerplus.fbreader.book;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.geometerplus.zlibrary.core.filesystem.*;
 
@@ -36,8 +38,30 @@ public class BookCollection extends AbstractBookCollection {
 		Collections.synchronizedMap(new LinkedHashMap<ZLFile,Book>());
 	private final Map<Long,Book> myBooksById =
 		Collections.synchronizedMap(new HashMap<Long,Book>());
-	private final List<String> myFilesToRescan =
-		Collections.synchronizedList(new LinkedList<String>());
+	private final BookSearchIndex mySearchIndex = new BookSearchIndex();
+
+	// file observer events are collected for RESCAN_DELAY after the last one,
+	// but not longer than MAX_RESCAN_DELAY after the first one
+	private static final long RESCAN_DELAY = 1000;
+	private static final long MAX_RESCAN_DELAY = 5000;
+	private final Set<String> myPathsToRescan = new HashSet<String>();
+	private long myFirstRescanTime;
+	private ScheduledFuture<?> myRescanFuture;
+	private final Object myRescanLock = new Object();
+	private final ScheduledExecutorService myRescanExecutor =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "Library.rescan");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	private final Runnable myRescanRunnable = new Runnable() {
+		public void run() {
+			processFilesQueue();
+		}
+	};
 
 	private static enum BuildStatus {
 		NotStarted,
@@ -45,6 +69,14 @@ public class BookCollection extends AbstractBookCollection {
 		Finished
 	};
 	private volatile BuildStatus myBuildStatus = BuildStatus.NotStarted;
+	private volatile String myLastBuildReport;
+
+	// selection of the last paged query, reused while the collection is unchanged
+	private final Object myPageCacheLock = new Object();
+	private final AtomicInteger myModificationCount = new AtomicInteger();
+	private String myCachedQueryKey;
+	private int myCachedModificationCount;
+	private List<Book> myCachedSelection;
 
 	public BookCollection(BooksDatabase db) {
 		myDatabase = db;
@@ -116,34 +148,41 @@ public class BookCollection extends AbstractBookCollection {
 			return null;
 		}
 		book.loadLists(myDatabase);
+		return checkAndAddBook(book, null) ? book : null;
+	}
 
+	// adds a book loaded from the database if its file is still there and up to date;
+	// if fileInfos is null, the infos for the book file are loaded here
+	private boolean checkAndAddBook(Book book, FileInfoSet fileInfos) {
 		final ZLFile bookFile = book.File;
 		final ZLPhysicalFile physicalFile = bookFile.getPhysicalFile();
 		if (physicalFile == null) {
 			addBook(book, false);
-			return book;
+			return true;
 		}
 		if (!physicalFile.exists()) {
-			return null;
+			return false;
 		}
 
-		FileInfoSet fileInfos = new FileInfoSet(myDatabase, physicalFile);
+		if (fileInfos == null) {
+			fileInfos = new FileInfoSet(myDatabase, physicalFile);
+		}
 		if (fileInfos.check(physicalFile, physicalFile != bookFile)) {
 			addBook(book, false);
-			return book;
+			return true;
 		}
 		fileInfos.save();
 
 		try {
 			book.readMetaInfo();
 			addBook(book, false);
-			return book;
+			return true;
 		} catch (BookReadingException e) {
-			return null;
+			return false;
 		}
 	}
 
-	private void addBook(Book book, boolean force) {
+	void addBook(Book book, boolean force) {
 		if (book == null) {
 			return;
 		}
@@ -158,6 +197,8 @@ public class BookCollection extends AbstractBookCollection {
 			}
 			myBooksByFile.put(book.File, book);
 			myBooksById.put(book.getId(), book);
+			mySearchIndex.add(book);
+			myModificationCount.incrementAndGet();
 			fireBookEvent(event, book);
 		}
 	}
@@ -176,6 +217,8 @@ public class BookCollection extends AbstractBookCollection {
 		synchronized (myBooksByFile) {
 			myBooksByFile.remove(book.File);
 			myBooksById.remove(book.getId());
+			mySearchIndex.remove(book);
+			myModificationCount.incrementAndGet();
 
 			final List<Long> ids = myDatabase.loadRecentBookIds();
 			if (ids.remove(book.getId())) {
@@ -194,11 +237,19 @@ public class BookCollection extends AbstractBookCollection {
 		}
 	}
 
+	// every word of the pattern should start a word of title, author, series, tag or file name
 	public List<Book> books(String pattern) {
 		if (pattern == null || pattern.length() == 0) {
 			return Collections.emptyList();
 		}
 
+		final List<Book> found = mySearchIndex.find(pattern);
+		if (found != null) {
+			return found;
+		}
+
+		// no words in the pattern (punctuation only), fall back to substring search
+		pattern = pattern.toLowerCase();
 		final LinkedList<Book> filtered = new LinkedList<Book>();
 		for (Book b : books()) {
 			if (b.matches(pattern)) {
@@ -208,6 +259,43 @@ public class BookCollection extends AbstractBookCollection {
 		return filtered;
 	}
 
+	public BookPage books(BookQuery query) {
+		final String key = query.key();
+		List<Book> selection = null;
+		synchronized (myPageCacheLock) {
+			if (key.equals(myCachedQueryKey) && myCachedModificationCount == myModificationCount.get()) {
+				selection = myCachedSelection;
+			}
+		}
+		if (selection == null) {
+			final int modificationCount = myModificationCount.get();
+			selection = query.select(candidates(query));
+			synchronized (myPageCacheLock) {
+				myCachedQueryKey = key;
+				myCachedModificationCount = modificationCount;
+				myCachedSelection = selection;
+			}
+		}
+		return query.page(selection);
+	}
+
+	private List<Book> candidates(BookQuery query) {
+		switch (query.FilterBy) {
+			default:
+				return books();
+			case Favorites:
+				return favorites();
+			case Recent:
+				return recentBooks();
+			case Pattern:
+				return books(query.Value);
+		}
+	}
+
+	public String getSearchIndexReport() {
+		return mySearchIndex.memoryReport();
+	}
+
 	public List<Book> recentBooks() {
 		return books(myDatabase.loadRecentBookIds());
 	}
@@ -217,9 +305,31 @@ public class BookCollection extends AbstractBookCollection {
 	}
 
 	private List<Book> books(List<Long> ids) {
+		// books not in the collection yet are loaded with one set of queries
+		final List<Long> missingIds = new ArrayList<Long>();
+		for (long id : ids) {
+			if (!myBooksById.containsKey(id)) {
+				missingIds.add(id);
+			}
+		}
+		Map<Long,Book> loaded = Collections.emptyMap();
+		FileInfoSet fileInfos = null;
+		if (!missingIds.isEmpty()) {
+			// book files and their parent directories, one query per directory level;
+			// the same set is used to check all the loaded books
+			fileInfos = new FileInfoSet(myDatabase, myDatabase.loadBookFileIds(missingIds).values());
+			loaded = myDatabase.loadBooks(fileInfos, missingIds);
+		}
+
 		final List<Book> bookList = new ArrayList<Book>(ids.size());
 		for (long id : ids) {
-			final Book book = getBookById(id);
+			Book book = myBooksById.get(id);
+			if (book == null) {
+				book = loaded.get(id);
+				if (book != null && !checkAndAddBook(book, fileInfos)) {
+					book = null;
+				}
+			}
 			if (book != null) {
 				bookList.add(book);
 			}
@@ -241,6 +351,7 @@ public class BookCollection extends AbstractBookCollection {
 			ids.remove(12);
 		}
 		myDatabase.saveRecentBookIds(ids);
+		myModificationCount.incrementAndGet();
 	}
 
 	public void setBookFavorite(Book book, boolean favorite) {
@@ -249,6 +360,7 @@ public class BookCollection extends AbstractBookCollection {
 		} else {
 			myDatabase.removeFromFavorites(book.getId());
 		}
+		myModificationCount.incrementAndGet();
 		fireBookEvent(Listener.BookEvent.Updated, book);
 	}
 
@@ -269,10 +381,10 @@ public class BookCollection extends AbstractBookCollection {
 					fireBuildEvent(Listener.BuildEvent.Failed);
 				} finally {
 					fireBuildEvent(Listener.BuildEvent.Completed);
-					synchronized (myFilesToRescan) {
+					synchronized (myPathsToRescan) {
 						myBuildStatus = BuildStatus.Finished;
-						processFilesQueue();
 					}
+					processFilesQueue();
 				}
 			}
 		};
@@ -280,28 +392,120 @@ public class BookCollection extends AbstractBookCollection {
 		builder.start();
 	}
 
+	/**
+	 * Schedules a check of a file or directory that was added, changed or removed;
+	 * requests are debounced and processed in batches.
+	 */
 	public void rescan(String path) {
-		synchronized (myFilesToRescan) {
-			myFilesToRescan.add(path);
-			processFilesQueue();
+		synchronized (myPathsToRescan) {
+			final long now = System.currentTimeMillis();
+			if (myPathsToRescan.isEmpty()) {
+				myFirstRescanTime = now;
+			}
+			myPathsToRescan.add(new File(path).getPath());
+			if (myRescanFuture != null) {
+				myRescanFuture.cancel(false);
+			}
+			final long delay = Math.min(RESCAN_DELAY, myFirstRescanTime + MAX_RESCAN_DELAY - now);
+			myRescanFuture = myRescanExecutor.schedule(
+				myRescanRunnable, Math.max(delay, 0), TimeUnit.MILLISECONDS
+			);
 		}
 	}
 
 	private void processFilesQueue() {
-		synchronized (myFilesToRescan) {
-			if (myBuildStatus != BuildStatus.Finished) {
-				return;
+		synchronized (myRescanLock) {
+			final Set<String> paths;
+			synchronized (myPathsToRescan) {
+				if (myBuildStatus != BuildStatus.Finished || myPathsToRescan.isEmpty()) {
+					return;
+				}
+				paths = new HashSet<String>(myPathsToRescan);
+				myPathsToRescan.clear();
 			}
-			for (ZLFile file : collectPhysicalFiles(myFilesToRescan)) {
-				// TODO:
-				// collect books from archives
-				// rescan files and check book id
-				final Book book = getBookByFile(file);
-				if (book != null) {
-					saveBook(book, false);
+
+			// a path under another requested directory is covered by it;
+			// removed paths are collected, existing files are checked
+			final Set<String> removedPaths = new HashSet<String>();
+			final Set<String> directoryPaths = new HashSet<String>();
+			final List<ZLPhysicalFile> files = new ArrayList<ZLPhysicalFile>();
+			for (String path : paths) {
+				if (hasAncestorIn(path, paths)) {
+					continue;
+				}
+				final ZLPhysicalFile file = new ZLPhysicalFile(new File(path));
+				if (!file.exists()) {
+					removedPaths.add(path);
+				} else if (file.isDirectory()) {
+					directoryPaths.add(path);
+					files.addAll(collectPhysicalFiles(Collections.singletonList(path)));
+				} else {
+					file.setCached(true);
+					files.add(file);
+				}
+			}
+
+			final Map<ZLPhysicalFile,List<Book>> booksByPhysicalFile =
+				new HashMap<ZLPhysicalFile,List<Book>>();
+			final List<Book> removedBooks = new ArrayList<Book>();
+			for (Book book : books()) {
+				final ZLPhysicalFile physicalFile = book.File.getPhysicalFile();
+				if (physicalFile == null) {
+					continue;
 				}
+				final String path = physicalFile.getPath();
+				if (removedPaths.contains(path) || hasAncestorIn(path, removedPaths) ||
+					(hasAncestorIn(path, directoryPaths) && !physicalFile.exists())) {
+					removedBooks.add(book);
+					continue;
+				}
+				List<Book> list = booksByPhysicalFile.get(physicalFile);
+				if (list == null) {
+					list = new LinkedList<Book>();
+					booksByPhysicalFile.put(physicalFile, list);
+				}
+				list.add(book);
+			}
+
+			for (ZLPhysicalFile file : files) {
+				// TODO: collect books from archives
+				rescanFile(file, booksByPhysicalFile.get(file), removedBooks);
+				file.setCached(false);
+			}
+			for (Book book : removedBooks) {
+				removeBook(book, false);
+			}
+			myDatabase.setExistingFlag(removedBooks, false);
+		}
+	}
+
+	private static boolean hasAncestorIn(String path, Set<String> paths) {
+		for (String parent = new File(path).getParent(); parent != null; parent = new File(parent).getParent()) {
+			if (paths.contains(parent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// adds a new book, re-reads changed known books; unreadable ones go to removedBooks
+	private void rescanFile(ZLPhysicalFile file, List<Book> knownBooks, List<Book> removedBooks) {
+		if (knownBooks == null) {
+			getBookByFile(file);
+			return;
+		}
+		final FileInfoSet fileInfos = new FileInfoSet(myDatabase, file);
+		if (fileInfos.check(file, true)) {
+			return;
+		}
+		fileInfos.save();
+		for (Book book : knownBooks) {
+			try {
+				book.readMetaInfo();
+				saveBook(book, true);
+			} catch (BookReadingException e) {
+				removedBooks.add(book);
 			}
-			myFilesToRescan.clear();
 		}
 	}
 
@@ -326,87 +530,84 @@ public class BookCollection extends AbstractBookCollection {
 		//	myDoGroupTitlesByFirstLetter = savedBooksByFileId.values().size() > letterSet.size() * 5 / 4;
 		//}
 
-		// Step 2: check if files corresponding to "existing" books really exists;
-		//         add books to library if yes (and reload book info if needed);
-		//         remove from recent/favorites list if no;
-		//         collect newly "orphaned" books
-		final Set<Book> orphanedBooks = new HashSet<Book>();
-		final Set<ZLPhysicalFile> physicalFiles = new HashSet<ZLPhysicalFile>();
-		int count = 0;
-		for (Book book : savedBooksByFileId.values()) {
-			final ZLPhysicalFile file = book.File.getPhysicalFile();
-			if (file != null) {
-				physicalFiles.add(file);
-			}
-			if (file != book.File && file != null && file.getPath().endsWith(".epub")) {
-				continue;
-			}
-			if (book.File.exists()) {
-				boolean doAdd = true;
-				if (file == null) {
+		final LibraryScanner scanner = new LibraryScanner(this, myDatabase, fileInfos);
+		try {
+			// Step 1.5: walk directories, list only ones changed since the last build
+			final DirectorySnapshot snapshot = new DirectorySnapshot(myDatabase.loadDirectoryInfos());
+			snapshot.walk(bookDirectories());
+
+			// Step 2: check if files corresponding to "existing" books really exists;
+			//         add books to library if yes (changed books are re-read by the scanner);
+			//         remove from recent/favorites list if no;
+			//         collect newly "orphaned" books;
+			//         files in unchanged directories are known to exist, but their size
+			//         and modification time are still checked
+			final Set<Book> orphanedBooks = new HashSet<Book>();
+			final Set<ZLPhysicalFile> physicalFiles = new HashSet<ZLPhysicalFile>();
+			int checkedCount = 0;
+			for (Book book : savedBooksByFileId.values()) {
+				final ZLPhysicalFile file = book.File.getPhysicalFile();
+				if (file != null) {
+					physicalFiles.add(file);
+				}
+				if (file != book.File && file != null && file.getPath().endsWith(".epub")) {
 					continue;
 				}
-				if (!fileInfos.check(file, true)) {
-					try {
-						book.readMetaInfo();
-						saveBook(book, false);
-					} catch (BookReadingException e) {
-						doAdd = false;
+				++checkedCount;
+				if ((file != null && snapshot.isUnchanged(file)) || book.File.exists()) {
+					if (file == null) {
+						continue;
 					}
-					file.setCached(false);
+					if (fileInfos.check(file, true)) {
+						addBook(book, false);
+					} else {
+						scanner.reread(book);
+					}
+				} else {
+					orphanedBooks.add(book);
 				}
-				if (doAdd) {
-					addBook(book, false);
+			}
+			myDatabase.setExistingFlag(orphanedBooks, false);
+
+			// Step 3: collect books from physical files; add new, update already added,
+			//         unmark orphaned as existing again; books are saved and published
+			//         in batches while the scan goes on
+			final Map<Long,Book> orphanedBooksByFileId = myDatabase.loadBooks(fileInfos, false);
+			scanner.scan(snapshot.files(), physicalFiles, savedBooksByFileId, orphanedBooksByFileId);
+
+			// Step 4: add help file
+			try {
+				final ZLFile helpFile = getHelpFile();
+				Book helpBook = savedBooksByFileId.get(fileInfos.getId(helpFile));
+				if (helpBook == null) {
+					helpBook = new Book(helpFile);
 				}
-			} else {
-				orphanedBooks.add(book);
+				addBook(helpBook, false);
+			} catch (BookReadingException e) {
+				// that's impossible
+				e.printStackTrace();
 			}
-		}
-		myDatabase.setExistingFlag(orphanedBooks, false);
-
-		// Step 3: collect books from physical files; add new, update already added,
-		//         unmark orphaned as existing again, collect newly added
-		final Map<Long,Book> orphanedBooksByFileId = myDatabase.loadBooks(fileInfos, false);
-		final Set<Book> newBooks = new HashSet<Book>();
 
-		final List<ZLPhysicalFile> physicalFilesList = collectPhysicalFiles(bookDirectories());
-		for (ZLPhysicalFile file : physicalFilesList) {
-			if (physicalFiles.contains(file)) {
-				continue;
-			}
-			collectBooks(
-				file, fileInfos,
-				savedBooksByFileId, orphanedBooksByFileId,
-				newBooks,
-				!fileInfos.check(file, true)
-			);
-			file.setCached(false);
+			// Step 5: save remaining changes into database; the snapshot goes last,
+			//         so an interrupted build walks the same directories again
+			final String scanReport = scanner.finish();
+			fileInfos.save();
+			myDatabase.saveDirectoryInfos(snapshot.infos());
+			myLastBuildReport =
+				scanReport + "\n" +
+				snapshot.report() + "\n" +
+				String.format("saved books: %d, %d checked", savedBooksByFileId.size(), checkedCount);
+		} finally {
+			scanner.shutdown();
 		}
-		
-		// Step 4: add help file
-		try {
-			final ZLFile helpFile = getHelpFile();
-			Book helpBook = savedBooksByFileId.get(fileInfos.getId(helpFile));
-			if (helpBook == null) {
-				helpBook = new Book(helpFile);
-			}
-			addBook(helpBook, false);
-		} catch (BookReadingException e) {
-			// that's impossible
-			e.printStackTrace();
-		}
-
-		// Step 5: save changes into database
-		fileInfos.save();
+	}
 
-		myDatabase.executeAsATransaction(new Runnable() {
-			public void run() {
-				for (Book book : newBooks) {
-					saveBook(book, false);
-				}
-			}
-		});
-		myDatabase.setExistingFlag(newBooks, true);
+	/**
+	 * @return directory walk statistics and per-stage throughput and latency
+	 *         of the last library build, or null
+	 */
+	public String getLastBuildReport() {
+		return myLastBuildReport;
 	}
 
 	public List<String> bookDirectories() {
@@ -441,50 +642,6 @@ public class BookCollection extends AbstractBookCollection {
 		return fileList;
 	}
 
-	private void collectBooks(
-		ZLFile file, FileInfoSet fileInfos,
-		Map<Long,Book> savedBooksByFileId, Map<Long,Book> orphanedBooksByFileId,
-		Set<Book> newBooks,
-		boolean doReadMetaInfo
-	) {
-		final long fileId = fileInfos.getId(file);
-		if (savedBooksByFileId.get(fileId) != null) {
-			return;
-		}
-
-		try {
-			final Book book = orphanedBooksByFileId.get(fileId);
-			if (book != null) {
-				if (doReadMetaInfo) {
-					book.readMetaInfo();
-				}
-				newBooks.add(book);
-				return;
-			}
-		} catch (BookReadingException e) {
-			// ignore
-		}
-
-		try {
-			final Book book = new Book(file);
-			newBooks.add(book);
-			return;
-		} catch (BookReadingException e) {
-			// ignore
-		}
-
-		if (file.isArchive()) {
-			for (ZLFile entry : fileInfos.archiveEntries(file)) {
-				collectBooks(
-					entry, fileInfos,
-					savedBooksByFileId, orphanedBooksByFileId,
-					newBooks,
-					doReadMetaInfo
-				);
-			}
-		}
-	}
-
 	public List<Bookmark> allBookmarks() {
 		return myDatabase.loadAllVisibleBookmarks();
 	}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.book;
+
+import java.util.List;
+
+public final class BookPage {
+	public final BookQuery Query;
+	// number of books selected by the query, not only by this page
+	public final int TotalCount;
+	public final List<BookSummary> Summaries;
+
+	public BookPage(BookQuery query, int totalCount, List<BookSummary> summaries) {
+		Query = query;
+		TotalCount = totalCount;
+		Summaries = summaries;
+	}
+
+	public boolean hasNext() {
+		return Query.Offset + Summaries.size() < TotalCount;
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.book;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * A page request over the library: which books (filter), in which order and
+ * which slice of the result. Collections answer it with a {@link BookPage}.
+ */
+public final class BookQuery {
+	public static enum Filter {
+		All,
+		// Value is the author display name
+		Author,
+		// Value is the series title
+		Series,
+		// Value is the full tag name, with "/" between levels
+		Tag,
+		Favorites,
+		Recent,
+		// Value is a search pattern, as for IBookCollection.books(String)
+		Pattern
+	}
+
+	public static enum Order {
+		// recent list order, search relevance or collection order
+		Natural,
+		Title,
+		Author,
+		Series
+	}
+
+	public final Filter FilterBy;
+	public final String Value;
+	public final Order OrderBy;
+	public final int Offset;
+	public final int Limit;
+
+	public BookQuery(Filter filter, String value, Order order, int offset, int limit) {
+		FilterBy = filter != null ? filter : Filter.All;
+		Value = value;
+		OrderBy = order != null ? order : Order.Natural;
+		Offset = Math.max(offset, 0);
+		Limit = Math.max(limit, 0);
+	}
+
+	/**
+	 * @return the same query for the page that follows this one
+	 */
+	public BookQuery next() {
+		return new BookQuery(FilterBy, Value, OrderBy, Offset + Limit, Limit);
+	}
+
+	// two queries with the same key select the same books in the same order
+	String key() {
+		return FilterBy + "\000" + Value + "\000" + OrderBy;
+	}
+
+	/**
+	 * Checks the Author, Series and Tag filters; other filters select their
+	 * books before this check and accept everything here.
+	 */
+	public boolean accepts(Book book) {
+		switch (FilterBy) {
+			default:
+				return true;
+			case Author:
+				for (Author a : book.authors()) {
+					if (a.DisplayName.equals(Value)) {
+						return true;
+					}
+				}
+				return false;
+			case Series:
+			{
+				final SeriesInfo info = book.getSeriesInfo();
+				return info != null && info.Title.equals(Value);
+			}
+			case Tag:
+				for (Tag t : book.tags()) {
+					if (t.toString("/").equals(Value)) {
+						return true;
+					}
+				}
+				return false;
+		}
+	}
+
+	/**
+	 * Filters and sorts a list of candidate books and cuts the requested
+	 * slice out of it. The list is expected to be the full candidate set for
+	 * the filter (all books, recent books, favorites or search results).
+	 */
+	public BookPage apply(List<Book> candidates) {
+		final List<Book> selected = select(candidates);
+		return page(selected);
+	}
+
+	List<Book> select(List<Book> candidates) {
+		if (OrderBy == Order.Natural) {
+			final ArrayList<Book> selected = new ArrayList<Book>(candidates.size());
+			for (Book b : candidates) {
+				if (accepts(b)) {
+					selected.add(b);
+				}
+			}
+			return selected;
+		}
+
+		// sort keys are computed once per book, not once per comparison
+		final ArrayList<SortEntry> entries = new ArrayList<SortEntry>(candidates.size());
+		for (Book b : candidates) {
+			if (accepts(b)) {
+				entries.add(new SortEntry(b, OrderBy));
+			}
+		}
+		Collections.sort(entries);
+		final ArrayList<Book> selected = new ArrayList<Book>(entries.size());
+		for (SortEntry e : entries) {
+			selected.add(e.Book);
+		}
+		return selected;
+	}
+
+	BookPage page(List<Book> selected) {
+		final int from = Math.min(Offset, selected.size());
+		final int to = Math.min(from + Limit, selected.size());
+		final List<BookSummary> summaries = new ArrayList<BookSummary>(to - from);
+		for (Book b : selected.subList(from, to)) {
+			summaries.add(new BookSummary(b));
+		}
+		return new BookPage(this, selected.size(), summaries);
+	}
+
+	private static final class SortEntry implements Comparable<SortEntry> {
+		final Book Book;
+		// author sort key or series title; null goes after everything else
+		private final String myGroup;
+		private final BigDecimal mySeriesIndex;
+		private final String myTitle;
+
+		SortEntry(Book book, Order order) {
+			Book = book;
+			switch (order) {
+				default:
+					myGroup = null;
+					mySeriesIndex = null;
+					break;
+				case Author:
+				{
+					final List<Author> authors = book.authors();
+					myGroup = authors.isEmpty() ? null : authors.get(0).SortKey.toLowerCase();
+					mySeriesIndex = null;
+					break;
+				}
+				case Series:
+				{
+					final SeriesInfo info = book.getSeriesInfo();
+					myGroup = info != null ? info.Title.toLowerCase() : null;
+					mySeriesIndex = info != null ? info.Index : null;
+					break;
+				}
+			}
+			myTitle = titleKey(book).toLowerCase();
+		}
+
+		public int compareTo(SortEntry other) {
+			int cmp = compareNullsLast(myGroup, other.myGroup);
+			if (cmp != 0) {
+				return cmp;
+			}
+			if (mySeriesIndex != null || other.mySeriesIndex != null) {
+				if (mySeriesIndex == null || other.mySeriesIndex == null) {
+					return mySeriesIndex == null ? 1 : -1;
+				}
+				cmp = mySeriesIndex.compareTo(other.mySeriesIndex);
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+			cmp = myTitle.compareTo(other.myTitle);
+			return cmp != 0 ? cmp : Book.File.getPath().compareTo(other.Book.File.getPath());
+		}
+	}
+
+	// title without leading punctuation
+	private static String titleKey(Book book) {
+		final String title = book.getTitle();
+		if (title == null) {
+			return "";
+		}
+		for (int i = 0; i < title.length(); ++i) {
+			if (Character.isLetterOrDigit(title.charAt(i))) {
+				return i == 0 ? title : title.substring(i);
+			}
+		}
+		return title;
+	}
+
+	private static int compareNullsLast(String s0, String s1) {
+		if (s0 == null) {
+			return s1 == null ? 0 : 1;
+		}
+		return s1 == null ? -1 : s0.compareTo(s1);
+	}
+}
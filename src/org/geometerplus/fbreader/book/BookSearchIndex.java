@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.filesystem.ZLFile;
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+
+/**
+ * Word prefix index over book titles, authors, series, tags and file names.
+ * A book matches a query if every query word is a prefix of some indexed word;
+ * results are ranked by the fields the words were found in, title first.
+ */
+final class BookSearchIndex {
+	// field numbers are also ranks, a lower number is a better match
+	private static final int TITLE = 0;
+	private static final int AUTHOR = 1;
+	private static final int SERIES = 2;
+	private static final int TAG = 3;
+	private static final int FILE_NAME = 4;
+
+	private static final class Postings {
+		int[] Slots = new int[2];
+		// bit set of fields the word occurs in, per book
+		byte[] Fields = new byte[2];
+		int Size;
+
+		void add(int slot, int fields) {
+			if (Size == Slots.length) {
+				Slots = ZLArrayUtils.createCopy(Slots, Size, 2 * Size);
+				Fields = ZLArrayUtils.createCopy(Fields, Size, 2 * Size);
+			}
+			Slots[Size] = slot;
+			Fields[Size] = (byte)fields;
+			++Size;
+		}
+
+		void remove(int slot) {
+			for (int i = 0; i < Size; ++i) {
+				if (Slots[i] == slot) {
+					--Size;
+					Slots[i] = Slots[Size];
+					Fields[i] = Fields[Size];
+					return;
+				}
+			}
+		}
+	}
+
+	private static final class Entry {
+		final int Slot;
+		final String[] Words;
+
+		Entry(int slot, String[] words) {
+			Slot = slot;
+			Words = words;
+		}
+	}
+
+	private final TreeMap<String,Postings> myPostings = new TreeMap<String,Postings>();
+	private final HashMap<ZLFile,Entry> myEntries = new HashMap<ZLFile,Entry>();
+
+	// books are numbered by slots, so queries work on int arrays
+	private Book[] myBooks = new Book[64];
+	private int mySlotsNumber;
+	private int[] myFreeSlots = new int[16];
+	private int myFreeSlotsNumber;
+
+	// per-slot query state; a slot takes part in the query only if its mark is current
+	private int[] myMarks = new int[64];
+	private int[] myWordScores = new int[64];
+	private int[] myScores = new int[64];
+	private int myMarkBase;
+
+	synchronized void add(Book book) {
+		remove(book);
+
+		final LinkedHashMap<String,Integer> words = new LinkedHashMap<String,Integer>();
+		addWords(words, book.getTitle(), TITLE);
+		for (Author author : book.authors()) {
+			addWords(words, author.DisplayName, AUTHOR);
+		}
+		final SeriesInfo series = book.getSeriesInfo();
+		if (series != null) {
+			addWords(words, series.Title, SERIES);
+		}
+		for (Tag tag : book.tags()) {
+			addWords(words, tag.Name, TAG);
+		}
+		addWords(words, book.File.getLongName(), FILE_NAME);
+
+		final int slot = allocateSlot();
+		myBooks[slot] = book;
+		for (Map.Entry<String,Integer> w : words.entrySet()) {
+			Postings postings = myPostings.get(w.getKey());
+			if (postings == null) {
+				postings = new Postings();
+				myPostings.put(w.getKey(), postings);
+			}
+			postings.add(slot, w.getValue());
+		}
+		myEntries.put(book.File, new Entry(slot, words.keySet().toArray(new String[words.size()])));
+	}
+
+	synchronized void remove(Book book) {
+		final Entry entry = myEntries.remove(book.File);
+		if (entry == null) {
+			return;
+		}
+		for (String word : entry.Words) {
+			final Postings postings = myPostings.get(word);
+			if (postings != null) {
+				postings.remove(entry.Slot);
+				if (postings.Size == 0) {
+					myPostings.remove(word);
+				}
+			}
+		}
+		myBooks[entry.Slot] = null;
+		if (myFreeSlotsNumber == myFreeSlots.length) {
+			myFreeSlots = ZLArrayUtils.createCopy(myFreeSlots, myFreeSlotsNumber, 2 * myFreeSlotsNumber);
+		}
+		myFreeSlots[myFreeSlotsNumber++] = entry.Slot;
+	}
+
+	private int allocateSlot() {
+		if (myFreeSlotsNumber > 0) {
+			return myFreeSlots[--myFreeSlotsNumber];
+		}
+		if (mySlotsNumber == myBooks.length) {
+			final int size = 2 * mySlotsNumber;
+			final Book[] books = new Book[size];
+			System.arraycopy(myBooks, 0, books, 0, mySlotsNumber);
+			myBooks = books;
+			myMarks = ZLArrayUtils.createCopy(myMarks, mySlotsNumber, size);
+			myWordScores = ZLArrayUtils.createCopy(myWordScores, mySlotsNumber, size);
+			myScores = ZLArrayUtils.createCopy(myScores, mySlotsNumber, size);
+		}
+		return mySlotsNumber++;
+	}
+
+	/**
+	 * @return ranked books matching all words of the pattern,
+	 *   or null if the pattern contains no words
+	 */
+	synchronized List<Book> find(String pattern) {
+		final List<String> query = words(pattern);
+		if (query.isEmpty()) {
+			return null;
+		}
+
+		if (myMarkBase > Integer.MAX_VALUE - query.size() - 1) {
+			Arrays.fill(myMarks, 0);
+			myMarkBase = 0;
+		}
+		final int base = myMarkBase + 1;
+		myMarkBase += query.size() + 1;
+
+		final int[] marks = myMarks;
+		final int[] wordScores = myWordScores;
+		final int[] scores = myScores;
+		int[] candidates = new int[16];
+		int candidatesNumber = 0;
+		int maxScore = 0;
+		for (int k = 0; k < query.size(); ++k) {
+			final String prefix = query.get(k);
+			// marks[slot] == previous means the book matched all words before this one
+			final int previous = base + k - 1;
+			final int current = base + k;
+			for (Map.Entry<String,Postings> e :
+					myPostings.subMap(prefix, true, prefix + Character.MAX_VALUE, false).entrySet()) {
+				// best field first, an exact word beats a prefix in the same field
+				final int exactBonus = e.getKey().length() == prefix.length() ? 0 : 1;
+				final Postings postings = e.getValue();
+				final int[] slots = postings.Slots;
+				final byte[] fields = postings.Fields;
+				for (int i = 0; i < postings.Size; ++i) {
+					final int slot = slots[i];
+					final int score = 2 * Integer.numberOfTrailingZeros(fields[i]) + exactBonus;
+					final int mark = marks[slot];
+					if (mark == current) {
+						if (wordScores[slot] > score) {
+							wordScores[slot] = score;
+						}
+					} else if (k == 0 || mark == previous) {
+						marks[slot] = current;
+						wordScores[slot] = score;
+						if (k == 0) {
+							scores[slot] = 0;
+							if (candidatesNumber == candidates.length) {
+								candidates = ZLArrayUtils.createCopy(candidates, candidatesNumber, 2 * candidatesNumber);
+							}
+							candidates[candidatesNumber++] = slot;
+						}
+					}
+				}
+			}
+
+			int survivors = 0;
+			for (int i = 0; i < candidatesNumber; ++i) {
+				final int slot = candidates[i];
+				if (marks[slot] == current) {
+					scores[slot] += wordScores[slot];
+					maxScore = Math.max(maxScore, scores[slot]);
+					candidates[survivors++] = slot;
+				}
+			}
+			candidatesNumber = survivors;
+			if (candidatesNumber == 0) {
+				return Collections.emptyList();
+			}
+		}
+
+		// counting sort by score, books with equal scores keep index order
+		final int[] starts = new int[maxScore + 2];
+		for (int i = 0; i < candidatesNumber; ++i) {
+			++starts[scores[candidates[i]] + 1];
+		}
+		for (int i = 1; i < starts.length; ++i) {
+			starts[i] += starts[i - 1];
+		}
+		final Book[] ranked = new Book[candidatesNumber];
+		for (int i = 0; i < candidatesNumber; ++i) {
+			final int slot = candidates[i];
+			ranked[starts[scores[slot]]++] = myBooks[slot];
+		}
+		return Arrays.asList(ranked);
+	}
+
+	/**
+	 * @return estimated heap usage of the index, assuming 4-byte references
+	 */
+	synchronized String memoryReport() {
+		long postingsNumber = 0;
+		long bytes = 0;
+		for (Map.Entry<String,Postings> e : myPostings.entrySet()) {
+			final Postings postings = e.getValue();
+			postingsNumber += postings.Size;
+			// tree entry, string with its array, postings object and both arrays
+			bytes += 32 + 40 + 2 * e.getKey().length() + 24 + 16 + 4 * postings.Slots.length + 16 + postings.Fields.length;
+		}
+		for (Entry entry : myEntries.values()) {
+			// hash map entry, index entry and word array
+			bytes += 24 + 16 + 16 + 4 * entry.Words.length;
+		}
+		// slot tables
+		bytes += 16 * myBooks.length + 4 * myFreeSlots.length;
+		return String.format(
+			"book search index: %d books, %d words, %d postings, ~%d KiB",
+			myEntries.size(), myPostings.size(), postingsNumber, bytes / 1024
+		);
+	}
+
+	private static void addWords(Map<String,Integer> words, String text, int field) {
+		if (text == null) {
+			return;
+		}
+		for (String w : words(text)) {
+			final Integer fields = words.get(w);
+			words.put(w, (fields != null ? fields : 0) | (1 << field));
+		}
+	}
+
+	// lower-cased runs of letters and digits
+	static List<String> words(String text) {
+		final List<String> words = new ArrayList<String>();
+		final String lower = text.toLowerCase();
+		final int length = lower.length();
+		int start = -1;
+		for (int i = 0; i <= length; ++i) {
+			final boolean inWord = i < length && Character.isLetterOrDigit(lower.charAt(i));
+			if (inWord) {
+				if (start == -1) {
+					start = i;
+				}
+			} else if (start != -1) {
+				words.add(lower.substring(start, i));
+				start = -1;
+			}
+		}
+		return words;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.book;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * Lightweight projection of a book for list screens; the full Book is
+ * loaded on demand by id.
+ */
+public final class BookSummary {
+	public final long Id;
+	public final String Title;
+	// display name of the first author, or null
+	public final String Author;
+	public final String SeriesTitle;
+	public final BigDecimal SeriesIndex;
+
+	public BookSummary(long id, String title, String author, String seriesTitle, BigDecimal seriesIndex) {
+		Id = id;
+		Title = title;
+		Author = author;
+		SeriesTitle = seriesTitle;
+		SeriesIndex = seriesIndex;
+	}
+
+	BookSummary(Book book) {
+		Id = book.getId();
+		Title = book.getTitle();
+		final List<Author> authors = book.authors();
+		Author = authors.isEmpty() ? null : authors.get(0).DisplayName;
+		final SeriesInfo info = book.getSeriesInfo();
+		SeriesTitle = info != null ? info.Title : null;
+		SeriesIndex = info != null ? info.Index : null;
+	}
+}
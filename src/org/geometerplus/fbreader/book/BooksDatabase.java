@@ -63,6 +63,11 @@ public abstract class BooksDatabase {
 	public /*protected*/ abstract Book loadBook(long bookId);
 	public /*protected*/ abstract void reloadBook(Book book);
 	public /*protected*/ abstract Book loadBookByFile(long fileId, ZLFile file);
+	// returns map bookId -> fileId
+	public /*protected*/ abstract Map<Long,Long> loadBookFileIds(Collection<Long> bookIds);
+	// returns map bookId -> book, with authors, tags and series info loaded;
+	// infos must contain the book files
+	public /*protected*/ abstract Map<Long,Book> loadBooks(FileInfoSet infos, Collection<Long> bookIds);
 
 	public /*protected*/ abstract List<Author> loadAuthors(long bookId);
 	public /*protected*/ abstract List<Tag> loadTags(long bookId);
@@ -82,9 +87,19 @@ public abstract class BooksDatabase {
 	public /*protected*/ abstract Collection<FileInfo> loadFileInfos();
 	public /*protected*/ abstract Collection<FileInfo> loadFileInfos(ZLFile file);
 	public /*protected*/ abstract Collection<FileInfo> loadFileInfos(long fileId);
+	// infos for given files and all their ancestors
+	public /*protected*/ abstract Collection<FileInfo> loadFileInfos(Collection<Long> fileIds);
 	public /*protected*/ abstract void removeFileInfo(long fileId);
 	public /*protected*/ abstract void saveFileInfo(FileInfo fileInfo);
 
+	protected DirectoryInfo createDirectoryInfo(String path, long lastModified, long listedAt, int childCount, long digest, List<String> subdirectories) {
+		return new DirectoryInfo(path, lastModified, listedAt, childCount, digest, subdirectories);
+	}
+
+	public /*protected*/ abstract Collection<DirectoryInfo> loadDirectoryInfos();
+	// replaces the whole snapshot
+	public /*protected*/ abstract void saveDirectoryInfos(Collection<DirectoryInfo> infos);
+
 	public /*protected*/ abstract List<Long> loadRecentBookIds();
 	public /*protected*/ abstract void saveRecentBookIds(final List<Long> ids);
 
@@ -106,4 +121,7 @@ public abstract class BooksDatabase {
 
 	public /*protected*/ abstract Collection<String> loadVisitedHyperlinks(long bookId);
 	public /*protected*/ abstract void addVisitedHyperlink(long bookId, String hyperlinkId);
+
+	// positions, visited hyperlinks and bookmark updates may be written behind
+	public /*protected*/ abstract void flushPendingWrites();
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.book;
+
+import java.util.List;
+
+public final class DirectoryInfo {
+	public final String Path;
+	public final long LastModified;
+	// time of the listing this info was made from
+	public final long ListedAt;
+	public final int ChildCount;
+	// CRC32 of sorted entry names, directories are marked with a trailing '/'
+	public final long Digest;
+	public final List<String> Subdirectories;
+
+	DirectoryInfo(String path, long lastModified, long listedAt, int childCount, long digest, List<String> subdirectories) {
+		Path = path;
+		LastModified = lastModified;
+		ListedAt = listedAt;
+		ChildCount = childCount;
+		Digest = digest;
+		Subdirectories = subdirectories;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.book;
+
+import java.io.File;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.geometerplus.zlibrary.core.filesystem.ZLPhysicalFile;
+
+/**
+ * Directory level snapshot of the library tree. A directory whose mtime has
+ * not changed since it was listed has the same entries, so it is not listed,
+ * its files are not stat'ed and its subdirectories are taken from the snapshot.
+ * Files rewritten in place do not touch the directory mtime; such changes
+ * are caught by the file observer while the library service runs.
+ */
+final class DirectorySnapshot {
+	// FAT keeps modification times with 2 s precision, so a directory changed
+	// right after the listing may keep the listed mtime
+	private static final long MTIME_PRECISION = 2000;
+
+	private final Map<String,DirectoryInfo> myInfos = new HashMap<String,DirectoryInfo>();
+	private final Map<String,DirectoryInfo> myNewInfos = new HashMap<String,DirectoryInfo>();
+	private final Set<String> myUnchangedPaths = new HashSet<String>();
+	private final List<ZLPhysicalFile> myFiles = new ArrayList<ZLPhysicalFile>();
+
+	private int myStatCount;
+	private int myListedCount;
+	private int mySameEntriesCount;
+	private long myWalkNanos;
+
+	DirectorySnapshot(Collection<DirectoryInfo> infos) {
+		for (DirectoryInfo info : infos) {
+			myInfos.put(info.Path, info);
+		}
+	}
+
+	void walk(List<String> roots) {
+		final long start = System.nanoTime();
+		final ArrayDeque<String> queue = new ArrayDeque<String>();
+		final HashSet<String> visited = new HashSet<String>();
+		for (String path : roots) {
+			queue.offer(new File(path).getPath());
+		}
+		while (!queue.isEmpty()) {
+			final String path = queue.poll();
+			if (!visited.add(path)) {
+				continue;
+			}
+			final File directory = new File(path);
+			final long lastModified = directory.lastModified();
+			++myStatCount;
+			if (lastModified == 0) {
+				continue;
+			}
+
+			final DirectoryInfo info = myInfos.get(path);
+			if (info != null &&
+				info.LastModified == lastModified &&
+				lastModified + MTIME_PRECISION < info.ListedAt) {
+				myUnchangedPaths.add(path);
+				myNewInfos.put(path, info);
+				for (String name : info.Subdirectories) {
+					queue.offer(new File(directory, name).getPath());
+				}
+				continue;
+			}
+
+			final List<ZLPhysicalFile> files = new ArrayList<ZLPhysicalFile>();
+			final DirectoryInfo newInfo = list(directory, lastModified, files, queue);
+			if (newInfo == null) {
+				continue;
+			}
+			myNewInfos.put(path, newInfo);
+			if (info != null && info.ChildCount == newInfo.ChildCount && info.Digest == newInfo.Digest) {
+				// same entries: files of saved books are checked by the caller,
+				// other files could not be read before
+				++mySameEntriesCount;
+			} else {
+				myFiles.addAll(files);
+			}
+		}
+		myWalkNanos = System.nanoTime() - start;
+	}
+
+	private DirectoryInfo list(File directory, long lastModified, List<ZLPhysicalFile> files, Queue<String> queue) {
+		final long listedAt = System.currentTimeMillis();
+		final File[] children = directory.listFiles();
+		++myListedCount;
+		if (children == null) {
+			return null;
+		}
+		Arrays.sort(children);
+
+		final CRC32 digest = new CRC32();
+		final List<String> subdirectories = new ArrayList<String>();
+		int count = 0;
+		for (File child : children) {
+			final String name = child.getName();
+			if (name.startsWith(".")) {
+				continue;
+			}
+			++count;
+			++myStatCount;
+			final boolean isDirectory = child.isDirectory();
+			digest.update(name.getBytes());
+			digest.update(isDirectory ? '/' : 0);
+			if (isDirectory) {
+				subdirectories.add(name);
+				queue.offer(child.getPath());
+			} else {
+				files.add(new ZLPhysicalFile(child));
+			}
+		}
+
+		return new DirectoryInfo(
+			directory.getPath(), lastModified, listedAt, count, digest.getValue(), subdirectories
+		);
+	}
+
+	/**
+	 * @return true if the file lies in a directory that has not changed since the last walk
+	 */
+	boolean isUnchanged(ZLPhysicalFile file) {
+		final String parent = file.javaFile().getParent();
+		return parent != null && myUnchangedPaths.contains(parent);
+	}
+
+	/**
+	 * @return files of directories with new or removed entries
+	 */
+	List<ZLPhysicalFile> files() {
+		return myFiles;
+	}
+
+	/**
+	 * @return the snapshot to be saved after a successful build
+	 */
+	Collection<DirectoryInfo> infos() {
+		return myNewInfos.values();
+	}
+
+	String report() {
+		return String.format(
+			"directories: %d walked, %d unchanged, %d listed (%d with same entries), %d files to check, %d stat calls, %.2f s",
+			myNewInfos.size(), myUnchangedPaths.size(), myListedCount, mySameEntriesCount,
+			myFiles.size(), myStatCount, myWalkNanos / 1e9
+		);
+	}
+}
@@ -25,6 +25,7 @@ public final class FileInfo extends ZLTree<FileInfo> {
 	public final String Name;
 	public long Id;
 	public long FileSize = -1;
+	public long LastModified = -1;
 
 	FileInfo(String name, FileInfo parent) {
 		this(name, parent, -1);
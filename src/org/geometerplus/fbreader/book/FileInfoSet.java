@@ -77,6 +77,11 @@ public final class FileInfoSet {
 		load(database.loadFileInfos(fileId));
 	}
 
+	public FileInfoSet(BooksDatabase database, Collection<Long> fileIds) {
+		myDatabase = database;
+		load(database.loadFileInfos(fileIds));
+	}
+
 	private void load(Collection<FileInfo> infos) {
 		for (FileInfo info : infos) {
 			myInfosByPair.put(new Pair(info.Name, info.Parent), info);
@@ -105,11 +110,18 @@ public final class FileInfoSet {
 			return true;
 		}
 		final long fileSize = file.size();
+		final long lastModified = file.lastModified();
 		FileInfo info = get(file);
-		if (info.FileSize == fileSize) {
+		if (info.FileSize == fileSize && info.LastModified == lastModified) {
+			return true;
+		} else if (info.FileSize == fileSize && info.LastModified == -1) {
+			// modification time was not stored by older versions
+			info.LastModified = lastModified;
+			myInfosToSave.add(info);
 			return true;
 		} else {
 			info.FileSize = fileSize;
+			info.LastModified = lastModified;
 			if (processChildren && !"epub".equals(file.getExtension())) {
 				removeChildren(info);
 				myInfosToSave.add(info);
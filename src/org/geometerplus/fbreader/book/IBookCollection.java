@@ -53,6 +53,8 @@ public interface IBookCollection {
 	List<Book> books(String pattern);
 	List<Book> recentBooks();
 	List<Book> favorites();
+	// one page of lightweight summaries; full books are loaded by getBookById
+	BookPage books(BookQuery query);
 	Book getBookByFile(ZLFile file);
 	Book getBookById(long id);
 	Book getRecentBook(int index);
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.geometerplus.zlibrary.core.filesystem.*;
+
+import org.geometerplus.fbreader.bookmodel.BookReadingException;
+import org.geometerplus.fbreader.formats.FormatPlugin;
+import org.geometerplus.fbreader.formats.PluginCollection;
+
+/**
+ * Staged library scan. The calling thread detects changed files among those
+ * found by the directory walk and writes books in batches; a worker pool
+ * reads meta info of books handled by Java plugins. Native plugins read meta
+ * info under a lock (see NativeFormatPlugin.readMetaInfo), so such books go
+ * to a single worker instead of blocking the pool. Stages are connected by
+ * bounded queues. FileInfoSet and all database writes stay on the calling
+ * thread, as neither is thread-safe.
+ */
+final class LibraryScanner {
+	private static final int TASK_QUEUE_SIZE = 64;
+	private static final int BATCH_SIZE = 200;
+	private static final int MAX_WORKERS_NUMBER = 4;
+	private static final long POLL_TIMEOUT = 50;
+	// a partial batch is written after this time, so books show up while scanning
+	private static final long BATCH_DELAY = 1000;
+
+	private static final class Stage {
+		final String Name;
+		private int myCount;
+		private long myTotalNanos;
+		private long myMaxNanos;
+
+		Stage(String name) {
+			Name = name;
+		}
+
+		synchronized void add(long nanos) {
+			++myCount;
+			myTotalNanos += nanos;
+			myMaxNanos = Math.max(myMaxNanos, nanos);
+		}
+
+		synchronized String report(long wallNanos) {
+			return String.format(
+				"%s: %d items, %.1f items/s, avg %.2f ms, max %.2f ms",
+				Name, myCount,
+				wallNanos > 0 ? myCount * 1e9 / wallNanos : 0.0,
+				myCount > 0 ? myTotalNanos / 1e6 / myCount : 0.0,
+				myMaxNanos / 1e6
+			);
+		}
+	}
+
+	// a physical file stays cached while tasks for it or its entries are pending
+	private static final class PendingFile {
+		final ZLPhysicalFile File;
+		int TasksLeft;
+
+		PendingFile(ZLPhysicalFile file) {
+			File = file;
+		}
+	}
+
+	private static final class Task {
+		final ZLFile File;
+		final Book Book;
+		final boolean IsNew;
+		final boolean ReadMetaInfo;
+		final PendingFile Pending;
+
+		Task(ZLFile file, Book book, boolean isNew, boolean readMetaInfo, PendingFile pending) {
+			File = file;
+			Book = book;
+			IsNew = isNew;
+			ReadMetaInfo = readMetaInfo;
+			Pending = pending;
+		}
+	}
+
+	private static final class Result {
+		final Task Task;
+		final Book Book;
+
+		Result(Task task, Book book) {
+			Task = task;
+			Book = book;
+		}
+	}
+
+	private final BookCollection myCollection;
+	private final BooksDatabase myDatabase;
+	private final FileInfoSet myFileInfos;
+
+	private final BlockingQueue<Result> myResults =
+		new ArrayBlockingQueue<Result>(TASK_QUEUE_SIZE);
+	private final ThreadPoolExecutor myWorkers;
+	private final ThreadPoolExecutor myNativeWorker;
+	private int myTasksInProgress;
+
+	private Map<Long,Book> mySavedBooksByFileId = Collections.emptyMap();
+	private Map<Long,Book> myOrphanedBooksByFileId = Collections.emptyMap();
+
+	private final List<Book> myBatch = new ArrayList<Book>(BATCH_SIZE);
+	private long myBatchStartTime;
+	private final List<Book> myNewBooksInBatch = new ArrayList<Book>(BATCH_SIZE);
+
+	private final Stage myDetectStage = new Stage("detect");
+	private final Stage myReadStage = new Stage("read meta info");
+	private final Stage myWriteStage = new Stage("write");
+	private final long myStartTime = System.nanoTime();
+
+	LibraryScanner(BookCollection collection, BooksDatabase database, FileInfoSet fileInfos) {
+		myCollection = collection;
+		myDatabase = database;
+		myFileInfos = fileInfos;
+		final int workersNumber =
+			Math.max(1, Math.min(MAX_WORKERS_NUMBER, Runtime.getRuntime().availableProcessors()));
+		myWorkers = createWorkers(workersNumber, "Library.read");
+		myNativeWorker = createWorkers(1, "Library.readNative");
+	}
+
+	// the bounded task queue makes the calling thread wait for workers,
+	// see submit()
+	private static ThreadPoolExecutor createWorkers(int number, final String name) {
+		return new ThreadPoolExecutor(
+			number, number, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(TASK_QUEUE_SIZE),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, name);
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			}
+		);
+	}
+
+	/**
+	 * Re-reads meta info of an already known book whose file has changed;
+	 * the book is saved and published if it can still be read.
+	 */
+	void reread(Book book) {
+		submit(new Task(book.File, book, false, true, null));
+	}
+
+	/**
+	 * Collects books from files except known ones;
+	 * returns when every file is checked, reading may continue.
+	 */
+	void scan(
+		List<ZLPhysicalFile> files, Set<ZLPhysicalFile> knownFiles,
+		Map<Long,Book> savedBooksByFileId, Map<Long,Book> orphanedBooksByFileId
+	) {
+		mySavedBooksByFileId = savedBooksByFileId;
+		myOrphanedBooksByFileId = orphanedBooksByFileId;
+		for (ZLPhysicalFile file : files) {
+			processResults();
+			flushStaleBatch();
+			if (knownFiles.contains(file)) {
+				continue;
+			}
+			final long start = System.nanoTime();
+			file.setCached(true);
+			final PendingFile pending = new PendingFile(file);
+			collectBooks(
+				file, savedBooksByFileId, orphanedBooksByFileId,
+				!myFileInfos.check(file, true), pending
+			);
+			if (pending.TasksLeft == 0) {
+				file.setCached(false);
+			}
+			myDetectStage.add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Waits for all pending reads and writes the last batch.
+	 * @return per-stage throughput and latency report
+	 */
+	String finish() {
+		while (myTasksInProgress > 0) {
+			final Result result = poll(myResults);
+			if (result != null) {
+				processResult(result);
+			}
+			flushStaleBatch();
+		}
+		flushBatch();
+		final long wallNanos = System.nanoTime() - myStartTime;
+		return
+			String.format("library build: %.2f s", wallNanos / 1e9) + "\n" +
+			myDetectStage.report(wallNanos) + "\n" +
+			myReadStage.report(wallNanos) + "\n" +
+			myWriteStage.report(wallNanos);
+	}
+
+	// stops the workers; safe to call after a failure
+	void shutdown() {
+		myWorkers.shutdownNow();
+		myNativeWorker.shutdownNow();
+	}
+
+	private <T> T poll(BlockingQueue<T> queue) {
+		try {
+			return queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
+
+	private void collectBooks(
+		ZLFile file,
+		Map<Long,Book> savedBooksByFileId, Map<Long,Book> orphanedBooksByFileId,
+		boolean doReadMetaInfo, PendingFile pending
+	) {
+		final long fileId = myFileInfos.getId(file);
+		if (savedBooksByFileId.get(fileId) != null) {
+			return;
+		}
+		submit(new Task(file, orphanedBooksByFileId.get(fileId), true, doReadMetaInfo, pending));
+	}
+
+	private void submit(final Task task) {
+		if (task.Pending != null) {
+			++task.Pending.TasksLeft;
+		}
+		++myTasksInProgress;
+		final Runnable runnable = new Runnable() {
+			public void run() {
+				final long start = System.nanoTime();
+				final Book book = readBook(task);
+				myReadStage.add(System.nanoTime() - start);
+				try {
+					myResults.put(new Result(task, book));
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		final ThreadPoolExecutor workers = isNative(task.File) ? myNativeWorker : myWorkers;
+		while (true) {
+			try {
+				workers.execute(runnable);
+				return;
+			} catch (RejectedExecutionException e) {
+				// task queue is full: take some results and retry
+				final Result result = poll(myResults);
+				if (result != null) {
+					processResult(result);
+				}
+			}
+		}
+	}
+
+	private static boolean isNative(ZLFile file) {
+		final FormatPlugin plugin = PluginCollection.Instance().getPlugin(file);
+		return plugin != null && plugin.type() == FormatPlugin.Type.NATIVE;
+	}
+
+	private static Book readBook(Task task) {
+		final Book book = task.Book;
+		if (book != null) {
+			try {
+				if (task.ReadMetaInfo) {
+					book.readMetaInfo();
+				}
+				return book;
+			} catch (BookReadingException e) {
+				if (!task.IsNew) {
+					return null;
+				}
+			}
+		}
+		try {
+			return new Book(task.File);
+		} catch (BookReadingException e) {
+			return null;
+		}
+	}
+
+	private void processResults() {
+		for (Result result = myResults.poll(); result != null; result = myResults.poll()) {
+			processResult(result);
+		}
+	}
+
+	private void processResult(Result result) {
+		--myTasksInProgress;
+		final Task task = result.Task;
+		if (result.Book != null) {
+			if (myBatch.isEmpty()) {
+				myBatchStartTime = System.currentTimeMillis();
+			}
+			myBatch.add(result.Book);
+			if (task.IsNew) {
+				myNewBooksInBatch.add(result.Book);
+			}
+			if (myBatch.size() >= BATCH_SIZE) {
+				flushBatch();
+			}
+		} else if (task.IsNew && task.File.isArchive()) {
+			for (ZLFile entry : myFileInfos.archiveEntries(task.File)) {
+				collectBooks(
+					entry, mySavedBooksByFileId, myOrphanedBooksByFileId,
+					task.ReadMetaInfo, task.Pending
+				);
+			}
+		}
+		final PendingFile pending = task.Pending;
+		if (pending != null && --pending.TasksLeft == 0) {
+			pending.File.setCached(false);
+		} else if (pending == null && task.File.getPhysicalFile() != null) {
+			task.File.getPhysicalFile().setCached(false);
+		}
+	}
+
+	private void flushStaleBatch() {
+		if (!myBatch.isEmpty() && System.currentTimeMillis() - myBatchStartTime >= BATCH_DELAY) {
+			flushBatch();
+		}
+	}
+
+	private void flushBatch() {
+		if (myBatch.isEmpty()) {
+			return;
+		}
+		final long start = System.nanoTime();
+		final List<Book> batch = new ArrayList<Book>(myBatch);
+		myBatch.clear();
+		myDatabase.executeAsATransaction(new Runnable() {
+			public void run() {
+				for (Book book : batch) {
+					book.save(myDatabase, false);
+				}
+			}
+		});
+		if (!myNewBooksInBatch.isEmpty()) {
+			myDatabase.setExistingFlag(myNewBooksInBatch, true);
+			myNewBooksInBatch.clear();
+		}
+		for (Book book : batch) {
+			myCollection.addBook(book, true);
+		}
+		myWriteStage.add(System.nanoTime() - start);
+	}
+}
@@ -26,6 +26,14 @@ public abstract class SerializerUtil {
 	}
 
 	private static final AbstractSerializer defaultSerializer = new XMLSerializer();
+	private static final BinarySerializer binarySerializer = new BinarySerializer();
+
+	public static final String BINARY_FORMAT = BinarySerializer.FORMAT;
+
+	// list formats this side understands besides the default one
+	public static List<String> supportedFormats() {
+		return Collections.singletonList(BINARY_FORMAT);
+	}
 
 	public static String serialize(Book book) {
 		return book != null ? defaultSerializer.serialize(book) : null;
@@ -74,4 +82,28 @@ public abstract class SerializerUtil {
 		}
 		return bookmarks;
 	}
+
+	public static byte[] serializeBookListToBytes(List<Book> books) {
+		return binarySerializer.serializeBooks(books);
+	}
+
+	public static List<Book> deserializeBookList(byte[] data) {
+		return data != null ? binarySerializer.deserializeBooks(data) : null;
+	}
+
+	public static byte[] serializeBookmarkListToBytes(List<Bookmark> bookmarks) {
+		return binarySerializer.serializeBookmarks(bookmarks);
+	}
+
+	public static List<Bookmark> deserializeBookmarkList(byte[] data) {
+		return data != null ? binarySerializer.deserializeBookmarks(data) : null;
+	}
+
+	public static byte[] serializePage(BookPage page) {
+		return binarySerializer.serializePage(page);
+	}
+
+	public static BookPage deserializePage(BookQuery query, byte[] data) {
+		return data != null ? binarySerializer.deserializePage(query, data) : null;
+	}
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.bookmodel;
+
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.image.ZLImage;
+import org.geometerplus.zlibrary.text.model.ZLTextWritablePlainModel;
+
+/**
+ * A part of the main text read by its own BookReader, e.g. on a worker
+ * thread; BookReader.appendFragment() moves it into the model.
+ */
+public final class BookFragment {
+	final ZLTextWritablePlainModel TextModel;
+	final ArrayList<String> Labels = new ArrayList<String>();
+	final ArrayList<Integer> LabelParagraphs = new ArrayList<Integer>();
+	final LinkedHashMap<String,ZLImage> Images = new LinkedHashMap<String,ZLImage>();
+	// set if the reader asked for the main text size before the fragment
+	boolean DependsOnPreviousText;
+
+	public BookFragment(BookModel model) {
+		TextModel = new ZLTextWritablePlainModel(
+			null, model.Book.getLanguage(), 256, 8192, Images
+		);
+	}
+
+	void addHyperlinkLabel(String label, int paragraphIndex) {
+		Labels.add(label);
+		LabelParagraphs.add(paragraphIndex);
+	}
+}
@@ -20,6 +20,7 @@
 package org.geometerplus.fbreader.bookmodel;
 
 import java.util.List;
+import java.util.concurrent.*;
 
 import org.geometerplus.zlibrary.text.model.*;
 
@@ -28,10 +29,43 @@ import org.geometerplus.fbreader.formats.FormatPlugin;
 
 public abstract class BookModel {
 	public static BookModel createModel(Book book) throws BookReadingException {
+		return createModel(book, Integer.MAX_VALUE, null);
+	}
+
+	/**
+	 * Receives the end of reading of a model that has been returned
+	 * by createModel() before it was complete; called on the reading thread.
+	 */
+	public interface ReadingListener {
+		void onModelComplete(BookModel model);
+		// the model keeps the text read before the error
+		void onModelFailed(BookModel model, BookReadingException exception);
+	}
+
+	// read beyond the paragraph to open, so that its page can be filled
+	private static final int FIRST_PAGE_PARAGRAPHS = 64;
+
+	/**
+	 * Returns a model as soon as the text up to paragraphIndex (and a page
+	 * after it) can be shown; the rest of the book is read in background and
+	 * the listener is told when it is done, see isComplete(). Without
+	 * a listener, or for native plugins, the whole book is read first.
+	 */
+	public static BookModel createModel(Book book, int paragraphIndex, ReadingListener listener) throws BookReadingException {
 		final FormatPlugin plugin = book.getPlugin();
 
 		System.err.println("using plugin: " + plugin.supportedFileType() + "/" + plugin.type());
 
+		final String cacheEntry = BookModelCache.entryName(book, plugin);
+		final BookModel cachedModel = BookModelCache.load(cacheEntry, book);
+		if (cachedModel != null) {
+			cachedModel.setLabelResolver(plugin.labelResolver());
+			return cachedModel;
+		}
+
+		// a model being read writes to the same cache files as a new one
+		waitForReading();
+
 		final BookModel model;
 		switch (plugin.type()) {
 			case NATIVE:
@@ -44,10 +78,168 @@ public abstract class BookModel {
 				throw new BookReadingException("unknownPluginType", plugin.type().toString(), null);
 		}
 
-		plugin.readModel(model);
+		model.setLabelResolver(plugin.labelResolver());
+		if (listener == null || !(model instanceof JavaBookModel)) {
+			plugin.readModel(model);
+			saveInBackground(cacheEntry, model);
+			return model;
+		}
+
+		final ReadingTask task = new ReadingTask((JavaBookModel)model, plugin, cacheEntry, listener);
+		synchronized (BookModel.class) {
+			ourReading = readingExecutor().submit(task);
+		}
+		task.waitForParagraphs(
+			paragraphIndex < Integer.MAX_VALUE - FIRST_PAGE_PARAGRAPHS
+				? paragraphIndex + FIRST_PAGE_PARAGRAPHS : Integer.MAX_VALUE
+		);
 		return model;
 	}
 
+	private static ExecutorService ourReadingExecutor;
+	private static Future<?> ourReading;
+
+	private static synchronized ExecutorService readingExecutor() {
+		if (ourReadingExecutor == null) {
+			ourReadingExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "BookReading");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return ourReadingExecutor;
+	}
+
+	// the entry is written off the opening thread; the next model to read waits for it
+	private static void saveInBackground(final String cacheEntry, final BookModel model) {
+		if (cacheEntry == null) {
+			return;
+		}
+		synchronized (BookModel.class) {
+			ourReading = readingExecutor().submit(new Runnable() {
+				public void run() {
+					BookModelCache.save(cacheEntry, model);
+				}
+			});
+		}
+	}
+
+	private static void waitForReading() {
+		final Future<?> reading;
+		synchronized (BookModel.class) {
+			reading = ourReading;
+			ourReading = null;
+		}
+		if (reading == null) {
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				reading.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				// reported to the listener of that model
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class ReadingTask implements Runnable {
+		// the writer does not signal every paragraph, waiting threads poll
+		private static final long POLL_PERIOD = 20;
+
+		private final BookModel myModel;
+		private final ZLTextWritablePlainModel myTextModel;
+		private final FormatPlugin myPlugin;
+		private final String myCacheEntry;
+		private final ReadingListener myListener;
+
+		private boolean myIsFinished;
+		private boolean myIsReturned;
+		private BookReadingException myException;
+		private RuntimeException myRuntimeException;
+
+		ReadingTask(JavaBookModel model, FormatPlugin plugin, String cacheEntry, ReadingListener listener) {
+			myModel = model;
+			myTextModel = (ZLTextWritablePlainModel)model.BookTextModel;
+			myPlugin = plugin;
+			myCacheEntry = cacheEntry;
+			myListener = listener;
+			myModel.myIsComplete = false;
+			myTextModel.startGrowing();
+		}
+
+		public void run() {
+			BookReadingException exception = null;
+			RuntimeException runtimeException = null;
+			try {
+				myPlugin.readModel(myModel);
+			} catch (BookReadingException e) {
+				exception = e;
+			} catch (RuntimeException e) {
+				runtimeException = e;
+			}
+
+			myTextModel.stopGrowing();
+			myModel.myIsComplete = true;
+
+			final boolean isReturned;
+			synchronized (this) {
+				myIsFinished = true;
+				myException = exception;
+				myRuntimeException = runtimeException;
+				isReturned = myIsReturned;
+				notifyAll();
+			}
+
+			if (exception == null && runtimeException == null) {
+				if (isReturned) {
+					myListener.onModelComplete(myModel);
+				}
+				BookModelCache.save(myCacheEntry, myModel);
+			} else if (isReturned) {
+				if (exception == null) {
+					exception = new BookReadingException("errorReadingFile", myModel.Book.File.getPath(), myModel.Book.File);
+				}
+				myListener.onModelFailed(myModel, exception);
+			}
+			if (runtimeException != null) {
+				runtimeException.printStackTrace();
+			}
+		}
+
+		synchronized void waitForParagraphs(int paragraphsNumber) throws BookReadingException {
+			boolean interrupted = false;
+			while (!myIsFinished && myTextModel.getParagraphsNumber() < paragraphsNumber) {
+				try {
+					wait(POLL_PERIOD);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (myException != null) {
+				throw myException;
+			}
+			if (myRuntimeException != null) {
+				throw myRuntimeException;
+			}
+			myIsReturned = !myIsFinished;
+		}
+	}
+
+	private volatile boolean myIsComplete = true;
+
 	public final Book Book;
 	public final TOCTree TOCTree = new TOCTree();
 
@@ -79,7 +271,18 @@ public abstract class BookModel {
 		myResolver = resolver;
 	}
 
+	/**
+	 * False while the rest of the model is being read, see createModel();
+	 * labels, footnotes and the TOC are available after that only.
+	 */
+	public final boolean isComplete() {
+		return myIsComplete;
+	}
+
 	public Label getLabel(String id) {
+		if (!isComplete()) {
+			return null;
+		}
 		Label label = getLabelInternal(id);
 		if (label == null && myResolver != null) {
 			for (String candidate : myResolver.getCandidates(id)) {
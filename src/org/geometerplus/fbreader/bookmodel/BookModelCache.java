@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.bookmodel;
+
+import java.io.*;
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.filesystem.ZLFile;
+import org.geometerplus.zlibrary.core.filesystem.ZLPhysicalFile;
+import org.geometerplus.zlibrary.core.image.*;
+import org.geometerplus.zlibrary.core.util.MimeType;
+
+import org.geometerplus.zlibrary.text.model.*;
+
+import org.geometerplus.fbreader.book.Book;
+import org.geometerplus.fbreader.formats.FormatPlugin;
+import org.geometerplus.fbreader.Paths;
+
+/**
+ * On-disk cache of parsed book models. Every entry is a directory named by
+ * the book content hash, the plugin model version and the book encoding and
+ * language (both change the model); it contains
+ * an index file (paragraph tables, TOC, images, footnote list) and copies
+ * of the char blocks, so a cached model is opened without parsing the book.
+ * Content hashes are remembered by file path, size and modification time,
+ * so a book is hashed once per version of its file.
+ */
+abstract class BookModelCache {
+	private static final int FORMAT_VERSION = 3;
+	private static final String INDEX_FILE_NAME = "index";
+	private static final String DIGESTS_FILE_NAME = "digests";
+	private static final int DIGESTS_LIMIT = 256;
+	private static final String LABEL_INDEX_FILE_NAME = "links.index";
+	private static final String SEARCH_INDEX_FILE_NAME = "search.index";
+
+	private static final long SIZE_LIMIT = 64 * 1024 * 1024;
+
+	private static File cacheDirectory() {
+		return new File(Paths.cacheDirectory() + "/models");
+	}
+
+	static String entryName(Book book, FormatPlugin plugin) {
+		final String hash = contentHash(book);
+		if (hash == null) {
+			return null;
+		}
+		return hash + "-" + safeName(plugin.modelVersion()) +
+			"-" + safeName(book.getEncoding()) +
+			"-" + safeName(book.getLanguage());
+	}
+
+	private static String safeName(String value) {
+		return value != null ? value.replaceAll("[^A-Za-z0-9._]", "_") : "";
+	}
+
+	// content hash by "path, size, modification time"; the least recently used are dropped
+	private static LinkedHashMap<String,String> ourDigests;
+
+	private static String contentHash(Book book) {
+		final ZLPhysicalFile physicalFile = book.File.getPhysicalFile();
+		if (physicalFile == null) {
+			return book.getContentHashCode();
+		}
+		final String key =
+			book.File.getPath() + "\000" + book.File.size() + "\000" + physicalFile.lastModified();
+		synchronized (BookModelCache.class) {
+			final String hash = digests().get(key);
+			if (hash != null) {
+				return hash;
+			}
+		}
+		final String hash = book.getContentHashCode();
+		if (hash != null) {
+			synchronized (BookModelCache.class) {
+				digests().put(key, hash);
+				saveDigests();
+			}
+		}
+		return hash;
+	}
+
+	private static LinkedHashMap<String,String> digests() {
+		if (ourDigests == null) {
+			ourDigests = new LinkedHashMap<String,String>(DIGESTS_LIMIT, 0.75f, true) {
+				private static final long serialVersionUID = 2716084921394526371L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+					return size() > DIGESTS_LIMIT;
+				}
+			};
+			DataInputStream stream = null;
+			try {
+				stream = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(new File(cacheDirectory(), DIGESTS_FILE_NAME))
+				));
+				for (int count = stream.readInt(); count > 0; --count) {
+					final String key = stream.readUTF();
+					ourDigests.put(key, stream.readUTF());
+				}
+			} catch (IOException e) {
+				// no digests yet, or a broken file; the books are hashed again
+			} finally {
+				close(stream);
+			}
+		}
+		return ourDigests;
+	}
+
+	private static void saveDigests() {
+		final File root = cacheDirectory();
+		root.mkdirs();
+		DataOutputStream stream = null;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(root, DIGESTS_FILE_NAME))
+			));
+			stream.writeInt(ourDigests.size());
+			for (Map.Entry<String,String> entry : ourDigests.entrySet()) {
+				stream.writeUTF(entry.getKey());
+				stream.writeUTF(entry.getValue());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			close(stream);
+		}
+	}
+
+	static synchronized BookModel load(String name, Book book) {
+		if (name == null) {
+			return null;
+		}
+		final File directory = new File(cacheDirectory(), name);
+		final File indexFile = new File(directory, INDEX_FILE_NAME);
+		if (!indexFile.exists()) {
+			return null;
+		}
+
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			final BookModel model = readModel(stream, book, directory.getPath());
+			if (model == null) {
+				removeDirectory(directory);
+				return null;
+			}
+			directory.setLastModified(System.currentTimeMillis());
+			setSearchIndexFile(model, directory);
+			return model;
+		} catch (IOException e) {
+			e.printStackTrace();
+			removeDirectory(directory);
+			return null;
+		} finally {
+			close(stream);
+		}
+	}
+
+	static synchronized void save(String name, BookModel model) {
+		if (name == null || !(model instanceof BookModelImpl)) {
+			return;
+		}
+		final File root = cacheDirectory();
+		final File directory = new File(root, name);
+		final File tmpDirectory = new File(root, name + ".tmp");
+		removeDirectory(tmpDirectory);
+		tmpDirectory.mkdirs();
+
+		DataOutputStream stream = null;
+		boolean success = false;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(tmpDirectory, INDEX_FILE_NAME))
+			));
+			writeModel(stream, (BookModelImpl)model, tmpDirectory.getPath());
+			stream.close();
+			stream = null;
+			removeDirectory(directory);
+			success = tmpDirectory.renameTo(directory);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			close(stream);
+			if (!success) {
+				removeDirectory(tmpDirectory);
+			}
+		}
+
+		if (success) {
+			setSearchIndexFile(model, directory);
+			evict(root, directory);
+		}
+	}
+
+	// the search index lives in the entry directory, so it is evicted together with the model
+	private static void setSearchIndexFile(BookModel model, File directory) {
+		final ZLTextModel textModel = model.getTextModel();
+		if (textModel instanceof ZLTextPlainModel) {
+			((ZLTextPlainModel)textModel).setSearchIndexFile(new File(directory, SEARCH_INDEX_FILE_NAME));
+		}
+	}
+
+	private static void writeModel(DataOutputStream stream, BookModelImpl model, String directoryName) throws IOException {
+		final ZLTextModel textModel = model.getTextModel();
+		if (!(textModel instanceof ZLTextPlainModel) || model.myInternalHyperlinks == null) {
+			throw new IOException("Model cannot be cached");
+		}
+
+		stream.writeInt(FORMAT_VERSION);
+		// image URIs refer to the book file by its path
+		stream.writeUTF(model.Book.File.getPath());
+
+		((ZLTextPlainModel)textModel).writeToCache(stream, directoryName, "text");
+
+		final List<ZLTextModel> footnotes = new ArrayList<ZLTextModel>(model.myFootnotes.values());
+		stream.writeInt(footnotes.size());
+		int count = 0;
+		for (ZLTextModel footnote : footnotes) {
+			if (!(footnote instanceof ZLTextPlainModel)) {
+				throw new IOException("Model cannot be cached");
+			}
+			((ZLTextPlainModel)footnote).writeToCache(stream, directoryName, "footnote" + count++);
+		}
+
+		try {
+			stream.writeInt(
+				CachedCharStorageRO.copyOf(model.myInternalHyperlinks, directoryName, "links").size()
+			);
+		} catch (RuntimeException e) {
+			throw new IOException(e.getMessage());
+		}
+
+		final LabelIndex labelIndex = model.labelIndex();
+		final DataOutputStream labelStream = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(new File(directoryName, LABEL_INDEX_FILE_NAME))
+		));
+		try {
+			labelIndex.write(labelStream);
+		} finally {
+			labelStream.close();
+		}
+
+		writeImages(stream, model.myImageMap, directoryName);
+		writeTOC(stream, model.TOCTree, textModel, footnotes);
+	}
+
+	// returns null if the book file has been moved since the entry was written
+	private static BookModel readModel(DataInputStream stream, Book book, String directoryName) throws IOException {
+		if (stream.readInt() != FORMAT_VERSION) {
+			throw new IOException("Unsupported model cache version");
+		}
+		if (!book.File.getPath().equals(stream.readUTF())) {
+			return null;
+		}
+
+		final NativeBookModel model = new NativeBookModel(book);
+
+		final ZLTextModel textModel =
+			ZLTextNativeModel.readFromCache(stream, directoryName, "text", model.myImageMap);
+		model.setBookTextModel(textModel);
+
+		final int footnotesNumber = stream.readInt();
+		final List<ZLTextModel> footnotes = new ArrayList<ZLTextModel>(footnotesNumber);
+		for (int i = 0; i < footnotesNumber; ++i) {
+			final ZLTextModel footnote = ZLTextNativeModel.readFromCache(
+				stream, directoryName, "footnote" + i, model.myImageMap
+			);
+			model.setFootnoteModel(footnote);
+			footnotes.add(footnote);
+		}
+
+		model.initInternalHyperlinks(directoryName, "links", stream.readInt());
+		final DataInputStream labelStream = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(new File(directoryName, LABEL_INDEX_FILE_NAME))
+		));
+		try {
+			model.myLabelIndex = LabelIndex.read(labelStream);
+		} finally {
+			labelStream.close();
+		}
+
+		readImages(stream, model);
+		readTOC(stream, model.TOCTree, textModel, footnotes);
+		return model;
+	}
+
+	private static void writeImages(DataOutputStream stream, Map<String,ZLImage> images, String directoryName) throws IOException {
+		stream.writeInt(images.size());
+		int count = 0;
+		for (Map.Entry<String,ZLImage> entry : images.entrySet()) {
+			final ZLImage image = entry.getValue();
+			stream.writeUTF(entry.getKey());
+			if (image instanceof ZLFileImage) {
+				// refers to the book file itself, so the URI stays valid
+				stream.writeBoolean(true);
+				stream.writeUTF(image.getURI().substring(ZLFileImage.SCHEME.length() + 3));
+			} else if (image instanceof ZLSingleImage && !(image instanceof ZLLoadableImage)) {
+				// data lives in temporary files overwritten by the next book; copy it
+				final File file = new File(directoryName, (count++) + ".image");
+				copyImageData((ZLSingleImage)image, file);
+				stream.writeBoolean(false);
+				stream.writeUTF(((ZLSingleImage)image).mimeType().toString());
+				stream.writeUTF(file.getPath());
+			} else {
+				throw new IOException("Image cannot be cached: " + image);
+			}
+		}
+	}
+
+	private static void readImages(DataInputStream stream, NativeBookModel model) throws IOException {
+		final int size = stream.readInt();
+		for (int i = 0; i < size; ++i) {
+			final String id = stream.readUTF();
+			final ZLFileImage image;
+			if (stream.readBoolean()) {
+				image = ZLFileImage.byUrlPath(stream.readUTF());
+			} else {
+				final MimeType mimeType = MimeType.get(stream.readUTF());
+				final ZLFile file = ZLFile.createFileByPath(stream.readUTF());
+				image = file != null ? new ZLFileImage(mimeType, file) : null;
+			}
+			if (image == null) {
+				throw new IOException("Cannot restore image " + id);
+			}
+			model.addImage(id, image);
+		}
+	}
+
+	private static void copyImageData(ZLSingleImage image, File file) throws IOException {
+		final InputStream input = image.inputStream();
+		if (input == null) {
+			throw new IOException("Cannot read image data");
+		}
+		OutputStream output = null;
+		try {
+			output = new FileOutputStream(file);
+			final byte[] buffer = new byte[8192];
+			while (true) {
+				final int size = input.read(buffer);
+				if (size <= 0) {
+					break;
+				}
+				output.write(buffer, 0, size);
+			}
+		} finally {
+			close(input);
+			close(output);
+		}
+	}
+
+	private static void writeTOC(DataOutputStream stream, TOCTree tree, ZLTextModel textModel, List<ZLTextModel> footnotes) throws IOException {
+		final TOCTree.Reference reference = tree.getReference();
+		if (reference == null) {
+			stream.writeInt(-2);
+		} else {
+			stream.writeInt(reference.Model == textModel ? -1 : footnotes.indexOf(reference.Model));
+			stream.writeInt(reference.ParagraphIndex);
+		}
+		final String text = tree.getText();
+		stream.writeBoolean(text != null);
+		if (text != null) {
+			stream.writeUTF(text);
+		}
+		final List<TOCTree> subTrees = tree.subTrees();
+		stream.writeInt(subTrees.size());
+		for (TOCTree subTree : subTrees) {
+			writeTOC(stream, subTree, textModel, footnotes);
+		}
+	}
+
+	private static void readTOC(DataInputStream stream, TOCTree tree, ZLTextModel textModel, List<ZLTextModel> footnotes) throws IOException {
+		final int modelIndex = stream.readInt();
+		if (modelIndex != -2) {
+			final int paragraphIndex = stream.readInt();
+			if (modelIndex >= footnotes.size()) {
+				throw new IOException("Invalid TOC reference");
+			}
+			tree.setReference(modelIndex >= 0 ? footnotes.get(modelIndex) : textModel, paragraphIndex);
+		}
+		if (stream.readBoolean()) {
+			tree.setText(stream.readUTF());
+		}
+		final int size = stream.readInt();
+		for (int i = 0; i < size; ++i) {
+			readTOC(stream, new TOCTree(tree), textModel, footnotes);
+		}
+	}
+
+	private static void evict(File root, File current) {
+		final File[] entries = root.listFiles();
+		if (entries == null) {
+			return;
+		}
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File f0, File f1) {
+				final long diff = f1.lastModified() - f0.lastModified();
+				return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+			}
+		});
+		long totalSize = 0;
+		for (File entry : entries) {
+			final long size = directorySize(entry);
+			if (totalSize + size > SIZE_LIMIT && !entry.equals(current)) {
+				removeDirectory(entry);
+			} else {
+				totalSize += size;
+			}
+		}
+	}
+
+	private static long directorySize(File directory) {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return directory.length();
+		}
+		long size = 0;
+		for (File f : files) {
+			size += f.length();
+		}
+		return size;
+	}
+
+	private static void removeDirectory(File directory) {
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static void close(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -19,7 +19,7 @@
 
 package org.geometerplus.fbreader.bookmodel;
 
-import java.util.HashMap;
+import java.util.*;
 
 import org.geometerplus.zlibrary.core.image.*;
 
@@ -29,38 +29,36 @@ import org.geometerplus.fbreader.book.Book;
 
 abstract class BookModelImpl extends BookModel {
 	protected CharStorage myInternalHyperlinks;
-	protected final HashMap<String,ZLImage> myImageMap = new HashMap<String,ZLImage>();
+	// synchronized: images are added while a growing model is shown
+	protected final Map<String,ZLImage> myImageMap =
+		Collections.synchronizedMap(new HashMap<String,ZLImage>());
 	protected final HashMap<String,ZLTextModel> myFootnotes = new HashMap<String,ZLTextModel>();
 
 	BookModelImpl(Book book) {
 		super(book);
 	}
 
+	// volatile: built lazily for native models, read by lookups and by the cache writer
+	protected volatile LabelIndex myLabelIndex;
+
+	final LabelIndex labelIndex() {
+		final LabelIndex index = myLabelIndex;
+		return index != null ? index : buildLabelIndex();
+	}
+
+	private synchronized LabelIndex buildLabelIndex() {
+		if (myLabelIndex == null) {
+			myLabelIndex = LabelIndex.build(myInternalHyperlinks);
+		}
+		return myLabelIndex;
+	}
+
 	@Override
 	protected Label getLabelInternal(String id) {
-		final int len = id.length();
-		final int size = myInternalHyperlinks.size();
-
-		for (int i = 0; i < size; ++i) {
-			final char[] block = myInternalHyperlinks.block(i);
-			for (int offset = 0; offset < block.length; ) {
-				final int labelLength = (int)block[offset++];
-				if (labelLength == 0) {
-					break;
-				}
-				final int idLength = (int)block[offset + labelLength];
-				if ((labelLength != len) || !id.equals(new String(block, offset, labelLength))) {
-					offset += labelLength + idLength + 3;
-					continue;
-				}
-				offset += labelLength + 1;
-				final String modelId = (idLength > 0) ? new String(block, offset, idLength) : null;
-				offset += idLength;
-				final int paragraphNumber = (int)block[offset] + (((int)block[offset + 1]) << 16);
-				return new Label(modelId, paragraphNumber);
-			}
+		if (myInternalHyperlinks == null) {
+			return null;
 		}
-		return null;
+		return labelIndex().find(myInternalHyperlinks, id);
 	}
 
 	public void addImage(String id, ZLImage image) {
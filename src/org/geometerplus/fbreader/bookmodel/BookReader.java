@@ -24,12 +24,14 @@ import org.geometerplus.zlibrary.core.util.*;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharsetDecoder;
+import java.util.Map;
 
 import org.geometerplus.zlibrary.core.image.ZLImage;
 import org.geometerplus.zlibrary.text.model.*;
 
 public class BookReader {
 	public final JavaBookModel Model;
+	private final BookFragment myFragment;
 
 	private ZLTextWritableModel myCurrentTextModel = null;
 
@@ -54,10 +56,67 @@ public class BookReader {
 	private CharsetDecoder myByteDecoder;
 
 	public BookReader(BookModel model) {
+		this(model, null);
+	}
+
+	/**
+	 * Creates a reader that writes the main text into the fragment;
+	 * footnotes and contents still go to the model.
+	 */
+	public BookReader(BookModel model, BookFragment fragment) {
 		Model = (JavaBookModel)model;
+		myFragment = fragment;
 		myCurrentContentsTree = model.TOCTree;
 	}
 
+	private ZLTextWritableModel mainTextModel() {
+		return myFragment != null ? myFragment.TextModel : Model.BookTextModel;
+	}
+
+	/**
+	 * A fragment does not know the text before it, so it assumes that there are
+	 * some paragraphs; see canAppendFragment().
+	 */
+	public final boolean mainTextHasSeveralParagraphs() {
+		if (mainTextModel().getWrittenParagraphsNumber() > 1) {
+			return true;
+		}
+		if (myFragment != null) {
+			myFragment.DependsOnPreviousText = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return false if the fragment relied on text before it that is not there;
+	 *         such a fragment must be read again by this reader
+	 */
+	public final boolean canAppendFragment(BookFragment fragment) {
+		return !fragment.DependsOnPreviousText || Model.BookTextModel.getWrittenParagraphsNumber() > 1;
+	}
+
+	/**
+	 * Appends the main text of the fragment with its labels and images.
+	 */
+	public final void appendFragment(BookFragment fragment) {
+		endParagraph();
+		final ZLTextWritablePlainModel textModel = (ZLTextWritablePlainModel)Model.BookTextModel;
+		final int base = textModel.getWrittenParagraphsNumber();
+		textModel.append(fragment.TextModel);
+		final int size = fragment.Labels.size();
+		for (int i = 0; i < size; ++i) {
+			Model.addHyperlinkLabel(
+				fragment.Labels.get(i), textModel, base + fragment.LabelParagraphs.get(i)
+			);
+		}
+		for (Map.Entry<String,ZLImage> entry : fragment.Images.entrySet()) {
+			Model.addImage(entry.getKey(), entry.getValue());
+		}
+		// a fragment ends with its own end of section
+		mySectionContainsRegularContents = false;
+	}
+
 	public final void setByteDecoder(CharsetDecoder decoder) {
 		myByteDecoder = decoder;
 	}
@@ -140,7 +199,7 @@ public class BookReader {
 	private final void insertEndParagraph(byte kind) {
 		final ZLTextWritableModel textModel = myCurrentTextModel;
 		if (textModel != null && mySectionContainsRegularContents) {
-			int size = textModel.getParagraphsNumber();
+			int size = textModel.getWrittenParagraphsNumber();
 			if (size > 0 && textModel.getParagraph(size - 1).getKind() != kind) {
 				textModel.createParagraph(kind);
 				mySectionContainsRegularContents = false;
@@ -174,14 +233,14 @@ public class BookReader {
 	}
 
 	public final void setMainTextModel() {
-		if (myCurrentTextModel != null && myCurrentTextModel != Model.BookTextModel) {
+		if (myCurrentTextModel != null && myCurrentTextModel != mainTextModel()) {
 			myCurrentTextModel.stopReading();
 		}
-		myCurrentTextModel = (ZLTextWritableModel)Model.BookTextModel;
+		myCurrentTextModel = mainTextModel();
 	}
 
 	public final void setFootnoteTextModel(String id) {
-		if (myCurrentTextModel != null && myCurrentTextModel != Model.BookTextModel) {
+		if (myCurrentTextModel != null && myCurrentTextModel != mainTextModel()) {
 			myCurrentTextModel.stopReading();
 		}
 		myCurrentTextModel = (ZLTextWritableModel)Model.getFootnoteModel(id);
@@ -293,16 +352,20 @@ public class BookReader {
 	public final void addHyperlinkLabel(String label) {
 		final ZLTextWritableModel textModel = myCurrentTextModel;
 		if (textModel != null) {
-			int paragraphNumber = textModel.getParagraphsNumber();
+			int paragraphNumber = textModel.getWrittenParagraphsNumber();
 			if (myTextParagraphExists) {
 				--paragraphNumber;
 			}
-			Model.addHyperlinkLabel(label, textModel, paragraphNumber);
+			addHyperlinkLabel(label, paragraphNumber);
 		}
 	}
 
 	public final void addHyperlinkLabel(String label, int paragraphIndex) {
-		Model.addHyperlinkLabel(label, myCurrentTextModel, paragraphIndex);
+		if (myFragment != null && myCurrentTextModel == myFragment.TextModel) {
+			myFragment.addHyperlinkLabel(label, paragraphIndex);
+		} else {
+			Model.addHyperlinkLabel(label, myCurrentTextModel, paragraphIndex);
+		}
 	}
 
 	public final void addContentsData(char[] data) {
@@ -324,10 +387,10 @@ public class BookReader {
 	}
 
 	public final void beginContentsParagraph(ZLTextModel bookTextModel, int referenceNumber) {
-		final ZLTextModel textModel = myCurrentTextModel;
+		final ZLTextWritableModel textModel = myCurrentTextModel;
 		if (textModel == bookTextModel) {
 			if (referenceNumber == -1) {
-				referenceNumber = textModel.getParagraphsNumber();
+				referenceNumber = textModel.getWrittenParagraphsNumber();
 			}
 			TOCTree parentTree = myCurrentContentsTree;
 			if (parentTree.Level > 0) {
@@ -414,7 +477,11 @@ public class BookReader {
 	}
 
 	public final void addImage(String id, ZLImage image) {
-		Model.addImage(id, image);
+		if (myFragment != null) {
+			myFragment.Images.put(id, image);
+		} else {
+			Model.addImage(id, image);
+		}
 	}
 
 	public final void addFixedHSpace(short length) {
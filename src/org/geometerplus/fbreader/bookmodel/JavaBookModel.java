@@ -27,11 +27,12 @@ import org.geometerplus.fbreader.book.Book;
 import org.geometerplus.fbreader.Paths;
 
 public class JavaBookModel extends BookModelImpl {
-	public final ZLTextModel BookTextModel;
+	public final ZLTextWritableModel BookTextModel;
 
 	JavaBookModel(Book book) {
 		super(book);
 		myInternalHyperlinks = new CachedCharStorage(32768, Paths.cacheDirectory(), "links");
+		myLabelIndex = new LabelIndex();
 		BookTextModel = new ZLTextWritablePlainModel(null, book.getLanguage(), 1024, 65536, Paths.cacheDirectory(), "cache", myImageMap);
 	}
 
@@ -69,6 +70,7 @@ public class JavaBookModel extends BookModelImpl {
 			myCurrentLinkBlock = block;
 			offset = 0;
 		}
+		final int recordOffset = offset;
 		block[offset++] = (char)labelLength;
 		label.getChars(0, labelLength, block, offset);
 		offset += labelLength;
@@ -80,5 +82,6 @@ public class JavaBookModel extends BookModelImpl {
 		block[offset++] = (char)paragraphNumber;
 		block[offset++] = (char)(paragraphNumber >> 16);
 		myCurrentLinkBlockOffset = offset;
+		myLabelIndex.add(myInternalHyperlinks, myInternalHyperlinks.size() - 1, recordOffset);
 	}
 }
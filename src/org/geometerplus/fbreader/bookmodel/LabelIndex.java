@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.bookmodel;
+
+import java.io.*;
+import java.util.Arrays;
+
+import org.geometerplus.zlibrary.text.model.CharStorage;
+
+/**
+ * Open-addressing hash index over the internal hyperlink label records.
+ * A record is [labelLength, label chars, modelIdLength, modelId chars,
+ * paragraph number low, paragraph number high]; the index maps label hash
+ * to the block and the offset of the record.
+ */
+final class LabelIndex {
+	private static final int FORMAT_VERSION = 1;
+
+	private int[] myHashes;
+	private int[] myBlocks;
+	private int[] myOffsets;
+	private int mySize;
+
+	LabelIndex() {
+		this(1024);
+	}
+
+	private LabelIndex(int capacity) {
+		myHashes = new int[capacity];
+		myBlocks = new int[capacity];
+		myOffsets = new int[capacity];
+		Arrays.fill(myBlocks, -1);
+	}
+
+	static LabelIndex build(CharStorage storage) {
+		final LabelIndex index = new LabelIndex();
+		final int size = storage.size();
+		for (int i = 0; i < size; ++i) {
+			final char[] block = storage.block(i);
+			for (int offset = 0; offset < block.length; ) {
+				final int labelLength = (int)block[offset];
+				if (labelLength == 0) {
+					break;
+				}
+				index.add(storage, i, offset);
+				final int idLength = (int)block[offset + labelLength + 1];
+				offset += labelLength + idLength + 4;
+			}
+		}
+		return index;
+	}
+
+	private static int hash(char[] block, int offset, int length) {
+		int h = 0;
+		for (int i = 0; i < length; ++i) {
+			h = 31 * h + block[offset + i];
+		}
+		return h;
+	}
+
+	private static boolean labelEquals(char[] block, int offset, String label) {
+		final int length = label.length();
+		if ((int)block[offset] != length) {
+			return false;
+		}
+		++offset;
+		for (int i = 0; i < length; ++i) {
+			if (block[offset + i] != label.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean labelEquals(char[] block0, int offset0, char[] block1, int offset1) {
+		final int length = (int)block0[offset0];
+		if ((int)block1[offset1] != length) {
+			return false;
+		}
+		for (int i = 1; i <= length; ++i) {
+			if (block0[offset0 + i] != block1[offset1 + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int mix(int hash) {
+		hash ^= (hash >>> 16);
+		return hash * 0x45d9f3b;
+	}
+
+	/**
+	 * Adds the record at (blockIndex, offset); if the label is already indexed,
+	 * the first record wins, as in a linear scan.
+	 */
+	void add(CharStorage storage, int blockIndex, int offset) {
+		if (2 * (mySize + 1) > myHashes.length) {
+			rehash(myHashes.length * 2);
+		}
+		final char[] block = storage.block(blockIndex);
+		final int labelLength = (int)block[offset];
+		final int hash = hash(block, offset + 1, labelLength);
+		final int mask = myHashes.length - 1;
+		for (int i = mix(hash) & mask; ; i = (i + 1) & mask) {
+			if (myBlocks[i] == -1) {
+				myHashes[i] = hash;
+				myBlocks[i] = blockIndex;
+				myOffsets[i] = offset;
+				++mySize;
+				return;
+			}
+			if (myHashes[i] == hash &&
+				labelEquals(storage.block(myBlocks[i]), myOffsets[i], block, offset)) {
+				return;
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		final int[] hashes = myHashes;
+		final int[] blocks = myBlocks;
+		final int[] offsets = myOffsets;
+		myHashes = new int[capacity];
+		myBlocks = new int[capacity];
+		myOffsets = new int[capacity];
+		Arrays.fill(myBlocks, -1);
+		final int mask = capacity - 1;
+		for (int j = 0; j < hashes.length; ++j) {
+			if (blocks[j] == -1) {
+				continue;
+			}
+			int i = mix(hashes[j]) & mask;
+			while (myBlocks[i] != -1) {
+				i = (i + 1) & mask;
+			}
+			myHashes[i] = hashes[j];
+			myBlocks[i] = blocks[j];
+			myOffsets[i] = offsets[j];
+		}
+	}
+
+	BookModel.Label find(CharStorage storage, String label) {
+		final int hash = label.hashCode();
+		final int mask = myHashes.length - 1;
+		for (int i = mix(hash) & mask; myBlocks[i] != -1; i = (i + 1) & mask) {
+			if (myHashes[i] != hash) {
+				continue;
+			}
+			final char[] block = storage.block(myBlocks[i]);
+			int offset = myOffsets[i];
+			if (!labelEquals(block, offset, label)) {
+				continue;
+			}
+			offset += label.length() + 1;
+			final int idLength = (int)block[offset++];
+			final String modelId = (idLength > 0) ? new String(block, offset, idLength) : null;
+			offset += idLength;
+			final int paragraphNumber = (int)block[offset] + (((int)block[offset + 1]) << 16);
+			return new BookModel.Label(modelId, paragraphNumber);
+		}
+		return null;
+	}
+
+	void write(DataOutputStream stream) throws IOException {
+		stream.writeInt(FORMAT_VERSION);
+		stream.writeInt(myHashes.length);
+		stream.writeInt(mySize);
+		for (int i = 0; i < myHashes.length; ++i) {
+			stream.writeInt(myHashes[i]);
+			stream.writeInt(myBlocks[i]);
+			stream.writeInt(myOffsets[i]);
+		}
+	}
+
+	static LabelIndex read(DataInputStream stream) throws IOException {
+		if (stream.readInt() != FORMAT_VERSION) {
+			throw new IOException("Unsupported label index version");
+		}
+		final int capacity = stream.readInt();
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IOException("Invalid label index capacity: " + capacity);
+		}
+		final LabelIndex index = new LabelIndex(capacity);
+		index.mySize = stream.readInt();
+		for (int i = 0; i < capacity; ++i) {
+			index.myHashes[i] = stream.readInt();
+			index.myBlocks[i] = stream.readInt();
+			index.myOffsets[i] = stream.readInt();
+		}
+		return index;
+	}
+}
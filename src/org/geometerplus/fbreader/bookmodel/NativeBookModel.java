@@ -34,6 +34,7 @@ public class NativeBookModel extends BookModelImpl {
 
 	public void initInternalHyperlinks(String directoryName, String fileExtension, int blocksNumber) {
 		myInternalHyperlinks = new CachedCharStorageRO(directoryName, fileExtension, blocksNumber);
+		myLabelIndex = null;
 	}
 
 	private TOCTree myCurrentTree = TOCTree;
@@ -253,10 +253,32 @@ public final class FBReaderApp extends ZLApplication {
 		System.gc();
 		System.gc();
 		try {
-			Model = BookModel.createModel(book);
+			final ZLTextPosition storedPosition = book.getStoredPosition();
+			final int paragraphIndex;
+			if (bookmark != null) {
+				// footnote models are available after the whole book is read
+				paragraphIndex = bookmark.ModelId == null
+					? bookmark.getParagraphIndex() : Integer.MAX_VALUE;
+			} else {
+				paragraphIndex = storedPosition != null ? storedPosition.getParagraphIndex() : 0;
+			}
+			final OpeningStatistics opening = new OpeningStatistics(book.getPlugin().supportedFileType());
+			myOpening = opening;
+			Model = BookModel.createModel(book, paragraphIndex, new BookModel.ReadingListener() {
+				public void onModelComplete(BookModel model) {
+					onModelRead(model, opening, null);
+				}
+
+				public void onModelFailed(BookModel model, BookReadingException exception) {
+					onModelRead(model, opening, exception);
+				}
+			});
+			if (Model.isComplete()) {
+				opening.onModelComplete();
+			}
 			ZLTextHyphenator.Instance().load(book.getLanguage());
 			BookTextView.setModel(Model.getTextModel());
-			BookTextView.gotoPosition(book.getStoredPosition());
+			BookTextView.gotoPosition(storedPosition);
 			if (bookmark == null) {
 				setView(BookTextView);
 			} else {
@@ -282,6 +304,28 @@ public final class FBReaderApp extends ZLApplication {
 		getViewWidget().repaint();
 	}
 
+	private volatile OpeningStatistics myOpening;
+
+	// called on the reading thread when a model shown before it was complete is read
+	private void onModelRead(BookModel model, OpeningStatistics opening, BookReadingException exception) {
+		opening.onModelComplete();
+		if (model != Model) {
+			return;
+		}
+		BookTextView.onModelComplete();
+		if (exception != null) {
+			processException(exception);
+		}
+	}
+
+	void onPagePainted(FBView view) {
+		final OpeningStatistics opening = myOpening;
+		if (opening != null && view == BookTextView && view.getModel() != null) {
+			myOpening = null;
+			opening.onFirstPaint();
+		}
+	}
+
 	public boolean jumpBack() {
 		try {
 			if (getTextView() != BookTextView) {
@@ -316,6 +360,9 @@ public final class FBReaderApp extends ZLApplication {
 
 	private void gotoBookmark(Bookmark bookmark) {
 		final String modelId = bookmark.ModelId;
+		if (modelId != null && !Model.isComplete()) {
+			return;
+		}
 		if (modelId == null) {
 			addInvisibleBookmark();
 			BookTextView.gotoPosition(bookmark);
@@ -334,6 +381,10 @@ public final class FBReaderApp extends ZLApplication {
 
 	public void onWindowClosing() {
 		storePosition();
+		final BooksDatabase database = BooksDatabase.Instance();
+		if (database != null) {
+			database.flushPendingWrites();
+		}
 	}
 
 	public void storePosition() {
@@ -489,7 +540,7 @@ public final class FBReaderApp extends ZLApplication {
 
 	public TOCTree getCurrentTOCElement() {
 		final ZLTextWordCursor cursor = BookTextView.getStartCursor();
-		if (Model == null || cursor == null) {
+		if (Model == null || !Model.isComplete() || cursor == null) {
 			return null;
 		}
 
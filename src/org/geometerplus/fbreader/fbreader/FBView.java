@@ -19,6 +19,7 @@
 
 package org.geometerplus.fbreader.fbreader;
 
+import java.io.File;
 import java.util.*;
 
 import org.geometerplus.zlibrary.core.util.ZLColor;
@@ -30,6 +31,8 @@ import org.geometerplus.zlibrary.core.filesystem.ZLResourceFile;
 import org.geometerplus.zlibrary.text.model.ZLTextModel;
 import org.geometerplus.zlibrary.text.view.*;
 
+import org.geometerplus.fbreader.Paths;
+import org.geometerplus.fbreader.book.Book;
 import org.geometerplus.fbreader.bookmodel.BookModel;
 import org.geometerplus.fbreader.bookmodel.FBHyperlinkType;
 import org.geometerplus.fbreader.bookmodel.TOCTree;
@@ -49,6 +52,38 @@ public final class FBView extends ZLTextView {
 		}
 	}
 
+	@Override
+	public void onModelComplete() {
+		super.onModelComplete();
+		if (myFooter != null) {
+			myFooter.resetTOCMarks();
+		}
+	}
+
+	@Override
+	public synchronized void paint(ZLPaintContext context, PageIndex pageIndex) {
+		super.paint(context, pageIndex);
+		if (pageIndex == PageIndex.current) {
+			myReader.onPagePainted(this);
+		}
+	}
+
+	@Override
+	protected File getPaginationIndexFile(String signature) {
+		final BookModel model = myReader.Model;
+		if (model == null || model.Book == null || getModel() != model.getTextModel()) {
+			return null;
+		}
+		final Book book = model.Book;
+		if (book.getId() == -1) {
+			return null;
+		}
+		return new File(
+			Paths.cacheDirectory() + "/pages",
+			book.getId() + "-" + book.File.size() + "-" + Integer.toHexString(signature.hashCode())
+		);
+	}
+
 	private int myStartY;
 	private boolean myIsBrightnessAdjustmentInProgress;
 	private int myStartBrightness;
@@ -534,7 +569,8 @@ public final class FBView extends ZLTextView {
 			context.setFillColor(fillColor);
 			context.fillRectangle(left + 1, height - 2 * lineWidth, gaugeInternalRight, lineWidth + 1);
 
-			if (reader.FooterShowTOCMarksOption.getValue()) {
+			// the TOC of a model is built while it is read
+			if (reader.FooterShowTOCMarksOption.getValue() && model.isComplete()) {
 				if (myTOCMarks == null) {
 					updateTOCMarks(model);
 				}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.fbreader;
+
+import java.util.*;
+
+/**
+ * Time from the start of opening a book to its first painted page and to
+ * the completely read model; totals are kept per book format and can be
+ * read with report().
+ */
+final class OpeningStatistics {
+	private static final class Totals {
+		int Count;
+		long TotalNanos;
+		long MaxNanos;
+
+		void add(long nanos) {
+			++Count;
+			TotalNanos += nanos;
+			MaxNanos = Math.max(MaxNanos, nanos);
+		}
+
+		String report(String name) {
+			return String.format(
+				"%s: %d books, avg %.1f ms, max %.1f ms",
+				name, Count, Count > 0 ? TotalNanos / 1e6 / Count : 0.0, MaxNanos / 1e6
+			);
+		}
+	}
+
+	private static final Map<String,Totals> ourFirstPaint = new TreeMap<String,Totals>();
+	private static final Map<String,Totals> ourComplete = new TreeMap<String,Totals>();
+
+	private static synchronized void add(Map<String,Totals> map, String format, long nanos) {
+		Totals totals = map.get(format);
+		if (totals == null) {
+			totals = new Totals();
+			map.put(format, totals);
+		}
+		totals.add(nanos);
+	}
+
+	static synchronized String report() {
+		final StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String,Totals> entry : ourFirstPaint.entrySet()) {
+			builder.append("first paint, ").append(entry.getValue().report(entry.getKey())).append('\n');
+		}
+		for (Map.Entry<String,Totals> entry : ourComplete.entrySet()) {
+			builder.append("complete model, ").append(entry.getValue().report(entry.getKey())).append('\n');
+		}
+		return builder.toString();
+	}
+
+	final String Format;
+	private final long myStartTime = System.nanoTime();
+	// -1 until known
+	private long myFirstPaintNanos = -1;
+	private long myCompleteNanos = -1;
+
+	OpeningStatistics(String format) {
+		Format = format;
+	}
+
+	void onFirstPaint() {
+		final long nanos;
+		synchronized (this) {
+			if (myFirstPaintNanos != -1) {
+				return;
+			}
+			nanos = myFirstPaintNanos = System.nanoTime() - myStartTime;
+		}
+		add(ourFirstPaint, Format, nanos);
+	}
+
+	void onModelComplete() {
+		final long nanos;
+		synchronized (this) {
+			if (myCompleteNanos != -1) {
+				return;
+			}
+			nanos = myCompleteNanos = System.nanoTime() - myStartTime;
+		}
+		add(ourComplete, Format, nanos);
+	}
+
+	synchronized long firstPaintNanos() {
+		return myFirstPaintNanos;
+	}
+
+	synchronized long completeNanos() {
+		return myCompleteNanos;
+	}
+}
@@ -22,6 +22,7 @@ package org.geometerplus.fbreader.formats;
 import org.geometerplus.zlibrary.core.filesystem.ZLFile;
 import org.geometerplus.zlibrary.core.encodings.EncodingCollection;
 import org.geometerplus.zlibrary.core.image.ZLImage;
+import org.geometerplus.zlibrary.core.library.ZLibrary;
 
 import org.geometerplus.fbreader.book.Book;
 import org.geometerplus.fbreader.bookmodel.BookModel;
@@ -44,6 +45,9 @@ public abstract class FormatPlugin {
 	public abstract void readMetaInfo(Book book) throws BookReadingException;
 	public abstract void readModel(BookModel model) throws BookReadingException;
 	public abstract void detectLanguageAndEncoding(Book book) throws BookReadingException;
+	public BookModel.LabelResolver labelResolver() {
+		return null;
+	}
 	public abstract ZLImage readCover(ZLFile file);
 	public abstract String readAnnotation(ZLFile file);
 
@@ -56,5 +60,12 @@ public abstract class FormatPlugin {
 	};
 	public abstract Type type();
 
+	/**
+	 * Models read by plugins of different versions are never shared via model cache
+	 */
+	public String modelVersion() {
+		return type() + "-" + supportedFileType() + "-" + ZLibrary.Instance().getVersionName();
+	}
+
 	public abstract EncodingCollection supportedEncodings();
 }
@@ -37,6 +37,11 @@ public class FB2AnnotationReader extends ZLXMLReaderAdapter {
 	public boolean dontCacheAttributeValues() {
 		return true;
 	}
+
+	@Override
+	public ZLXMLTagTable tagTable() {
+		return FB2Tag.tagTable();
+	}
 	
 	public String readAnnotation(ZLFile file) {
 		myReadState = READ_NOTHING;
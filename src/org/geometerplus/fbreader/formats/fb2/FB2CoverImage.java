@@ -65,6 +65,11 @@ class FB2CoverImage extends ZLImageProxy {
 			return true;
 		}
 
+		@Override
+		public ZLXMLTagTable tagTable() {
+			return FB2Tag.tagTable();
+		}
+
 		@Override
 		public boolean startElementHandler(String tagName, ZLStringMap attributes) {
 			switch (FB2Tag.getTagByName(tagName)) {
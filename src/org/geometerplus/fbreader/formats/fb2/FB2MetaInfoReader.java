@@ -56,6 +56,11 @@ public class FB2MetaInfoReader extends ZLXMLReaderAdapter {
 		return true;
 	}
 
+	@Override
+	public ZLXMLTagTable tagTable() {
+		return FB2Tag.tagTable();
+	}
+
 	public void readMetaInfo() throws BookReadingException {
 		myReadState = READ_NOTHING;
 		myAuthorNames[0] = "";
@@ -80,6 +80,11 @@ public final class FB2Reader extends ZLXMLReaderAdapter {
 		return true;
 	}
 
+	@Override
+	public ZLXMLTagTable tagTable() {
+		return FB2Tag.tagTable();
+	}
+
 	public void characterDataHandler(char[] ch, int start, int length) {
 		if (length == 0) {
 			return;
@@ -341,7 +346,7 @@ public final class FB2Reader extends ZLXMLReaderAdapter {
 
 			case FB2Tag.BODY:
 				++myBodyCounter;
-				myParagraphsBeforeBodyNumber = myBookReader.Model.BookTextModel.getParagraphsNumber();
+				myParagraphsBeforeBodyNumber = myBookReader.Model.BookTextModel.getWrittenParagraphsNumber();
 				final String name = attributes.getValue("name");
 				if (myBodyCounter == 1 || !"notes".equals(name)) {
 					myBookReader.setMainTextModel();
@@ -393,7 +398,7 @@ public final class FB2Reader extends ZLXMLReaderAdapter {
 					imgRef = imgRef.substring(1);
 					final boolean isCoverImage =
 						myParagraphsBeforeBodyNumber ==
-						myBookReader.Model.BookTextModel.getParagraphsNumber();
+						myBookReader.Model.BookTextModel.getWrittenParagraphsNumber();
 					if (!imgRef.equals(myCoverImageReference) || !isCoverImage) {
 						myBookReader.addImageReference(imgRef, offset, myInsideCoverpage || isCoverImage);
 					}
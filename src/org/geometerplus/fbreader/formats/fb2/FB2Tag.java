@@ -21,6 +21,8 @@ package org.geometerplus.fbreader.formats.fb2;
 
 import java.util.*;
 
+import org.geometerplus.zlibrary.core.xml.ZLXMLTagTable;
+
 final class FB2Tag {
 	public static final byte UNKNOWN = 0;
 	public static final byte P = 1;
@@ -62,63 +64,66 @@ final class FB2Tag {
 	public static final byte DESCRIPTION = 35;
 
 
-	private static final HashMap<String, Byte> ourTagByName = new HashMap<String, Byte>(256, 0.2f);
-	private static final Byte ourUnknownTag;
+	private static final ZLXMLTagTable ourTagTable = new ZLXMLTagTable.Builder()
+		.add("unknown", UNKNOWN)
+		.add("p", P)
+		.add("v", V)
+		.add("subtitle", SUBTITLE)
+		.add("text-author", TEXT_AUTHOR)
+		.add("date", DATE)
+		.add("cite", CITE)
+		.add("section", SECTION)
+		.add("poem", POEM)
+		.add("stanza", STANZA)
+		.add("epigraph", EPIGRAPH)
+		.add("annotation", ANNOTATION)
+		.add("coverpage", COVERPAGE)
+		.add("a", A)
+		.add("empty-line", EMPTY_LINE)
+		.add("sup", SUP)
+		.add("sub", SUB)
+		.add("emphasis", EMPHASIS)
+		.add("strong", STRONG)
+		.add("code", CODE)
+		.add("strikethrough", STRIKETHROUGH)
+		.add("title", TITLE)
+		.add("title-info", TITLE_INFO)
+		.add("body", BODY)
+		.add("image", IMAGE)
+		.add("binary", BINARY)
+		.add("fictionbook", FICTIONBOOK)
+		.add("book-title", BOOK_TITLE)
+		.add("sequence", SEQUENCE)
+		.add("first-name", FIRST_NAME)
+		.add("middle-name", MIDDLE_NAME)
+		.add("last-name", LAST_NAME)
+		.add("author", AUTHOR)
+		.add("lang", LANG)
+		.add("genre", GENRE)
+		.add("description", DESCRIPTION)
+		.build();
+
+	// names missing in the table (unknown tags or non-lowercase spelling)
+	private static final HashMap<String,Byte> ourTagByName = new HashMap<String,Byte>();
 
-	static {	
-		ourTagByName.put("unknown", UNKNOWN);
-		ourUnknownTag = (Byte)ourTagByName.get("unknown");
-		ourTagByName.put("p", P);
-		ourTagByName.put("v", V);
-		ourTagByName.put("subtitle", SUBTITLE);
-		ourTagByName.put("text-author", TEXT_AUTHOR);
-		ourTagByName.put("date", DATE);
-		ourTagByName.put("cite", CITE);
-		ourTagByName.put("section", SECTION);
-		ourTagByName.put("poem", POEM);
-		ourTagByName.put("stanza", STANZA);
-		ourTagByName.put("epigraph", EPIGRAPH);
-		ourTagByName.put("annotation", ANNOTATION);
-		ourTagByName.put("coverpage", COVERPAGE);
-		ourTagByName.put("a", A);
-		ourTagByName.put("empty-line", EMPTY_LINE);
-		ourTagByName.put("sup", SUP);
-		ourTagByName.put("sub", SUB);
-		ourTagByName.put("emphasis", EMPHASIS);
-		ourTagByName.put("strong", STRONG);
-		ourTagByName.put("code", CODE);
-		ourTagByName.put("strikethrough", STRIKETHROUGH);
-		ourTagByName.put("title", TITLE);
-		ourTagByName.put("title-info", TITLE_INFO);
-		ourTagByName.put("body", BODY);
-		ourTagByName.put("image", IMAGE);
-		ourTagByName.put("binary", BINARY);
-		ourTagByName.put("fictionbook", FICTIONBOOK);
-		ourTagByName.put("book-title", BOOK_TITLE);
-		ourTagByName.put("sequence", SEQUENCE);
-		ourTagByName.put("first-name", FIRST_NAME);
-		ourTagByName.put("middle-name", MIDDLE_NAME);
-		ourTagByName.put("last-name", LAST_NAME);
-		ourTagByName.put("book-title", BOOK_TITLE);
-		ourTagByName.put("author", AUTHOR);
-		ourTagByName.put("lang", LANG);
-		ourTagByName.put("genre", GENRE);
-		ourTagByName.put("description", DESCRIPTION);
+	static ZLXMLTagTable tagTable() {
+		return ourTagTable;
 	}
 
 	public static byte getTagByName(String name) {
-		final HashMap<String,Byte> tagByName = ourTagByName;
-		Byte num = tagByName.get(name);
-		if (num == null) {
-			final String upperCaseName = name.toLowerCase().intern();
-			num = (Byte)tagByName.get(upperCaseName);
+		final int id = ourTagTable.getId(name);
+		if (id != -1) {
+			return (byte)id;
+		}
+		synchronized (ourTagByName) {
+			Byte num = ourTagByName.get(name);
 			if (num == null) {
-				num = ourUnknownTag;
-				tagByName.put(upperCaseName, num);
+				final int lowerCaseId = ourTagTable.getId(name.toLowerCase());
+				num = lowerCaseId != -1 ? (byte)lowerCaseId : UNKNOWN;
+				ourTagByName.put(name, num);
 			}
-			tagByName.put(name, num);
+			return num;
 		}
-		return num.byteValue();
 	}
 
 	private FB2Tag() {
@@ -20,6 +20,7 @@
 package org.geometerplus.fbreader.formats.oeb;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.IOException;
 
 import org.geometerplus.zlibrary.core.constants.XMLNamespaces;
@@ -58,14 +59,6 @@ class OEBBookReader extends ZLXMLReaderAdapter implements XMLNamespaces {
 
 	OEBBookReader(BookModel model) {
 		myModelReader = new BookReader(model);
-		model.setLabelResolver(new BookModel.LabelResolver() {
-			public List<String> getCandidates(String id) {
-				final int index = id.indexOf("#");
-				return index > 0
-					? Collections.<String>singletonList(id.substring(0, index))
-					: Collections.<String>emptyList();
-			}
-		});
 	}
 
 	private HashMap<String,String> myFileNumbers = new HashMap<String,String>();
@@ -90,6 +83,10 @@ class OEBBookReader extends ZLXMLReaderAdapter implements XMLNamespaces {
 		myModelReader.setMainTextModel();
 		myModelReader.pushKind(FBTextKind.REGULAR);
 
+		// aliases are assigned in spine order, as if the files were read one by one
+		final List<ZLFile> xhtmlFiles = new ArrayList<ZLFile>();
+		final List<String> referenceNames = new ArrayList<String>();
+		final XHTMLReader aliasReader = new XHTMLReader(myModelReader, myFileNumbers);
 		int count = 0;
 		for (String name : myHtmlFileNames) {
 			final ZLFile xhtmlFile = ZLFile.createFileByPath(myFilePrefix + name);
@@ -99,22 +96,130 @@ class OEBBookReader extends ZLXMLReaderAdapter implements XMLNamespaces {
 			if (count++ == 0 && xhtmlFile.getPath().equals(myCoverFileName)) {
 				continue;
 			}
-			final XHTMLReader reader = new XHTMLReader(myModelReader, myFileNumbers);
-			final String referenceName = reader.getFileAlias(MiscUtil.archiveEntryName(xhtmlFile.getPath()));
-
-			myModelReader.addHyperlinkLabel(referenceName);
-			myTOCLabels.put(referenceName, myModelReader.Model.BookTextModel.getParagraphsNumber());
-			try {
-				reader.readFile(xhtmlFile, referenceName + '#');
-			} catch (IOException e) {
-				throw new BookReadingException(e, xhtmlFile);
+			xhtmlFiles.add(xhtmlFile);
+			referenceNames.add(aliasReader.getFileAlias(MiscUtil.archiveEntryName(xhtmlFile.getPath())));
+		}
+
+		if (xhtmlFiles.size() > 2 && threadsNumber() > 1) {
+			readFilesInParallel(xhtmlFiles, referenceNames);
+		} else {
+			for (int i = 0; i < xhtmlFiles.size(); ++i) {
+				readFile(xhtmlFiles.get(i), referenceNames.get(i));
 			}
-			myModelReader.insertEndOfSectionParagraph();
 		}
 
 		generateTOC();
 	}
 
+	private void readFile(ZLFile xhtmlFile, String referenceName) throws BookReadingException {
+		myModelReader.addHyperlinkLabel(referenceName);
+		myTOCLabels.put(referenceName, myModelReader.Model.BookTextModel.getWrittenParagraphsNumber());
+		try {
+			new XHTMLReader(myModelReader, myFileNumbers).readFile(xhtmlFile, referenceName + '#');
+		} catch (IOException e) {
+			throw new BookReadingException(e, xhtmlFile);
+		}
+		myModelReader.insertEndOfSectionParagraph();
+	}
+
+	private BookFragment readFragment(ZLFile xhtmlFile, String referenceName) throws IOException {
+		final BookFragment fragment = new BookFragment(myModelReader.Model);
+		final BookReader reader = new BookReader(myModelReader.Model, fragment);
+		reader.setMainTextModel();
+		reader.pushKind(FBTextKind.REGULAR);
+		new XHTMLReader(reader, myFileNumbers).readFile(xhtmlFile, referenceName + '#');
+		reader.endParagraph();
+		reader.insertEndOfSectionParagraph();
+		return fragment;
+	}
+
+	// files read ahead of the one being appended; bounds the memory used by fragments
+	private static final int READ_AHEAD = 8;
+
+	/**
+	 * The first file is read directly into the model, the others are read into
+	 * fragments by the pool and appended in spine order as soon as they are ready.
+	 */
+	private void readFilesInParallel(final List<ZLFile> xhtmlFiles, final List<String> referenceNames) throws BookReadingException {
+		XHTMLReader.fillTagTable();
+
+		final int size = xhtmlFiles.size();
+		final List<Future<BookFragment>> futures = new ArrayList<Future<BookFragment>>(size);
+		futures.add(null);
+		try {
+			for (int i = 0; i < size; ++i) {
+				while (futures.size() < size && futures.size() <= i + READ_AHEAD) {
+					final int index = futures.size();
+					futures.add(executor().submit(new Callable<BookFragment>() {
+						public BookFragment call() throws IOException {
+							return readFragment(xhtmlFiles.get(index), referenceNames.get(index));
+						}
+					}));
+				}
+
+				final ZLFile xhtmlFile = xhtmlFiles.get(i);
+				final String referenceName = referenceNames.get(i);
+				if (i == 0) {
+					readFile(xhtmlFile, referenceName);
+					continue;
+				}
+
+				final BookFragment fragment;
+				try {
+					fragment = futures.get(i).get();
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw new BookReadingException((IOException)cause, xhtmlFile);
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException)cause;
+					} else if (cause instanceof Error) {
+						throw (Error)cause;
+					}
+					throw new RuntimeException(cause);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+				futures.set(i, null);
+
+				if (myModelReader.canAppendFragment(fragment)) {
+					myModelReader.addHyperlinkLabel(referenceName);
+					myTOCLabels.put(referenceName, myModelReader.Model.BookTextModel.getWrittenParagraphsNumber());
+					myModelReader.appendFragment(fragment);
+				} else {
+					// a title at the very beginning of the text, the fragment guessed wrong
+					readFile(xhtmlFile, referenceName);
+				}
+			}
+		} finally {
+			for (Future<BookFragment> future : futures) {
+				if (future != null) {
+					future.cancel(true);
+				}
+			}
+		}
+	}
+
+	private static ExecutorService ourExecutor;
+
+	private static synchronized ExecutorService executor() {
+		if (ourExecutor == null) {
+			ourExecutor = Executors.newFixedThreadPool(threadsNumber(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "OEBReader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return ourExecutor;
+	}
+
+	private static int threadsNumber() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors());
+	}
+
 	private BookModel.Label getTOCLabel(String id) {
 		final int index = id.indexOf('#');
 		final String path = (index >= 0) ? id.substring(0, index) : id;
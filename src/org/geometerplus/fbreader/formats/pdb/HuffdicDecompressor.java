@@ -19,95 +19,223 @@
 
 package org.geometerplus.fbreader.formats.pdb;
 
-import java.io.*;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public abstract class HuffdicDecompressor {
-	public static int decompress(InputStream stream, byte[] targetBuffer, int compressedSize) throws IOException {
-		final byte[] sourceBuffer = new byte[compressedSize];
+/**
+ * Mobipocket HUFF/CDIC decoder. The HUFF record holds the code tables,
+ * CDIC records hold the phrases codes refer to; a phrase can be compressed
+ * itself, such a phrase is decoded once and kept. An instance can be used
+ * by several threads at once.
+ */
+public final class HuffdicDecompressor {
+	private static final int MAX_DEPTH = 32;
+
+	// by the first 8 bits of a code: code length (or its lower bound), terminal flag
+	private final byte[] myCodeLengths = new byte[256];
+	private final boolean[] myIsTerminal = new boolean[256];
+	private final long[] myTerminalMaxCodes = new long[256];
+	// by code length; left-aligned to 32 bits
+	private final long[] myMinCodes = new long[33];
+	private final long[] myMaxCodes = new long[33];
+
+	private final byte[][] myPhrases;
+	private final boolean[] myPhraseIsLiteral;
+	private final AtomicReferenceArray<byte[]> myDecodedPhrases;
+
+	/**
+	 * @param records the HUFF record followed by CDIC records
+	 */
+	public HuffdicDecompressor(byte[][] records) throws IOException {
+		if (records.length < 2) {
+			throw new IOException("HUFF/CDIC: no dictionary records");
+		}
+		readHuff(records[0]);
+
+		int phrasesNumber = 0;
+		for (int i = 1; i < records.length; ++i) {
+			phrasesNumber += Math.min(1 << cdicBits(records[i]), cdicPhrasesNumber(records[i]) - phrasesNumber);
+		}
+		myPhrases = new byte[phrasesNumber][];
+		myPhraseIsLiteral = new boolean[phrasesNumber];
+		myDecodedPhrases = new AtomicReferenceArray<byte[]>(phrasesNumber);
+		int index = 0;
+		for (int i = 1; i < records.length; ++i) {
+			index = readCdic(records[i], index);
+		}
+	}
+
+	private static void checkMagic(byte[] record, String magic, int headerLength) throws IOException {
+		if (record.length < headerLength + 8 ||
+			!magic.equals(new String(record, 0, 4, "US-ASCII")) ||
+			PdbUtil.readInt(record, 4) != headerLength) {
+			throw new IOException("HUFF/CDIC: invalid " + magic + " record");
+		}
+	}
 
-		if (stream.read(sourceBuffer) != compressedSize) {
-			return 0;
+	private void readHuff(byte[] huff) throws IOException {
+		checkMagic(huff, "HUFF", 0x18);
+		final int cacheOffset = (int)PdbUtil.readInt(huff, 8);
+		final int baseOffset = (int)PdbUtil.readInt(huff, 12);
+		if (cacheOffset < 0 || cacheOffset + 256 * 4 > huff.length ||
+			baseOffset < 0 || baseOffset + 64 * 4 > huff.length) {
+			throw new IOException("HUFF/CDIC: invalid HUFF record");
 		}
 
-		int sourceIndex = 0;
-		int targetIndex = 0;
-
-		int count0 = 0;
-		int count1 = 0;
-		int count2 = 0;
-		int count3 = 0;
-		try {
-			while (true) {
-				final byte token = sourceBuffer[sourceIndex++];
-				switch (token) {
-					default:
-						++count0;
-						targetBuffer[targetIndex++] = token;
-						break;
-					case 1: case 2: case 3: case 4:
-					case 5: case 6: case 7: case 8:
-						++count1;
-						System.arraycopy(sourceBuffer, sourceIndex, targetBuffer, targetIndex, token);
-						sourceIndex += token;
-						targetIndex += token;
-						break;
-					case -64: case -63: case -62: case -61:
-					case -60: case -59: case -58: case -57:
-					case -56: case -55: case -54: case -53:
-					case -52: case -51: case -50: case -49:
-					case -48: case -47: case -46: case -45:
-					case -44: case -43: case -42: case -41:
-					case -40: case -39: case -38: case -37:
-					case -36: case -35: case -34: case -33:
-					case -32: case -31: case -30: case -29:
-					case -28: case -27: case -26: case -25:
-					case -24: case -23: case -22: case -21:
-					case -20: case -19: case -18: case -17:
-					case -16: case -15: case -14: case -13:
-					case -12: case -11: case -10: case -9:
-					case -8: case -7: case -6: case -5:
-					case -4: case -3: case -2: case -1:
-						++count2;
-						targetBuffer[targetIndex++] = ' ';
-						targetBuffer[targetIndex++] = (byte)(token ^ 0x80);
-						break;
-					case -128: case -127: case -126: case -125:
-					case -124: case -123: case -122: case -121:
-					case -120: case -119: case -118: case -117:
-					case -116: case -115: case -114: case -113:
-					case -112: case -111: case -110: case -109:
-					case -108: case -107: case -106: case -105:
-					case -104: case -103: case -102: case -101:
-					case -100: case -99: case -98: case -97:
-					case -96: case -95: case -94: case -93:
-					case -92: case -91: case -90: case -89:
-					case -88: case -87: case -86: case -85:
-					case -84: case -83: case -82: case -81:
-					case -80: case -79: case -78: case -77:
-					case -76: case -75: case -74: case -73:
-					case -72: case -71: case -70: case -69:
-					case -68: case -67: case -66: case -65:
-						++count3;
-						final int N = ((token & 0x3F) << 8) + (sourceBuffer[sourceIndex++] & 0xFF);
-						int copyLength = (N & 7) + 3;
-						int srcIndex = targetIndex - (N >> 3);
-						if (targetIndex >= srcIndex + copyLength) {
-							System.arraycopy(targetBuffer, srcIndex, targetBuffer, targetIndex, copyLength);
-							targetIndex += copyLength;
-						} else {
-							while (copyLength-- > 0) {
-								targetBuffer[targetIndex++] = targetBuffer[srcIndex++];
-							}
-						}
-						break;
+		for (int i = 0; i < 256; ++i) {
+			final long value = PdbUtil.readInt(huff, cacheOffset + 4 * i);
+			final int codeLength = (int)(value & 0x1F);
+			if (codeLength == 0) {
+				throw new IOException("HUFF/CDIC: zero code length");
+			}
+			myCodeLengths[i] = (byte)codeLength;
+			myIsTerminal[i] = (value & 0x80) != 0;
+			myTerminalMaxCodes[i] = (((value >> 8) + 1) << (32 - codeLength)) - 1;
+		}
+
+		myMinCodes[0] = 0;
+		myMaxCodes[0] = 0xFFFFFFFFL;
+		for (int codeLength = 1; codeLength <= 32; ++codeLength) {
+			final long minCode = PdbUtil.readInt(huff, baseOffset + 8 * (codeLength - 1));
+			final long maxCode = PdbUtil.readInt(huff, baseOffset + 8 * (codeLength - 1) + 4);
+			myMinCodes[codeLength] = minCode << (32 - codeLength);
+			myMaxCodes[codeLength] = ((maxCode + 1) << (32 - codeLength)) - 1;
+		}
+	}
+
+	private static int cdicPhrasesNumber(byte[] cdic) throws IOException {
+		checkMagic(cdic, "CDIC", 0x10);
+		return (int)PdbUtil.readInt(cdic, 8);
+	}
+
+	private static int cdicBits(byte[] cdic) throws IOException {
+		checkMagic(cdic, "CDIC", 0x10);
+		return Math.min((int)PdbUtil.readInt(cdic, 12), 16);
+	}
+
+	private int readCdic(byte[] cdic, int index) throws IOException {
+		final int count = Math.min(1 << cdicBits(cdic), myPhrases.length - index);
+		for (int i = 0; i < count; ++i) {
+			final int offset = 16 + PdbUtil.readShort(cdic, 16 + 2 * i);
+			if (offset + 2 > cdic.length) {
+				throw new IOException("HUFF/CDIC: invalid phrase offset");
+			}
+			final int header = PdbUtil.readShort(cdic, offset);
+			final int length = Math.min(header & 0x7FFF, cdic.length - offset - 2);
+			final byte[] phrase = new byte[length];
+			System.arraycopy(cdic, offset + 2, phrase, 0, length);
+			myPhrases[index] = phrase;
+			myPhraseIsLiteral[index] = (header & 0x8000) != 0;
+			++index;
+		}
+		return index;
+	}
+
+	/**
+	 * Decodes a record without its trailing entries; the output is cut
+	 * at the target size.
+	 * @return number of bytes written to target
+	 */
+	public int decompress(byte[] source, int length, byte[] target) throws IOException {
+		final Output output = new Output(target, false);
+		decode(source, length, output, 0);
+		return output.Length;
+	}
+
+	private static final class Output {
+		byte[] Data;
+		int Length;
+		private final boolean myCanGrow;
+
+		Output(byte[] data, boolean canGrow) {
+			Data = data;
+			myCanGrow = canGrow;
+		}
+
+		// returns false if the output is full
+		boolean append(byte[] data) {
+			int length = data.length;
+			if (Length + length > Data.length) {
+				if (myCanGrow) {
+					final byte[] newData = new byte[Math.max(Data.length * 2, Length + length)];
+					System.arraycopy(Data, 0, newData, 0, Length);
+					Data = newData;
+				} else {
+					length = Data.length - Length;
 				}
 			}
-		} catch (Exception e) {
-			if (targetIndex > targetBuffer.length) {
-				targetIndex = targetBuffer.length;
+			System.arraycopy(data, 0, Data, Length, length);
+			Length += length;
+			return Length < Data.length || myCanGrow;
+		}
+	}
+
+	private static long window(byte[] source, int length, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; ++i) {
+			value <<= 8;
+			if (offset + i < length) {
+				value |= source[offset + i] & 0xFF;
 			}
 		}
+		return value;
+	}
 
-		return targetIndex;
+	private void decode(byte[] source, int length, Output output, int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("HUFF/CDIC: phrases are nested too deep");
+		}
+		long bitsLeft = 8L * length;
+		int offset = 0;
+		long bits = window(source, length, 0);
+		int shift = 32;
+		while (true) {
+			if (shift <= 0) {
+				offset += 4;
+				bits = window(source, length, offset);
+				shift += 32;
+			}
+			final long code = (bits >>> shift) & 0xFFFFFFFFL;
+			final int prefix = (int)(code >>> 24);
+			int codeLength = myCodeLengths[prefix];
+			final long maxCode;
+			if (myIsTerminal[prefix]) {
+				maxCode = myTerminalMaxCodes[prefix];
+			} else {
+				while (codeLength < 32 && code < myMinCodes[codeLength]) {
+					++codeLength;
+				}
+				maxCode = myMaxCodes[codeLength];
+			}
+			shift -= codeLength;
+			bitsLeft -= codeLength;
+			if (bitsLeft < 0) {
+				return;
+			}
+			final long index = (maxCode - code) >>> (32 - codeLength);
+			if (index < 0 || index >= myPhrases.length) {
+				throw new IOException("HUFF/CDIC: invalid code");
+			}
+			if (!output.append(phrase((int)index, depth))) {
+				return;
+			}
+		}
+	}
+
+	private byte[] phrase(int index, int depth) throws IOException {
+		if (myPhraseIsLiteral[index]) {
+			return myPhrases[index];
+		}
+		byte[] decoded = myDecodedPhrases.get(index);
+		if (decoded == null) {
+			final byte[] phrase = myPhrases[index];
+			final Output output = new Output(new byte[Math.max(phrase.length * 2, 16)], true);
+			decode(phrase, phrase.length, output, depth + 1);
+			decoded = new byte[output.Length];
+			System.arraycopy(output.Data, 0, decoded, 0, output.Length);
+			// another thread may have decoded it meanwhile; both copies are equal
+			myDecodedPhrases.set(index, decoded);
+		}
+		return decoded;
 	}
 }
@@ -61,7 +61,7 @@ public class MobipocketHtmlBookReader extends HtmlReader {
 
 	@Override
 	public void startElementHandler(byte tag, int offset, ZLHtmlAttributeMap attributes) {
-		final int paragraphIndex = Model.BookTextModel.getParagraphsNumber();
+		final int paragraphIndex = Model.BookTextModel.getWrittenParagraphsNumber();
 		myPositionToParagraph.put(offset, paragraphIsOpen() ? paragraphIndex - 1 : paragraphIndex);
 		switch (tag) {
 			case HtmlTag.IMG:
@@ -31,18 +31,34 @@ class MobipocketStream extends PalmDocLikeStream {
 		super(file);
 		myFileSize = (int)file.size();
 
-		myCompressionType = PdbUtil.readShort(myBase);
-		PdbUtil.skip(myBase, 6);
-		myMaxRecordIndex = Math.min(PdbUtil.readShort(myBase), myHeader.Offsets.length - 1);
-		final int maxRecordSize = PdbUtil.readShort(myBase);
+		final int recordZeroSize = (myHeader.Offsets.length > 1 ?
+			myHeader.Offsets[1] : myFileSize) - myHeader.Offsets[0];
+		final byte[] header = new byte[Math.max(0, Math.min(recordZeroSize, 0xF4))];
+		if (header.length < 0x70) {
+			throw new IOException("The first record is too short");
+		}
+		PdbUtil.readFully(myBase, header, 0, header.length);
+
+		myCompressionType = PdbUtil.readShort(header, 0);
+		myMaxRecordIndex = Math.min(PdbUtil.readShort(header, 8), myHeader.Offsets.length - 1);
+		final int maxRecordSize = PdbUtil.readShort(header, 10);
 		if (maxRecordSize == 0) {
 			throw new IOException("The records are too short");
 		}
 		myBuffer = new byte[maxRecordSize];
 		myRecordIndex = 0;
 
-		PdbUtil.skip(myBase, 96);
-		myImageStartIndex = (int)PdbUtil.readInt(myBase);
+		myImageStartIndex = (int)PdbUtil.readInt(header, 0x6C);
+
+		if (header.length >= 0x78) {
+			myHuffRecordIndex = (int)PdbUtil.readInt(header, 0x70);
+			myHuffRecordsNumber = (int)PdbUtil.readInt(header, 0x74);
+		}
+		final long mobiHeaderLength = PdbUtil.readInt(header, 20);
+		final long mobiVersion = PdbUtil.readInt(header, 36);
+		if (header.length >= 0xF4 && mobiHeaderLength >= 0xE4 && mobiVersion >= 5) {
+			myExtraFlags = PdbUtil.readShort(header, 0xF2);
+		}
 	}
 
 	int getImageOffset(int index) {
@@ -20,6 +20,10 @@
 package org.geometerplus.fbreader.formats.pdb;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
 import org.geometerplus.zlibrary.core.filesystem.ZLFile;
 
@@ -32,48 +36,54 @@ abstract class PalmDocLikeStream extends PdbStream {
 		int HUFFDIC = 17480;
 	}
 	protected int myCompressionType;
+	// trailing entries flags; bit 0 = multibyte characters tail
+	protected int myExtraFlags;
+	protected int myHuffRecordIndex;
+	protected int myHuffRecordsNumber;
 
+	// number of records decoded ahead, per decoding thread
+	private static final int RECORDS_AHEAD_PER_THREAD = 2;
+
+	private final ZLFile myFile;
 	private final long myFileSize;
 
+	private boolean myIsPrepared;
+	// set if prepare() failed; the stream stays at its end then
+	private boolean myIsBroken;
+	private HuffdicDecompressor myHuffdicDecompressor;
+
+	// ring of decoded records: record i goes to slot i % myRing.length
+	private byte[][] myRing;
+	private List<Future<Integer>> myRingResults;
+	private int myNextSubmittedIndex;
+
 	PalmDocLikeStream(ZLFile file) throws IOException {
 		super(file);
+		myFile = file;
 		myFileSize = file.size();
 	}
 
 	protected final boolean fillBuffer() {
 		while (myBufferOffset == myBufferLength) {
-			if (myRecordIndex + 1 > myMaxRecordIndex) {
+			if (myIsBroken || myRecordIndex + 1 > myMaxRecordIndex) {
 				return false;
 			}
 			++myRecordIndex;
-			final int currentOffset = myHeader.Offsets[myRecordIndex];
 
-			try {
-				myBase.skip(currentOffset - myBase.offset());
-				final int nextOffset =
-					(myRecordIndex + 1 < myHeader.Offsets.length) ?
-						myHeader.Offsets[myRecordIndex + 1] :
-						(int)myFileSize;
-				if (nextOffset < currentOffset) {
+			if (!myIsPrepared) {
+				try {
+					prepare();
+				} catch (IOException e) {
+					myIsBroken = true;
 					return false;
 				}
-				final short recordSize = (short)Math.min(nextOffset - currentOffset, myBuffer.length);
+				myIsPrepared = true;
+			}
 
-				switch (myCompressionType) {
-					case CompressionType.NONE:
-						myBase.read(myBuffer, 0, recordSize);
-						myBufferLength = recordSize;
-						break;
-					case CompressionType.DOC:
-						myBufferLength = (short)DocDecompressor.decompress(myBase, myBuffer, recordSize);
-						break;
-					//case CompressionType.HUFFDIC:
-					//	myBufferLength = (short)HuffdicDecompressor.decompress(myBase, myBuffer, recordSize);
-					//	break;
-					default:
-						// Unsupported compression type
-						return false;
-				}
+			try {
+				myBufferLength = myRing != null
+					? prefetchedRecord(myRecordIndex)
+					: decodeRecord(readRecord(myRecordIndex), myBuffer);
 			} catch (IOException e) {
 				return false;
 			}
@@ -82,4 +92,172 @@ abstract class PalmDocLikeStream extends PdbStream {
 		
 		return true;
 	}
+
+	private void prepare() throws IOException {
+		if (myCompressionType == CompressionType.HUFFDIC) {
+			myHuffdicDecompressor = new HuffdicDecompressor(readHuffdicRecords());
+		}
+		final int threadsNumber = threadsNumber();
+		if (myCompressionType != CompressionType.NONE &&
+			threadsNumber > 1 &&
+			myMaxRecordIndex - myRecordIndex > 1) {
+			final int size = RECORDS_AHEAD_PER_THREAD * threadsNumber + 1;
+			myRing = new byte[size][];
+			myRingResults = new ArrayList<Future<Integer>>(size);
+			for (int i = 0; i < size; ++i) {
+				myRing[i] = i == 0 ? myBuffer : new byte[myBuffer.length];
+				myRingResults.add(null);
+			}
+			myNextSubmittedIndex = myRecordIndex;
+		}
+	}
+
+	private byte[][] readHuffdicRecords() throws IOException {
+		if (myHuffRecordIndex <= 0 ||
+			myHuffRecordsNumber < 2 ||
+			myHuffRecordIndex + myHuffRecordsNumber > myHeader.Offsets.length) {
+			throw new IOException("Invalid HUFF/CDIC records");
+		}
+		final byte[][] records = new byte[myHuffRecordsNumber][];
+		// a separate stream: dictionary records follow the text ones
+		final InputStream stream = myFile.getInputStream();
+		try {
+			int offset = 0;
+			for (int i = 0; i < records.length; ++i) {
+				final int index = myHuffRecordIndex + i;
+				final int start = myHeader.Offsets[index];
+				final int end = recordEnd(index);
+				if (start < offset || end < start) {
+					throw new IOException("Invalid HUFF/CDIC record offset");
+				}
+				PdbUtil.skip(stream, start - offset);
+				records[i] = new byte[end - start];
+				PdbUtil.readFully(stream, records[i], 0, records[i].length);
+				offset = end;
+			}
+		} finally {
+			stream.close();
+		}
+		return records;
+	}
+
+	private int recordEnd(int index) {
+		return (index + 1 < myHeader.Offsets.length) ?
+			myHeader.Offsets[index + 1] :
+			(int)myFileSize;
+	}
+
+	private byte[] readRecord(int index) throws IOException {
+		final int currentOffset = myHeader.Offsets[index];
+		final int nextOffset = recordEnd(index);
+		if (nextOffset < currentOffset) {
+			throw new IOException("Invalid record offset");
+		}
+		myBase.skip(currentOffset - myBase.offset());
+		final byte[] record = new byte[nextOffset - currentOffset];
+		PdbUtil.readFully(myBase, record, 0, record.length);
+		return record;
+	}
+
+	private int prefetchedRecord(int index) throws IOException {
+		final int last = Math.min(index + myRing.length - 1, myMaxRecordIndex);
+		for (; myNextSubmittedIndex <= last; ++myNextSubmittedIndex) {
+			final byte[] record = readRecord(myNextSubmittedIndex);
+			final int slot = myNextSubmittedIndex % myRing.length;
+			final byte[] target = myRing[slot];
+			myRingResults.set(slot, executor().submit(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					return decodeRecord(record, target);
+				}
+			}));
+		}
+
+		final int slot = index % myRing.length;
+		try {
+			final int length = myRingResults.get(slot).get();
+			myBuffer = myRing[slot];
+			return length;
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private int decodeRecord(byte[] record, byte[] target) throws IOException {
+		final int length = record.length - trailingEntriesSize(record);
+		final int size;
+		switch (myCompressionType) {
+			case CompressionType.NONE:
+				size = Math.min(length, target.length);
+				System.arraycopy(record, 0, target, 0, size);
+				break;
+			case CompressionType.DOC:
+				size = DocDecompressor.decompress(record, length, target);
+				break;
+			case CompressionType.HUFFDIC:
+				size = myHuffdicDecompressor.decompress(record, length, target);
+				break;
+			default:
+				throw new IOException("Unsupported compression type: " + myCompressionType);
+		}
+		return size;
+	}
+
+	private int trailingEntriesSize(byte[] record) {
+		int size = 0;
+		for (int flags = myExtraFlags >> 1; flags != 0; flags >>= 1) {
+			if ((flags & 1) != 0) {
+				// entry size (including itself) is a backward variable-length integer
+				int value = 0;
+				int end = record.length - size;
+				for (int shift = 0; shift < 28 && end > 0; shift += 7) {
+					final int b = record[--end];
+					value |= (b & 0x7F) << shift;
+					if ((b & 0x80) != 0) {
+						break;
+					}
+				}
+				size += value;
+				if (size >= record.length) {
+					return record.length;
+				}
+			}
+		}
+		if ((myExtraFlags & 1) != 0 && record.length - size > 0) {
+			size += (record[record.length - size - 1] & 3) + 1;
+		}
+		return Math.min(size, record.length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (myRingResults != null) {
+			for (Future<Integer> result : myRingResults) {
+				if (result != null) {
+					result.cancel(false);
+				}
+			}
+		}
+		super.close();
+	}
+
+	private static ExecutorService ourExecutor;
+
+	private static synchronized ExecutorService executor() {
+		if (ourExecutor == null) {
+			ourExecutor = Executors.newFixedThreadPool(threadsNumber(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "PdbDecoder");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return ourExecutor;
+	}
+
+	private static int threadsNumber() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors());
+	}
 }
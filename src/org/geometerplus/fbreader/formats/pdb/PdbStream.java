@@ -30,8 +30,8 @@ public abstract class PdbStream extends InputStream {
 	public PdbHeader myHeader;
 	protected byte[] myBuffer;
 
-	protected short myBufferLength;
-	protected short myBufferOffset;
+	protected int myBufferLength;
+	protected int myBufferOffset;
 
 	public PdbStream(ZLFile file) throws IOException {
 		myBase = new ZLInputStreamWithOffset(file.getInputStream());
@@ -31,6 +31,17 @@ public abstract class PdbUtil {
 		}
 	}
 
+	public static void readFully(InputStream stream, byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			final int size = stream.read(buffer, offset, length);
+			if (size <= 0) {
+				throw new IOException("Unexpected end of stream");
+			}
+			offset += size;
+			length -= size;
+		}
+	}
+
 	public static int readShort(InputStream stream) throws IOException {
 		final byte[] tmp = new byte[2];
 		stream.read(tmp, 0, 2);
@@ -45,4 +56,15 @@ public abstract class PdbUtil {
 			  + ((tmp[2] & 0xFF) << 8) +
 			  + (tmp[3] & 0xFF);
 	}
+
+	public static int readShort(byte[] data, int offset) {
+		return (data[offset + 1] & 0xFF) + ((data[offset] & 0xFF) << 8);
+	}
+
+	public static long readInt(byte[] data, int offset) {
+		return (((long)(data[offset] & 0xFF)) << 24) +
+			+ ((data[offset + 1] & 0xFF) << 16) +
+			+ ((data[offset + 2] & 0xFF) << 8) +
+			+ (data[offset + 3] & 0xFF);
+	}
 }
@@ -43,7 +43,7 @@ public class XHTMLReader extends ZLXMLReaderAdapter {
 		return old;
 	}
 
-	public static void fillTagTable() {
+	public static synchronized void fillTagTable() {
 		if (!ourTagActions.isEmpty()) {
 			return;
 		}
@@ -120,14 +120,30 @@ public class XHTMLReader extends ZLXMLReaderAdapter {
 		//addAction("tr", new XHTMLTagAction());
 		//addAction("caption", new XHTMLTagAction());
 		//addAction("span", new XHTMLTagAction());
+
+		final ZLXMLTagTable.Builder builder = new ZLXMLTagTable.Builder();
+		final XHTMLTagAction[] actions = new XHTMLTagAction[ourTagActions.size()];
+		int id = 0;
+		for (Map.Entry<String,XHTMLTagAction> entry : ourTagActions.entrySet()) {
+			builder.add(entry.getKey(), id);
+			actions[id++] = entry.getValue();
+		}
+		ourActionsById = actions;
+		ourTagTable = builder.build();
 	}
 
+	private static XHTMLTagAction[] ourActionsById;
+	private static ZLXMLTagTable ourTagTable;
+
 	private final BookReader myModelReader;
 	String myPathPrefix;
 	private String myLocalPathPrefix;
 	String myReferencePrefix;
 	boolean myPreformatted;
 	boolean myInsideBody;
+	// tag actions are shared by all readers, so the stack of open <a> kinds is here
+	byte[] myHyperlinkStack = new byte[10];
+	int myHyperlinkStackSize;
 	private final Map<String,String> myFileNumbers;
 	private final Map<String,String> myLocalFileNumbers = new HashMap<String,String>();
 
@@ -149,18 +165,24 @@ public class XHTMLReader extends ZLXMLReaderAdapter {
 		return alias;
 	}
 
+	/**
+	 * The map of file numbers may be shared by readers working in parallel,
+	 * so it is used under its own lock.
+	 */
 	public final String getFileAlias(String fileName) {
-		String num = myFileNumbers.get(fileName);
-		if (num == null) {
-			fileName = MiscUtil.decodeHtmlReference(fileName);
-			fileName = ZLArchiveEntryFile.normalizeEntryName(fileName);
-			num = myFileNumbers.get(fileName);
-		}
-		if (num == null) {
-			num = String.valueOf(myFileNumbers.size());
-			myFileNumbers.put(fileName, num);
+		synchronized (myFileNumbers) {
+			String num = myFileNumbers.get(fileName);
+			if (num == null) {
+				fileName = MiscUtil.decodeHtmlReference(fileName);
+				fileName = ZLArchiveEntryFile.normalizeEntryName(fileName);
+				num = myFileNumbers.get(fileName);
+			}
+			if (num == null) {
+				num = String.valueOf(myFileNumbers.size());
+				myFileNumbers.put(fileName, num);
+			}
+			return num;
 		}
-		return num;
 	}
 
 	public void readFile(ZLFile file, String referencePrefix) throws IOException {
@@ -183,6 +205,13 @@ public class XHTMLReader extends ZLXMLReaderAdapter {
 
 	private final HashMap<String,XHTMLTagAction> myActions = new HashMap<String,XHTMLTagAction>();
 	private XHTMLTagAction getTagAction(String tag) {
+		final ZLXMLTagTable tagTable = ourTagTable;
+		if (tagTable != null) {
+			final int id = tagTable.getId(tag);
+			if (id != -1) {
+				return ourActionsById[id];
+			}
+		}
 		XHTMLTagAction action = myActions.get(tag);
 		if (action == null) {
 			action = ourTagActions.get(tag.toLowerCase());
@@ -194,6 +223,11 @@ public class XHTMLReader extends ZLXMLReaderAdapter {
 		return action == ourNullAction ? null : action;
 	}
 
+	@Override
+	public ZLXMLTagTable tagTable() {
+		return ourTagTable;
+	}
+
 	@Override
 	public boolean startElementHandler(String tag, ZLStringMap attributes) {
 		String id = attributes.getValue("id");
@@ -256,14 +290,14 @@ cycle:
 		}
 	}
 
-	private static ArrayList<String> ourExternalDTDs = new ArrayList<String>();
+	// read by spine items parsed in parallel, so it is never modified
+	private static final List<String> ourExternalDTDs = Collections.unmodifiableList(Arrays.asList(
+		"formats/xhtml/xhtml-lat1.ent",
+		"formats/xhtml/xhtml-special.ent",
+		"formats/xhtml/xhtml-symbol.ent"
+	));
 
 	public static List<String> xhtmlDTDs() {
-		if (ourExternalDTDs.isEmpty()) {
-			ourExternalDTDs.add("formats/xhtml/xhtml-lat1.ent");
-			ourExternalDTDs.add("formats/xhtml/xhtml-special.ent");
-			ourExternalDTDs.add("formats/xhtml/xhtml-symbol.ent");
-		}
 		return ourExternalDTDs;
 	}
 
@@ -25,9 +25,6 @@ import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
 import org.geometerplus.fbreader.bookmodel.*;
 
 class XHTMLTagHyperlinkAction extends XHTMLTagAction {
-	private byte[] myHyperlinkStack = new byte[10];
-	private int myHyperlinkStackSize;
-
 	private static boolean isReference(String text) {
 		switch (text.charAt(0)) {
 			default:
@@ -49,8 +46,8 @@ class XHTMLTagHyperlinkAction extends XHTMLTagAction {
 	protected void doAtStart(XHTMLReader reader, ZLStringMap xmlattributes) {
 		final BookReader modelReader = reader.getModelReader();
 		final String href = xmlattributes.getValue("href");
-		if (myHyperlinkStackSize == myHyperlinkStack.length) {
-			myHyperlinkStack = ZLArrayUtils.createCopy(myHyperlinkStack, myHyperlinkStackSize, 2 * myHyperlinkStackSize);
+		if (reader.myHyperlinkStackSize == reader.myHyperlinkStack.length) {
+			reader.myHyperlinkStack = ZLArrayUtils.createCopy(reader.myHyperlinkStack, reader.myHyperlinkStackSize, 2 * reader.myHyperlinkStackSize);
 		}
 		if (href != null && href.length() > 0) {
 			String link = href;
@@ -74,10 +71,10 @@ class XHTMLTagHyperlinkAction extends XHTMLTagAction {
 					link = reader.getLocalFileAlias(href);
 				}
 			}
-			myHyperlinkStack[myHyperlinkStackSize++] = hyperlinkType;
+			reader.myHyperlinkStack[reader.myHyperlinkStackSize++] = hyperlinkType;
 			modelReader.addHyperlinkControl(hyperlinkType, link);
 		} else {
-			myHyperlinkStack[myHyperlinkStackSize++] = FBTextKind.REGULAR;
+			reader.myHyperlinkStack[reader.myHyperlinkStackSize++] = FBTextKind.REGULAR;
 		}
 		final String name = xmlattributes.getValue("name");
 		if (name != null) {
@@ -86,7 +83,7 @@ class XHTMLTagHyperlinkAction extends XHTMLTagAction {
 	}
 
 	protected void doAtEnd(XHTMLReader reader) {
-		byte kind = myHyperlinkStack[--myHyperlinkStackSize];
+		byte kind = reader.myHyperlinkStack[--reader.myHyperlinkStackSize];
 		if (kind != FBTextKind.REGULAR) {
 			reader.getModelReader().addControl(kind, false);
 		}
@@ -19,7 +19,8 @@
 
 package org.geometerplus.fbreader.network;
 
-import java.util.LinkedList;
+import java.util.*;
+import java.util.concurrent.*;
 
 import org.geometerplus.zlibrary.core.network.*;
 import org.geometerplus.zlibrary.core.util.MimeType;
@@ -27,19 +28,179 @@ import org.geometerplus.zlibrary.core.util.MimeType;
 import org.geometerplus.fbreader.network.tree.NetworkItemsLoader;
 
 public class AllCatalogsSearchItem extends SearchItem {
+	private static final int MAX_CATALOGS_IN_PARALLEL = 6;
+	// every page of results gets this long, then the catalog is dropped
+	private static final long REQUEST_TIMEOUT = 15000;
+	private static final long CHECK_INTERVAL = 250;
+	// a catalog that timed out this many times in a row rests for a while
+	private static final int TIMEOUTS_TO_SKIP = 3;
+	private static final long SKIP_PERIOD = 30 * 60 * 1000;
+
+	private static class CatalogStatistics {
+		// time to the first page, -1 until known
+		long AverageLatency = -1;
+		int TimeoutsInRow;
+		long LastTimeout;
+
+		void addLatency(long latency) {
+			AverageLatency = AverageLatency < 0 ? latency : (3 * AverageLatency + latency) / 4;
+		}
+
+		boolean shouldBeSkipped(long now) {
+			return TimeoutsInRow >= TIMEOUTS_TO_SKIP && now - LastTimeout < SKIP_PERIOD;
+		}
+	}
+
+	private final Map<String,CatalogStatistics> myStatistics =
+		new HashMap<String,CatalogStatistics>();
+
+	private final ThreadPoolExecutor myExecutor = new ThreadPoolExecutor(
+		MAX_CATALOGS_IN_PARALLEL, MAX_CATALOGS_IN_PARALLEL, 30, TimeUnit.SECONDS,
+		new LinkedBlockingQueue<Runnable>(),
+		new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "Network.search");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		}
+	);
+
 	public AllCatalogsSearchItem() {
 		super(
 			null,
 			NetworkLibrary.resource().getResource("search").getResource("summaryAllCatalogs").getValue()
 		);
+		myExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	private CatalogStatistics statistics(INetworkLink link) {
+		synchronized (myStatistics) {
+			CatalogStatistics statistics = myStatistics.get(link.getSiteName());
+			if (statistics == null) {
+				statistics = new CatalogStatistics();
+				myStatistics.put(link.getSiteName(), statistics);
+			}
+			return statistics;
+		}
+	}
+
+	private final class CatalogSearch implements Runnable {
+		final INetworkLink Link;
+		final CatalogStatistics Statistics;
+		private final NetworkOperationData myData;
+		private final ZLNetworkRequest myFirstRequest;
+		private final NetworkItemsLoader myLoader;
+		private final CountDownLatch myDoneSignal;
+
+		private volatile ZLNetworkRequest myRequest;
+		private volatile long myRequestStartTime;
+		private volatile boolean myTimedOut;
+		private volatile boolean myIsCancelled;
+		volatile ZLNetworkException Exception;
+
+		CatalogSearch(NetworkOperationData data, ZLNetworkRequest request, NetworkItemsLoader loader, CountDownLatch doneSignal) {
+			Link = data.Link;
+			Statistics = statistics(data.Link);
+			myData = data;
+			myFirstRequest = request;
+			myLoader = loader;
+			myDoneSignal = doneSignal;
+		}
+
+		public void run() {
+			boolean firstPage = true;
+			try {
+				// TODO: possible infinite loop, use "continue link" instead
+				for (ZLNetworkRequest request = myFirstRequest;
+					 request != null && MimeType.APP_ATOM_XML.weakEquals(request.Mime);
+					 request = myData.resume()) {
+					// start time first: cancelIfLate() reads the request first
+					myRequestStartTime = System.currentTimeMillis();
+					myRequest = request;
+					// checked after publishing the request: cancel() sets the flag first
+					if (myIsCancelled || myLoader.confirmInterruption()) {
+						break;
+					}
+					ZLNetworkManager.Instance().perform(request);
+					if (request.isCancelled() || myLoader.confirmInterruption()) {
+						break;
+					}
+					if (firstPage) {
+						firstPage = false;
+						synchronized (myStatistics) {
+							Statistics.addLatency(System.currentTimeMillis() - myRequestStartTime);
+							Statistics.TimeoutsInRow = 0;
+						}
+					}
+				}
+			} catch (ZLNetworkException e) {
+				if (!myTimedOut && !myLoader.confirmInterruption()) {
+					Exception = e;
+				}
+			} finally {
+				myRequest = null;
+				if (myTimedOut) {
+					synchronized (myStatistics) {
+						if (firstPage) {
+							Statistics.addLatency(REQUEST_TIMEOUT);
+						}
+						++Statistics.TimeoutsInRow;
+						Statistics.LastTimeout = System.currentTimeMillis();
+					}
+				}
+				myDoneSignal.countDown();
+			}
+		}
+
+		void cancelIfLate(long now) {
+			final ZLNetworkRequest request = myRequest;
+			if (request != null && now - myRequestStartTime > REQUEST_TIMEOUT) {
+				myTimedOut = true;
+				request.cancel();
+			}
+		}
+
+		void cancel() {
+			myIsCancelled = true;
+			final ZLNetworkRequest request = myRequest;
+			if (request != null) {
+				request.cancel();
+			}
+		}
 	}
 
+	/**
+	 * Queries all active catalogs in parallel; every catalog adds its items
+	 * to the loader as its feed is parsed, independently of others.
+	 * Catalogs are started fastest first, the ones that repeatedly
+	 * timed out are skipped for SKIP_PERIOD.
+	 */
 	@Override
 	public void runSearch(NetworkItemsLoader loader, String pattern) throws ZLNetworkException {
-		final LinkedList<ZLNetworkRequest> requestList = new LinkedList<ZLNetworkRequest>();
-		final LinkedList<NetworkOperationData> dataList = new LinkedList<NetworkOperationData>();
+		final long startTime = System.currentTimeMillis();
+		final List<INetworkLink> links = new ArrayList<INetworkLink>();
+		final Map<INetworkLink,Long> latencies = new HashMap<INetworkLink,Long>();
+		synchronized (myStatistics) {
+			for (INetworkLink link : NetworkLibrary.Instance().activeLinks()) {
+				final CatalogStatistics statistics = statistics(link);
+				if (!statistics.shouldBeSkipped(startTime)) {
+					links.add(link);
+					latencies.put(link, statistics.AverageLatency);
+				}
+			}
+		}
+		Collections.sort(links, new Comparator<INetworkLink>() {
+			public int compare(INetworkLink link0, INetworkLink link1) {
+				final long diff = latencies.get(link0) - latencies.get(link1);
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
 
-		for (INetworkLink link : NetworkLibrary.Instance().activeLinks()) {
+		final List<NetworkOperationData> dataList = new ArrayList<NetworkOperationData>(links.size());
+		final List<ZLNetworkRequest> requestList = new ArrayList<ZLNetworkRequest>(links.size());
+		for (INetworkLink link : links) {
 			final NetworkOperationData data = link.createOperationData(loader);
 			final ZLNetworkRequest request = link.simpleSearchRequest(pattern, data);
 			if (request != null && MimeType.APP_ATOM_XML.weakEquals(request.Mime)) {
@@ -48,19 +209,62 @@ public class AllCatalogsSearchItem extends SearchItem {
 			}
 		}
 
-		while (!requestList.isEmpty()) {
-			ZLNetworkManager.Instance().perform(requestList);
+		final CountDownLatch doneSignal = new CountDownLatch(requestList.size());
+		final List<CatalogSearch> searches = new ArrayList<CatalogSearch>(requestList.size());
+		for (int i = 0; i < requestList.size(); ++i) {
+			final CatalogSearch search =
+				new CatalogSearch(dataList.get(i), requestList.get(i), loader, doneSignal);
+			searches.add(search);
+			myExecutor.execute(search);
+		}
 
-			requestList.clear();
+		boolean interrupted = false;
+		try {
+			while (!doneSignal.await(CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+				if (!interrupted && loader.confirmInterruption()) {
+					interrupted = true;
+					cancel(searches, doneSignal);
+				} else if (!interrupted) {
+					final long now = System.currentTimeMillis();
+					for (CatalogSearch search : searches) {
+						search.cancelIfLate(now);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			cancel(searches, doneSignal);
+			Thread.currentThread().interrupt();
+			return;
+		}
 
-			if (loader.confirmInterruption()) {
-				return;
+		if (interrupted) {
+			return;
+		}
+		final LinkedHashSet<String> errors = new LinkedHashSet<String>();
+		for (CatalogSearch search : searches) {
+			if (search.Exception != null) {
+				search.Exception.printStackTrace();
+				errors.add(search.Exception.getMessage());
 			}
-			for (NetworkOperationData data : dataList) {
-				ZLNetworkRequest request = data.resume();
-				if (request != null) {
-					requestList.add(request);
+		}
+		if (errors.size() > 0) {
+			StringBuilder message = new StringBuilder();
+			for (String e : errors) {
+				if (message.length() != 0) {
+					message.append(", ");
 				}
+				message.append(e);
+			}
+			throw new ZLNetworkException(true, message.toString());
+		}
+	}
+
+	// running searches are aborted, queued ones are dropped from the executor
+	private void cancel(List<CatalogSearch> searches, CountDownLatch doneSignal) {
+		for (CatalogSearch search : searches) {
+			search.cancel();
+			if (myExecutor.remove(search)) {
+				doneSignal.countDown();
 			}
 		}
 	}
@@ -185,20 +185,15 @@ public final class NetworkImage extends ZLLoadableImage {
 					return;
 				}
 			}
-			final File imageFile = new File(path);
-			if (imageFile.exists()) {
-				final long diff = System.currentTimeMillis() - imageFile.lastModified();
-				final long valid = 7 * 24 * 60 * 60 * 1000; // one week in milliseconds; FIXME: hardcoded const
-				if (diff >= 0 && diff <= valid) {
-					return;
-				}
-				imageFile.delete();
-			}
 			if (doFast) {
+				// a stale image is shown until the next full synchronization
 				return;
 			}
 
+			final File imageFile = new File(path);
 			try {
+				// the network cache knows if the file is fresh,
+				// a stale one is revalidated with a conditional request
 				ZLNetworkManager.Instance().downloadToFile(Url, imageFile);
 			} catch (ZLNetworkException e) {
 			}
@@ -19,6 +19,7 @@
 
 package org.geometerplus.fbreader.network;
 
+import java.io.File;
 import java.util.*;
 import java.lang.ref.WeakReference;
 
@@ -27,10 +28,13 @@ import org.geometerplus.zlibrary.core.util.ZLNetworkUtil;
 import org.geometerplus.zlibrary.core.util.MimeType;
 import org.geometerplus.zlibrary.core.image.ZLImage;
 import org.geometerplus.zlibrary.core.options.ZLStringOption;
+import org.geometerplus.zlibrary.core.network.ZLNetworkCache;
 import org.geometerplus.zlibrary.core.network.ZLNetworkException;
+import org.geometerplus.zlibrary.core.network.ZLNetworkManager;
 import org.geometerplus.zlibrary.core.language.ZLLanguageUtil;
 import org.geometerplus.zlibrary.core.resources.ZLResource;
 
+import org.geometerplus.fbreader.Paths;
 import org.geometerplus.fbreader.tree.FBTree;
 import org.geometerplus.fbreader.network.tree.*;
 import org.geometerplus.fbreader.network.opds.OPDSLinkReader;
@@ -201,7 +205,13 @@ public class NetworkLibrary {
 
 	private final SearchItem mySearchItem = new AllCatalogsSearchItem();
 
+	// feeds, catalog lists and meta of downloaded images
+	private static final long NETWORK_CACHE_SIZE_LIMIT = 8 * 1024 * 1024;
+
 	private NetworkLibrary() {
+		ZLNetworkManager.Instance().setCache(new ZLNetworkCache(
+			new File(Paths.networkCacheDirectory(), "http"), NETWORK_CACHE_SIZE_LIMIT
+		));
 	}
 
 	public boolean isInitialized() {
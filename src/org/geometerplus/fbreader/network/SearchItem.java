@@ -28,6 +28,7 @@ import org.geometerplus.fbreader.network.urlInfo.*;
 
 public abstract class SearchItem extends NetworkCatalogItem {
 	private String myPattern;
+	private volatile boolean myIsComplete;
 
 	protected SearchItem(INetworkLink link, String summary) {
 		super(
@@ -42,12 +43,25 @@ public abstract class SearchItem extends NetworkCatalogItem {
 
 	public void setPattern(String pattern) {
 		myPattern = pattern;
+		myIsComplete = false;
 	}
 
 	public String getPattern() {
 		return myPattern;
 	}
 
+	/**
+	 * Marks the results found for the current pattern as complete;
+	 * results of an interrupted search are shown but not reused.
+	 */
+	public void setComplete() {
+		myIsComplete = true;
+	}
+
+	public boolean isComplete() {
+		return myIsComplete;
+	}
+
 	@Override
 	public boolean canBeOpened() {
 		return myPattern != null;
@@ -41,6 +41,11 @@ public class OPDSBookItem extends NetworkBookItem implements OPDSConstants {
 		final CreateBookHandler handler = new CreateBookHandler(link, url);
 		try {
 			ZLNetworkManager.Instance().perform(new ZLNetworkRequest(url) {
+				@Override
+				public boolean isCacheable() {
+					return true;
+				}
+
 				@Override
 				public void handleStream(InputStream inputStream, int length) throws IOException, ZLNetworkException {
 					new OPDSXMLReader(handler, true).read(inputStream);
@@ -264,6 +269,11 @@ public class OPDSBookItem extends NetworkBookItem implements OPDSConstants {
 		}
 
 		ZLNetworkManager.Instance().perform(new ZLNetworkRequest(url) {
+			@Override
+			public boolean isCacheable() {
+				return true;
+			}
+
 			@Override
 			public void handleStream(InputStream inputStream, int length) throws IOException, ZLNetworkException {
 				new OPDSXMLReader(new LoadInfoHandler(url), true).read(inputStream);
@@ -108,6 +108,11 @@ public class OPDSCustomNetworkLink extends OPDSNetworkLink implements ICustomNet
 		ZLNetworkException error = null;
 		try {
 			ZLNetworkManager.Instance().perform(new ZLNetworkRequest(getUrl(UrlInfo.Type.Catalog), quietly) {
+				@Override
+				public boolean isCacheable() {
+					return true;
+				}
+
 				@Override
 				public void handleStream(InputStream inputStream, int length) throws IOException, ZLNetworkException {
 					final OPDSCatalogInfoHandler info = new OPDSCatalogInfoHandler(getURL(), OPDSCustomNetworkLink.this, opensearchDescriptionURLs);
@@ -137,6 +142,11 @@ public class OPDSCustomNetworkLink extends OPDSNetworkLink implements ICustomNet
 			LinkedList<ZLNetworkRequest> requests = new LinkedList<ZLNetworkRequest>();
 			for (String url: opensearchDescriptionURLs) {
 				requests.add(new ZLNetworkRequest(url, quietly) {
+					@Override
+					public boolean isCacheable() {
+						return true;
+					}
+
 					@Override
 					public void handleStream(InputStream inputStream, int length) throws IOException, ZLNetworkException {
 						new OpenSearchXMLReader(getURL(), descriptions).read(inputStream);
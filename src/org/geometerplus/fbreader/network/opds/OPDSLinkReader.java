@@ -22,18 +22,13 @@ package org.geometerplus.fbreader.network.opds;
 import java.util.*;
 import java.io.*;
 
-import org.geometerplus.zlibrary.core.filesystem.ZLPhysicalFile;
 import org.geometerplus.zlibrary.core.network.ZLNetworkManager;
 import org.geometerplus.zlibrary.core.network.ZLNetworkException;
 import org.geometerplus.zlibrary.core.network.ZLNetworkRequest;
-
-import org.geometerplus.fbreader.Paths;
 import org.geometerplus.fbreader.network.*;
 
 public class OPDSLinkReader {
 	static final String CATALOGS_URL = "http://data.fbreader.org/catalogs/generic-1.7.xml";
-	static final String FILE_NAME = "fbreader_catalogs-"
-			+ CATALOGS_URL.substring(CATALOGS_URL.lastIndexOf("/") + 1);
 
 	public enum CacheMode {
 		LOAD,
@@ -43,69 +38,37 @@ public class OPDSLinkReader {
 
 	public static List<INetworkLink> loadOPDSLinks(CacheMode cacheMode) throws ZLNetworkException {
 		final OPDSLinkXMLReader xmlReader = new OPDSLinkXMLReader();
+		final ZLNetworkRequest request = new ZLNetworkRequest(CATALOGS_URL) {
+			@Override
+			public boolean isCacheable() {
+				return true;
+			}
 
-		final File dirFile = new File(Paths.networkCacheDirectory());
-		if (!dirFile.exists() && !dirFile.mkdirs()) {
-			ZLNetworkManager.Instance().perform(new ZLNetworkRequest(CATALOGS_URL) {
-				@Override
-				public void handleStream(InputStream inputStream, int length) throws IOException, ZLNetworkException {
-					xmlReader.read(inputStream);
-				}
-			});
-			return xmlReader.links();
-		}
-
-		boolean cacheIsGood = false;
-		File oldCache = null;
-		final File catalogsFile = new File(dirFile, FILE_NAME);
-		if (catalogsFile.exists()) {
-			switch (cacheMode) {
-				case UPDATE:
-					final long diff = System.currentTimeMillis() - catalogsFile.lastModified();
-					if (diff >= 0 && diff <= 7 * 24 * 60 * 60 * 1000) { // one week
-						return Collections.emptyList();
-					}
-					/* FALLTHROUGH */
-				case CLEAR:
-					oldCache = new File(dirFile, "_" + FILE_NAME);
-					oldCache.delete();
-					if (!catalogsFile.renameTo(oldCache)) {
-						catalogsFile.delete();
-						oldCache = null;
-					}
-					break;
-				case LOAD:
-					cacheIsGood = true;
-					break;
+			@Override
+			public void handleStream(InputStream inputStream, int length) throws IOException, ZLNetworkException {
+				xmlReader.read(inputStream);
 			}
-		}
+		};
 
-		if (!cacheIsGood) {
-			try {
-				ZLNetworkManager.Instance().downloadToFile(CATALOGS_URL, catalogsFile);
-			} catch (ZLNetworkException e) {
-				if (oldCache == null) {
-					throw e;
-				}
-				catalogsFile.delete();
-				if (!oldCache.renameTo(catalogsFile)) {
-					oldCache.delete();
-					oldCache = null;
-					throw e;
+		final ZLNetworkManager manager = ZLNetworkManager.Instance();
+		switch (cacheMode) {
+			case LOAD:
+				// any cached list is good, a stale one is updated in background
+				if (!manager.performFromCache(request)) {
+					manager.perform(request);
 				}
-			} finally {
-				if (oldCache != null) {
-					oldCache.delete();
-					oldCache = null;
+				break;
+			case CLEAR:
+				manager.invalidateCache(CATALOGS_URL);
+				/* FALLTHROUGH */
+			case UPDATE:
+				manager.perform(request);
+				if (request.isServedFromCache()) {
+					// the list is the same as loaded before
+					return Collections.emptyList();
 				}
-			}
-		}
-
-		try {
-			xmlReader.read(new ZLPhysicalFile(catalogsFile));
-			return xmlReader.links();
-		} catch (IOException e) {
-			return Collections.emptyList();
+				break;
 		}
+		return xmlReader.links();
 	}
 }
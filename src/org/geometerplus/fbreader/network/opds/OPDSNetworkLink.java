@@ -92,6 +92,11 @@ public abstract class OPDSNetworkLink extends AbstractNetworkLink {
 		library.startLoading(catalogItem);
 		url = rewriteUrl(url, false);
 		return new ZLNetworkRequest(url, mime, null, false) {
+			@Override
+			public boolean isCacheable() {
+				return true;
+			}
+
 			@Override
 			public void handleStream(InputStream inputStream, int length) throws IOException, ZLNetworkException {
 				if (result.Loader.confirmInterruption()) {
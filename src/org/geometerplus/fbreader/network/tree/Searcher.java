@@ -37,15 +37,10 @@ class Searcher extends NetworkItemsLoader {
 		NetworkLibrary.Instance().NetworkSearchPatternOption.setValue(myPattern);
 	}
 
-	@Override
-	public void interrupt() {
-		// Searcher is not interruptable at this moment
-	}
-
 	@Override
 	public void doLoading() throws ZLNetworkException {
 		final SearchItem item = (SearchItem)getTree().Item;
-		if (myPattern.equals(item.getPattern())) {
+		if (myPattern.equals(item.getPattern()) && item.isComplete()) {
 			myItemFound = true;
 		} else {
 			item.runSearch(this, myPattern);
@@ -67,7 +62,12 @@ class Searcher extends NetworkItemsLoader {
 
 	@Override
 	protected void onFinish(ZLNetworkException exception, boolean interrupted) {
-		if (!interrupted && !myItemFound) {
+		if (interrupted) {
+			return;
+		}
+		if (myItemFound) {
+			((SearchItem)getTree().Item).setComplete();
+		} else {
 			NetworkLibrary.Instance().fireModelChangedEvent(NetworkLibrary.ChangeListener.Code.NotFound);
 		}
 	}
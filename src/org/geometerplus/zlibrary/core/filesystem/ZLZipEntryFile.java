@@ -27,13 +27,17 @@ final class ZLZipEntryFile extends ZLArchiveEntryFile {
 	static List<ZLFile> archiveEntries(ZLFile archive) {
 		try {
 			final ZipFile zf = ZLZipEntryFile.getZipFile(archive);
-			final Collection<LocalFileHeader> headers = zf.headers();
-			if (!headers.isEmpty()) {
-				ArrayList<ZLFile> entries = new ArrayList<ZLFile>(headers.size());
-				for (LocalFileHeader h : headers) {
-					entries.add(new ZLZipEntryFile(archive, h.FileName));
+			try {
+				final Collection<LocalFileHeader> headers = zf.headers();
+				if (!headers.isEmpty()) {
+					ArrayList<ZLFile> entries = new ArrayList<ZLFile>(headers.size());
+					for (LocalFileHeader h : headers) {
+						entries.add(new ZLZipEntryFile(archive, h.FileName));
+					}
+					return entries;
 				}
-				return entries;
+			} finally {
+				releaseZipFile(archive, zf);
 			}
 		} catch (IOException e) {
 		}
@@ -46,11 +50,16 @@ final class ZLZipEntryFile extends ZLArchiveEntryFile {
 		synchronized (ourZipFileMap) {
 			ZipFile zf = file.isCached() ? ourZipFileMap.get(file) : null;
 			if (zf == null) {
-				zf = new ZipFile(new ZipFile.InputStreamHolder() {
-					public InputStream getInputStream() throws IOException {
-						return file.getInputStream();
-					}
-				});
+				if (file instanceof ZLPhysicalFile) {
+					// random access: central directory and positional reads
+					zf = new ZipFile(file.getPath());
+				} else {
+					zf = new ZipFile(new ZipFile.InputStreamHolder() {
+						public InputStream getInputStream() throws IOException {
+							return file.getInputStream();
+						}
+					});
+				}
 				if (file.isCached()) {
 					ourZipFileMap.put(file, zf);
 				}
@@ -59,8 +68,24 @@ final class ZLZipEntryFile extends ZLArchiveEntryFile {
 		}
 	}
 
+	// closes a ZipFile that is not cached; its open entry streams keep the file till closed
+	private static void releaseZipFile(ZLFile file, ZipFile zf) {
+		synchronized (ourZipFileMap) {
+			if (ourZipFileMap.get(file) == zf) {
+				return;
+			}
+		}
+		zf.close();
+	}
+
 	static void removeFromCache(ZLFile file) {
-		ourZipFileMap.remove(file);
+		final ZipFile zf;
+		synchronized (ourZipFileMap) {
+			zf = ourZipFileMap.remove(file);
+		}
+		if (zf != null) {
+			zf.close();
+		}
 	}
 
 	ZLZipEntryFile(ZLFile parent, String name) {
@@ -70,7 +95,15 @@ final class ZLZipEntryFile extends ZLArchiveEntryFile {
 	@Override
 	public boolean exists() {
 		try {
-			return myParent.exists() && getZipFile(myParent).entryExists(myName);
+			if (!myParent.exists()) {
+				return false;
+			}
+			final ZipFile zf = getZipFile(myParent);
+			try {
+				return zf.entryExists(myName);
+			} finally {
+				releaseZipFile(myParent, zf);
+			}
 		} catch (IOException e) {
 			return false;
 		}
@@ -79,7 +112,12 @@ final class ZLZipEntryFile extends ZLArchiveEntryFile {
 	@Override
 	public long size() {
 		try {
-			return getZipFile(myParent).getEntrySize(myName);
+			final ZipFile zf = getZipFile(myParent);
+			try {
+				return zf.getEntrySize(myName);
+			} finally {
+				releaseZipFile(myParent, zf);
+			}
 		} catch (IOException e) {
 			return 0;
 		}
@@ -87,6 +125,11 @@ final class ZLZipEntryFile extends ZLArchiveEntryFile {
 
 	@Override
 	public InputStream getInputStream() throws IOException {
-		return getZipFile(myParent).getInputStream(myName);
+		final ZipFile zf = getZipFile(myParent);
+		try {
+			return zf.getInputStream(myName);
+		} finally {
+			releaseZipFile(myParent, zf);
+		}
 	}
 }
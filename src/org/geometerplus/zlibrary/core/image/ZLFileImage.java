@@ -89,6 +89,10 @@ public class ZLFileImage extends ZLSingleImage {
         this(mimeType, file, ENCODING_NONE, 0, (int)file.size());
     }
 
+    public ZLFile getFile() {
+        return myFile;
+    }
+
     public String getURI() {
         String result = SCHEME + "://" + myFile.getPath() + "\000" + myEncoding + "\000" + myOffsets.length;
         for (int offset : myOffsets) {
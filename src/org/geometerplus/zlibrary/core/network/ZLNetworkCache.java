@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2010-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.core.network;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * On-disk HTTP cache for GET requests. Every entry is a meta file with
+ * the validators (ETag, Last-Modified) and the freshness lifetime, and
+ * a body file. Fresh entries are served without network, stale ones are
+ * revalidated with a conditional request. Bodies of downloadToFile() requests
+ * stay in the target file; the cache keeps their meta only.
+ * Least recently used entries are removed when the cache grows over the limit;
+ * as in BookModelCache, file modification time is the access time.
+ */
+public class ZLNetworkCache {
+	private static final int FORMAT_VERSION = 1;
+	private static final String META_SUFFIX = ".meta";
+	private static final String BODY_SUFFIX = ".body";
+	// heuristic lifetime is 10% of the document age, as RFC 2616 suggests, but not longer than
+	private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000;
+
+	static final class Entry {
+		final String Url;
+		final String ETag;
+		final String LastModified;
+		final long FreshUntil;
+		final File Body;
+		final boolean IsExternal;
+		final File Meta;
+
+		Entry(String url, String etag, String lastModified, long freshUntil, File body, boolean isExternal, File meta) {
+			Url = url;
+			ETag = etag;
+			LastModified = lastModified;
+			FreshUntil = freshUntil;
+			Body = body;
+			IsExternal = isExternal;
+			Meta = meta;
+		}
+
+		boolean isFresh() {
+			return System.currentTimeMillis() < FreshUntil;
+		}
+
+		void addValidators(HttpRequestBase request) {
+			if (ETag != null) {
+				request.setHeader("If-None-Match", ETag);
+			}
+			if (LastModified != null) {
+				request.setHeader("If-Modified-Since", LastModified);
+			}
+		}
+	}
+
+	private final File myDirectory;
+	private final long mySizeLimit;
+	private long myTotalSize = -1;
+
+	private int myHitCount;
+	private int myRevalidatedCount;
+	private int myMissCount;
+	private int myStoreCount;
+	private int myEvictionCount;
+	private long myBytesFromCache;
+
+	public ZLNetworkCache(File directory, long sizeLimit) {
+		myDirectory = directory;
+		mySizeLimit = sizeLimit;
+	}
+
+	/**
+	 * @return an entry with readable body, or null
+	 */
+	synchronized Entry get(String url) {
+		final File meta = new File(myDirectory, key(url) + META_SUFFIX);
+		if (!meta.exists()) {
+			return null;
+		}
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)));
+			if (stream.readInt() != FORMAT_VERSION || !url.equals(stream.readUTF())) {
+				return null;
+			}
+			final String etag = readString(stream);
+			final String lastModified = readString(stream);
+			final long freshUntil = stream.readLong();
+			final String externalPath = readString(stream);
+			final File body = externalPath != null
+				? new File(externalPath) : new File(myDirectory, key(url) + BODY_SUFFIX);
+			if (!body.exists()) {
+				return null;
+			}
+			return new Entry(url, etag, lastModified, freshUntil, body, externalPath != null, meta);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			close(stream);
+		}
+	}
+
+	synchronized void remove(String url) {
+		final String key = key(url);
+		final File meta = new File(myDirectory, key + META_SUFFIX);
+		final File body = new File(myDirectory, key + BODY_SUFFIX);
+		if (myTotalSize != -1) {
+			myTotalSize -= meta.length() + body.length();
+		}
+		meta.delete();
+		body.delete();
+	}
+
+	// keeps validators and body, so the entry is revalidated and still can be served offline
+	synchronized void invalidate(String url) {
+		final Entry entry = get(url);
+		if (entry != null) {
+			writeMeta(
+				entry.Meta, url, entry.ETag, entry.LastModified, 0,
+				entry.IsExternal ? entry.Body : null
+			);
+		}
+	}
+
+	/**
+	 * Counts a use of a fresh or revalidated entry and updates its access time.
+	 */
+	synchronized void touch(Entry entry, boolean revalidated) {
+		if (revalidated) {
+			++myRevalidatedCount;
+		} else {
+			++myHitCount;
+		}
+		myBytesFromCache += entry.Body.length();
+		final long now = System.currentTimeMillis();
+		entry.Meta.setLastModified(now);
+		if (!entry.IsExternal) {
+			entry.Body.setLastModified(now);
+		}
+	}
+
+	InputStream open(Entry entry, boolean revalidated) throws IOException {
+		touch(entry, revalidated);
+		return new FileInputStream(entry.Body);
+	}
+
+	synchronized void countMiss() {
+		++myMissCount;
+	}
+
+	File createTempBody() throws IOException {
+		myDirectory.mkdirs();
+		return File.createTempFile("body", ".tmp", myDirectory);
+	}
+
+	/**
+	 * Stores a full response; the body is moved from the temporary file,
+	 * or is kept in the external file if tempBody is null.
+	 */
+	synchronized void store(String url, HttpResponse response, File tempBody, File externalBody) {
+		final long freshUntil = freshUntil(response);
+		final String etag = headerValue(response, "ETag");
+		final String lastModified = headerValue(response, "Last-Modified");
+		if (freshUntil == -1 || (freshUntil <= System.currentTimeMillis() && etag == null && lastModified == null)) {
+			// not allowed to store, or useless: it is neither fresh nor can be revalidated
+			remove(url);
+			if (tempBody != null) {
+				tempBody.delete();
+			}
+			return;
+		}
+
+		final String key = key(url);
+		final File meta = new File(myDirectory, key + META_SUFFIX);
+		final File body = new File(myDirectory, key + BODY_SUFFIX);
+		remove(url);
+		if (tempBody != null && !tempBody.renameTo(body)) {
+			tempBody.delete();
+			return;
+		}
+		if (!writeMeta(meta, url, etag, lastModified, freshUntil, externalBody)) {
+			body.delete();
+			return;
+		}
+		++myStoreCount;
+		if (myTotalSize != -1) {
+			myTotalSize += meta.length() + body.length();
+		}
+		evictIfNeeded();
+	}
+
+	/**
+	 * Updates freshness and validators of an entry after a 304 response.
+	 */
+	synchronized void update(Entry entry, HttpResponse response) {
+		final long freshUntil = freshUntil(response);
+		final String etag = headerValue(response, "ETag");
+		final String lastModified = headerValue(response, "Last-Modified");
+		writeMeta(
+			entry.Meta, entry.Url,
+			etag != null ? etag : entry.ETag,
+			lastModified != null ? lastModified : entry.LastModified,
+			Math.max(freshUntil, 0),
+			entry.IsExternal ? entry.Body : null
+		);
+	}
+
+	public synchronized String getReport() {
+		return String.format(
+			"network cache: %d hits, %d revalidated, %d misses, %d stored, %d evicted, %d KB served from cache",
+			myHitCount, myRevalidatedCount, myMissCount, myStoreCount, myEvictionCount,
+			myBytesFromCache / 1024
+		);
+	}
+
+	// -1 means the response must not be stored
+	private static long freshUntil(HttpResponse response) {
+		final long now = System.currentTimeMillis();
+		final Header[] vary = response.getHeaders("Vary");
+		for (Header h : vary) {
+			if (h.getValue().indexOf('*') != -1) {
+				return -1;
+			}
+		}
+
+		long maxAge = -1;
+		for (Header h : response.getHeaders("Cache-Control")) {
+			for (String directive : h.getValue().split(",")) {
+				directive = directive.trim().toLowerCase();
+				if ("no-store".equals(directive)) {
+					return -1;
+				} else if ("no-cache".equals(directive)) {
+					return 0;
+				} else if (directive.startsWith("max-age=")) {
+					try {
+						maxAge = Long.parseLong(directive.substring(8).trim());
+					} catch (NumberFormatException e) {
+						return 0;
+					}
+				}
+			}
+		}
+		if (maxAge != -1) {
+			return now + maxAge * 1000;
+		}
+
+		final Date date = headerDate(response, "Date");
+		final long serverNow = date != null ? date.getTime() : now;
+		final Header expires = response.getFirstHeader("Expires");
+		if (expires != null) {
+			final Date expiresDate = headerDate(response, "Expires");
+			// invalid Expires (e.g. "0") means already expired
+			return expiresDate != null ? now + expiresDate.getTime() - serverNow : 0;
+		}
+
+		final Date lastModified = headerDate(response, "Last-Modified");
+		if (lastModified != null && lastModified.getTime() < serverNow) {
+			return now + Math.min((serverNow - lastModified.getTime()) / 10, MAX_HEURISTIC_LIFETIME);
+		}
+		return 0;
+	}
+
+	private boolean writeMeta(File meta, String url, String etag, String lastModified, long freshUntil, File externalBody) {
+		final File temp = new File(meta.getPath() + ".tmp");
+		DataOutputStream stream = null;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			stream.writeInt(FORMAT_VERSION);
+			stream.writeUTF(url);
+			writeString(stream, etag);
+			writeString(stream, lastModified);
+			stream.writeLong(freshUntil);
+			writeString(stream, externalBody != null ? externalBody.getPath() : null);
+			stream.close();
+			stream = null;
+			return temp.renameTo(meta);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			close(stream);
+			temp.delete();
+		}
+	}
+
+	private void evictIfNeeded() {
+		if (myTotalSize != -1 && myTotalSize <= mySizeLimit) {
+			return;
+		}
+		final File[] metas = myDirectory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().endsWith(META_SUFFIX);
+			}
+		});
+		if (metas == null) {
+			return;
+		}
+		Arrays.sort(metas, new Comparator<File>() {
+			public int compare(File f0, File f1) {
+				final long diff = f1.lastModified() - f0.lastModified();
+				return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+			}
+		});
+		long totalSize = 0;
+		for (File meta : metas) {
+			final String name = meta.getName();
+			final File body = new File(
+				myDirectory, name.substring(0, name.length() - META_SUFFIX.length()) + BODY_SUFFIX
+			);
+			final long size = meta.length() + body.length();
+			if (totalSize + size > mySizeLimit) {
+				meta.delete();
+				body.delete();
+				++myEvictionCount;
+			} else {
+				totalSize += size;
+			}
+		}
+		myTotalSize = totalSize;
+	}
+
+	private static String key(String url) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("MD5");
+			final byte[] hash = digest.digest(url.getBytes("UTF-8"));
+			final StringBuilder builder = new StringBuilder(2 * hash.length);
+			for (byte b : hash) {
+				builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+				builder.append(Character.forDigit(b & 0xF, 16));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(url.hashCode());
+		} catch (UnsupportedEncodingException e) {
+			return Integer.toHexString(url.hashCode());
+		}
+	}
+
+	private static String headerValue(HttpResponse response, String name) {
+		final Header header = response.getFirstHeader(name);
+		return header != null ? header.getValue() : null;
+	}
+
+	private static Date headerDate(HttpResponse response, String name) {
+		final String value = headerValue(response, name);
+		if (value == null) {
+			return null;
+		}
+		try {
+			return DateUtils.parseDate(value);
+		} catch (DateParseException e) {
+			return null;
+		}
+	}
+
+	private static String readString(DataInputStream stream) throws IOException {
+		return stream.readBoolean() ? stream.readUTF() : null;
+	}
+
+	private static void writeString(DataOutputStream stream, String value) throws IOException {
+		stream.writeBoolean(value != null);
+		if (value != null) {
+			stream.writeUTF(value);
+		}
+	}
+
+	private static void close(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -20,6 +20,8 @@
 package org.geometerplus.zlibrary.core.network;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 import java.io.*;
 import java.net.*;
@@ -30,9 +32,13 @@ import org.apache.http.client.CookieStore;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.params.*;
+import org.apache.http.conn.scheme.*;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.*;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.*;
 import org.apache.http.protocol.HttpContext;
@@ -43,6 +49,16 @@ import org.geometerplus.zlibrary.core.util.ZLNetworkUtil;
 import org.geometerplus.zlibrary.core.options.ZLStringOption;
 
 public class ZLNetworkManager {
+	private static final int SO_TIMEOUT = 30000;
+	private static final int CONNECTION_TIMEOUT = 15000;
+	private static final int MAX_CONNECTIONS = 16;
+	private static final int MAX_CONNECTIONS_PER_HOST = 4;
+	// kept-alive connections unused for this time are closed
+	private static final long IDLE_CONNECTION_TIMEOUT = 30;
+	// requests of a batch running at the same time, the calling thread included
+	private static final int MAX_CONCURRENT_REQUESTS = 4;
+	private static final int MAX_BATCH_THREADS = 8;
+
 	private static ZLNetworkManager ourManager;
 
 	public static ZLNetworkManager Instance() {
@@ -117,6 +133,14 @@ public class ZLNetworkManager {
 				return null;
 			}
 
+			// requests run concurrently; one dialog at a time, the others
+			// get its credentials from the map
+			synchronized (myCredentialsMap) {
+				return createCredentialsInternal(scheme, scope, quietly);
+			}
+		}
+
+		private Credentials createCredentialsInternal(String scheme, AuthScope scope, boolean quietly) {
 			final AuthScopeKey key = new AuthScopeKey(scope);
 			Credentials creds = myCredentialsMap.get(key);
 			if (creds != null || quietly) {
@@ -148,7 +172,9 @@ public class ZLNetworkManager {
 		}
 
 		public boolean removeCredentials(AuthScopeKey key) {
-			return myCredentialsMap.remove(key) != null;
+			synchronized (myCredentialsMap) {
+				return myCredentialsMap.remove(key) != null;
+			}
 		}
 
 		abstract protected void startAuthenticationDialog(String host, String area, String scheme, String username);
@@ -276,19 +302,225 @@ public class ZLNetworkManager {
 		return myCredentialsCreator;
 	}
 
+	private DefaultHttpClient myHttpClient;
+
+	// one client for all requests: connections are pooled and kept alive
+	private synchronized DefaultHttpClient httpClient() {
+		if (myHttpClient == null) {
+			final HttpParams params = new BasicHttpParams();
+			HttpConnectionParams.setSoTimeout(params, SO_TIMEOUT);
+			HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+			// as in AndroidHttpClient: the check costs a read timeout on every
+			// reuse; a connection closed by the server fails and is retried below
+			HttpConnectionParams.setStaleCheckingEnabled(params, false);
+			ConnManagerParams.setTimeout(params, CONNECTION_TIMEOUT);
+			ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+			ConnManagerParams.setMaxConnectionsPerRoute(
+				params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST)
+			);
+			final SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+			myHttpClient = new DefaultHttpClient(
+				new ThreadSafeClientConnManager(params, registry), params
+			);
+		}
+		myHttpClient.getConnectionManager().closeIdleConnections(
+			IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS
+		);
+		return myHttpClient;
+	}
+
+	private volatile ZLNetworkCache myCache;
+
+	public void setCache(ZLNetworkCache cache) {
+		myCache = cache;
+	}
+
+	public ZLNetworkCache getCache() {
+		return myCache;
+	}
+
+	/**
+	 * Makes the next perform() of the url revalidate the cached response
+	 * even if it is fresh; the response stays available to performFromCache().
+	 */
+	public void invalidateCache(String url) {
+		final ZLNetworkCache cache = myCache;
+		if (cache != null) {
+			cache.invalidate(url);
+		}
+	}
+
+	private static boolean isCacheable(ZLNetworkRequest request) {
+		return
+			request.isCacheable() &&
+			request.PostData == null &&
+			request.PostParameters.isEmpty();
+	}
+
+	// downloadToFile() request: the cache keeps no copy of the body, it stays in OutFile
+	private static abstract class FileRequest extends ZLNetworkRequest {
+		final File OutFile;
+
+		FileRequest(String url, File outFile) {
+			super(url);
+			OutFile = outFile;
+		}
+
+		@Override
+		public boolean isCacheable() {
+			return true;
+		}
+	}
+
+	// copies everything read from the response into the cache body file
+	private static final class CachingInputStream extends FilterInputStream {
+		final File TempBody;
+		private final OutputStream myOutput;
+		private boolean myWriteFailed;
+
+		CachingInputStream(InputStream input, File tempBody) throws IOException {
+			super(input);
+			TempBody = tempBody;
+			myOutput = new BufferedOutputStream(new FileOutputStream(tempBody));
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b != -1) {
+				write(new byte[] { (byte)b }, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			final int size = super.read(buffer, offset, length);
+			if (size > 0) {
+				write(buffer, offset, size);
+			}
+			return size;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			final byte[] buffer = new byte[(int)Math.min(n, 8192)];
+			final int size = read(buffer, 0, buffer.length);
+			return size > 0 ? size : 0;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		// the handler may stop before the end of the body
+		boolean readToEnd() throws IOException {
+			final byte[] buffer = new byte[8192];
+			while (read(buffer, 0, buffer.length) != -1) {
+			}
+			myOutput.close();
+			return !myWriteFailed;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				myOutput.close();
+			} catch (IOException e) {
+				myWriteFailed = true;
+			}
+			super.close();
+		}
+
+		private void write(byte[] buffer, int offset, int length) {
+			if (myWriteFailed) {
+				return;
+			}
+			try {
+				myOutput.write(buffer, offset, length);
+			} catch (IOException e) {
+				// the response is not cached, but the request goes on
+				myWriteFailed = true;
+			}
+		}
+	}
+
+	// the body is not cached if there is no place for it
+	private static InputStream createCachingStream(ZLNetworkCache cache, InputStream stream) {
+		File tempBody = null;
+		try {
+			tempBody = cache.createTempBody();
+			return new CachingInputStream(stream, tempBody);
+		} catch (IOException e) {
+			if (tempBody != null) {
+				tempBody.delete();
+			}
+			return stream;
+		}
+	}
+
+	private static void handleCachedStream(ZLNetworkRequest request, ZLNetworkCache cache, ZLNetworkCache.Entry entry, boolean revalidated) throws IOException, ZLNetworkException {
+		request.setServedFromCache(true);
+		if (request instanceof FileRequest && ((FileRequest)request).OutFile.equals(entry.Body)) {
+			cache.touch(entry, revalidated);
+			return;
+		}
+		final InputStream stream = cache.open(entry, revalidated);
+		try {
+			request.handleStream(stream, (int)entry.Body.length());
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Serves the request from the cache without network, even if the cached
+	 * response is not fresh any more.
+	 * @return false if there is no cached response
+	 */
+	public boolean performFromCache(ZLNetworkRequest request) throws ZLNetworkException {
+		final ZLNetworkCache cache = myCache;
+		if (cache == null || !isCacheable(request)) {
+			return false;
+		}
+		final ZLNetworkCache.Entry entry = cache.get(request.URL);
+		if (entry == null) {
+			return false;
+		}
+		boolean success = false;
+		try {
+			request.doBefore();
+			handleCachedStream(request, cache, entry, false);
+			success = true;
+			return true;
+		} catch (IOException e) {
+			throw new ZLNetworkException(true, e.getMessage(), e);
+		} finally {
+			request.doAfter(success);
+		}
+	}
+
 	public void perform(ZLNetworkRequest request) throws ZLNetworkException {
 		boolean success = false;
-		DefaultHttpClient httpClient = null;
 		HttpEntity entity = null;
+		request.setServedFromCache(false);
 		try {
 			final HttpContext httpContext = new BasicHttpContext();
 			httpContext.setAttribute(ClientContext.COOKIE_STORE, myCookieStore);
 
 			request.doBefore();
-			final HttpParams params = new BasicHttpParams();
-			HttpConnectionParams.setSoTimeout(params, 30000);
-			HttpConnectionParams.setConnectionTimeout(params, 15000);
-			httpClient = new DefaultHttpClient(params);
+			final ZLNetworkCache cache = isCacheable(request) ? myCache : null;
+			final ZLNetworkCache.Entry cached = cache != null ? cache.get(request.URL) : null;
+			if (cached != null && cached.isFresh()) {
+				handleCachedStream(request, cache, cached, false);
+				success = true;
+				return;
+			}
+
+			final DefaultHttpClient httpClient = httpClient();
 			final HttpRequestBase httpRequest;
 			if (request.PostData != null) {
 				httpRequest = new HttpPost(request.URL);
@@ -317,10 +549,19 @@ public class ZLNetworkManager {
 			httpRequest.setHeader("User-Agent", ZLNetworkUtil.getUserAgent());
 			httpRequest.setHeader("Accept-Encoding", "gzip");
 			httpRequest.setHeader("Accept-Language", Locale.getDefault().getLanguage());
-			httpClient.setCredentialsProvider(new MyCredentialsProvider(httpRequest, request.isQuiet()));
+			if (cached != null) {
+				cached.addValidators(httpRequest);
+			}
+			request.setHttpRequest(httpRequest);
+			// the client is shared, so the provider goes to the request context
+			httpContext.setAttribute(
+				ClientContext.CREDS_PROVIDER,
+				new MyCredentialsProvider(httpRequest, request.isQuiet())
+			);
 			HttpResponse response = null;
 			IOException lastException = null;
-			for (int retryCounter = 0; retryCounter < 3 && entity == null; ++retryCounter) {
+			// a 304 response has no entity, so the loop does not check it
+			for (int retryCounter = 0; retryCounter < 3; ++retryCounter) {
 				try {
 					response = httpClient.execute(httpRequest, httpContext);
 					entity = response.getEntity();
@@ -330,12 +571,21 @@ public class ZLNetworkManager {
 						if (state != null) {
 							final AuthScopeKey key = new AuthScopeKey(state.getAuthScope());
 							if (myCredentialsCreator.removeCredentials(key)) {
+								// release the connection before the retry
+								if (entity != null) {
+									entity.consumeContent();
+								}
 								entity = null;
+								continue;
 							}
 						}
 					}
+					break;
 				} catch (IOException e) {
 					lastException = e;
+					if (request.isCancelled()) {
+						break;
+					}
 				}
 			}
 			if (lastException != null) {
@@ -343,6 +593,13 @@ public class ZLNetworkManager {
 			}
 			final int responseCode = response.getStatusLine().getStatusCode();
 
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				cache.update(cached, response);
+				handleCachedStream(request, cache, cached, true);
+				success = true;
+				return;
+			}
+
 			InputStream stream = null;
 			if (entity != null && responseCode == HttpURLConnection.HTTP_OK) {
 				stream = entity.getContent();
@@ -354,11 +611,34 @@ public class ZLNetworkManager {
 					if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
 						stream = new GZIPInputStream(stream);
 					}
+					if (cache != null) {
+						cache.countMiss();
+						if (!(request instanceof FileRequest)) {
+							stream = createCachingStream(cache, stream);
+						}
+					}
 					request.handleStream(stream, (int)entity.getContentLength());
+					if (stream instanceof CachingInputStream) {
+						final CachingInputStream cachingStream = (CachingInputStream)stream;
+						if (cachingStream.readToEnd()) {
+							cache.store(request.URL, response, cachingStream.TempBody, null);
+						} else {
+							cachingStream.TempBody.delete();
+						}
+					} else if (request instanceof FileRequest && cache != null) {
+						cache.store(request.URL, response, null, ((FileRequest)request).OutFile);
+					}
+					success = true;
 				} finally {
+					if (!success) {
+						// do not read the rest of a failed download to reuse the connection
+						httpRequest.abort();
+					}
 					stream.close();
+					if (!success && stream instanceof CachingInputStream) {
+						((CachingInputStream)stream).TempBody.delete();
+					}
 				}
-				success = true;
 			} else {
 				if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
 					throw new ZLNetworkException(ZLNetworkException.ERROR_AUTHENTICATION_FAILED);
@@ -369,6 +649,9 @@ public class ZLNetworkManager {
 		} catch (ZLNetworkException e) {
 			throw e;
 		} catch (IOException e) {
+			if (request.isCancelled()) {
+				throw new ZLNetworkException(ZLNetworkException.ERROR_TIMEOUT, e);
+			}
 			e.printStackTrace();
 			final String code;
 			if (e instanceof UnknownHostException) {
@@ -381,10 +664,9 @@ public class ZLNetworkManager {
 			e.printStackTrace();
 			throw new ZLNetworkException(true, e.getMessage(), e);
 		} finally {
+			request.setHttpRequest(null);
 			request.doAfter(success);
-			if (httpClient != null) {
-				httpClient.getConnectionManager().shutdown();
-			}
+			// consuming the entity returns the connection to the pool
 			if (entity != null) {
 				try {
 					entity.consumeContent();
@@ -394,6 +676,24 @@ public class ZLNetworkManager {
 		}
 	}
 
+	private final ThreadPoolExecutor myBatchExecutor = new ThreadPoolExecutor(
+		0, MAX_BATCH_THREADS, 60, TimeUnit.SECONDS,
+		new SynchronousQueue<Runnable>(),
+		new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "Network.batch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}
+	);
+
+	/**
+	 * Performs requests concurrently, at most MAX_CONCURRENT_REQUESTS at a time.
+	 * The calling thread takes part, so a batch never waits for a free pool thread.
+	 * Every request is performed even if others fail; distinct error messages
+	 * are joined into one exception.
+	 */
 	public void perform(List<ZLNetworkRequest> requests) throws ZLNetworkException {
 		if (requests.size() == 0) {
 			return;
@@ -402,12 +702,57 @@ public class ZLNetworkManager {
 			perform(requests.get(0));
 			return;
 		}
-		HashSet<String> errors = new HashSet<String>();
-		// TODO: implement concurrent execution !!!
-		for (ZLNetworkRequest r: requests) {
+
+		final List<ZLNetworkRequest> list = new ArrayList<ZLNetworkRequest>(requests);
+		final ZLNetworkException[] exceptions = new ZLNetworkException[list.size()];
+		final AtomicInteger nextIndex = new AtomicInteger();
+		final Runnable worker = new Runnable() {
+			public void run() {
+				for (int i = nextIndex.getAndIncrement(); i < exceptions.length; i = nextIndex.getAndIncrement()) {
+					try {
+						perform(list.get(i));
+					} catch (ZLNetworkException e) {
+						exceptions[i] = e;
+					}
+				}
+			}
+		};
+
+		final int helpersNumber = Math.min(MAX_CONCURRENT_REQUESTS, list.size()) - 1;
+		final CountDownLatch helpersDone = new CountDownLatch(helpersNumber);
+		for (int i = 0; i < helpersNumber; ++i) {
 			try {
-				perform(r);
-			} catch (ZLNetworkException e) {
+				myBatchExecutor.execute(new Runnable() {
+					public void run() {
+						try {
+							worker.run();
+						} finally {
+							helpersDone.countDown();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// all batch threads are busy; the calling thread does the rest
+				helpersDone.countDown();
+			}
+		}
+		worker.run();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				helpersDone.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		final LinkedHashSet<String> errors = new LinkedHashSet<String>();
+		for (ZLNetworkException e : exceptions) {
+			if (e != null) {
 				e.printStackTrace();
 				errors.add(e.getMessage());
 			}
@@ -429,7 +774,7 @@ public class ZLNetworkManager {
 	}
 
 	public final void downloadToFile(String url, final File outFile, final int bufferSize) throws ZLNetworkException {
-		perform(new ZLNetworkRequest(url) {
+		perform(new FileRequest(url, outFile) {
 			public void handleStream(InputStream inputStream, int length) throws IOException, ZLNetworkException {
 				OutputStream outStream = new FileOutputStream(outFile);
 				try {
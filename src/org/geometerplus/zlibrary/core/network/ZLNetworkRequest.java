@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.HashMap;
 
+import org.apache.http.client.methods.HttpUriRequest;
+
 import org.geometerplus.zlibrary.core.util.MimeType;
 
 public abstract class ZLNetworkRequest {
@@ -65,6 +67,54 @@ public abstract class ZLNetworkRequest {
 		return myIsQuiet;
 	}
 
+	/**
+	 * @return true if a response to this GET request may be stored in
+	 *         and served from the network cache
+	 */
+	public boolean isCacheable() {
+		return false;
+	}
+
+	private volatile boolean myIsServedFromCache;
+
+	/**
+	 * @return true if the last perform() got the body from the cache,
+	 *         fresh or revalidated by the server
+	 */
+	public boolean isServedFromCache() {
+		return myIsServedFromCache;
+	}
+
+	void setServedFromCache(boolean fromCache) {
+		myIsServedFromCache = fromCache;
+	}
+
+	private volatile boolean myIsCancelled;
+	private volatile HttpUriRequest myHttpRequest;
+
+	/**
+	 * May be called from any thread: a running perform() fails as soon as
+	 * possible, a later one fails without connecting.
+	 */
+	public void cancel() {
+		myIsCancelled = true;
+		final HttpUriRequest httpRequest = myHttpRequest;
+		if (httpRequest != null) {
+			httpRequest.abort();
+		}
+	}
+
+	public boolean isCancelled() {
+		return myIsCancelled;
+	}
+
+	void setHttpRequest(HttpUriRequest httpRequest) {
+		myHttpRequest = httpRequest;
+		if (httpRequest != null && myIsCancelled) {
+			httpRequest.abort();
+		}
+	}
+
 	public void doBefore() throws ZLNetworkException {
 	}
 	
@@ -71,7 +71,7 @@ final class DummyPaintContext extends ZLPaintContext {
 	}
 	
 	@Override
-	public int getStringWidth(char[] string, int offset, int length) {
+	protected int getStringWidthInternal(char[] string, int offset, int length) {
 		return 1;
 	}
 
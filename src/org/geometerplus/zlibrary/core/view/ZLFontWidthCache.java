@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.core.view;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Char advance tables for one font, shared by all paint contexts.
+ * Tables are filled by blocks of 256 chars and cover scripts that are
+ * measured char by char (Latin, Greek, Cyrillic, punctuation); strings
+ * with other chars are measured by the paint context.
+ */
+public final class ZLFontWidthCache {
+	private static final class Key {
+		final Class<?> ContextClass;
+		final String Family;
+		final int Size;
+		final boolean Bold;
+		final boolean Italic;
+		final int Flags;
+
+		Key(Class<?> contextClass, String family, int size, boolean bold, boolean italic, int flags) {
+			ContextClass = contextClass;
+			Family = family;
+			Size = size;
+			Bold = bold;
+			Italic = italic;
+			Flags = flags;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other == this) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			final Key k = (Key)other;
+			return
+				ContextClass == k.ContextClass &&
+				Family.equals(k.Family) &&
+				Size == k.Size &&
+				Bold == k.Bold &&
+				Italic == k.Italic &&
+				Flags == k.Flags;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((Family.hashCode() * 31 + Size) * 31 + Flags) * 4 +
+				(Bold ? 2 : 0) + (Italic ? 1 : 0);
+		}
+	}
+
+	private static final HashMap<Key,ZLFontWidthCache> ourCaches =
+		new HashMap<Key,ZLFontWidthCache>();
+	private static final AtomicInteger ourNextId = new AtomicInteger();
+
+	private static final AtomicLong ourHits = new AtomicLong();
+	private static final AtomicLong ourMisses = new AtomicLong();
+
+	static synchronized ZLFontWidthCache get(Class<?> contextClass, String family, int size, boolean bold, boolean italic, int flags) {
+		final Key key = new Key(contextClass, family, size, bold, italic, flags);
+		ZLFontWidthCache cache = ourCaches.get(key);
+		if (cache == null) {
+			cache = new ZLFontWidthCache();
+			ourCaches.put(key, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Drops all the tables; to be called when font files change.
+	 */
+	public static void clear() {
+		synchronized (ZLFontWidthCache.class) {
+			ourCaches.clear();
+		}
+	}
+
+	public static long hits() {
+		return ourHits.get();
+	}
+
+	public static long misses() {
+		return ourMisses.get();
+	}
+
+	public static String statistics() {
+		final long hits = ourHits.get();
+		final long total = hits + ourMisses.get();
+		return String.format(
+			"%d of %d widths from tables (%.1f%%)",
+			hits, total, total > 0 ? 100.0 * hits / total : 0.0
+		);
+	}
+
+	private static final int BLOCKS_NUMBER = 0x21;
+
+	private static boolean isTabulated(char c) {
+		switch (c >> 8) {
+			case 0x00:
+				return c >= 0x20 && (c < 0x7F || c >= 0xA0);
+			case 0x01:
+			case 0x02:
+			case 0x1E:
+				return true;
+			case 0x03:
+				// combining diacritical marks
+				return c >= 0x370;
+			case 0x04:
+				// combining Cyrillic marks
+				return c < 0x483 || c > 0x489;
+			case 0x05:
+				return c < 0x530;
+			case 0x20:
+				// zero-width and directional formatting chars, combining marks for symbols
+				return
+					(c < 0x200B || c > 0x200F) &&
+					(c < 0x2028 || c > 0x202E) &&
+					(c < 0x2060 || c > 0x206F) &&
+					c < 0x20D0;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Unique for font parameters; a cleared cache is replaced by one with a new id.
+	 */
+	public final int Id = ourNextId.incrementAndGet();
+
+	private final AtomicReferenceArray<float[]> myBlocks =
+		new AtomicReferenceArray<float[]>(BLOCKS_NUMBER);
+	private volatile boolean myIsUnsupported;
+
+	private ZLFontWidthCache() {
+	}
+
+	/**
+	 * @return string width, or -1 if some chars are not in the tables
+	 */
+	float getStringWidth(ZLPaintContext context, char[] string, int offset, int length) {
+		if (myIsUnsupported) {
+			ourMisses.incrementAndGet();
+			return -1;
+		}
+		float width = 0;
+		float[] block = null;
+		int blockIndex = -1;
+		for (int i = offset; i < offset + length; ++i) {
+			final char c = string[i];
+			if (!isTabulated(c)) {
+				ourMisses.incrementAndGet();
+				return -1;
+			}
+			if (c >> 8 != blockIndex) {
+				blockIndex = c >> 8;
+				block = block(context, blockIndex);
+				if (block == null) {
+					ourMisses.incrementAndGet();
+					return -1;
+				}
+			}
+			width += block[c & 0xFF];
+		}
+		ourHits.incrementAndGet();
+		return width;
+	}
+
+	private float[] block(ZLPaintContext context, int index) {
+		float[] block = myBlocks.get(index);
+		if (block == null) {
+			final char[] chars = new char[256];
+			for (int i = 0; i < 256; ++i) {
+				final char c = (char)((index << 8) + i);
+				chars[i] = isTabulated(c) ? c : ' ';
+			}
+			block = new float[256];
+			if (!context.getCharWidthsInternal(chars, block)) {
+				myIsUnsupported = true;
+				return null;
+			}
+			myBlocks.set(index, block);
+		}
+		return block;
+	}
+}
@@ -75,6 +75,7 @@ abstract public class ZLPaintContext {
 		if (myResetFont) {
 			myResetFont = false;
 			setFontInternal(myFontFamily, size, bold, italic, underline, strikeThrough);
+			myWidthCache = null;
 			mySpaceWidth = -1;
 			myStringHeight = -1;
 			myDescent = -1;
@@ -95,10 +96,48 @@ abstract public class ZLPaintContext {
 	abstract public int getWidth();
 	abstract public int getHeight();
 	
+	private ZLFontWidthCache myWidthCache;
+	private ZLFontWidthCache widthCache() {
+		ZLFontWidthCache cache = myWidthCache;
+		if (cache == null) {
+			cache = ZLFontWidthCache.get(
+				getClass(), myFontFamily, myFontSize, myFontIsBold, myFontIsItalic, getTextFlags()
+			);
+			myWidthCache = cache;
+		}
+		return cache;
+	}
+
+	/**
+	 * Identifies current font for width caching.
+	 */
+	public final int getFontId() {
+		return widthCache().Id;
+	}
+
 	public final int getStringWidth(String string) {
 		return getStringWidth(string.toCharArray(), 0, string.length());
 	}
-	abstract public int getStringWidth(char[] string, int offset, int length);
+	public final int getStringWidth(char[] string, int offset, int length) {
+		final float width = widthCache().getStringWidth(this, string, offset, length);
+		return width >= 0 ? (int)(width + 0.5f) : getStringWidthInternal(string, offset, length);
+	}
+	abstract protected int getStringWidthInternal(char[] string, int offset, int length);
+
+	/**
+	 * Fills advances of chars measured one by one, consistent with
+	 * getStringWidthInternal; returns false if such advances cannot be summed.
+	 */
+	protected boolean getCharWidthsInternal(char[] chars, float[] widths) {
+		return false;
+	}
+
+	/**
+	 * Rendering flags that change text widths; a part of width cache key.
+	 */
+	protected int getTextFlags() {
+		return 0;
+	}
 
 	private int mySpaceWidth = -1;
 	public final int getSpaceWidth() {
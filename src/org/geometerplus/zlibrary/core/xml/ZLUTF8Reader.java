@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.core.xml;
+
+import java.io.*;
+
+// decodes UTF-8 straight into the caller's char buffer;
+// malformed sequences are replaced with U+FFFD
+final class ZLUTF8Reader extends Reader {
+	private static final char REPLACEMENT = '\uFFFD';
+
+	private final InputStream myStream;
+	private final byte[] myBytes;
+	private int myStart;
+	private int myEnd;
+	private boolean myEOF;
+	private char myPendingLowSurrogate;
+
+	// buffer is owned by the reader; bytes [start, end) are already read from stream
+	ZLUTF8Reader(InputStream stream, byte[] buffer, int start, int end) {
+		myStream = stream;
+		myBytes = buffer;
+		myStart = start;
+		myEnd = end;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			final int count = decode(cbuf, off, len);
+			if (count > 0) {
+				return count;
+			}
+			if (myEOF) {
+				if (myStart == myEnd) {
+					return -1;
+				}
+				// truncated sequence at the end of stream
+				++myStart;
+				cbuf[off] = REPLACEMENT;
+				return 1;
+			}
+			fill();
+		}
+	}
+
+	private void fill() throws IOException {
+		final byte[] bytes = myBytes;
+		if (myStart > 0) {
+			final int left = myEnd - myStart;
+			System.arraycopy(bytes, myStart, bytes, 0, left);
+			myStart = 0;
+			myEnd = left;
+		}
+		final int count = myStream.read(bytes, myEnd, bytes.length - myEnd);
+		if (count < 0) {
+			myEOF = true;
+		} else {
+			myEnd += count;
+		}
+	}
+
+	private int decode(char[] cbuf, int off, int len) {
+		final byte[] bytes = myBytes;
+		final int end = myEnd;
+		final int limit = off + len;
+		int i = myStart;
+		int o = off;
+
+		if (myPendingLowSurrogate != 0) {
+			cbuf[o++] = myPendingLowSurrogate;
+			myPendingLowSurrogate = 0;
+		}
+
+		while (o < limit && i < end) {
+			final int b0 = bytes[i];
+			if (b0 >= 0) {
+				cbuf[o++] = (char)b0;
+				++i;
+				continue;
+			}
+
+			final int length;
+			int code;
+			if ((b0 & 0xE0) == 0xC0) {
+				length = 2;
+				code = b0 & 0x1F;
+			} else if ((b0 & 0xF0) == 0xE0) {
+				length = 3;
+				code = b0 & 0x0F;
+			} else if ((b0 & 0xF8) == 0xF0) {
+				length = 4;
+				code = b0 & 0x07;
+			} else {
+				cbuf[o++] = REPLACEMENT;
+				++i;
+				continue;
+			}
+			if (i + length > end) {
+				// sequence is split by the buffer end; read() refills
+				// the buffer or reports the truncated tail
+				break;
+			}
+			boolean malformed = false;
+			for (int j = 1; j < length; ++j) {
+				final int b = bytes[i + j];
+				if ((b & 0xC0) != 0x80) {
+					malformed = true;
+					break;
+				}
+				code = (code << 6) | (b & 0x3F);
+			}
+			if (malformed) {
+				cbuf[o++] = REPLACEMENT;
+				++i;
+				continue;
+			}
+			i += length;
+			if (code < 0x10000) {
+				cbuf[o++] = (char)code;
+			} else if (code <= 0x10FFFF) {
+				code -= 0x10000;
+				cbuf[o++] = (char)(0xD800 | (code >> 10));
+				final char low = (char)(0xDC00 | (code & 0x3FF));
+				if (o < limit) {
+					cbuf[o++] = low;
+				} else {
+					myPendingLowSurrogate = low;
+				}
+			} else {
+				cbuf[o++] = REPLACEMENT;
+			}
+		}
+
+		myStart = i;
+		return o - off;
+	}
+
+	@Override
+	public void close() throws IOException {
+		myStream.close();
+	}
+}
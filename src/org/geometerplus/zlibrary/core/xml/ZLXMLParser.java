@@ -67,102 +67,150 @@ final class ZLXMLParser {
 		return s;
 	}
 
+	private static String convertTagName(ZLXMLTagTable tagTable, Map<ZLMutableString,String> strings, ZLMutableString container) {
+		if (tagTable != null) {
+			final String s = tagTable.lookup(container.myData, container.myLength);
+			if (s != null) {
+				container.clear();
+				return s;
+			}
+		}
+		return convertToString(strings, container);
+	}
+
 	private final Reader myStreamReader;
 	private final ZLXMLReader myXMLReader;
 	private final boolean myProcessNamespaces;
 
-	private static HashMap<Integer,Queue<char[]>> ourBufferPool = new HashMap<Integer,Queue<char[]>>();
-	private static Queue<ZLMutableString> ourStringPool = new LinkedList<ZLMutableString>();
-
-	private static synchronized char[] getBuffer(int bufferSize) {
-		Queue<char[]> queue = ourBufferPool.get(bufferSize);
-		if (queue != null) {
-			char[] buffer = queue.poll();
-			if (buffer != null) {
-				return buffer;
-			}
-		}
-		return new char[bufferSize];
+	// per-thread parser state, reused between documents;
+	// a nested parse on the same thread gets a fresh instance
+	private static final class Pool {
+		boolean myInUse;
+		char[] myBuffer;
+		final byte[] myBytes = new byte[8192];
+		final ZLMutableString myTagName = new ZLMutableString();
+		final ZLMutableString myCData = new ZLMutableString();
+		final ZLMutableString myAttributeName = new ZLMutableString();
+		final ZLMutableString myAttributeValue = new ZLMutableString();
+		final ZLMutableString myEntityName = new ZLMutableString();
+		final ZLStringMap myAttributes = new ZLStringMap();
+		final HashMap<ZLMutableString,String> myStrings = new HashMap<ZLMutableString,String>();
 	}
 
-	private static synchronized void storeBuffer(char[] buffer) {
-		Queue<char[]> queue = ourBufferPool.get(buffer.length);
-		if (queue == null) {
-			queue = new LinkedList<char[]>();
-			ourBufferPool.put(buffer.length, queue);
-		}
-		queue.add(buffer);
-	}
+	// keeps tag & attribute names between documents, but not an unbounded set of values
+	private static final int STRINGS_LIMIT = 4096;
 
-	private static synchronized ZLMutableString getMutableString() {
-		ZLMutableString string = ourStringPool.poll();
-		return (string != null) ? string : new ZLMutableString();
-	}
+	private static final ThreadLocal<Pool> ourPool = new ThreadLocal<Pool>();
 
-	private static synchronized void storeString(ZLMutableString string) {
-		ourStringPool.add(string);
+	private static Pool acquirePool(int bufferSize) {
+		Pool pool = ourPool.get();
+		if (pool == null) {
+			pool = new Pool();
+			ourPool.set(pool);
+		} else if (pool.myInUse) {
+			pool = new Pool();
+		}
+		pool.myInUse = true;
+		if (pool.myBuffer == null || pool.myBuffer.length != bufferSize) {
+			pool.myBuffer = new char[bufferSize];
+		}
+		return pool;
 	}
 
+	private final Pool myPool;
 	private final char[] myBuffer;
-	private int myBufferDescriptionLength;
-	private final ZLMutableString myTagName = getMutableString();
-	private final ZLMutableString myCData = getMutableString();
-	private final ZLMutableString myAttributeName = getMutableString();
-	private final ZLMutableString myAttributeValue = getMutableString();
-	private final ZLMutableString myEntityName = getMutableString();
 
 	void finish() {
-		storeBuffer(myBuffer);
-		storeString(myTagName);
-		storeString(myAttributeName);
-		storeString(myAttributeValue);
-		storeString(myEntityName);
+		final Pool pool = myPool;
+		pool.myTagName.clear();
+		pool.myCData.clear();
+		pool.myAttributeName.clear();
+		pool.myAttributeValue.clear();
+		pool.myEntityName.clear();
+		pool.myAttributes.clear();
+		if (pool.myStrings.size() > STRINGS_LIMIT) {
+			pool.myStrings.clear();
+		}
+		pool.myInUse = false;
 	}
 
 	ZLXMLParser(ZLXMLReader xmlReader, Reader reader, int bufferSize) throws IOException {
 		myXMLReader = xmlReader;
 		myProcessNamespaces = xmlReader.processNamespaces();
-		myBuffer = getBuffer(bufferSize);
-		myBufferDescriptionLength = 0;
+		myPool = acquirePool(bufferSize);
+		myBuffer = myPool.myBuffer;
 		myStreamReader = reader;
 	}
 
 	ZLXMLParser(ZLXMLReader xmlReader, InputStream stream, int bufferSize) throws IOException {
 		myXMLReader = xmlReader;
 		myProcessNamespaces = xmlReader.processNamespaces();
+		myPool = acquirePool(bufferSize);
+		myBuffer = myPool.myBuffer;
 
-		String encoding = "utf-8";
-		final char[] buffer = getBuffer(bufferSize);
-		myBuffer = buffer;
-		boolean found = false;
-		int len = 0;
-		while (len < 256) {
-			char c = (char)stream.read();
-			buffer[len++] = c;
-			if (c == '>') {
-				found = true;
-				break;
+		boolean success = false;
+		try {
+			// the XML declaration is looked for in the first 256 bytes only
+			final byte[] bytes = myPool.myBytes;
+			int len = 0;
+			while (len < 256) {
+				final int count = stream.read(bytes, len, bytes.length - len);
+				if (count <= 0) {
+					break;
+				}
+				final int oldLen = len;
+				len += count;
+				if (indexOf(bytes, oldLen, len, '>') != -1) {
+					break;
+				}
 			}
-		}
-		myBufferDescriptionLength = len;
-		if (found) {
-			final String xmlDescription = new String(buffer, 0, len).trim();
-			if (xmlDescription.startsWith("<?xml") && xmlDescription.endsWith("?>")) {
-				myBufferDescriptionLength = 0;
-				int index = xmlDescription.indexOf("encoding");
-				if (index > 0) {
-					int startIndex = xmlDescription.indexOf('"', index);
-					if (startIndex > 0) {
-						int endIndex = xmlDescription.indexOf('"', startIndex + 1);
-						if (endIndex > 0) {
-							encoding = xmlDescription.substring(startIndex + 1, endIndex);
+
+			String encoding = "utf-8";
+			int start = 0;
+			final int end = indexOf(bytes, 0, Math.min(len, 256), '>');
+			if (end != -1) {
+				final String xmlDescription = new String(bytes, 0, end + 1, "ISO-8859-1").trim();
+				final int xmlIndex = xmlDescription.indexOf("<?xml");
+				// only a byte order mark is allowed before the declaration
+				if (xmlIndex != -1 && xmlIndex <= 3 && xmlDescription.endsWith("?>")) {
+					start = end + 1;
+					int index = xmlDescription.indexOf("encoding");
+					if (index > 0) {
+						int startIndex = xmlDescription.indexOf('"', index);
+						if (startIndex > 0) {
+							int endIndex = xmlDescription.indexOf('"', startIndex + 1);
+							if (endIndex > 0) {
+								encoding = xmlDescription.substring(startIndex + 1, endIndex);
+							}
 						}
 					}
 				}
 			}
+
+			if ("utf-8".equalsIgnoreCase(encoding) || "utf8".equalsIgnoreCase(encoding)) {
+				myStreamReader = new ZLUTF8Reader(stream, bytes, start, len);
+			} else {
+				myStreamReader = new InputStreamReader(
+					new SequenceInputStream(new ByteArrayInputStream(bytes, start, len - start), stream),
+					encoding
+				);
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				// the pool is not released by finish() if the parser is not created
+				myPool.myInUse = false;
+			}
 		}
+	}
 
-		myStreamReader = new InputStreamReader(stream, encoding);
+	private static int indexOf(byte[] bytes, int start, int end, char ch) {
+		for (int i = start; i < end; ++i) {
+			if (bytes[i] == ch) {
+				return i;
+			}
+		}
+		return -1;
 	}
 
 	private static char[] getEntityValue(HashMap<String,char[]> entityMap, String name) {
@@ -217,28 +265,24 @@ final class ZLXMLParser {
 		HashMap<String,String> oldNamespaceMap = processNamespaces ? new HashMap<String,String>() : null;
 		HashMap<String,String> currentNamespaceMap = null;
 		final ArrayList<HashMap<String,String>> namespaceMapStack = new ArrayList<HashMap<String,String>>();
+		final Pool pool = myPool;
 		char[] buffer = myBuffer;
-		final ZLMutableString tagName = myTagName;
-		final ZLMutableString cData = myCData;
-		final ZLMutableString attributeName = myAttributeName;
-		final ZLMutableString attributeValue = myAttributeValue;
+		final ZLMutableString tagName = pool.myTagName;
+		final ZLMutableString cData = pool.myCData;
+		final ZLMutableString attributeName = pool.myAttributeName;
+		final ZLMutableString attributeValue = pool.myAttributeValue;
 		final boolean dontCacheAttributeValues = xmlReader.dontCacheAttributeValues();
-		final ZLMutableString entityName = myEntityName;
-		final Map<ZLMutableString,String> strings = new HashMap<ZLMutableString, String>();
-		final ZLStringMap attributes = new ZLStringMap();
+		final ZLMutableString entityName = pool.myEntityName;
+		final Map<ZLMutableString,String> strings = pool.myStrings;
+		final ZLStringMap attributes = pool.myAttributes;
+		final ZLXMLTagTable tagTable = xmlReader.tagTable();
 		String[] tagStack = new String[10];
 		int tagStackSize = 0;
 
 		byte state = START_DOCUMENT;
 		byte savedState = START_DOCUMENT;
 		while (true) {
-			int count;
-			if (myBufferDescriptionLength > 0) {
-				count = myBufferDescriptionLength;
-				myBufferDescriptionLength = 0;
-			} else {
-				count = streamReader.read(buffer);
-			}
+			int count = streamReader.read(buffer);
 			if (count <= 0) {
 				streamReader.close();
 				return;
@@ -397,7 +441,7 @@ mainSwitchLabel:
 										state = TEXT;
 										tagName.append(buffer, startPosition, i - startPosition);
 										{
-											String stringTagName = convertToString(strings, tagName);
+											String stringTagName = convertTagName(tagTable, strings, tagName);
 											if (tagStackSize == tagStack.length) {
 												tagStack = ZLArrayUtils.createCopy(tagStack, tagStackSize, tagStackSize << 1);
 											}
@@ -419,7 +463,7 @@ mainSwitchLabel:
 									case '/':
 										state = SLASH;
 										tagName.append(buffer, startPosition, i - startPosition);
-										if (processFullTag(xmlReader, convertToString(strings, tagName), attributes)) {
+										if (processFullTag(xmlReader, convertTagName(tagTable, strings, tagName), attributes)) {
 											streamReader.close();
 											return;
 										}
@@ -437,7 +481,7 @@ mainSwitchLabel:
 							switch (buffer[++i]) {
 								case '>':
 									{
-										String stringTagName = convertToString(strings, tagName);
+										String stringTagName = convertTagName(tagTable, strings, tagName);
 										if (tagStackSize == tagStack.length) {
 											tagStack = ZLArrayUtils.createCopy(tagStack, tagStackSize, tagStackSize << 1);
 										}
@@ -459,7 +503,7 @@ mainSwitchLabel:
 									break;
 								case '/':
 									state = SLASH;
-									if (processFullTag(xmlReader, convertToString(strings, tagName), attributes)) {
+									if (processFullTag(xmlReader, convertTagName(tagTable, strings, tagName), attributes)) {
 										streamReader.close();
 										return;
 									}
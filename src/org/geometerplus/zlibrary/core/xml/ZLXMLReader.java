@@ -38,4 +38,7 @@ public interface ZLXMLReader {
 
 	void collectExternalEntities(HashMap<String,char[]> entityMap);
 	List<String> externalDTDs();
+
+	// tag names known in advance, or null; see ZLXMLTagTable
+	ZLXMLTagTable tagTable();
 }
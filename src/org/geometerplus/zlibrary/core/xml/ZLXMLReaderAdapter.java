@@ -160,4 +160,8 @@ public abstract class ZLXMLReaderAdapter implements ZLXMLReader {
 	public List<String> externalDTDs() {
 		return Collections.emptyList();
 	}
+
+	public ZLXMLTagTable tagTable() {
+		return null;
+	}
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.core.xml;
+
+import java.util.*;
+
+// immutable symbol table of tag names known to a reader;
+// the parser hands out the registered (interned) name instances,
+// readers map them to int ids without string comparison
+public final class ZLXMLTagTable {
+	public static final class Builder {
+		private final LinkedHashMap<String,Integer> myIds =
+			new LinkedHashMap<String,Integer>();
+
+		public Builder add(String name, int id) {
+			myIds.put(name.intern(), id);
+			return this;
+		}
+
+		public ZLXMLTagTable build() {
+			return new ZLXMLTagTable(myIds);
+		}
+	}
+
+	private final String[] myNames;
+	private final int[] myIds;
+	private final int myMask;
+
+	private ZLXMLTagTable(Map<String,Integer> ids) {
+		int capacity = 16;
+		while (capacity < ids.size() * 3) {
+			capacity <<= 1;
+		}
+		myNames = new String[capacity];
+		myIds = new int[capacity];
+		myMask = capacity - 1;
+		for (Map.Entry<String,Integer> entry : ids.entrySet()) {
+			final String name = entry.getKey();
+			int index = name.hashCode() & myMask;
+			while (myNames[index] != null) {
+				index = (index + 1) & myMask;
+			}
+			myNames[index] = name;
+			myIds[index] = entry.getValue();
+		}
+	}
+
+	/*
+	 * Returns the id registered for tag name, or -1.
+	 * Names coming from the parser are registered instances, so the
+	 * identity check succeeds on the first probe in most cases.
+	 */
+	public int getId(String name) {
+		final String[] names = myNames;
+		for (int index = name.hashCode() & myMask; ; index = (index + 1) & myMask) {
+			final String candidate = names[index];
+			if (candidate == null) {
+				return -1;
+			}
+			if (candidate == name || candidate.equals(name)) {
+				return myIds[index];
+			}
+		}
+	}
+
+	// same hash as String.hashCode(), computed over the parser buffer
+	String lookup(char[] data, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; ++i) {
+			hash = 31 * hash + data[i];
+		}
+		final String[] names = myNames;
+		for (int index = hash & myMask; ; index = (index + 1) & myMask) {
+			final String candidate = names[index];
+			if (candidate == null) {
+				return null;
+			}
+			if (candidate.length() == length && matches(candidate, data, length)) {
+				return candidate;
+			}
+		}
+	}
+
+	private static boolean matches(String name, char[] data, int length) {
+		for (int i = 0; i < length; ++i) {
+			if (name.charAt(i) != data[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.hyphenation;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * TeX hyphenation patterns compiled into a flat trie. Node n owns the edges
+ * myEdgeStart[n] .. myEdgeStart[n + 1] - 1, sorted by character; if a pattern
+ * ends in node n, its depth + 1 values start at myValues[myValueOffsets[n]].
+ */
+final class ZLTextHyphenationTrie {
+	private static final int FORMAT_VERSION = 1;
+
+	private final int[] myEdgeStart;
+	private final char[] myEdgeChars;
+	private final int[] myEdgeTargets;
+	private final int[] myValueOffsets;
+	private final byte[] myValues;
+
+	private ZLTextHyphenationTrie(int[] edgeStart, char[] edgeChars, int[] edgeTargets, int[] valueOffsets, byte[] values) {
+		myEdgeStart = edgeStart;
+		myEdgeChars = edgeChars;
+		myEdgeTargets = edgeTargets;
+		myValueOffsets = valueOffsets;
+		myValues = values;
+	}
+
+	boolean isEmpty() {
+		return myEdgeStart[1] == 0;
+	}
+
+	private int child(int node, char symbol) {
+		final char[] chars = myEdgeChars;
+		int low = myEdgeStart[node];
+		int high = myEdgeStart[node + 1] - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final char c = chars[mid];
+			if (c < symbol) {
+				low = mid + 1;
+			} else if (c > symbol) {
+				high = mid - 1;
+			} else {
+				return myEdgeTargets[mid];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Applies all patterns matching substrings of word[0 .. length - 1];
+	 * values must have at least length + 1 elements, all zeroes.
+	 */
+	void apply(char[] word, int length, byte[] values) {
+		final int[] valueOffsets = myValueOffsets;
+		final byte[] patternValues = myValues;
+		for (int offset = 0; offset < length - 1; ++offset) {
+			int node = 0;
+			for (int k = offset; k < length; ++k) {
+				node = child(node, word[k]);
+				if (node == -1) {
+					break;
+				}
+				final int valueOffset = valueOffsets[node];
+				if (valueOffset != -1) {
+					for (int i = 0, j = offset; i <= k - offset + 1; ++i, ++j) {
+						final byte val = patternValues[valueOffset + i];
+						if (values[j] < val) {
+							values[j] = val;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	void write(DataOutputStream stream) throws IOException {
+		stream.writeInt(FORMAT_VERSION);
+		final int nodes = myValueOffsets.length;
+		final int edges = myEdgeChars.length;
+		stream.writeInt(nodes);
+		stream.writeInt(edges);
+		stream.writeInt(myValues.length);
+		for (int i = 0; i <= nodes; ++i) {
+			stream.writeInt(myEdgeStart[i]);
+		}
+		for (int i = 0; i < edges; ++i) {
+			stream.writeChar(myEdgeChars[i]);
+			stream.writeInt(myEdgeTargets[i]);
+		}
+		for (int i = 0; i < nodes; ++i) {
+			stream.writeInt(myValueOffsets[i]);
+		}
+		stream.write(myValues);
+	}
+
+	static ZLTextHyphenationTrie read(DataInputStream stream) throws IOException {
+		if (stream.readInt() != FORMAT_VERSION) {
+			throw new IOException("Unsupported hyphenation trie version");
+		}
+		final int nodes = stream.readInt();
+		final int edges = stream.readInt();
+		final int valuesLength = stream.readInt();
+		if (nodes <= 0 || edges < 0 || valuesLength < 0) {
+			throw new IOException("Corrupted hyphenation trie");
+		}
+		final int[] edgeStart = new int[nodes + 1];
+		final char[] edgeChars = new char[edges];
+		final int[] edgeTargets = new int[edges];
+		final int[] valueOffsets = new int[nodes];
+		final byte[] values = new byte[valuesLength];
+		for (int i = 0; i <= nodes; ++i) {
+			edgeStart[i] = stream.readInt();
+		}
+		for (int i = 0; i < edges; ++i) {
+			edgeChars[i] = stream.readChar();
+			edgeTargets[i] = stream.readInt();
+		}
+		for (int i = 0; i < nodes; ++i) {
+			valueOffsets[i] = stream.readInt();
+		}
+		stream.readFully(values);
+		return new ZLTextHyphenationTrie(edgeStart, edgeChars, edgeTargets, valueOffsets, values);
+	}
+
+	static final class Builder {
+		private static final class Node {
+			final TreeMap<Character,Node> Children = new TreeMap<Character,Node>();
+			byte[] Values;
+		}
+
+		private final Node myRoot = new Node();
+		private int myNodesNumber = 1;
+		private int myValuesLength;
+
+		void addPattern(ZLTextTeXHyphenationPattern pattern) {
+			final char[] symbols = pattern.getSymbols();
+			final int length = pattern.getLength();
+			Node node = myRoot;
+			for (int i = 0; i < length; ++i) {
+				Node child = node.Children.get(symbols[i]);
+				if (child == null) {
+					child = new Node();
+					node.Children.put(symbols[i], child);
+					++myNodesNumber;
+				}
+				node = child;
+			}
+			if (node.Values == null) {
+				myValuesLength += length + 1;
+			}
+			// same as HashMap.put: the last definition of a pattern wins
+			node.Values = pattern.getValues();
+		}
+
+		ZLTextHyphenationTrie build() {
+			final int nodes = myNodesNumber;
+			final int[] edgeStart = new int[nodes + 1];
+			final char[] edgeChars = new char[nodes - 1];
+			final int[] edgeTargets = new int[nodes - 1];
+			final int[] valueOffsets = new int[nodes];
+			final byte[] values = new byte[myValuesLength];
+
+			// breadth-first numbering: children of a node get consecutive numbers
+			final ArrayList<Node> queue = new ArrayList<Node>(nodes);
+			queue.add(myRoot);
+			int edge = 0;
+			int valueOffset = 0;
+			for (int n = 0; n < queue.size(); ++n) {
+				final Node node = queue.get(n);
+				edgeStart[n] = edge;
+				for (Map.Entry<Character,Node> entry : node.Children.entrySet()) {
+					edgeChars[edge] = entry.getKey();
+					edgeTargets[edge] = queue.size();
+					queue.add(entry.getValue());
+					++edge;
+				}
+				if (node.Values != null) {
+					valueOffsets[n] = valueOffset;
+					System.arraycopy(node.Values, 0, values, valueOffset, node.Values.length);
+					valueOffset += node.Values.length;
+				} else {
+					valueOffsets[n] = -1;
+				}
+			}
+			edgeStart[nodes] = edge;
+			return new ZLTextHyphenationTrie(edgeStart, edgeChars, edgeTargets, valueOffsets, values);
+		}
+	}
+}
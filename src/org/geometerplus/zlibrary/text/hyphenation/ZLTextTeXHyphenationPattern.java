@@ -25,15 +25,6 @@ public final class ZLTextTeXHyphenationPattern {
 	private final byte[] myValues;
 	int myHashCode;
 
-	void update(char[] pattern, int offset, int length) {
-		// We assert
-		// 		1. this pattern doesn't use values
-		// 		length <= original pattern length
-		System.arraycopy(pattern, offset, mySymbols, 0, length);
-		myLength = length;
-		myHashCode = 0;
-	}
-
 	public ZLTextTeXHyphenationPattern(char[] pattern, int offset, int length, boolean useValues) {
 		if (useValues) {
 			int patternLength = 0;
@@ -68,17 +59,6 @@ public final class ZLTextTeXHyphenationPattern {
 		}
 	}
 
-	void apply(byte[] mask, int position) {
-		final int patternLength = myLength;
-		final byte[] values = myValues;
-		for (int i = 0, j = position; i <= patternLength; ++i, ++j) {
-			final byte val = values[i];
-			if (mask[j] < val) {
-				mask[j] = val;
-			}
-		}
-	}
-
 	public boolean equals(Object o) {
 		ZLTextTeXHyphenationPattern pattern = (ZLTextTeXHyphenationPattern)o;
 		int len = myLength;
@@ -19,21 +19,46 @@
 
 package org.geometerplus.zlibrary.text.hyphenation;
 
+import java.io.*;
 import java.util.*;
 
 import org.geometerplus.zlibrary.core.language.ZLLanguageUtil;
+import org.geometerplus.zlibrary.core.library.ZLibrary;
 import org.geometerplus.zlibrary.core.filesystem.ZLFile;
 import org.geometerplus.zlibrary.core.filesystem.ZLResourceFile;
 
+import org.geometerplus.fbreader.Paths;
+
 final class ZLTextTeXHyphenator extends ZLTextHyphenator {
-	private final HashMap<ZLTextTeXHyphenationPattern,ZLTextTeXHyphenationPattern> myPatternTable =
-		new HashMap<ZLTextTeXHyphenationPattern,ZLTextTeXHyphenationPattern>();
-	private String myLanguage;
+	private static final int LANGUAGES_CACHE_SIZE = 3;
+	private static final int WORDS_CACHE_SIZE = 2048;
+
+	private static final class LanguageData {
+		final ZLTextHyphenationTrie Trie;
+		final LinkedHashMap<String,boolean[]> Words =
+			new LinkedHashMap<String,boolean[]>(WORDS_CACHE_SIZE, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,boolean[]> eldest) {
+					return size() > WORDS_CACHE_SIZE;
+				}
+			};
 
-	void addPattern(ZLTextTeXHyphenationPattern pattern) {
-		myPatternTable.put(pattern, pattern);
+		LanguageData(ZLTextHyphenationTrie trie) {
+			Trie = trie;
+		}
 	}
 
+	private final LinkedHashMap<String,LanguageData> myLanguages =
+		new LinkedHashMap<String,LanguageData>(LANGUAGES_CACHE_SIZE, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,LanguageData> eldest) {
+				return size() > LANGUAGES_CACHE_SIZE;
+			}
+		};
+	private String myLanguage;
+	private LanguageData myData;
+	private byte[] myValues = new byte[32];
+
 	private List<String> myLanguageCodes;
 	public List<String> languageCodes() {
 		if (myLanguageCodes == null) {
@@ -53,7 +78,7 @@ final class ZLTextTeXHyphenator extends ZLTextHyphenator {
 		return Collections.unmodifiableList(myLanguageCodes);
 	}
 
-	public void load(String language) {
+	public synchronized void load(String language) {
 		if (language == null || ZLLanguageUtil.OTHER_LANGUAGE_CODE.equals(language)) {
 			language = ZLLanguageUtil.defaultLanguageCode();
 		}
@@ -61,48 +86,108 @@ final class ZLTextTeXHyphenator extends ZLTextHyphenator {
 			return;
 		}
 		myLanguage = language;
-		unload();
 
-		if (language != null) {
-			new ZLTextHyphenationReader(this).readQuietly(ZLResourceFile.createResourceFile(
-				"hyphenationPatterns/" + language + ".pattern"
-			));
+		LanguageData data = myLanguages.get(language);
+		if (data == null) {
+			data = new LanguageData(loadTrie(language));
+			myLanguages.put(language, data);
+		}
+		myData = data;
+	}
+
+	private static File compiledFile(String language) {
+		return new File(
+			Paths.cacheDirectory() + "/hyphenation/" + language + "-" +
+			ZLibrary.Instance().getVersionName() + ".trie"
+		);
+	}
+
+	private static ZLTextHyphenationTrie loadTrie(String language) {
+		final File compiled = compiledFile(language);
+		if (compiled.exists()) {
+			DataInputStream stream = null;
+			try {
+				stream = new DataInputStream(new BufferedInputStream(new FileInputStream(compiled)));
+				return ZLTextHyphenationTrie.read(stream);
+			} catch (IOException e) {
+				compiled.delete();
+			} finally {
+				close(stream);
+			}
+		}
+
+		final ZLTextHyphenationTrie.Builder builder = new ZLTextHyphenationTrie.Builder();
+		new ZLTextHyphenationReader(builder).readQuietly(ZLResourceFile.createResourceFile(
+			"hyphenationPatterns/" + language + ".pattern"
+		));
+		final ZLTextHyphenationTrie trie = builder.build();
+
+		if (!trie.isEmpty()) {
+			compiled.getParentFile().mkdirs();
+			final File tmp = new File(compiled.getPath() + ".tmp");
+			DataOutputStream stream = null;
+			try {
+				stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+				trie.write(stream);
+				stream.close();
+				stream = null;
+				tmp.renameTo(compiled);
+			} catch (IOException e) {
+				tmp.delete();
+			} finally {
+				close(stream);
+			}
+		}
+		return trie;
+	}
+
+	private static void close(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+			}
 		}
 	}
 
-	public void unload() {
-		myPatternTable.clear();
+	public synchronized void unload() {
+		myLanguages.clear();
+		myLanguage = null;
+		myData = null;
 	}
 
-	public void hyphenate(char[] stringToHyphenate, boolean[] mask, int length) {
-		if (myPatternTable.isEmpty()) {
+	public synchronized void hyphenate(char[] stringToHyphenate, boolean[] mask, int length) {
+		final LanguageData data = myData;
+		if (data == null || data.Trie.isEmpty()) {
 			for (int i = 0; i < length - 1; i++) {
 				mask[i] = false;
 			}
 			return;
 		}
 
-		byte[] values = new byte[length + 1];
-
-		final HashMap<ZLTextTeXHyphenationPattern,ZLTextTeXHyphenationPattern> table = myPatternTable;
-		ZLTextTeXHyphenationPattern pattern =
-			new ZLTextTeXHyphenationPattern(stringToHyphenate, 0, length, false);
-		for (int offset = 0; offset < length - 1; offset++) {
-			int len = length - offset + 1;
-			pattern.update(stringToHyphenate, offset, len - 1);
-			while (--len > 0) {
-				pattern.myLength = len;
-				pattern.myHashCode = 0;
-				ZLTextTeXHyphenationPattern toApply =
-					(ZLTextTeXHyphenationPattern)table.get(pattern);
-				if (toApply != null) {
-					toApply.apply(values, offset);
-				}
-			}
+		final String key = new String(stringToHyphenate, 0, length);
+		final boolean[] cached = data.Words.get(key);
+		if (cached != null) {
+			System.arraycopy(cached, 0, mask, 0, length - 1);
+			return;
+		}
+
+		byte[] values = myValues;
+		if (values.length < length + 1) {
+			values = new byte[length + 1];
+			myValues = values;
+		} else {
+			Arrays.fill(values, 0, length + 1, (byte)0);
 		}
- 
+
+		data.Trie.apply(stringToHyphenate, length, values);
+
 		for (int i = 0; i < length - 1; i++) {
 			mask[i] = (values[i + 1] % 2) == 1;
 		}
+
+		final boolean[] copy = new boolean[length - 1];
+		System.arraycopy(mask, 0, copy, 0, length - 1);
+		data.Words.put(key, copy);
 	}
 }
@@ -37,28 +37,28 @@ public final class CachedCharStorage extends CachedCharStorageBase {
 			blockSize = minimumLength;
 		}
 		char[] block = new char[blockSize];
-		myArray.add(new WeakReference<char[]>(block));
+		final int index;
+		synchronized (myArray) {
+			myArray.add(new WeakReference<char[]>(block));
+			index = myArray.size() - 1;
+		}
+		onBlockCreated(index);
 		return block;
 	}
 
 	public void freezeLastBlock() {
-		int index = myArray.size() - 1;
+		final int index;
+		final char[] block;
+		synchronized (myArray) {
+			index = myArray.size() - 1;
+			block = index >= 0 ? myArray.get(index).get() : null;
+		}
 		if (index >= 0) {
-			char[] block = myArray.get(index).get();
 			if (block == null) {
 				throw new CachedCharStorageException("Block reference in null during freeze");
 			}
-			try {
-				final OutputStreamWriter writer =
-					new OutputStreamWriter(
-						new FileOutputStream(fileName(index)),
-						"UTF-16LE"
-					);
-				writer.write(block);
-				writer.close();
-			} catch (IOException e) {
-				throw new CachedCharStorageException("Error during writing " + fileName(index));
-			}
+			writeBlock(fileName(index), block);
+			CharStorageCache.pin(this, index, block);
 		}
 	}
 }
@@ -21,11 +21,34 @@ package org.geometerplus.zlibrary.text.model;
 
 import java.lang.ref.WeakReference;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
 
 abstract class CachedCharStorageBase implements CharStorage {
+	private static final class LastBlock {
+		static final LastBlock NONE = new LastBlock(-1, null);
+
+
+		final int Index;
+		final char[] Data;
+
+		LastBlock(int index, char[] data) {
+			Index = index;
+			Data = data;
+		}
+	}
+
+	// guarded by itself: blocks of a growing model are added while other threads read
 	protected final ArrayList<WeakReference<char[]>> myArray =
 		new ArrayList<WeakReference<char[]>>();
+	private final BitSet myLoadedBlocks = new BitSet();
+	// a pinned block; set and dropped by CharStorageCache under its lock,
+	// so that it is always counted in the cache budget
+	private volatile LastBlock myLastBlock = LastBlock.NONE;
 
 	private final String myDirectoryName;
 	private final String myFileExtension;
@@ -39,34 +62,99 @@ abstract class CachedCharStorageBase implements CharStorage {
 		return myDirectoryName + index + myFileExtension;
 	}
 
+	protected final void onBlockCreated(int index) {
+		synchronized (myLoadedBlocks) {
+			myLoadedBlocks.set(index);
+		}
+	}
+
+	final void setLastBlock(int index, char[] block) {
+		myLastBlock = new LastBlock(index, block);
+	}
+
+	final void dropLastBlock(int index) {
+		if (myLastBlock.Index == index) {
+			myLastBlock = LastBlock.NONE;
+		}
+	}
+
 	public int size() {
-		return myArray.size();
+		synchronized (myArray) {
+			return myArray.size();
+		}
 	}
 
 	public char[] block(int index) {
-		char[] block = myArray.get(index).get();
-		if (block == null) {
+		final LastBlock last = myLastBlock;
+		if (last.Index == index) {
+			return last.Data;
+		}
+
+		char[] block;
+		synchronized (myArray) {
+			block = myArray.get(index).get();
+		}
+		if (block != null) {
+			CharStorageCache.onHit(this, index, block);
+		} else {
+			block = readBlock(index);
+			synchronized (myArray) {
+				myArray.set(index, new WeakReference<char[]>(block));
+			}
+			final boolean reload;
+			synchronized (myLoadedBlocks) {
+				reload = myLoadedBlocks.get(index);
+				myLoadedBlocks.set(index);
+			}
+			CharStorageCache.onLoad(this, index, block, reload);
+		}
+		return block;
+	}
+
+	static void writeBlock(String fileName, char[] block) {
+		try {
+			final ByteBuffer buffer =
+				ByteBuffer.allocate(2 * block.length).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.asCharBuffer().put(block);
+			final FileOutputStream stream = new FileOutputStream(fileName);
 			try {
-				File file = new File(fileName(index));
-				int size = (int)file.length();
-				if (size < 0) {
-					throw new CachedCharStorageException("Error during reading " + fileName(index));
+				final FileChannel channel = stream.getChannel();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
 				}
-				block = new char[size / 2];
-				InputStreamReader reader =
-					new InputStreamReader(
-						new FileInputStream(file),
-						"UTF-16LE"
-					);
-				if (reader.read(block) != block.length) {
-					throw new CachedCharStorageException("Error during reading " + fileName(index));
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during writing " + fileName);
+		}
+	}
+
+	private char[] readBlock(int index) {
+		final File file = new File(fileName(index));
+		final long size = file.length();
+		if (size <= 0 || size > Integer.MAX_VALUE) {
+			throw new CachedCharStorageException("Error during reading " + fileName(index));
+		}
+		FileInputStream stream = null;
+		try {
+			stream = new FileInputStream(file);
+			final CharBuffer buffer = stream.getChannel()
+				.map(FileChannel.MapMode.READ_ONLY, 0, size)
+				.order(ByteOrder.LITTLE_ENDIAN)
+				.asCharBuffer();
+			final char[] block = new char[buffer.remaining()];
+			buffer.get(block);
+			return block;
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during reading " + fileName(index));
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
 				}
-				reader.close();
-			} catch (IOException e) {
-				throw new CachedCharStorageException("Error during reading " + fileName(index));
 			}
-			myArray.set(index, new WeakReference<char[]>(block));
 		}
-		return block;
 	}
 }
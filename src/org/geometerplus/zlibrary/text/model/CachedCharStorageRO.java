@@ -19,6 +19,7 @@
 
 package org.geometerplus.zlibrary.text.model;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Collections;
 
@@ -28,6 +29,20 @@ public final class CachedCharStorageRO extends CachedCharStorageBase {
 		myArray.addAll(Collections.nCopies(blocksNumber, new WeakReference<char[]>(null)));
 	}
 
+	/**
+	 * Writes all blocks of storage into directoryName and returns
+	 * a read-only storage over the written files.
+	 */
+	public static CachedCharStorageRO copyOf(CharStorage storage, String directoryName, String fileExtension) {
+		new File(directoryName).mkdirs();
+		final int size = storage.size();
+		final CachedCharStorageRO copy = new CachedCharStorageRO(directoryName, fileExtension, size);
+		for (int i = 0; i < size; ++i) {
+			writeBlock(copy.fileName(i), storage.block(i));
+		}
+		return copy;
+	}
+
 	public char[] createNewBlock(int minimumLength) {
 		throw new UnsupportedOperationException("CachedCharStorageRO is a read-only storage.");
 	}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.util.*;
+
+/**
+ * Process-wide LRU of char storage blocks that are kept strongly reachable.
+ * Blocks outside of this cache are only weakly referenced by their storages
+ * and are re-read from the cache files after being collected.
+ * The last block used by a storage is served without locking only while it
+ * is pinned here, so the budget bounds every strongly held block.
+ */
+public abstract class CharStorageCache {
+	private static final class Key {
+		final CachedCharStorageBase Storage;
+		final int Index;
+
+		Key(CachedCharStorageBase storage, int index) {
+			Storage = storage;
+			Index = index;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other == this) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			final Key key = (Key)other;
+			return Storage == key.Storage && Index == key.Index;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(Storage) * 31 + Index;
+		}
+	}
+
+	private static final LinkedHashMap<Key,char[]> ourBlocks =
+		new LinkedHashMap<Key,char[]>(16, 0.75f, true);
+
+	private static long ourBudget = 4 * 1024 * 1024;
+	private static long ourBytesHeld;
+
+	private static long ourHits;
+	private static long ourMisses;
+	private static long ourReloads;
+
+	/**
+	 * @param bytes maximum number of bytes held by pinned blocks;
+	 * 0 disables pinning, blocks are weakly referenced only
+	 */
+	public static synchronized void setBudget(long bytes) {
+		ourBudget = Math.max(bytes, 0);
+		trim();
+	}
+
+	public static synchronized long getBudget() {
+		return ourBudget;
+	}
+
+	public static synchronized long getBytesHeld() {
+		return ourBytesHeld;
+	}
+
+	/**
+	 * @return number of block switches served without reading a file
+	 */
+	public static synchronized long getHits() {
+		return ourHits;
+	}
+
+	/**
+	 * @return number of blocks read from a file for the first time
+	 */
+	public static synchronized long getMisses() {
+		return ourMisses;
+	}
+
+	/**
+	 * @return number of blocks read again after they have been collected
+	 */
+	public static synchronized long getReloads() {
+		return ourReloads;
+	}
+
+	public static synchronized void resetStatistics() {
+		ourHits = 0;
+		ourMisses = 0;
+		ourReloads = 0;
+	}
+
+	public static synchronized void clear() {
+		for (Key key : ourBlocks.keySet()) {
+			key.Storage.dropLastBlock(key.Index);
+		}
+		ourBlocks.clear();
+		ourBytesHeld = 0;
+	}
+
+	static synchronized void onHit(CachedCharStorageBase storage, int index, char[] block) {
+		++ourHits;
+		pin(storage, index, block);
+	}
+
+	static synchronized void onLoad(CachedCharStorageBase storage, int index, char[] block, boolean reload) {
+		if (reload) {
+			++ourReloads;
+		} else {
+			++ourMisses;
+		}
+		pin(storage, index, block);
+	}
+
+	static synchronized void pin(CachedCharStorageBase storage, int index, char[] block) {
+		final long size = 2L * block.length;
+		if (size > ourBudget) {
+			return;
+		}
+		final char[] old = ourBlocks.put(new Key(storage, index), block);
+		if (old != null) {
+			ourBytesHeld -= 2L * old.length;
+		}
+		ourBytesHeld += size;
+		storage.setLastBlock(index, block);
+		trim();
+	}
+
+	private static void trim() {
+		final Iterator<Map.Entry<Key,char[]>> it = ourBlocks.entrySet().iterator();
+		while (ourBytesHeld > ourBudget && it.hasNext()) {
+			final Map.Entry<Key,char[]> entry = it.next();
+			ourBytesHeld -= 2L * entry.getValue().length;
+			entry.getKey().Storage.dropLastBlock(entry.getKey().Index);
+			it.remove();
+		}
+	}
+}
@@ -25,7 +25,10 @@ public interface ZLTextModel {
 	String getId();
 	String getLanguage();
 
+	// while the model is growing, the number of completely written paragraphs
 	int getParagraphsNumber();
+	// true while paragraphs are being appended by another thread
+	boolean isGrowing();
 	ZLTextParagraph getParagraph(int index);
 
 	void removeAllMarks();
@@ -41,4 +44,6 @@ public interface ZLTextModel {
 	int findParagraphByTextLength(int length);
 	
 	int search(final String text, int startIndex, int endIndex, boolean ignoreCase);
+	// searches in background; marks appear in getMarks() as parts of the range are done
+	ZLTextSearch startSearch(String text, int startIndex, int endIndex, boolean ignoreCase, int hintIndex, ZLTextSearch.Listener listener);
 }
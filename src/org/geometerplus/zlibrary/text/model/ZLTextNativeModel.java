@@ -19,11 +19,44 @@
 
 package org.geometerplus.zlibrary.text.model;
 
+import java.io.*;
 import java.util.Map;
 
 import org.geometerplus.zlibrary.core.image.ZLImage;
 
 public class ZLTextNativeModel extends ZLTextPlainModel {
+	public static ZLTextNativeModel readFromCache(
+		DataInputStream stream,
+		String directoryName, String fileExtension,
+		Map<String,ZLImage> imageMap
+	) throws IOException {
+		final String id = readString(stream);
+		final String language = readString(stream);
+		final int size = stream.readInt();
+		if (size < 0) {
+			throw new IOException("Invalid paragraphs number: " + size);
+		}
+		final int[] entryIndices = new int[size];
+		final int[] entryOffsets = new int[size];
+		final int[] paragraphLengths = new int[size];
+		final int[] textSizes = new int[size];
+		final byte[] paragraphKinds = new byte[size];
+		for (int i = 0; i < size; ++i) {
+			entryIndices[i] = stream.readInt();
+			entryOffsets[i] = stream.readInt();
+			paragraphLengths[i] = stream.readInt();
+			textSizes[i] = stream.readInt();
+			paragraphKinds[i] = stream.readByte();
+		}
+		final int blocksNumber = stream.readInt();
+		return new ZLTextNativeModel(
+			id, language, size,
+			entryIndices, entryOffsets, paragraphLengths, textSizes, paragraphKinds,
+			directoryName, fileExtension, blocksNumber,
+			imageMap
+		);
+	}
+
 	public ZLTextNativeModel(
 		String id, String language, int paragraphsNumber,
 		int[] entryIndices, int[] entryOffsets,
@@ -19,6 +19,7 @@
 
 package org.geometerplus.zlibrary.text.model;
 
+import java.io.*;
 import java.util.*;
 
 import org.geometerplus.zlibrary.core.image.ZLImage;
@@ -28,18 +29,27 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 	private final String myId;
 	private final String myLanguage;
 
-	protected int[] myStartEntryIndices;
-	protected int[] myStartEntryOffsets;
-	protected int[] myParagraphLengths;
-	protected int[] myTextSizes;
-	protected byte[] myParagraphKinds;
+	// volatile: a growing model replaces the arrays while other threads read it
+	protected volatile int[] myStartEntryIndices;
+	protected volatile int[] myStartEntryOffsets;
+	protected volatile int[] myParagraphLengths;
+	protected volatile int[] myTextSizes;
+	protected volatile byte[] myParagraphKinds;
 
 	protected int myParagraphsNumber;
+	// number of completely written paragraphs while the model is growing, -1 otherwise
+	private volatile int myHighWaterMark = -1;
 
 	protected final CharStorage myStorage;
 	protected final Map<String,ZLImage> myImageMap;
 
-	private ArrayList<ZLTextMark> myMarks;
+	// replaced as a whole on every change, never modified in place
+	private volatile List<ZLTextMark> myMarks;
+	private ZLTextSearch mySearch;
+
+	private File mySearchIndexFile;
+	private ZLTextSearchIndex mySearchIndex;
+	private boolean mySearchIndexIsBeingBuilt;
 
 	final class EntryIteratorImpl implements ZLTextParagraph.EntryIterator {
 		private int myCounter;
@@ -254,6 +264,43 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 		myImageMap = imageMap;
 	}
 
+	/**
+	 * Writes paragraph tables into stream and copies text blocks into directoryName;
+	 * the model can be restored by ZLTextNativeModel.readFromCache().
+	 */
+	public final void writeToCache(DataOutputStream stream, String directoryName, String fileExtension) throws IOException {
+		final CachedCharStorageRO copy;
+		try {
+			copy = CachedCharStorageRO.copyOf(myStorage, directoryName, fileExtension);
+		} catch (CachedCharStorageException e) {
+			throw new IOException(e.getMessage());
+		}
+
+		writeString(stream, myId);
+		writeString(stream, myLanguage);
+		final int size = myParagraphsNumber;
+		stream.writeInt(size);
+		for (int i = 0; i < size; ++i) {
+			stream.writeInt(myStartEntryIndices[i]);
+			stream.writeInt(myStartEntryOffsets[i]);
+			stream.writeInt(myParagraphLengths[i]);
+			stream.writeInt(myTextSizes[i]);
+			stream.writeByte(myParagraphKinds[i]);
+		}
+		stream.writeInt(copy.size());
+	}
+
+	static void writeString(DataOutputStream stream, String value) throws IOException {
+		stream.writeBoolean(value != null);
+		if (value != null) {
+			stream.writeUTF(value);
+		}
+	}
+
+	static String readString(DataInputStream stream) throws IOException {
+		return stream.readBoolean() ? stream.readUTF() : null;
+	}
+
 	public final String getId() {
 		return myId;
 	}
@@ -263,58 +310,86 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 	}
 
 	public final ZLTextMark getFirstMark() {
-		return ((myMarks == null) || myMarks.isEmpty()) ? null : myMarks.get(0);
+		final List<ZLTextMark> marks = myMarks;
+		return ((marks == null) || marks.isEmpty()) ? null : marks.get(0);
 	}
 
 	public final ZLTextMark getLastMark() {
-		return ((myMarks == null) || myMarks.isEmpty()) ? null : myMarks.get(myMarks.size() - 1);
+		final List<ZLTextMark> marks = myMarks;
+		return ((marks == null) || marks.isEmpty()) ? null : marks.get(marks.size() - 1);
 	}
 
 	public final ZLTextMark getNextMark(ZLTextMark position) {
-		if ((position == null) || (myMarks == null)) {
+		final List<ZLTextMark> marks = myMarks;
+		if ((position == null) || (marks == null)) {
 			return null;
 		}
 
-		ZLTextMark mark = null;
-		for (ZLTextMark current : myMarks) {
-			if (current.compareTo(position) >= 0) {
-				if ((mark == null) || (mark.compareTo(current) > 0)) {
-					mark = current;
-				}
-			}
-		}
-		return mark;
+		final int index = Collections.binarySearch(marks, position);
+		final int next = index >= 0 ? index : -index - 1;
+		return next < marks.size() ? marks.get(next) : null;
 	}
 
 	public final ZLTextMark getPreviousMark(ZLTextMark position) {
-		if ((position == null) || (myMarks == null)) {
+		final List<ZLTextMark> marks = myMarks;
+		if ((position == null) || (marks == null)) {
 			return null;
 		}
 
-		ZLTextMark mark = null;
-		for (ZLTextMark current : myMarks) {
-			if (current.compareTo(position) < 0) {
-				if ((mark == null) || (mark.compareTo(current) < 0)) {
-					mark = current;
-				}
-			}
-		}
-		return mark;
+		final int index = Collections.binarySearch(marks, position);
+		final int previous = (index >= 0 ? index : -index - 1) - 1;
+		return previous >= 0 ? marks.get(previous) : null;
 	}
 
 	public final int search(final String text, int startIndex, int endIndex, boolean ignoreCase) {
-		int count = 0;
-		ZLSearchPattern pattern = new ZLSearchPattern(text, ignoreCase);
+		return startSearch(text, startIndex, endIndex, ignoreCase, startIndex, null).waitForFinish();
+	}
+
+	public final synchronized ZLTextSearch startSearch(String text, int startIndex, int endIndex, boolean ignoreCase, int hintIndex, ZLTextSearch.Listener listener) {
+		if (mySearch != null) {
+			mySearch.cancel();
+		}
 		myMarks = new ArrayList<ZLTextMark>();
-		if (startIndex > myParagraphsNumber) {
-			startIndex = myParagraphsNumber;
+		final int paragraphsNumber = getParagraphsNumber();
+		startIndex = Math.max(0, Math.min(startIndex, paragraphsNumber));
+		endIndex = Math.max(startIndex, Math.min(endIndex, paragraphsNumber));
+
+		long[] candidateGroups = null;
+		int groupSize = 0;
+		final ZLTextSearchIndex index = searchIndex();
+		if (index != null) {
+			final char[] key = ZLTextSearchIndex.searchKey(text, ignoreCase);
+			if (key != null) {
+				candidateGroups = index.candidateGroups(key);
+				groupSize = index.groupSize();
+			}
 		}
-		if (endIndex > myParagraphsNumber) {
-			endIndex = myParagraphsNumber;
+
+		mySearch = new ZLTextSearch(
+			this, new ZLSearchPattern(text, ignoreCase), candidateGroups, groupSize,
+			ZLTextSearch.chunkBounds(this, startIndex, endIndex), listener
+		);
+		mySearch.start(hintIndex);
+		return mySearch;
+	}
+
+	// returns false if the search was cancelled before the range was finished
+	final boolean searchParagraphs(ZLTextSearch search, ZLSearchPattern pattern, int fromIndex, int toIndex, long[] candidateGroups, int groupSize, List<ZLTextMark> marks) {
+		if (fromIndex >= toIndex) {
+			return !search.isCancelled();
 		}
-		int index = startIndex;
-		final EntryIteratorImpl it = new EntryIteratorImpl(index);
-		while (true) {
+		final EntryIteratorImpl it = new EntryIteratorImpl(fromIndex);
+		for (int index = fromIndex; index < toIndex; ++index) {
+			if (search.isCancelled()) {
+				return false;
+			}
+			if (candidateGroups != null) {
+				final int group = index / groupSize;
+				if ((candidateGroups[group >> 6] & (1L << group)) == 0) {
+					continue;
+				}
+			}
+			it.reset(index);
 			int offset = 0;
 			while (it.hasNext()) {
 				it.next();
@@ -324,30 +399,110 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 					int textLength = it.getTextLength();
 					for (int pos = ZLSearchUtil.find(textData, textOffset, textLength, pattern); pos != -1;
 						pos = ZLSearchUtil.find(textData, textOffset, textLength, pattern, pos + 1)) {
-						myMarks.add(new ZLTextMark(index, offset + pos, pattern.getLength()));
-						++count;
+						marks.add(new ZLTextMark(index, offset + pos, pattern.getLength()));
 					}
 					offset += textLength;
 				}
 			}
-			if (++index >= endIndex) {
-				break;
+		}
+		return true;
+	}
+
+	// called by a search under its own lock until it is cancelled;
+	// a search is always cancelled before the next one starts
+	final void publishMarks(List<ZLTextMark> marks) {
+		myMarks = marks;
+	}
+
+	final synchronized void onSearchFinished(ZLTextSearch search) {
+		if (search == mySearch) {
+			mySearch = null;
+		}
+		if (mySearchIndexFile == null || mySearchIndex != null || mySearchIndexIsBeingBuilt ||
+			myParagraphsNumber == 0 || isGrowing()) {
+			return;
+		}
+		mySearchIndexIsBeingBuilt = true;
+		final File file = mySearchIndexFile;
+		ZLTextSearch.executor().execute(new Runnable() {
+			public void run() {
+				try {
+					buildSearchIndex(file);
+				} finally {
+					synchronized (ZLTextPlainModel.this) {
+						mySearchIndexIsBeingBuilt = false;
+					}
+				}
 			}
+		});
+	}
+
+	/**
+	 * Sets the file for the trigram index of this model; the index is built in
+	 * background after the first completed search and narrows later ones.
+	 */
+	public final synchronized void setSearchIndexFile(File file) {
+		mySearchIndexFile = file;
+		mySearchIndex = null;
+	}
+
+	private ZLTextSearchIndex searchIndex() {
+		if (mySearchIndex == null && mySearchIndexFile != null && !mySearchIndexIsBeingBuilt &&
+			myParagraphsNumber > 0 && !isGrowing()) {
+			mySearchIndex = ZLTextSearchIndex.read(
+				mySearchIndexFile, myParagraphsNumber, getTextLength(myParagraphsNumber - 1)
+			);
+		}
+		return mySearchIndex;
+	}
+
+	private void buildSearchIndex(File file) {
+		final int paragraphsNumber = myParagraphsNumber;
+		final ZLTextSearchIndex.Builder builder = new ZLTextSearchIndex.Builder(paragraphsNumber);
+		final EntryIteratorImpl it = new EntryIteratorImpl(0);
+		for (int index = 0; index < paragraphsNumber; ++index) {
 			it.reset(index);
+			while (it.hasNext()) {
+				it.next();
+				if (it.getType() == ZLTextParagraph.Entry.TEXT) {
+					builder.addText(index, it.getTextData(), it.getTextOffset(), it.getTextLength());
+				}
+			}
+		}
+		try {
+			builder.write(file, getTextLength(paragraphsNumber - 1));
+		} catch (IOException e) {
+			file.delete();
 		}
-		return count;
 	}
 
 	public final List<ZLTextMark> getMarks() {
-		return (myMarks != null) ? myMarks : Collections.<ZLTextMark>emptyList();
+		final List<ZLTextMark> marks = myMarks;
+		return (marks != null) ? marks : Collections.<ZLTextMark>emptyList();
 	}
 
-	public final void removeAllMarks() {
+	public final synchronized void removeAllMarks() {
+		if (mySearch != null) {
+			mySearch.cancel();
+			mySearch = null;
+		}
 		myMarks = null;
 	}
 
 	public final int getParagraphsNumber() {
-		return myParagraphsNumber;
+		final int mark = myHighWaterMark;
+		return mark >= 0 ? mark : myParagraphsNumber;
+	}
+
+	public final boolean isGrowing() {
+		return myHighWaterMark >= 0;
+	}
+
+	/**
+	 * @param mark number of paragraphs that other threads may read, -1 if all of them
+	 */
+	protected final void setHighWaterMark(int mark) {
+		myHighWaterMark = mark;
 	}
 
 	public final ZLTextParagraph getParagraph(int index) {
@@ -358,7 +513,7 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 	}
 
 	public final int getTextLength(int index) {
-		return myTextSizes[Math.max(Math.min(index, myParagraphsNumber - 1), 0)];
+		return myTextSizes[Math.max(Math.min(index, getParagraphsNumber() - 1), 0)];
 	}
 
 	private static int binarySearch(int[] array, int length, int value) {
@@ -380,10 +535,11 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 	}
 
 	public final int findParagraphByTextLength(int length) {
-		int index = binarySearch(myTextSizes, myParagraphsNumber, length);
+		final int paragraphsNumber = getParagraphsNumber();
+		int index = binarySearch(myTextSizes, paragraphsNumber, length);
 		if (index >= 0) {
 			return index;
 		}
-		return Math.min(-index - 1, myParagraphsNumber - 1);
+		return Math.min(-index - 1, paragraphsNumber - 1);
 	}
 }
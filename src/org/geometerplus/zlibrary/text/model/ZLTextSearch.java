@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+import org.geometerplus.zlibrary.core.util.ZLSearchPattern;
+
+/**
+ * A running search over a text model. The paragraph range is split into chunks
+ * searched in parallel, starting from the chunk around the hint paragraph;
+ * marks of every finished chunk are published to the model at once.
+ */
+public final class ZLTextSearch {
+	public interface Listener {
+		// called on a search thread after marks in [fromIndex, toIndex) are published
+		void onMarksFound(ZLTextSearch search, int fromIndex, int toIndex);
+		void onSearchFinished(ZLTextSearch search);
+	}
+
+	private static final int MIN_CHUNK_TEXT_SIZE = 64 * 1024;
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static ExecutorService ourExecutor;
+
+	static synchronized ExecutorService executor() {
+		if (ourExecutor == null) {
+			ourExecutor = Executors.newFixedThreadPool(threadsNumber(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "TextSearch");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return ourExecutor;
+	}
+
+	private static int threadsNumber() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors());
+	}
+
+	// chunk bounds: chunk i covers paragraphs [bounds[i], bounds[i + 1])
+	static int[] chunkBounds(ZLTextModel model, int startIndex, int endIndex) {
+		if (startIndex >= endIndex) {
+			return new int[] { startIndex, endIndex };
+		}
+		final int startLength = startIndex > 0 ? model.getTextLength(startIndex - 1) : 0;
+		final int textSize = model.getTextLength(endIndex - 1) - startLength;
+		final int chunksNumber = Math.max(1, Math.min(
+			threadsNumber() * CHUNKS_PER_THREAD, textSize / MIN_CHUNK_TEXT_SIZE
+		));
+		final int[] bounds = new int[chunksNumber + 1];
+		bounds[0] = startIndex;
+		int count = 1;
+		for (int i = 1; i < chunksNumber; ++i) {
+			final int bound = Math.min(
+				model.findParagraphByTextLength(startLength + (int)((long)textSize * i / chunksNumber)),
+				endIndex
+			);
+			if (bound > bounds[count - 1]) {
+				bounds[count++] = bound;
+			}
+		}
+		bounds[count++] = endIndex;
+		return count == bounds.length ? bounds : ZLArrayUtils.createCopy(bounds, count, count);
+	}
+
+	private final ZLTextPlainModel myModel;
+	private final ZLSearchPattern myPattern;
+	private final long[] myCandidateGroups;
+	private final int myGroupSize;
+	private final Listener myListener;
+	private final int[] myBounds;
+
+	private final List<List<ZLTextMark>> myChunkMarks;
+	private int myChunksLeft;
+	private int myCount;
+	private volatile boolean myIsCancelled;
+	private final ArrayList<Future<?>> myFutures = new ArrayList<Future<?>>();
+
+	ZLTextSearch(ZLTextPlainModel model, ZLSearchPattern pattern, long[] candidateGroups, int groupSize, int[] bounds, Listener listener) {
+		myModel = model;
+		myPattern = pattern;
+		myCandidateGroups = candidateGroups;
+		myGroupSize = groupSize;
+		myBounds = bounds;
+		myListener = listener;
+		myChunksLeft = bounds.length - 1;
+		myChunkMarks = new ArrayList<List<ZLTextMark>>(Collections.<List<ZLTextMark>>nCopies(myChunksLeft, null));
+	}
+
+	// submits chunks nearest to the hint paragraph first, alternating forward and backward
+	synchronized void start(int hintIndex) {
+		final int chunksNumber = myChunkMarks.size();
+		int first = chunkIndex(hintIndex);
+		if (first == -1) {
+			first = hintIndex < myBounds[0] ? 0 : chunksNumber - 1;
+		}
+		for (int i = 0; myFutures.size() < chunksNumber; ++i) {
+			final int forward = first + i;
+			if (forward < chunksNumber) {
+				submit(forward);
+			}
+			final int backward = first - i - 1;
+			if (backward >= 0) {
+				submit(backward);
+			}
+		}
+	}
+
+	private void submit(final int chunk) {
+		myFutures.add(executor().submit(new Runnable() {
+			public void run() {
+				final ArrayList<ZLTextMark> marks = new ArrayList<ZLTextMark>();
+				boolean searched = false;
+				try {
+					searched = myModel.searchParagraphs(
+						ZLTextSearch.this, myPattern, myBounds[chunk], myBounds[chunk + 1],
+						myCandidateGroups, myGroupSize, marks
+					);
+				} finally {
+					if (searched) {
+						onChunkFinished(chunk, marks);
+					} else if (!myIsCancelled) {
+						// a failed chunk (e.g. unreadable char storage) has no marks;
+						// finishing it wakes up the waiters
+						onChunkFinished(chunk, Collections.<ZLTextMark>emptyList());
+					}
+				}
+			}
+		}));
+	}
+
+	private int chunkIndex(int paragraphIndex) {
+		if (paragraphIndex < myBounds[0] || paragraphIndex >= myBounds[myBounds.length - 1]) {
+			return -1;
+		}
+		int index = Arrays.binarySearch(myBounds, paragraphIndex);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	private void onChunkFinished(int chunk, List<ZLTextMark> marks) {
+		final boolean finished;
+		synchronized (this) {
+			if (myIsCancelled) {
+				return;
+			}
+			myChunkMarks.set(chunk, marks);
+			myCount += marks.size();
+			finished = --myChunksLeft == 0;
+			if (!marks.isEmpty()) {
+				// chunks are ordered by paragraph, so concatenation keeps marks sorted
+				final ArrayList<ZLTextMark> all = new ArrayList<ZLTextMark>(myCount);
+				for (List<ZLTextMark> m : myChunkMarks) {
+					if (m != null) {
+						all.addAll(m);
+					}
+				}
+				myModel.publishMarks(all);
+			}
+			notifyAll();
+		}
+		if (myListener != null) {
+			if (!marks.isEmpty()) {
+				myListener.onMarksFound(this, myBounds[chunk], myBounds[chunk + 1]);
+			}
+			if (finished) {
+				myListener.onSearchFinished(this);
+			}
+		}
+		if (finished) {
+			myModel.onSearchFinished(this);
+		}
+	}
+
+	public void cancel() {
+		final List<Future<?>> futures;
+		synchronized (this) {
+			if (myIsCancelled) {
+				return;
+			}
+			myIsCancelled = true;
+			futures = new ArrayList<Future<?>>(myFutures);
+			notifyAll();
+		}
+		for (Future<?> f : futures) {
+			f.cancel(false);
+		}
+	}
+
+	public boolean isCancelled() {
+		return myIsCancelled;
+	}
+
+	public synchronized boolean isFinished() {
+		return myChunksLeft == 0;
+	}
+
+	// number of marks found so far
+	public synchronized int getCount() {
+		return myCount;
+	}
+
+	public synchronized int waitForFinish() {
+		try {
+			while (myChunksLeft > 0 && !myIsCancelled) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return myCount;
+	}
+
+	/**
+	 * Waits until all chunks up to the first mark at or after position are searched.
+	 * @return the mark, or null if there is none or the search was cancelled
+	 */
+	public synchronized ZLTextMark waitForNextMark(ZLTextMark position) {
+		int chunk = chunkIndex(position.ParagraphIndex);
+		if (chunk == -1) {
+			if (position.ParagraphIndex >= myBounds[0]) {
+				return null;
+			}
+			chunk = 0;
+		}
+		try {
+			for (; chunk < myChunkMarks.size(); ++chunk) {
+				while (myChunkMarks.get(chunk) == null) {
+					if (myIsCancelled) {
+						return null;
+					}
+					wait();
+				}
+				for (ZLTextMark mark : myChunkMarks.get(chunk)) {
+					if (mark.compareTo(position) >= 0) {
+						return mark;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	/**
+	 * Waits until all chunks down to the last mark before position are searched.
+	 * @return the mark, or null if there is none or the search was cancelled
+	 */
+	public synchronized ZLTextMark waitForPreviousMark(ZLTextMark position) {
+		int chunk = chunkIndex(position.ParagraphIndex);
+		if (chunk == -1) {
+			if (position.ParagraphIndex < myBounds[0]) {
+				return null;
+			}
+			chunk = myChunkMarks.size() - 1;
+		}
+		try {
+			for (; chunk >= 0; --chunk) {
+				while (myChunkMarks.get(chunk) == null) {
+					if (myIsCancelled) {
+						return null;
+					}
+					wait();
+				}
+				final List<ZLTextMark> marks = myChunkMarks.get(chunk);
+				for (int i = marks.size() - 1; i >= 0; --i) {
+					if (marks.get(i).compareTo(position) < 0) {
+						return marks.get(i);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// trigram index of a text model: for every hashed trigram of the lower-cased
+// text, a bit set of paragraph groups containing it; false positives are
+// possible, false negatives are not
+final class ZLTextSearchIndex {
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int BUCKETS_NUMBER = 1 << 14;
+	private static final int MAX_GROUPS_NUMBER = 512;
+
+	private final int myGroupSize;
+	private final int myWordsPerBucket;
+	private final LongBuffer myBuckets;
+
+	private ZLTextSearchIndex(int groupSize, int wordsPerBucket, LongBuffer buckets) {
+		myGroupSize = groupSize;
+		myWordsPerBucket = wordsPerBucket;
+		myBuckets = buckets;
+	}
+
+	int groupSize() {
+		return myGroupSize;
+	}
+
+	private static int hash(char c0, char c1, char c2) {
+		int h = (c0 * 31 + c1) * 31 + c2;
+		h ^= h >>> 15;
+		h *= 0x2c1b3c6d;
+		h ^= h >>> 12;
+		return h & (BUCKETS_NUMBER - 1);
+	}
+
+	// the same key the index stores for every char that can match the pattern at
+	// this position, or null if case folding makes such a key ambiguous
+	static char[] searchKey(String text, boolean ignoreCase) {
+		final int length = text.length();
+		if (length < 3) {
+			return null;
+		}
+		final char[] key = new char[length];
+		if (ignoreCase) {
+			final String lower = text.toLowerCase();
+			final String upper = text.toUpperCase();
+			if (lower.length() != length || upper.length() != length) {
+				return null;
+			}
+			for (int i = 0; i < length; ++i) {
+				final char c = Character.toLowerCase(lower.charAt(i));
+				if (c != Character.toLowerCase(upper.charAt(i))) {
+					return null;
+				}
+				key[i] = c;
+			}
+		} else {
+			for (int i = 0; i < length; ++i) {
+				key[i] = Character.toLowerCase(text.charAt(i));
+			}
+		}
+		return key;
+	}
+
+	// bit set of groups that may contain the key
+	long[] candidateGroups(char[] key) {
+		final long[] groups = new long[myWordsPerBucket];
+		Arrays.fill(groups, -1L);
+		for (int i = 0; i + 2 < key.length; ++i) {
+			final int offset = hash(key[i], key[i + 1], key[i + 2]) * myWordsPerBucket;
+			long any = 0;
+			for (int w = 0; w < myWordsPerBucket; ++w) {
+				groups[w] &= myBuckets.get(offset + w);
+				any |= groups[w];
+			}
+			if (any == 0) {
+				break;
+			}
+		}
+		return groups;
+	}
+
+	static ZLTextSearchIndex read(File file, int paragraphsNumber, int textLength) {
+		if (file == null || !file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final ByteBuffer buffer =
+				raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (buffer.capacity() < HEADER_SIZE ||
+				buffer.getInt(0) != FORMAT_VERSION ||
+				buffer.getInt(4) != paragraphsNumber ||
+				buffer.getInt(8) != textLength) {
+				return null;
+			}
+			final int groupSize = buffer.getInt(12);
+			final int wordsPerBucket = buffer.getInt(16);
+			if (groupSize <= 0 || wordsPerBucket <= 0 ||
+				buffer.capacity() != HEADER_SIZE + 8L * BUCKETS_NUMBER * wordsPerBucket) {
+				return null;
+			}
+			buffer.position(HEADER_SIZE);
+			return new ZLTextSearchIndex(groupSize, wordsPerBucket, buffer.slice().asLongBuffer());
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					// the mapping stays valid after the file is closed
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	static final class Builder {
+		private final int myParagraphsNumber;
+		private final int myGroupSize;
+		private final int myWordsPerBucket;
+		private final long[] myBuckets;
+
+		Builder(int paragraphsNumber) {
+			myParagraphsNumber = paragraphsNumber;
+			myGroupSize = Math.max(1, (paragraphsNumber + MAX_GROUPS_NUMBER - 1) / MAX_GROUPS_NUMBER);
+			final int groupsNumber = Math.max(1, (paragraphsNumber + myGroupSize - 1) / myGroupSize);
+			myWordsPerBucket = (groupsNumber + 63) / 64;
+			myBuckets = new long[BUCKETS_NUMBER * myWordsPerBucket];
+		}
+
+		void addText(int paragraphIndex, char[] data, int offset, int length) {
+			if (length < 3) {
+				return;
+			}
+			final int group = paragraphIndex / myGroupSize;
+			final int word = group >> 6;
+			final long bit = 1L << group;
+			final long[] buckets = myBuckets;
+			char c0 = Character.toLowerCase(data[offset]);
+			char c1 = Character.toLowerCase(data[offset + 1]);
+			for (int i = offset + 2; i < offset + length; ++i) {
+				final char c2 = Character.toLowerCase(data[i]);
+				buckets[hash(c0, c1, c2) * myWordsPerBucket + word] |= bit;
+				c0 = c1;
+				c1 = c2;
+			}
+		}
+
+		void write(File file, int textLength) throws IOException {
+			final File tmp = new File(file.getPath() + ".tmp");
+			DataOutputStream stream = null;
+			try {
+				stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+				stream.writeInt(FORMAT_VERSION);
+				stream.writeInt(myParagraphsNumber);
+				stream.writeInt(textLength);
+				stream.writeInt(myGroupSize);
+				stream.writeInt(myWordsPerBucket);
+				stream.writeInt(0);
+				for (long word : myBuckets) {
+					stream.writeLong(word);
+				}
+				stream.close();
+				stream = null;
+				if (!tmp.renameTo(file)) {
+					throw new IOException("Cannot rename " + tmp);
+				}
+			} finally {
+				if (stream != null) {
+					try {
+						stream.close();
+					} catch (IOException e) {
+					}
+				}
+				tmp.delete();
+			}
+		}
+	}
+}
@@ -20,6 +20,8 @@
 package org.geometerplus.zlibrary.text.model;
 
 public interface ZLTextWritableModel extends ZLTextModel {
+	// includes the paragraph being written, unlike getParagraphsNumber() of a growing model
+	int getWrittenParagraphsNumber();
 	void createParagraph(byte kind);
 
 	void addText(char[] text);
@@ -27,6 +27,7 @@ import org.geometerplus.zlibrary.core.util.*;
 public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements ZLTextWritableModel {
 	private char[] myCurrentDataBlock;
 	private int myBlockOffset;
+	private boolean myIsGrowing;
 
 	public ZLTextWritablePlainModel(String id, String language, int arraySize, int dataBlockSize, String directoryName, String extension, Map<String,ZLImage> imageMap) {
 		super(
@@ -39,6 +40,21 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 		);
 	}
 
+	/**
+	 * Creates a model that keeps its text in memory; such a model is a buffer
+	 * for a part of a text, see append().
+	 */
+	public ZLTextWritablePlainModel(String id, String language, int arraySize, int dataBlockSize, Map<String,ZLImage> imageMap) {
+		super(
+			id, language,
+			new int[arraySize], new int[arraySize],
+			new int[arraySize], new int[arraySize],
+			new byte[arraySize],
+			new SimpleCharStorage(dataBlockSize),
+			imageMap
+		);
+	}
+
 	private void extend() {
 		final int size = myStartEntryIndices.length;
 		myStartEntryIndices = ZLArrayUtils.createCopy(myStartEntryIndices, size, size << 1);
@@ -48,6 +64,27 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 		myParagraphKinds = ZLArrayUtils.createCopy(myParagraphKinds, size, size << 1);
 	}
 
+	/**
+	 * Lets other threads read the model while it is being written: they see
+	 * the paragraphs before the one being written, see getParagraphsNumber().
+	 */
+	public void startGrowing() {
+		myIsGrowing = true;
+		setHighWaterMark(Math.max(myParagraphsNumber - 1, 0));
+	}
+
+	/**
+	 * Publishes all the paragraphs; the model is not written after this call.
+	 */
+	public void stopGrowing() {
+		myIsGrowing = false;
+		setHighWaterMark(-1);
+	}
+
+	public int getWrittenParagraphsNumber() {
+		return myParagraphsNumber;
+	}
+
 	public void createParagraph(byte kind) {
 		final int index = myParagraphsNumber++;
 		int[] startEntryIndices = myStartEntryIndices;
@@ -63,6 +100,9 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 		myStartEntryOffsets[index] = myBlockOffset;
 		myParagraphLengths[index] = 0;
 		myParagraphKinds[index] = kind;
+		if (myIsGrowing) {
+			setHighWaterMark(index);
+		}
 	}
 
 	private char[] getDataBlock(int minimumLength) {
@@ -167,6 +207,60 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 		block[myBlockOffset++] = (char)ZLTextParagraph.Entry.RESET_BIDI;
 	}
 
+	/**
+	 * Appends all paragraphs of the model. Entries are copied one by one,
+	 * so the result is the same as if they were written into this model directly.
+	 */
+	public void append(ZLTextWritablePlainModel model) {
+		final CharStorage storage = model.myStorage;
+		final int count = model.myParagraphsNumber;
+		for (int i = 0; i < count; ++i) {
+			createParagraph(model.myParagraphKinds[i]);
+			final int index = myParagraphsNumber - 1;
+			int dataIndex = model.myStartEntryIndices[i];
+			int dataOffset = model.myStartEntryOffsets[i];
+			for (int j = model.myParagraphLengths[i]; j > 0; --j) {
+				char[] data = storage.block(dataIndex);
+				if (dataOffset == data.length || data[dataOffset] == 0) {
+					data = storage.block(++dataIndex);
+					dataOffset = 0;
+				}
+				final int length;
+				switch (data[dataOffset]) {
+					case ZLTextParagraph.Entry.TEXT:
+					{
+						final int textLength =
+							(int)data[dataOffset + 1] + (((int)data[dataOffset + 2]) << 16);
+						myTextSizes[index] += textLength;
+						length = 3 + textLength;
+						break;
+					}
+					case ZLTextParagraph.Entry.IMAGE:
+						length = 4 + data[dataOffset + 2];
+						break;
+					case ZLTextParagraph.Entry.HYPERLINK_CONTROL:
+						length = 3 + data[dataOffset + 2];
+						break;
+					case ZLTextParagraph.Entry.CONTROL:
+					case ZLTextParagraph.Entry.FIXED_HSPACE:
+						length = 2;
+						break;
+					case ZLTextParagraph.Entry.RESET_BIDI:
+						length = 1;
+						break;
+					default:
+						// style entries are never written by this class
+						throw new IllegalArgumentException("Unexpected entry type " + (int)data[dataOffset]);
+				}
+				final char[] block = getDataBlock(length);
+				System.arraycopy(data, dataOffset, block, myBlockOffset, length);
+				myBlockOffset += length;
+				++myParagraphLengths[index];
+				dataOffset += length;
+			}
+		}
+	}
+
 	public void stopReading() {
 		/*
 		if (myCurrentDataBlock != null) {
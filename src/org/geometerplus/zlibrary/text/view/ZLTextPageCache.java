@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.view;
+
+import java.util.*;
+
+import org.geometerplus.zlibrary.text.model.ZLTextModel;
+
+// laid out pages, found by the position they were built from;
+// all the methods are called under the view monitor
+final class ZLTextPageCache {
+	private static final int MAX_SIZE = 24;
+
+	static final class Entry {
+		final ZLTextWordCursor StartCursor;
+		final ZLTextWordCursor EndCursor;
+		final ArrayList<ZLTextLineInfo> LineInfos;
+
+		private Entry(ZLTextPage page) {
+			StartCursor = new ZLTextWordCursor(page.StartCursor);
+			EndCursor = new ZLTextWordCursor(page.EndCursor);
+			LineInfos = new ArrayList<ZLTextLineInfo>(page.LineInfos);
+		}
+	}
+
+	private static final class Key {
+		final ZLTextModel Model;
+		final ZLTextFixedPosition Position;
+		final boolean ByEnd;
+		final int Width;
+		final int Height;
+		final int Revision;
+
+		Key(ZLTextModel model, ZLTextPosition position, boolean byEnd, int width, int height, int revision) {
+			Model = model;
+			Position = new ZLTextFixedPosition(position);
+			ByEnd = byEnd;
+			Width = width;
+			Height = height;
+			Revision = revision;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other == this) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			final Key key = (Key)other;
+			return
+				Model == key.Model &&
+				ByEnd == key.ByEnd &&
+				Width == key.Width &&
+				Height == key.Height &&
+				Revision == key.Revision &&
+				Position.equals(key.Position);
+		}
+
+		@Override
+		public int hashCode() {
+			return Position.hashCode() + 31 * (Width + 31 * Height) + (ByEnd ? 1 : 0);
+		}
+	}
+
+	private final LinkedHashMap<Key,Entry> myEntries = new LinkedHashMap<Key,Entry>(MAX_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key,Entry> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	// style, font or model changes make all the built pages obsolete
+	private int myRevision;
+
+	private int myPrebuiltCount;
+	private int mySynchronousCount;
+
+	int getRevision() {
+		return myRevision;
+	}
+
+	void invalidate() {
+		++myRevision;
+		myEntries.clear();
+	}
+
+	Entry get(ZLTextModel model, ZLTextPosition position, boolean byEnd, int width, int height) {
+		return myEntries.get(new Key(model, position, byEnd, width, height, myRevision));
+	}
+
+	void put(ZLTextModel model, ZLTextPosition position, boolean byEnd, int width, int height, ZLTextPage page) {
+		myEntries.put(new Key(model, position, byEnd, width, height, myRevision), new Entry(page));
+	}
+
+	void onPageServed(boolean prebuilt) {
+		if (prebuilt) {
+			++myPrebuiltCount;
+		} else {
+			++mySynchronousCount;
+		}
+	}
+
+	int getPrebuiltCount() {
+		return myPrebuiltCount;
+	}
+
+	int getSynchronousCount() {
+		return mySynchronousCount;
+	}
+}
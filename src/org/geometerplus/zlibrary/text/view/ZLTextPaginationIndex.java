@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.view;
+
+import java.io.*;
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+
+// page start positions of the whole text for one layout configuration;
+// each page takes three ints: paragraph, element and char index
+final class ZLTextPaginationIndex {
+	private static final int FORMAT_VERSION = 1;
+	private static final int MAX_FILES_NUMBER = 64;
+
+	final String Signature;
+
+	private int[] myPositions = new int[3 * 64];
+	private int mySize;
+	private boolean myIsComplete;
+	// where the next page starts while the index is incomplete
+	private ZLTextFixedPosition myResumePosition;
+
+	ZLTextPaginationIndex(String signature) {
+		Signature = signature;
+	}
+
+	int size() {
+		return mySize;
+	}
+
+	boolean isComplete() {
+		return myIsComplete;
+	}
+
+	ZLTextFixedPosition getResumePosition() {
+		return myResumePosition;
+	}
+
+	void addPage(ZLTextPosition start, ZLTextPosition end, boolean isLast) {
+		final int offset = 3 * mySize;
+		if (offset == myPositions.length) {
+			myPositions = ZLArrayUtils.createCopy(myPositions, offset, 2 * offset);
+		}
+		myPositions[offset] = start.getParagraphIndex();
+		myPositions[offset + 1] = start.getElementIndex();
+		myPositions[offset + 2] = start.getCharIndex();
+		++mySize;
+		myResumePosition = isLast ? null : new ZLTextFixedPosition(end);
+		myIsComplete = isLast;
+	}
+
+	ZLTextFixedPosition getPageStart(int index) {
+		final int offset = 3 * index;
+		return new ZLTextFixedPosition(myPositions[offset], myPositions[offset + 1], myPositions[offset + 2]);
+	}
+
+	// index of the last page starting at or before the position, or -1
+	int findPage(ZLTextPosition position) {
+		final int paragraph = position.getParagraphIndex();
+		final int element = position.getElementIndex();
+		final int ch = position.getCharIndex();
+		final int[] positions = myPositions;
+		int low = 0;
+		int high = mySize - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int offset = 3 * middle;
+			int diff = positions[offset] - paragraph;
+			if (diff == 0) {
+				diff = positions[offset + 1] - element;
+				if (diff == 0) {
+					diff = positions[offset + 2] - ch;
+				}
+			}
+			if (diff <= 0) {
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return high;
+	}
+
+	byte[] toByteArray() {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 12 * mySize);
+		final DataOutputStream stream = new DataOutputStream(bytes);
+		try {
+			stream.writeInt(FORMAT_VERSION);
+			stream.writeUTF(Signature);
+			stream.writeBoolean(myIsComplete);
+			final ZLTextPosition resume = myResumePosition;
+			stream.writeInt(resume != null ? resume.getParagraphIndex() : -1);
+			stream.writeInt(resume != null ? resume.getElementIndex() : -1);
+			stream.writeInt(resume != null ? resume.getCharIndex() : -1);
+			stream.writeInt(mySize);
+			for (int i = 0; i < 3 * mySize; ++i) {
+				stream.writeInt(myPositions[i]);
+			}
+			stream.flush();
+		} catch (IOException e) {
+			// cannot happen for a byte array stream
+		}
+		return bytes.toByteArray();
+	}
+
+	static ZLTextPaginationIndex read(File file, String signature) {
+		if (file == null || !file.exists()) {
+			return null;
+		}
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (stream.readInt() != FORMAT_VERSION || !signature.equals(stream.readUTF())) {
+				return null;
+			}
+			final ZLTextPaginationIndex index = new ZLTextPaginationIndex(signature);
+			index.myIsComplete = stream.readBoolean();
+			final int paragraph = stream.readInt();
+			final int element = stream.readInt();
+			final int ch = stream.readInt();
+			if (paragraph >= 0) {
+				index.myResumePosition = new ZLTextFixedPosition(paragraph, element, ch);
+			} else if (!index.myIsComplete) {
+				return null;
+			}
+			final int size = stream.readInt();
+			final int[] positions = new int[Math.max(3 * size, 3 * 64)];
+			for (int i = 0; i < 3 * size; ++i) {
+				positions[i] = stream.readInt();
+			}
+			index.myPositions = positions;
+			index.mySize = size;
+			file.setLastModified(System.currentTimeMillis());
+			return index;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	static void write(File file, byte[] data) {
+		final File directory = file.getParentFile();
+		directory.mkdirs();
+		final File tmp = new File(file.getPath() + ".tmp");
+		OutputStream stream = null;
+		try {
+			stream = new FileOutputStream(tmp);
+			stream.write(data);
+			stream.close();
+			stream = null;
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		removeOldFiles(directory);
+	}
+
+	private static void removeOldFiles(File directory) {
+		final File[] files = directory.listFiles();
+		if (files == null || files.length <= MAX_FILES_NUMBER) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File f0, File f1) {
+				final long m0 = f0.lastModified();
+				final long m1 = f1.lastModified();
+				return m0 > m1 ? -1 : (m0 < m1 ? 1 : 0);
+			}
+		});
+		for (int i = MAX_FILES_NUMBER; i < files.length; ++i) {
+			files[i].delete();
+		}
+	}
+}
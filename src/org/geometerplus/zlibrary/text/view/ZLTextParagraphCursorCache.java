@@ -19,43 +19,133 @@
 
 package org.geometerplus.zlibrary.text.view;
 
-import java.lang.ref.WeakReference;
 import java.util.*;
 
 import org.geometerplus.zlibrary.text.model.ZLTextModel;
+import org.geometerplus.zlibrary.text.model.ZLTextMark;
 
-class ZLTextParagraphCursorCache {
-	private final static class Key {
-		private final ZLTextModel myModel;
-		private final int myIndex;
+/**
+ * Processed paragraphs of each model, the least recently used ones are
+ * dropped over CURSORS_LIMIT; soft references are not used, Dalvik clears
+ * them on almost every collection. Marks are baked into the paragraph
+ * elements, so when a model's marks change, the cursors of the paragraphs
+ * whose marks differ are dropped.
+ */
+public final class ZLTextParagraphCursorCache {
+	private static final int CURSORS_LIMIT = 512;
+
+	private static final class ModelCache {
+		private List<ZLTextMark> myMarks;
+
+		private final LinkedHashMap<Integer,ZLTextParagraphCursor> myCursors =
+			new LinkedHashMap<Integer,ZLTextParagraphCursor>(CURSORS_LIMIT, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer,ZLTextParagraphCursor> eldest) {
+					return size() > CURSORS_LIMIT;
+				}
+			};
+
+		ModelCache(List<ZLTextMark> marks) {
+			myMarks = marks;
+		}
+
+		void setMarks(List<ZLTextMark> marks) {
+			final Map<Integer,List<Long>> oldMarks = marksByParagraph(myMarks);
+			final Map<Integer,List<Long>> newMarks = marksByParagraph(marks);
+			for (Map.Entry<Integer,List<Long>> entry : oldMarks.entrySet()) {
+				if (!entry.getValue().equals(newMarks.get(entry.getKey()))) {
+					myCursors.remove(entry.getKey());
+				}
+			}
+			for (Integer index : newMarks.keySet()) {
+				if (!oldMarks.containsKey(index)) {
+					myCursors.remove(index);
+				}
+			}
+			myMarks = marks;
+		}
+	}
+
+	// sorted (offset, length) pairs by paragraph index
+	private static Map<Integer,List<Long>> marksByParagraph(List<ZLTextMark> marks) {
+		final HashMap<Integer,List<Long>> map = new HashMap<Integer,List<Long>>();
+		if (marks == null) {
+			return map;
+		}
+		for (ZLTextMark mark : marks) {
+			List<Long> list = map.get(mark.ParagraphIndex);
+			if (list == null) {
+				list = new ArrayList<Long>();
+				map.put(mark.ParagraphIndex, list);
+			}
+			list.add(((long)mark.Offset << 32) | (mark.Length & 0xFFFFFFFFL));
+		}
+		for (List<Long> list : map.values()) {
+			Collections.sort(list);
+		}
+		return map;
+	}
+
+	// cursors reference their model, so weak keys would not help here;
+	// views remove their model when they switch to another one
+	private static final HashMap<ZLTextModel,ModelCache> ourCaches =
+		new HashMap<ZLTextModel,ModelCache>();
+
+	private static long ourHits;
+	private static long ourMisses;
 
-		public Key(ZLTextModel model, int index) {
-			myModel = model;
-			myIndex = index;
+	private static ModelCache modelCache(ZLTextModel model) {
+		final List<ZLTextMark> marks = model.getMarks();
+		ModelCache cache = ourCaches.get(model);
+		if (cache == null) {
+			cache = new ModelCache(marks);
+			ourCaches.put(model, cache);
+		} else if (cache.myMarks != marks) {
+			cache.setMarks(marks);
 		}
+		return cache;
+	}
+
+	static synchronized void put(ZLTextModel model, int index, ZLTextParagraphCursor cursor) {
+		modelCache(model).myCursors.put(index, cursor);
+	}
 
-		public boolean equals(Object o) {
-			Key k = (Key)o;
-			return (myModel == k.myModel) && (myIndex == k.myIndex);
+	static synchronized ZLTextParagraphCursor get(ZLTextModel model, int index) {
+		final ZLTextParagraphCursor cursor = modelCache(model).myCursors.get(index);
+		if (cursor != null) {
+			++ourHits;
+		} else {
+			++ourMisses;
 		}
+		return cursor;
+	}
 
-		public int hashCode() {
-			return myModel.hashCode() + myIndex;
+	static synchronized void remove(ZLTextModel model) {
+		if (model != null) {
+			ourCaches.remove(model);
 		}
 	}
 
-	private static final HashMap<Key,WeakReference<ZLTextParagraphCursor>> ourMap = new HashMap<Key,WeakReference<ZLTextParagraphCursor>>();
+	static synchronized void clear() {
+		ourCaches.clear();
+	}
 
-	public static void put(ZLTextModel model, int index, ZLTextParagraphCursor cursor) {
-		ourMap.put(new Key(model, index), new WeakReference<ZLTextParagraphCursor>(cursor));
+	/**
+	 * @return number of paragraphs served from the cache
+	 */
+	public static synchronized long getHits() {
+		return ourHits;
 	}
 
-	public static ZLTextParagraphCursor get(ZLTextModel model, int index) {
-		WeakReference<ZLTextParagraphCursor> ref = ourMap.get(new Key(model, index));
-		return (ref != null) ? ref.get() : null;
+	/**
+	 * @return number of paragraphs processed (again) by LineBreaker
+	 */
+	public static synchronized long getMisses() {
+		return ourMisses;
 	}
 
-	public static void clear() {
-		ourMap.clear();
+	public static synchronized void resetStatistics() {
+		ourHits = 0;
+		ourMisses = 0;
 	}
 }
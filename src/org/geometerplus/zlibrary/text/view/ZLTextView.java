@@ -19,7 +19,9 @@
 
 package org.geometerplus.zlibrary.text.view;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.geometerplus.zlibrary.core.application.ZLApplication;
 import org.geometerplus.zlibrary.core.view.ZLPaintContext;
@@ -29,6 +31,7 @@ import org.geometerplus.zlibrary.core.util.ZLColor;
 
 import org.geometerplus.zlibrary.text.model.*;
 import org.geometerplus.zlibrary.text.hyphenation.*;
+import org.geometerplus.zlibrary.text.view.style.ZLTextBaseStyle;
 import org.geometerplus.zlibrary.text.view.style.ZLTextStyleCollection;
 
 public abstract class ZLTextView extends ZLTextViewBase {
@@ -55,7 +58,8 @@ public abstract class ZLTextView extends ZLTextViewBase {
 	ZLTextPage myCurrentPage = new ZLTextPage();
 	private ZLTextPage myNextPage = new ZLTextPage();
 
-	private final HashMap<ZLTextLineInfo,ZLTextLineInfo> myLineInfoCache = new HashMap<ZLTextLineInfo,ZLTextLineInfo>();
+	private HashMap<ZLTextLineInfo,ZLTextLineInfo> myLineInfoCache = new HashMap<ZLTextLineInfo,ZLTextLineInfo>();
+	private final ZLTextPageCache myPageCache = new ZLTextPageCache();
 
 	private ZLTextRegion.Soul mySelectedRegionSoul;
 	private boolean myHighlightSelectedRegion = true;
@@ -70,7 +74,14 @@ public abstract class ZLTextView extends ZLTextViewBase {
 	}
 
 	public synchronized void setModel(ZLTextModel model) {
-		ZLTextParagraphCursorCache.clear();
+		ZLTextParagraphCursorCache.remove(myModel);
+		myPageCache.invalidate();
+		cancelPagination();
+		if (mySearch != null) {
+			mySearch.cancel();
+			mySearch = null;
+		}
+		myPartialSearchText = null;
 
 		myModel = model;
 		myCurrentPage.reset();
@@ -141,30 +152,84 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 	}
 
-	public synchronized int search(final String text, boolean ignoreCase, boolean wholeText, boolean backward, boolean thisSectionOnly) {
+	private ZLTextSearch mySearch;
+	// pattern of a search started while the model was growing; see onModelComplete()
+	private String myPartialSearchText;
+	private boolean myPartialSearchIgnoreCase;
+
+	private final ZLTextSearch.Listener mySearchListener = new ZLTextSearch.Listener() {
+		public void onMarksFound(ZLTextSearch s, int fromIndex, int toIndex) {
+			synchronized (ZLTextView.this) {
+				if (s != mySearch || myCurrentPage.StartCursor.isNull()) {
+					return;
+				}
+				rebuildPaintInfo();
+			}
+			Application.getViewWidget().reset();
+			Application.getViewWidget().repaint();
+		}
+
+		public void onSearchFinished(ZLTextSearch s) {
+		}
+	};
+
+	/**
+	 * Starts a background search and waits only for the mark to go to;
+	 * later marks are highlighted as they are found.
+	 * @return the number of marks found so far, non-zero if anything was found
+	 */
+	public int search(final String text, boolean ignoreCase, boolean wholeText, boolean backward, boolean thisSectionOnly) {
 		if (text.length() == 0) {
 			return 0;
 		}
-		int startIndex = 0;
-		int endIndex = myModel.getParagraphsNumber();
-		if (thisSectionOnly) {
-			// TODO: implement
+		final ZLTextSearch search;
+		final ZLTextMark position;
+		synchronized (this) {
+			if (myModel == null) {
+				return 0;
+			}
+			int startIndex = 0;
+			int endIndex = myModel.getParagraphsNumber();
+			if (thisSectionOnly) {
+				// TODO: implement
+			}
+			final ZLTextWordCursor start = myCurrentPage.StartCursor;
+			if (start.isNull()) {
+				position = null;
+			} else if (wholeText) {
+				position = backward ? new ZLTextMark(endIndex, 0, 0) : new ZLTextMark(0, 0, 0);
+			} else {
+				position = start.getMark();
+			}
+			search = myModel.startSearch(
+				text, startIndex, endIndex, ignoreCase,
+				position != null ? position.ParagraphIndex : startIndex,
+				mySearchListener
+			);
+			mySearch = search;
+			myPartialSearchText = myModel.isGrowing() ? text : null;
+			myPartialSearchIgnoreCase = ignoreCase;
+			myPreviousPage.reset();
+			myNextPage.reset();
 		}
-		int count = myModel.search(text, startIndex, endIndex, ignoreCase);
-		myPreviousPage.reset();
-		myNextPage.reset();
-		if (!myCurrentPage.StartCursor.isNull()) {
+
+		if (position == null) {
+			return search.waitForFinish();
+		}
+		final ZLTextMark mark = backward
+			? search.waitForPreviousMark(position) : search.waitForNextMark(position);
+		synchronized (this) {
+			if (search != mySearch || myCurrentPage.StartCursor.isNull()) {
+				return search.getCount();
+			}
 			rebuildPaintInfo();
-			if (count > 0) {
-				ZLTextMark mark = myCurrentPage.StartCursor.getMark();
-				gotoMark(wholeText ?
-					(backward ? myModel.getLastMark() : myModel.getFirstMark()) :
-					(backward ? myModel.getPreviousMark(mark) : myModel.getNextMark(mark)));
+			if (mark != null) {
+				gotoMark(mark);
 			}
-			Application.getViewWidget().reset();
-			Application.getViewWidget().repaint();
 		}
-		return count;
+		Application.getViewWidget().reset();
+		Application.getViewWidget().repaint();
+		return mark != null ? search.getCount() : search.waitForFinish();
 	}
 
 	public boolean canFindNext() {
@@ -192,8 +257,16 @@ public abstract class ZLTextView extends ZLTextViewBase {
 	}
 
 	public void clearFindResults() {
-		if (!findResultsAreEmpty()) {
+		synchronized (this) {
+			mySearch = null;
+			myPartialSearchText = null;
+		}
+		final boolean wasEmpty = findResultsAreEmpty();
+		if (myModel != null) {
+			// also stops a search that has not found anything yet
 			myModel.removeAllMarks();
+		}
+		if (!wasEmpty) {
 			rebuildPaintInfo();
 			Application.getViewWidget().reset();
 			Application.getViewWidget().repaint();
@@ -251,6 +324,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 				break;
 			}
 		}
+		schedulePreLayout();
 	}
 
 	public void highlight(ZLTextPosition start, ZLTextPosition end) {
@@ -456,6 +530,11 @@ public abstract class ZLTextView extends ZLTextViewBase {
 
 		drawSelectionCursor(context, getSelectionCursorPoint(page, ZLTextSelectionCursor.Left));
 		drawSelectionCursor(context, getSelectionCursorPoint(page, ZLTextSelectionCursor.Right));
+
+		if (page == myCurrentPage) {
+			schedulePreLayout();
+			schedulePagination();
+		}
 	}
 
 	private ZLTextPage getPage(PageIndex pageIndex) {
@@ -508,24 +587,41 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 	}
 
+	// with complete pagination index the scrollbar is measured in pages, otherwise in chars
 	@Override
 	public final synchronized int getScrollbarFullSize() {
-		return sizeOfFullText();
+		final ZLTextPaginationIndex index = completePaginationIndex();
+		return index != null ? index.size() : sizeOfFullText();
 	}
 
 	@Override
 	public final synchronized int getScrollbarThumbPosition(PageIndex pageIndex) {
-		return scrollbarType() == SCROLLBAR_SHOW_AS_PROGRESS ? 0 : getCurrentCharNumber(pageIndex, true);
+		if (scrollbarType() == SCROLLBAR_SHOW_AS_PROGRESS) {
+			return 0;
+		}
+		final ZLTextPaginationIndex index = completePaginationIndex();
+		return index != null ? pageNumber(index, pageIndex) : getCurrentCharNumber(pageIndex, true);
 	}
 
 	@Override
 	public final synchronized int getScrollbarThumbLength(PageIndex pageIndex) {
+		final ZLTextPaginationIndex index = completePaginationIndex();
+		if (index != null) {
+			return scrollbarType() == SCROLLBAR_SHOW_AS_PROGRESS
+				? pageNumber(index, pageIndex) + 1 : 1;
+		}
 		int start = scrollbarType() == SCROLLBAR_SHOW_AS_PROGRESS
 			? 0 : getCurrentCharNumber(pageIndex, true);
 		int end = getCurrentCharNumber(pageIndex, false);
 		return Math.max(1, end - start);
 	}
 
+	private int pageNumber(ZLTextPaginationIndex index, PageIndex pageIndex) {
+		final ZLTextPage page = getPage(pageIndex);
+		preparePaintInfo(page);
+		return page.StartCursor.isNull() ? 0 : Math.max(0, index.findPage(page.StartCursor));
+	}
+
 	private int sizeOfTextBeforeCursor(ZLTextWordCursor wordCursor) {
 		final ZLTextParagraphCursor paragraphCursor = wordCursor.getParagraphCursor();
 		if (paragraphCursor == null) {
@@ -640,6 +736,11 @@ public abstract class ZLTextView extends ZLTextViewBase {
 	}
 
 	public final synchronized PagePosition pagePosition() {
+		final ZLTextPaginationIndex index = completePaginationIndex();
+		if (index != null) {
+			return new PagePosition(pageNumber(index, PageIndex.current) + 1, index.size());
+		}
+
 		int current = computeTextPageNumber(getCurrentCharNumber(PageIndex.current, false));
 		int total = computeTextPageNumber(sizeOfFullText());
 
@@ -690,6 +791,14 @@ public abstract class ZLTextView extends ZLTextViewBase {
 			return;
 		}
 
+		final ZLTextPaginationIndex index = completePaginationIndex();
+		if (index != null) {
+			final ZLTextFixedPosition start =
+				index.getPageStart(Math.max(0, Math.min(page, index.size()) - 1));
+			gotoPosition(start.ParagraphIndex, start.ElementIndex, start.CharIndex);
+			return;
+		}
+
 		final float factor = computeCharsPerPage();
 		final float textSize = page * factor;
 
@@ -1246,6 +1355,8 @@ public abstract class ZLTextView extends ZLTextViewBase {
 			return;
 		}
 		final int oldState = page.PaintState;
+		final boolean isViewPage =
+			page == myCurrentPage || page == myPreviousPage || page == myNextPage;
 
 		final HashMap<ZLTextLineInfo,ZLTextLineInfo> cache = myLineInfoCache;
 		for (ZLTextLineInfo info : page.LineInfos) {
@@ -1256,6 +1367,9 @@ public abstract class ZLTextView extends ZLTextViewBase {
 			default:
 				break;
 			case PaintStateEnum.TO_SCROLL_FORWARD:
+				if (isViewPage) {
+					myPageCache.onPageServed(false);
+				}
 				if (!page.EndCursor.getParagraphCursor().isLast() || !page.EndCursor.isEndOfParagraph()) {
 					final ZLTextWordCursor startCursor = new ZLTextWordCursor();
 					switch (myScrollingMode) {
@@ -1294,6 +1408,9 @@ public abstract class ZLTextView extends ZLTextViewBase {
 				}
 				break;
 			case PaintStateEnum.TO_SCROLL_BACKWARD:
+				if (isViewPage) {
+					myPageCache.onPageServed(false);
+				}
 				if (!page.StartCursor.getParagraphCursor().isFirst() || !page.StartCursor.isStartOfParagraph()) {
 					switch (myScrollingMode) {
 						case ScrollingMode.NO_OVERLAPPING:
@@ -1333,11 +1450,22 @@ public abstract class ZLTextView extends ZLTextViewBase {
 				}
 				break;
 			case PaintStateEnum.START_IS_KNOWN:
-				buildInfos(page, page.StartCursor, page.EndCursor);
+				if (!restoreFromPageCache(page, false, isViewPage)) {
+					buildInfos(page, page.StartCursor, page.EndCursor);
+					if (isFinalLayout(page)) {
+						myPageCache.put(myModel, page.StartCursor, false, newWidth, newHeight, page);
+					}
+				}
 				break;
 			case PaintStateEnum.END_IS_KNOWN:
-				page.StartCursor.setCursor(findStart(page.EndCursor, SizeUnit.PIXEL_UNIT, getTextAreaHeight()));
-				buildInfos(page, page.StartCursor, page.EndCursor);
+				if (!restoreFromPageCache(page, true, isViewPage)) {
+					final ZLTextFixedPosition end = new ZLTextFixedPosition(page.EndCursor);
+					page.StartCursor.setCursor(findStart(page.EndCursor, SizeUnit.PIXEL_UNIT, getTextAreaHeight()));
+					buildInfos(page, page.StartCursor, page.EndCursor);
+					if (isFinalLayout(page)) {
+						myPageCache.put(myModel, end, true, newWidth, newHeight, page);
+					}
+				}
 				break;
 		}
 		page.PaintState = PaintStateEnum.READY;
@@ -1354,9 +1482,400 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 	}
 
+	// a page that ends with the available text of a growing model gets longer later
+	private boolean isFinalLayout(ZLTextPage page) {
+		return !myModel.isGrowing() || !page.EndCursor.isEndOfText();
+	}
+
+	private boolean restoreFromPageCache(ZLTextPage page, boolean byEnd, boolean isViewPage) {
+		final ZLTextPageCache.Entry entry = myPageCache.get(
+			myModel, byEnd ? page.EndCursor : page.StartCursor, byEnd, page.OldWidth, page.OldHeight
+		);
+		if (isViewPage) {
+			myPageCache.onPageServed(entry != null);
+		}
+		if (entry == null) {
+			return false;
+		}
+		page.StartCursor.setCursor(entry.StartCursor);
+		page.EndCursor.setCursor(entry.EndCursor);
+		page.LineInfos.clear();
+		page.LineInfos.addAll(entry.LineInfos);
+		return true;
+	}
+
+	// number of page layouts taken from the page cache / built on demand
+	public synchronized int getPrebuiltPagesCount() {
+		return myPageCache.getPrebuiltCount();
+	}
+
+	public synchronized int getSynchronouslyBuiltPagesCount() {
+		return myPageCache.getSynchronousCount();
+	}
+
+	private static final int PRE_LAYOUT_AHEAD = 3;
+	private static final int PRE_LAYOUT_BEHIND = 1;
+
+	private static ExecutorService ourPreLayoutExecutor;
+
+	private static synchronized ExecutorService preLayoutExecutor() {
+		if (ourPreLayoutExecutor == null) {
+			ourPreLayoutExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "PreLayout");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return ourPreLayoutExecutor;
+	}
+
+	private final ZLTextPage myPreLayoutPage = new ZLTextPage();
+	private int myPreLayoutGeneration;
+	private ZLTextFixedPosition myPreLayoutPosition;
+	private int myPreLayoutRevision = -1;
+
+	// lays out pages around the current one in background, one page per monitor
+	// acquisition; page turns then take them from the page cache
+	private void schedulePreLayout() {
+		if (myContext == null || myModel == null || myCurrentPage.PaintState != PaintStateEnum.READY) {
+			return;
+		}
+		final ZLTextFixedPosition position = new ZLTextFixedPosition(myCurrentPage.StartCursor);
+		if (position.equals(myPreLayoutPosition) && myPreLayoutRevision == myPageCache.getRevision()) {
+			return;
+		}
+		myPreLayoutPosition = position;
+		myPreLayoutRevision = myPageCache.getRevision();
+
+		final int generation = ++myPreLayoutGeneration;
+		final ZLTextWordCursor ahead = new ZLTextWordCursor(myCurrentPage.EndCursor);
+		final ZLTextWordCursor behind = new ZLTextWordCursor(myCurrentPage.StartCursor);
+		preLayoutExecutor().execute(new Runnable() {
+			public void run() {
+				boolean aheadIsPossible = true;
+				boolean behindIsPossible = true;
+				for (int i = 0; i < Math.max(PRE_LAYOUT_AHEAD, PRE_LAYOUT_BEHIND); ++i) {
+					if (aheadIsPossible && i < PRE_LAYOUT_AHEAD) {
+						aheadIsPossible = preLayoutPage(generation, ahead, false);
+					}
+					if (behindIsPossible && i < PRE_LAYOUT_BEHIND) {
+						behindIsPossible = preLayoutPage(generation, behind, true);
+					}
+					if (!aheadIsPossible && !behindIsPossible) {
+						break;
+					}
+				}
+			}
+		});
+	}
+
+	private synchronized boolean preLayoutPage(int generation, ZLTextWordCursor cursor, boolean backward) {
+		if (generation != myPreLayoutGeneration || myPreLayoutRevision != myPageCache.getRevision()) {
+			return false;
+		}
+		if (myContext == null || myModel == null) {
+			return false;
+		}
+		if (backward ? cursor.isStartOfText() : cursor.isEndOfText()) {
+			return false;
+		}
+		final ZLTextPage page = myPreLayoutPage;
+		page.reset();
+		page.OldWidth = getTextAreaWidth();
+		page.OldHeight = getTextAreaHeight();
+		if (backward) {
+			page.EndCursor.setCursor(cursor);
+			page.PaintState = PaintStateEnum.END_IS_KNOWN;
+		} else {
+			page.StartCursor.setCursor(cursor);
+			page.PaintState = PaintStateEnum.START_IS_KNOWN;
+		}
+		preparePaintInfo(page);
+		final ZLTextWordCursor next = backward ? page.StartCursor : page.EndCursor;
+		if (next.isNull() || next.samePositionAs(cursor)) {
+			return false;
+		}
+		cursor.setCursor(next);
+		return true;
+	}
+
+	private static final int PAGINATION_CHUNK = 16;
+	private static final int PAGINATION_SAVE_PERIOD = 256;
+
+	private ZLTextPaginationIndex myPaginationIndex;
+	private File myPaginationFile;
+	private int myPaginationGeneration;
+	private boolean myPaginationIsRunning;
+	// signature of the stored index being read in background, or null
+	private String myLoadingSignature;
+	private final ZLTextPage myPaginationPage = new ZLTextPage();
+	// pagination lays out lines with its own cache, the view pages keep theirs
+	private final HashMap<ZLTextLineInfo,ZLTextLineInfo> myPaginationLineInfoCache =
+		new HashMap<ZLTextLineInfo,ZLTextLineInfo>();
+
+	/*
+	 * File to keep the pagination index of the current model in, or null
+	 * if the index should not survive the model. The signature describes
+	 * the layout configuration and must be part of the file name.
+	 */
+	protected File getPaginationIndexFile(String signature) {
+		return null;
+	}
+
+	private String paginationSignature() {
+		final ZLTextBaseStyle base = ZLTextStyleCollection.Instance().getBaseStyle();
+		return
+			getTextAreaWidth() + "x" + getTextAreaHeight() + ":" +
+			base.getFontFamily() + ":" + base.getFontSize() + ":" +
+			base.getLineSpacePercent() + ":" + base.AlignmentOption.getValue() + ":" +
+			base.AutoHyphenationOption.getValue() + ":" +
+			base.isBold() + ":" + base.isItalic();
+	}
+
+	private void cancelPagination() {
+		++myPaginationGeneration;
+		myPaginationIndex = null;
+		myPaginationFile = null;
+		myPaginationIsRunning = false;
+		myLoadingSignature = null;
+	}
+
+	// returns the index if it is complete and matches the current layout
+	private ZLTextPaginationIndex completePaginationIndex() {
+		final ZLTextPaginationIndex index = myPaginationIndex;
+		if (index == null || !index.isComplete() || myContext == null) {
+			return null;
+		}
+		if (!index.Signature.equals(paginationSignature())) {
+			return null;
+		}
+		preparePaintInfo(myCurrentPage);
+		final ZLTextWordCursor start = myCurrentPage.StartCursor;
+		if (start.isNull() || myCurrentPage.EndCursor.isNull()) {
+			return null;
+		}
+		final int page = index.findPage(start);
+		if (page >= 0 && page + 1 < index.size() &&
+			start.samePositionAs(index.getPageStart(page)) &&
+			!myCurrentPage.EndCursor.samePositionAs(index.getPageStart(page + 1))) {
+			// layout depends on an option the signature does not cover
+			discardPaginationIndex();
+			return null;
+		}
+		return index;
+	}
+
+	private void discardPaginationIndex() {
+		if (myPaginationFile != null) {
+			myPaginationFile.delete();
+		}
+		cancelPagination();
+	}
+
+	// lays out the whole text in background, PAGINATION_CHUNK pages per task
+	private void schedulePagination() {
+		if (myContext == null || myModel == null || myModel.getParagraphsNumber() == 0) {
+			return;
+		}
+		if (myModel.isGrowing()) {
+			// starts on the first paint after onModelComplete()
+			return;
+		}
+		final String signature = paginationSignature();
+		if (myPaginationIndex == null || !myPaginationIndex.Signature.equals(signature)) {
+			if (signature.equals(myLoadingSignature)) {
+				return;
+			}
+			cancelPagination();
+			myLoadingSignature = signature;
+			myPaginationFile = getPaginationIndexFile(signature);
+			loadPaginationIndex(myPaginationGeneration, myPaginationFile, signature);
+			return;
+		}
+		if (myPaginationIndex.isComplete() || myPaginationIsRunning) {
+			return;
+		}
+		myPaginationIsRunning = true;
+		runPagination(myPaginationGeneration);
+	}
+
+	// reads and checks the stored index off the paint path, then goes on paginating
+	private void loadPaginationIndex(final int generation, final File file, final String signature) {
+		preLayoutExecutor().execute(new Runnable() {
+			public void run() {
+				final ZLTextPaginationIndex stored = ZLTextPaginationIndex.read(file, signature);
+				synchronized (ZLTextView.this) {
+					if (generation != myPaginationGeneration) {
+						return;
+					}
+					myLoadingSignature = null;
+					if (myContext == null || myModel == null || !signature.equals(paginationSignature())) {
+						// the next paint starts again
+						return;
+					}
+					ZLTextPaginationIndex index = stored;
+					if (index != null && !paginationIndexIsValid(index)) {
+						file.delete();
+						index = null;
+					}
+					myPaginationIndex = index != null ? index : new ZLTextPaginationIndex(signature);
+					if (!myPaginationIndex.isComplete()) {
+						myPaginationIsRunning = true;
+						runPagination(generation);
+					}
+				}
+			}
+		});
+	}
+
+	private void runPagination(final int generation) {
+		preLayoutExecutor().execute(new Runnable() {
+			public void run() {
+				for (int i = 0; i < PAGINATION_CHUNK; ++i) {
+					switch (paginateNextPage(generation)) {
+						case PAGINATION_STOPPED:
+							return;
+						case PAGINATION_FINISHED:
+							savePaginationIndex(generation);
+							return;
+						case PAGINATION_TIME_TO_SAVE:
+							savePaginationIndex(generation);
+							break;
+					}
+				}
+				// give pre-layout tasks queued meanwhile a chance to run
+				runPagination(generation);
+			}
+		});
+	}
+
+	private static final int PAGINATION_CONTINUE = 0;
+	private static final int PAGINATION_TIME_TO_SAVE = 1;
+	private static final int PAGINATION_FINISHED = 2;
+	private static final int PAGINATION_STOPPED = 3;
+
+	private synchronized int paginateNextPage(int generation) {
+		final ZLTextPaginationIndex index = myPaginationIndex;
+		if (generation != myPaginationGeneration || index == null || myContext == null) {
+			return PAGINATION_STOPPED;
+		}
+		if (!index.Signature.equals(paginationSignature())) {
+			// margins or view size changed; next paint restarts with a new signature
+			myPaginationIsRunning = false;
+			return PAGINATION_STOPPED;
+		}
+
+		final ZLTextWordCursor start;
+		if (index.size() == 0) {
+			start = new ZLTextWordCursor(ZLTextParagraphCursor.cursor(myModel, 0));
+		} else {
+			start = cursorAt(index.getResumePosition());
+		}
+		final ZLTextPage page = myPaginationPage;
+		buildPaginationPage(page, start);
+
+		final boolean isLast =
+			page.EndCursor.isNull() || page.EndCursor.isEndOfText() || page.EndCursor.samePositionAs(start);
+		index.addPage(start, page.EndCursor, isLast);
+		if (isLast) {
+			myPaginationIsRunning = false;
+			return PAGINATION_FINISHED;
+		}
+		return index.size() % PAGINATION_SAVE_PERIOD == 0 ? PAGINATION_TIME_TO_SAVE : PAGINATION_CONTINUE;
+	}
+
+	private void savePaginationIndex(int generation) {
+		final File file;
+		final byte[] data;
+		synchronized (this) {
+			if (generation != myPaginationGeneration || myPaginationFile == null || myPaginationIndex == null) {
+				return;
+			}
+			file = myPaginationFile;
+			data = myPaginationIndex.toByteArray();
+		}
+		ZLTextPaginationIndex.write(file, data);
+	}
+
+	// re-lays out the first page and a page in the middle of a stored index
+	private boolean paginationIndexIsValid(ZLTextPaginationIndex index) {
+		final int size = index.size();
+		if (size == 0) {
+			return true;
+		}
+		final int[] pages = size > 2 ? new int[] { 0, size / 2 } : new int[] { 0 };
+		for (int number : pages) {
+			final ZLTextFixedPosition start = index.getPageStart(number);
+			final ZLTextPosition expectedEnd;
+			if (number + 1 < size) {
+				expectedEnd = index.getPageStart(number + 1);
+			} else if (!index.isComplete()) {
+				expectedEnd = index.getResumePosition();
+			} else {
+				continue;
+			}
+			final ZLTextPage page = myPaginationPage;
+			buildPaginationPage(page, cursorAt(start));
+			if (!page.EndCursor.samePositionAs(expectedEnd)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void buildPaginationPage(ZLTextPage page, ZLTextWordCursor start) {
+		final HashMap<ZLTextLineInfo,ZLTextLineInfo> viewCache = myLineInfoCache;
+		myLineInfoCache = myPaginationLineInfoCache;
+		try {
+			page.reset();
+			buildInfos(page, start, page.EndCursor);
+		} finally {
+			myPaginationLineInfoCache.clear();
+			myLineInfoCache = viewCache;
+		}
+	}
+
+	private ZLTextWordCursor cursorAt(ZLTextPosition position) {
+		final ZLTextWordCursor cursor =
+			new ZLTextWordCursor(ZLTextParagraphCursor.cursor(myModel, position.getParagraphIndex()));
+		cursor.moveTo(position.getElementIndex(), position.getCharIndex());
+		return cursor;
+	}
+
+	/**
+	 * Called when a growing model has been read completely: pages laid out
+	 * against the available part are rebuilt, a search in that part is
+	 * repeated for the whole text, and pagination starts with the next paint.
+	 */
+	public void onModelComplete() {
+		synchronized (this) {
+			if (myModel == null) {
+				return;
+			}
+			rebuildPaintInfo();
+			if (myPartialSearchText != null && mySearch != null) {
+				final int hintIndex = myCurrentPage.StartCursor.isNull()
+					? 0 : myCurrentPage.StartCursor.getParagraphIndex();
+				mySearch = myModel.startSearch(
+					myPartialSearchText, 0, myModel.getParagraphsNumber(),
+					myPartialSearchIgnoreCase, hintIndex, mySearchListener
+				);
+			}
+			myPartialSearchText = null;
+		}
+		Application.getViewWidget().reset();
+		Application.getViewWidget().repaint();
+	}
+
 	public void clearCaches() {
 		resetMetrics();
 		rebuildPaintInfo();
+		synchronized (this) {
+			cancelPagination();
+		}
 		Application.getViewWidget().reset();
 		myCharWidth = -1;
 	}
@@ -1365,6 +1884,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		myPreviousPage.reset();
 		myNextPage.reset();
 		ZLTextParagraphCursorCache.clear();
+		myPageCache.invalidate();
 
 		if (myCurrentPage.PaintState != PaintStateEnum.NOTHING_TO_PAINT) {
 			myCurrentPage.LineInfos.clear();
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.ui.android.image;
+
+import java.util.*;
+
+import android.graphics.Bitmap;
+
+import org.geometerplus.zlibrary.core.view.ZLPaintContext;
+
+/**
+ * Process-wide cache of decoded images: an LRU of bitmaps limited by their
+ * size in bytes, and an LRU of image dimensions limited by their number.
+ * Evicted bitmaps are not recycled, they may still be drawn by image data
+ * objects.
+ */
+final class ImageCache {
+	static final ImageCache Instance = new ImageCache(
+		Math.min(Runtime.getRuntime().maxMemory() / 8, 16 * 1024 * 1024)
+	);
+
+	private static final int DIMENSIONS_LIMIT = 1024;
+
+	private final long myBudget;
+	private long myBytes;
+	private final LinkedHashMap<String,Bitmap> myBitmaps =
+		new LinkedHashMap<String,Bitmap>(32, .75f, true);
+	private final LinkedHashMap<String,ZLPaintContext.Size> myDimensions =
+		new LinkedHashMap<String,ZLPaintContext.Size>(32, .75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,ZLPaintContext.Size> eldest) {
+				return size() > DIMENSIONS_LIMIT;
+			}
+		};
+
+	private long myHits;
+	private long myMisses;
+
+	private ImageCache(long budget) {
+		myBudget = budget;
+	}
+
+	private static String bitmapKey(String imageKey, ZLPaintContext.Size size, ZLPaintContext.ScalingType scaling) {
+		return imageKey + "\000" + size.Width + "\000" + size.Height + "\000" + scaling;
+	}
+
+	private static long bytes(Bitmap bitmap) {
+		return (long)bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	synchronized Bitmap getBitmap(String imageKey, ZLPaintContext.Size size, ZLPaintContext.ScalingType scaling) {
+		final Bitmap bitmap = myBitmaps.get(bitmapKey(imageKey, size, scaling));
+		if (bitmap != null && !bitmap.isRecycled()) {
+			++myHits;
+			return bitmap;
+		}
+		++myMisses;
+		return null;
+	}
+
+	synchronized void putBitmap(String imageKey, ZLPaintContext.Size size, ZLPaintContext.ScalingType scaling, Bitmap bitmap) {
+		final long bytes = bytes(bitmap);
+		if (bytes > myBudget / 2) {
+			return;
+		}
+		final Bitmap old = myBitmaps.put(bitmapKey(imageKey, size, scaling), bitmap);
+		if (old != null) {
+			myBytes -= bytes(old);
+		}
+		myBytes += bytes;
+		for (Iterator<Bitmap> it = myBitmaps.values().iterator(); myBytes > myBudget && it.hasNext(); ) {
+			myBytes -= bytes(it.next());
+			it.remove();
+		}
+	}
+
+	synchronized ZLPaintContext.Size getDimensions(String imageKey) {
+		return myDimensions.get(imageKey);
+	}
+
+	synchronized void putDimensions(String imageKey, ZLPaintContext.Size dimensions) {
+		myDimensions.put(imageKey, dimensions);
+	}
+
+	synchronized void clear() {
+		myBitmaps.clear();
+		myBytes = 0;
+		myDimensions.clear();
+	}
+
+	synchronized long hits() {
+		return myHits;
+	}
+
+	synchronized long misses() {
+		return myMisses;
+	}
+
+	synchronized long bytes() {
+		return myBytes;
+	}
+}
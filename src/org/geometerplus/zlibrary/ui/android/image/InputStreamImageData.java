@@ -24,15 +24,35 @@ import java.io.IOException;
 
 import android.graphics.*;
 
-import org.geometerplus.zlibrary.core.image.ZLSingleImage;
+import org.geometerplus.zlibrary.core.filesystem.ZLPhysicalFile;
+import org.geometerplus.zlibrary.core.image.*;
 
 final class InputStreamImageData extends ZLAndroidImageData {
 	private final ZLSingleImage myImage;
+	private String myCacheKey;
 
 	InputStreamImageData(ZLSingleImage image) {
 		myImage = image;
 	}
 
+	@Override
+	protected String getCacheKey() {
+		// loadable images change their content when synchronized;
+		// names of base64-encoded images are reused by other books
+		if (!(myImage instanceof ZLFileImage)) {
+			return null;
+		}
+		// the URI is a path and offsets only: size and modification time
+		// of the book file keep a replaced or moved file from hitting stale entries
+		if (myCacheKey == null) {
+			final ZLPhysicalFile file = ((ZLFileImage)myImage).getFile().getPhysicalFile();
+			myCacheKey = file != null
+				? myImage.getURI() + "\000" + file.size() + "\000" + file.lastModified()
+				: myImage.getURI();
+		}
+		return myCacheKey;
+	}
+
 	protected Bitmap decodeWithOptions(BitmapFactory.Options options) {
 		final InputStream stream = myImage.inputStream();
 		if (stream == null) {
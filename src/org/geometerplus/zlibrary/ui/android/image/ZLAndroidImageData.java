@@ -27,6 +27,7 @@ import org.geometerplus.zlibrary.core.view.ZLPaintContext;
 
 public abstract class ZLAndroidImageData implements ZLImageData {
 	private Bitmap myBitmap;
+	private boolean myBitmapIsShared;
 	private int myRealWidth;
 	private int myRealHeight;
 	private ZLPaintContext.Size myLastRequestedSize = null;
@@ -37,6 +38,13 @@ public abstract class ZLAndroidImageData implements ZLImageData {
 
 	protected abstract Bitmap decodeWithOptions(BitmapFactory.Options options);
 
+	/**
+	 * @return key for the process-wide image cache, or null if the image is not cached
+	 */
+	protected String getCacheKey() {
+		return null;
+	}
+
 	public Bitmap getFullSizeBitmap() {
 		return getBitmap(null, ZLPaintContext.ScalingType.OriginalSize);
 	}
@@ -45,12 +53,105 @@ public abstract class ZLAndroidImageData implements ZLImageData {
 		return getBitmap(new ZLPaintContext.Size(maxWidth, maxHeight), ZLPaintContext.ScalingType.FitMaximum);
 	}
 
+	private boolean readDimensions() {
+		if (myRealWidth > 0 && myRealHeight > 0) {
+			return true;
+		}
+		final String key = getCacheKey();
+		if (key != null) {
+			final ZLPaintContext.Size dimensions = ImageCache.Instance.getDimensions(key);
+			if (dimensions != null) {
+				myRealWidth = dimensions.Width;
+				myRealHeight = dimensions.Height;
+				return true;
+			}
+		}
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		decodeWithOptions(options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return false;
+		}
+		myRealWidth = options.outWidth;
+		myRealHeight = options.outHeight;
+		if (key != null) {
+			ImageCache.Instance.putDimensions(key, new ZLPaintContext.Size(myRealWidth, myRealHeight));
+		}
+		return true;
+	}
+
+	private int sampleSize(ZLPaintContext.Size maxSize, ZLPaintContext.ScalingType scaling) {
+		int coefficient = 1;
+		if (scaling == ZLPaintContext.ScalingType.IntegerCoefficient) {
+			if (myRealHeight > maxSize.Height || myRealWidth > maxSize.Width) {
+				coefficient = 1 + Math.max(
+					(myRealHeight - 1) / maxSize.Height,
+					(myRealWidth - 1) / maxSize.Width
+				);
+			}
+		}
+		// decoders round the sample size down to a power of 2 anyway
+		return Integer.highestOneBit(coefficient);
+	}
+
+	private static ZLPaintContext.Size fit(int width, int height, ZLPaintContext.Size maxSize) {
+		final int w, h;
+		if (width * maxSize.Height > height * maxSize.Width) {
+			w = maxSize.Width;
+			h = Math.max(1, height * w / width);
+		} else {
+			h = maxSize.Height;
+			w = Math.max(1, width * h / height);
+		}
+		return new ZLPaintContext.Size(w, h);
+	}
+
+	private ZLPaintContext.Size scaledSize(ZLPaintContext.Size maxSize, ZLPaintContext.ScalingType scaling) {
+		switch (scaling) {
+			default:
+			case OriginalSize:
+				return new ZLPaintContext.Size(myRealWidth, myRealHeight);
+			case FitMaximum:
+				if (myRealWidth != maxSize.Width && myRealHeight != maxSize.Height) {
+					return fit(myRealWidth, myRealHeight, maxSize);
+				}
+				return new ZLPaintContext.Size(myRealWidth, myRealHeight);
+			case IntegerCoefficient:
+			{
+				final int sample = sampleSize(maxSize, scaling);
+				final int width = (myRealWidth + sample - 1) / sample;
+				final int height = (myRealHeight + sample - 1) / sample;
+				if (width > maxSize.Width || height > maxSize.Height) {
+					return fit(width, height, maxSize);
+				}
+				return new ZLPaintContext.Size(width, height);
+			}
+		}
+	}
+
+	/**
+	 * Size of the getBitmap(maxSize, scaling) result, computed without decoding the image.
+	 */
+	public synchronized ZLPaintContext.Size getSize(ZLPaintContext.Size maxSize, ZLPaintContext.ScalingType scaling) {
+		if (scaling != ZLPaintContext.ScalingType.OriginalSize) {
+			if (maxSize == null || maxSize.Width <= 0 || maxSize.Height <= 0) {
+				return null;
+			}
+		}
+		if (!readDimensions()) {
+			return null;
+		}
+		return scaledSize(maxSize, scaling);
+	}
+
 	public synchronized Bitmap getBitmap(ZLPaintContext.Size maxSize, ZLPaintContext.ScalingType scaling) {
 		if (scaling != ZLPaintContext.ScalingType.OriginalSize) {
 			if (maxSize == null || maxSize.Width <= 0 || maxSize.Height <= 0) {
 				return null;
 			}
 		}
+		// full size bitmaps are not shared: their users recycle them
+		final String key = maxSize != null ? getCacheKey() : null;
 		if (maxSize == null) {
 			maxSize = new ZLPaintContext.Size(-1, -1);
 		}
@@ -59,79 +160,43 @@ public abstract class ZLAndroidImageData implements ZLImageData {
 			myLastRequestedScaling = scaling;
 
 			if (myBitmap != null) {
-				myBitmap.recycle();
+				if (!myBitmapIsShared) {
+					myBitmap.recycle();
+				}
 				myBitmap = null;
+				myBitmapIsShared = false;
 			}
-			try {
-				final BitmapFactory.Options options = new BitmapFactory.Options();
-				if (myRealWidth <= 0) {
-					options.inJustDecodeBounds = true;
-					decodeWithOptions(options);
-					myRealWidth = options.outWidth;
-					myRealHeight = options.outHeight;
+			if (key != null) {
+				myBitmap = ImageCache.Instance.getBitmap(key, maxSize, scaling);
+				if (myBitmap != null) {
+					myBitmapIsShared = true;
+					return myBitmap;
 				}
-				options.inJustDecodeBounds = false;
-				int coefficient = 1;
-				if (scaling == ZLPaintContext.ScalingType.IntegerCoefficient) {
-					if (myRealHeight > maxSize.Height || myRealWidth > maxSize.Width) {
-						coefficient = 1 + Math.max(
-							(myRealHeight - 1) / maxSize.Height,
-							(myRealWidth - 1) / maxSize.Width
-						);
-					}
+			}
+			try {
+				if (!readDimensions()) {
+					return null;
 				}
-				options.inSampleSize = coefficient;
-				myBitmap = decodeWithOptions(options);
-				if (myBitmap != null) {
-					switch (scaling) {
-						case OriginalSize:
-							break;
-						case FitMaximum:
-						{
-							final int bWidth = myBitmap.getWidth();
-							final int bHeight = myBitmap.getHeight();
-							if (bWidth > 0 && bHeight > 0 &&
-								bWidth != maxSize.Width && bHeight != maxSize.Height) {
-								final int w, h;
-								if (bWidth * maxSize.Height > bHeight * maxSize.Width) {
-									w = maxSize.Width;
-									h = Math.max(1, bHeight * w / bWidth);
-								} else {
-									h = maxSize.Height;
-									w = Math.max(1, bWidth * h / bHeight);
-								}
-								final Bitmap scaled =
-									Bitmap.createScaledBitmap(myBitmap, w, h, false);
-								if (scaled != null) {
-									myBitmap = scaled;
-								}
-							}
-							break;
-						}
-						case IntegerCoefficient:
-						{
-							final int bWidth = myBitmap.getWidth();
-							final int bHeight = myBitmap.getHeight();
-							if (bWidth > 0 && bHeight > 0 &&
-								(bWidth > maxSize.Width || bHeight > maxSize.Height)) {
-								final int w, h;
-								if (bWidth * maxSize.Height > bHeight * maxSize.Width) {
-									w = maxSize.Width;
-									h = Math.max(1, bHeight * w / bWidth);
-								} else {
-									h = maxSize.Height;
-									w = Math.max(1, bWidth * h / bHeight);
-								}
-								final Bitmap scaled =
-									Bitmap.createScaledBitmap(myBitmap, w, h, false);
-								if (scaled != null) {
-									myBitmap = scaled;
-								}
-							}
-							break;
+				final BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inSampleSize = sampleSize(maxSize, scaling);
+				Bitmap bitmap = decodeWithOptions(options);
+				if (bitmap != null) {
+					// the same size as getSize() reported to layout
+					final ZLPaintContext.Size size = scaledSize(maxSize, scaling);
+					if (bitmap.getWidth() != size.Width || bitmap.getHeight() != size.Height) {
+						final Bitmap scaled =
+							Bitmap.createScaledBitmap(bitmap, size.Width, size.Height, false);
+						if (scaled != null && scaled != bitmap) {
+							bitmap.recycle();
+							bitmap = scaled;
 						}
 					}
 				}
+				myBitmap = bitmap;
+				if (key != null && bitmap != null) {
+					ImageCache.Instance.putBitmap(key, maxSize, scaling, bitmap);
+					myBitmapIsShared = true;
+				}
 			} catch (OutOfMemoryError e) {
 				e.printStackTrace();
 			}
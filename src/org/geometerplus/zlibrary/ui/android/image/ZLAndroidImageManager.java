@@ -37,6 +37,22 @@ public final class ZLAndroidImageManager extends ZLImageManager {
 		}
 	}
 
+	public long getCacheHits() {
+		return ImageCache.Instance.hits();
+	}
+
+	public long getCacheMisses() {
+		return ImageCache.Instance.misses();
+	}
+
+	public long getCacheBytes() {
+		return ImageCache.Instance.bytes();
+	}
+
+	public void clearCache() {
+		ImageCache.Instance.clear();
+	}
+
 	private ZLAndroidImageLoader myLoader;
 
 	@Override
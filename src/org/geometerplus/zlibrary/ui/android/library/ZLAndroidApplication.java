@@ -19,10 +19,14 @@
 
 package org.geometerplus.zlibrary.ui.android.library;
 
+import android.app.ActivityManager;
 import android.app.Application;
+import android.content.Context;
 
 import org.geometerplus.zlibrary.core.sqliteconfig.ZLSQLiteConfig;
 
+import org.geometerplus.zlibrary.text.model.CharStorageCache;
+
 import org.geometerplus.zlibrary.ui.android.application.ZLAndroidApplicationWindow;
 import org.geometerplus.zlibrary.ui.android.image.ZLAndroidImageManager;
 
@@ -35,5 +39,10 @@ public abstract class ZLAndroidApplication extends Application {
 		new ZLSQLiteConfig(this);
 		new ZLAndroidImageManager();
 		new ZLAndroidLibrary(this);
+
+		// 1/16 of the heap: 1M for 16M devices, 4M for 64M devices
+		final int memoryClass =
+			((ActivityManager)getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+		CharStorageCache.setBudget(memoryClass * 1024L * 1024L / 16);
 	}
 }
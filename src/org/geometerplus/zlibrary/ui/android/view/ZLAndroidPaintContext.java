@@ -232,7 +232,7 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 	}
 	
 	@Override
-	public int getStringWidth(char[] string, int offset, int length) {
+	protected int getStringWidthInternal(char[] string, int offset, int length) {
 		boolean containsSoftHyphen = false;
 		for (int i = offset; i < offset + length; ++i) {
 			if (string[i] == (char)0xAD) {
@@ -254,6 +254,32 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 			return (int)(myTextPaint.measureText(corrected, 0, len) + 0.5f);
 		}
 	}
+
+	@Override
+	protected boolean getCharWidthsInternal(char[] chars, float[] widths) {
+		if ((myTextPaint.getFlags() & Paint.DEV_KERN_TEXT_FLAG) != 0) {
+			// kerning pairs are not in per-char advances
+			return false;
+		}
+		myTextPaint.getTextWidths(chars, 0, chars.length, widths);
+		for (int i = 0; i < chars.length; ++i) {
+			if (chars[i] == (char)0xAD) {
+				widths[i] = 0;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected int getTextFlags() {
+		return myTextPaint.getFlags() & (
+			Paint.ANTI_ALIAS_FLAG |
+			Paint.DEV_KERN_TEXT_FLAG |
+			Paint.LINEAR_TEXT_FLAG |
+			Paint.SUBPIXEL_TEXT_FLAG
+		);
+	}
+
 	@Override
 	protected int getSpaceWidthInternal() {
 		return (int)(myTextPaint.measureText(" ", 0, 1) + 0.5f);
@@ -292,9 +318,7 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 
 	@Override
 	public Size imageSize(ZLImageData imageData, Size maxSize, ScalingType scaling) {
-		final Bitmap bitmap = ((ZLAndroidImageData)imageData).getBitmap(maxSize, scaling);
-		return (bitmap != null && !bitmap.isRecycled())
-			? new Size(bitmap.getWidth(), bitmap.getHeight()) : null;
+		return ((ZLAndroidImageData)imageData).getSize(maxSize, scaling);
 	}
 
 	@Override